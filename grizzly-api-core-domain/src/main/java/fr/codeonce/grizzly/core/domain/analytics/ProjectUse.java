@@ -16,6 +16,7 @@
 package fr.codeonce.grizzly.core.domain.analytics;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.Date;
@@ -26,6 +27,7 @@ public class ProjectUse {
     @Id
     private String id;
 
+    @Indexed(name = "idx_project_use_project")
     private String projectId;
     private String userEmail;
     private Date useDate;
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.domain.analytics;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Number of runtime requests of a container endpoint during a minute, an hour or a day
+ */
+@Document
+@CompoundIndexes({
+        @CompoundIndex(name = "idx_request_bucket", def = "{'containerId': 1, 'granularity': 1, 'bucket': 1, 'path': 1, 'method': 1, 'status': 1}", unique = true)})
+public class RequestBucket {
+
+    public enum Granularity {
+
+        MINUTE(60_000L), HOUR(3_600_000L), DAY(86_400_000L);
+
+        private final long millis;
+
+        Granularity(long millis) {
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @param time in milliseconds
+         * @return the start of the bucket holding the given time
+         */
+        public Date truncate(long time) {
+            return new Date(time - Math.floorMod(time, millis));
+        }
+    }
+
+    @Id
+    private String id;
+
+    private String containerId;
+
+    private Granularity granularity;
+
+    private Date bucket;
+
+    private String path;
+
+    private String method;
+
+    private int status;
+
+    private long count;
+
+    // Only set on the minute buckets, the rollups are kept
+    @Indexed(name = "idx_request_bucket_ttl", expireAfterSeconds = 0)
+    private Date expireAt;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContainerId() {
+        return containerId;
+    }
+
+    public void setContainerId(String containerId) {
+        this.containerId = containerId;
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
+    public void setGranularity(Granularity granularity) {
+        this.granularity = granularity;
+    }
+
+    public Date getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(Date bucket) {
+        this.bucket = bucket;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public Date getExpireAt() {
+        return expireAt;
+    }
+
+    public void setExpireAt(Date expireAt) {
+        this.expireAt = expireAt;
+    }
+
+}
@@ -19,6 +19,8 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 @ConfigurationProperties(prefix = "app", ignoreUnknownFields = false)
@@ -28,6 +30,23 @@ public class AppProperties {
 
     private Cache cache = new Cache();
     private Saxon saxon = new Saxon();
+    private LocalCache routing = new LocalCache();
+    private LocalCache runtimeResources = new LocalCache();
+    private RequestCount requestCount = new RequestCount();
+    private StorageUsage storageUsage = new StorageUsage();
+    private ProjectUse projectUse = new ProjectUse();
+    private SqlPool sqlPool = new SqlPool();
+    private SqlSchemas sqlSchemas = new SqlSchemas();
+    private CsvImport csvImport = new CsvImport();
+    private LocalCache swaggerSpecs = new LocalCache();
+    private LocalCache swaggerConversions = new LocalCache();
+    private FileImport fileImport = new FileImport();
+    private FileExport fileExport = new FileExport();
+    private StaticFiles staticFiles = new StaticFiles();
+    private Clients clients = new Clients();
+    private RequestModels requestModels = new RequestModels();
+    private CollectionSchemas collectionSchemas = new CollectionSchemas();
+    private MongoCatalogs mongoCatalogs = new MongoCatalogs();
 
     public Cache getCache() {
         return cache;
@@ -45,6 +64,142 @@ public class AppProperties {
         this.saxon = saxon;
     }
 
+    public LocalCache getRouting() {
+        return routing;
+    }
+
+    public void setRouting(LocalCache routing) {
+        this.routing = routing;
+    }
+
+    public LocalCache getRuntimeResources() {
+        return runtimeResources;
+    }
+
+    public void setRuntimeResources(LocalCache runtimeResources) {
+        this.runtimeResources = runtimeResources;
+    }
+
+    public RequestCount getRequestCount() {
+        return requestCount;
+    }
+
+    public void setRequestCount(RequestCount requestCount) {
+        this.requestCount = requestCount;
+    }
+
+    public StorageUsage getStorageUsage() {
+        return storageUsage;
+    }
+
+    public void setStorageUsage(StorageUsage storageUsage) {
+        this.storageUsage = storageUsage;
+    }
+
+    public ProjectUse getProjectUse() {
+        return projectUse;
+    }
+
+    public void setProjectUse(ProjectUse projectUse) {
+        this.projectUse = projectUse;
+    }
+
+    public SqlPool getSqlPool() {
+        return sqlPool;
+    }
+
+    public void setSqlPool(SqlPool sqlPool) {
+        this.sqlPool = sqlPool;
+    }
+
+    public SqlSchemas getSqlSchemas() {
+        return sqlSchemas;
+    }
+
+    public void setSqlSchemas(SqlSchemas sqlSchemas) {
+        this.sqlSchemas = sqlSchemas;
+    }
+
+    public CsvImport getCsvImport() {
+        return csvImport;
+    }
+
+    public void setCsvImport(CsvImport csvImport) {
+        this.csvImport = csvImport;
+    }
+
+    public LocalCache getSwaggerSpecs() {
+        return swaggerSpecs;
+    }
+
+    public void setSwaggerSpecs(LocalCache swaggerSpecs) {
+        this.swaggerSpecs = swaggerSpecs;
+    }
+
+    public LocalCache getSwaggerConversions() {
+        return swaggerConversions;
+    }
+
+    public void setSwaggerConversions(LocalCache swaggerConversions) {
+        this.swaggerConversions = swaggerConversions;
+    }
+
+    public FileImport getFileImport() {
+        return fileImport;
+    }
+
+    public void setFileImport(FileImport fileImport) {
+        this.fileImport = fileImport;
+    }
+
+    public FileExport getFileExport() {
+        return fileExport;
+    }
+
+    public void setFileExport(FileExport fileExport) {
+        this.fileExport = fileExport;
+    }
+
+    public StaticFiles getStaticFiles() {
+        return staticFiles;
+    }
+
+    public void setStaticFiles(StaticFiles staticFiles) {
+        this.staticFiles = staticFiles;
+    }
+
+    public Clients getClients() {
+        return clients;
+    }
+
+    public void setClients(Clients clients) {
+        this.clients = clients;
+    }
+
+    public RequestModels getRequestModels() {
+        return requestModels;
+    }
+
+    public void setRequestModels(RequestModels requestModels) {
+        this.requestModels = requestModels;
+    }
+
+    public CollectionSchemas getCollectionSchemas() {
+        return collectionSchemas;
+    }
+
+    public void setCollectionSchemas(CollectionSchemas collectionSchemas) {
+        this.collectionSchemas = collectionSchemas;
+    }
+
+    public MongoCatalogs getMongoCatalogs() {
+        return mongoCatalogs;
+    }
+
+    public void setMongoCatalogs(MongoCatalogs mongoCatalogs) {
+        this.mongoCatalogs = mongoCatalogs;
+    }
+
     public static class Saxon {
         private boolean hasLicense;
 
@@ -107,4 +262,693 @@ public class AppProperties {
 
     }
 
+    public static class LocalCache {
+
+        private long maximumSize = 1000;
+
+        private long expireAfterWrite = 10;
+
+        private TimeUnit timeUnit = TimeUnit.MINUTES;
+
+        public long getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(long maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public long getExpireAfterWrite() {
+            return expireAfterWrite;
+        }
+
+        public void setExpireAfterWrite(long expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+        }
+
+        public TimeUnit getTimeUnit() {
+            return timeUnit;
+        }
+
+        public void setTimeUnit(TimeUnit timeUnit) {
+            this.timeUnit = timeUnit;
+        }
+
+    }
+
+    /**
+     * Snapshots of the SQL datasources tables : expireAfterWrite is the age after which a snapshot is read again
+     * in the background, the stale one being served meanwhile
+     */
+    public static class SqlSchemas extends LocalCache {
+
+        // Threads reading the schemas of the remote servers
+        private int refreshThreads = 2;
+
+        // Refreshes waiting for a thread, the others are retried on the next read
+        private int refreshQueueCapacity = 200;
+
+        // Seconds after which a failed read is retried, instead of waiting for expireAfterWrite
+        private long retryAfterFailure = 30;
+
+        public int getRefreshThreads() {
+            return refreshThreads;
+        }
+
+        public void setRefreshThreads(int refreshThreads) {
+            this.refreshThreads = refreshThreads;
+        }
+
+        public int getRefreshQueueCapacity() {
+            return refreshQueueCapacity;
+        }
+
+        public void setRefreshQueueCapacity(int refreshQueueCapacity) {
+            this.refreshQueueCapacity = refreshQueueCapacity;
+        }
+
+        public long getRetryAfterFailure() {
+            return retryAfterFailure;
+        }
+
+        public void setRetryAfterFailure(long retryAfterFailure) {
+            this.retryAfterFailure = retryAfterFailure;
+        }
+
+    }
+
+    public static class RequestCount {
+
+        // Milliseconds between two flushes of the pending counters
+        private long flushInterval = 5000;
+
+        // Pending counters (one per container endpoint and minute) above which a flush is triggered early, no new
+        // counter is added above twice as many until it drains them
+        private int maxCounters = 10000;
+
+        // Hours before the per-minute request buckets expire, the hourly and daily rollups are kept
+        private long minuteBucketRetention = 48;
+
+        public long getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(long flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public int getMaxCounters() {
+            return maxCounters;
+        }
+
+        public void setMaxCounters(int maxCounters) {
+            this.maxCounters = maxCounters;
+        }
+
+        public long getMinuteBucketRetention() {
+            return minuteBucketRetention;
+        }
+
+        public void setMinuteBucketRetention(long minuteBucketRetention) {
+            this.minuteBucketRetention = minuteBucketRetention;
+        }
+
+    }
+
+    public static class StorageUsage {
+
+        // Milliseconds between two background refreshes of the users storage
+        private long refreshInterval = 60000;
+
+        // Milliseconds after which a storage usage is recomputed before being used for a limit check
+        private long maxStaleness = 300000;
+
+        private long maximumSize = 10000;
+
+        // Minutes without a read after which a user is no longer refreshed
+        private long expireAfterAccess = 60;
+
+        // Threads and queue of the pool collecting the datasources stats in parallel
+        private int statsThreads = 8;
+
+        private int statsQueueCapacity = 200;
+
+        // Milliseconds given to each datasource to answer before being reported as unavailable
+        private long statsTimeout = 10000;
+
+        public long getRefreshInterval() {
+            return refreshInterval;
+        }
+
+        public void setRefreshInterval(long refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+
+        public long getMaxStaleness() {
+            return maxStaleness;
+        }
+
+        public void setMaxStaleness(long maxStaleness) {
+            this.maxStaleness = maxStaleness;
+        }
+
+        public long getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(long maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public long getExpireAfterAccess() {
+            return expireAfterAccess;
+        }
+
+        public void setExpireAfterAccess(long expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+        }
+
+        public int getStatsThreads() {
+            return statsThreads;
+        }
+
+        public void setStatsThreads(int statsThreads) {
+            this.statsThreads = statsThreads;
+        }
+
+        public int getStatsQueueCapacity() {
+            return statsQueueCapacity;
+        }
+
+        public void setStatsQueueCapacity(int statsQueueCapacity) {
+            this.statsQueueCapacity = statsQueueCapacity;
+        }
+
+        public long getStatsTimeout() {
+            return statsTimeout;
+        }
+
+        public void setStatsTimeout(long statsTimeout) {
+            this.statsTimeout = statsTimeout;
+        }
+
+    }
+
+    public static class ProjectUse {
+
+        // Milliseconds between two reconciliations of the recently used projects
+        private long reconcileInterval = 300000;
+
+        // Milliseconds after which the lease of the reconciliation expires if its instance died
+        private long lockAtMostFor = 600000;
+
+        // Milliseconds during which the lease is kept, so that the other instances skip their next run
+        private long lockAtLeastFor = 240000;
+
+        public long getReconcileInterval() {
+            return reconcileInterval;
+        }
+
+        public void setReconcileInterval(long reconcileInterval) {
+            this.reconcileInterval = reconcileInterval;
+        }
+
+        public long getLockAtMostFor() {
+            return lockAtMostFor;
+        }
+
+        public void setLockAtMostFor(long lockAtMostFor) {
+            this.lockAtMostFor = lockAtMostFor;
+        }
+
+        public long getLockAtLeastFor() {
+            return lockAtLeastFor;
+        }
+
+        public void setLockAtLeastFor(long lockAtLeastFor) {
+            this.lockAtLeastFor = lockAtLeastFor;
+        }
+
+    }
+
+    public static class SqlPool {
+
+        // Open pools, one per SQL datasource
+        private long maximumPools = 500;
+
+        // Minutes without a borrow after which a pool is closed
+        private long expireAfterAccess = 30;
+
+        // Connections of a single datasource, so that a tenant cannot exhaust its database or ours
+        private int maximumPoolSize = 5;
+
+        private int minimumIdle = 0;
+
+        // Milliseconds, see the HikariCP settings of the same name
+        private long idleTimeout = 60000;
+
+        private long connectionTimeout = 5000;
+
+        private long maxLifetime = 1800000;
+
+        // Milliseconds after which a connection not returned to its pool is logged as a leak, 0 to disable
+        private long leakDetectionThreshold = 30000;
+
+        // Milliseconds before an evicted pool is closed, for the queries still holding its connections
+        private long closeDelay = 60000;
+
+        public long getMaximumPools() {
+            return maximumPools;
+        }
+
+        public void setMaximumPools(long maximumPools) {
+            this.maximumPools = maximumPools;
+        }
+
+        public long getExpireAfterAccess() {
+            return expireAfterAccess;
+        }
+
+        public void setExpireAfterAccess(long expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+        }
+
+        public int getMaximumPoolSize() {
+            return maximumPoolSize;
+        }
+
+        public void setMaximumPoolSize(int maximumPoolSize) {
+            this.maximumPoolSize = maximumPoolSize;
+        }
+
+        public int getMinimumIdle() {
+            return minimumIdle;
+        }
+
+        public void setMinimumIdle(int minimumIdle) {
+            this.minimumIdle = minimumIdle;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public long getConnectionTimeout() {
+            return connectionTimeout;
+        }
+
+        public void setConnectionTimeout(long connectionTimeout) {
+            this.connectionTimeout = connectionTimeout;
+        }
+
+        public long getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        public void setMaxLifetime(long maxLifetime) {
+            this.maxLifetime = maxLifetime;
+        }
+
+        public long getLeakDetectionThreshold() {
+            return leakDetectionThreshold;
+        }
+
+        public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+            this.leakDetectionThreshold = leakDetectionThreshold;
+        }
+
+        public long getCloseDelay() {
+            return closeDelay;
+        }
+
+        public void setCloseDelay(long closeDelay) {
+            this.closeDelay = closeDelay;
+        }
+
+    }
+
+    public static class CsvImport {
+
+        // Rows per unordered bulk insert
+        private int batchSize = 5000;
+
+        // Batches written concurrently for a single file, the parsing waits beyond
+        private int maxBatchesInFlight = 2;
+
+        // Threads writing the batches, shared by all the imports
+        private int writeThreads = 4;
+
+        // Batches between two progress logs
+        private int progressInterval = 20;
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public int getMaxBatchesInFlight() {
+            return maxBatchesInFlight;
+        }
+
+        public void setMaxBatchesInFlight(int maxBatchesInFlight) {
+            this.maxBatchesInFlight = maxBatchesInFlight;
+        }
+
+        public int getWriteThreads() {
+            return writeThreads;
+        }
+
+        public void setWriteThreads(int writeThreads) {
+            this.writeThreads = writeThreads;
+        }
+
+        public int getProgressInterval() {
+            return progressInterval;
+        }
+
+        public void setProgressInterval(int progressInterval) {
+            this.progressInterval = progressInterval;
+        }
+
+    }
+
+    public static class FileImport {
+
+        // Threads storing the imported files in GridFS, shared by all the imports
+        private int uploadThreads = 4;
+
+        // Files stored concurrently for a single import, the reading waits beyond
+        private int maxUploadsInFlight = 16;
+
+        // Size of the GridFS chunks, the driver default is 255 KB
+        private int chunkSize = 261120;
+
+        // Zip entries up to this size are buffered to be stored in parallel, the larger ones are streamed
+        private int maxBufferedEntrySize = 8388608;
+
+        // Files between two progress logs
+        private int progressInterval = 200;
+
+        public int getUploadThreads() {
+            return uploadThreads;
+        }
+
+        public void setUploadThreads(int uploadThreads) {
+            this.uploadThreads = uploadThreads;
+        }
+
+        public int getMaxUploadsInFlight() {
+            return maxUploadsInFlight;
+        }
+
+        public void setMaxUploadsInFlight(int maxUploadsInFlight) {
+            this.maxUploadsInFlight = maxUploadsInFlight;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public int getMaxBufferedEntrySize() {
+            return maxBufferedEntrySize;
+        }
+
+        public void setMaxBufferedEntrySize(int maxBufferedEntrySize) {
+            this.maxBufferedEntrySize = maxBufferedEntrySize;
+        }
+
+        public int getProgressInterval() {
+            return progressInterval;
+        }
+
+        public void setProgressInterval(int progressInterval) {
+            this.progressInterval = progressInterval;
+        }
+
+    }
+
+    public static class FileExport {
+
+        // Threads reading the exported files from GridFS, shared by all the exports
+        private int prefetchThreads = 4;
+
+        // Files read ahead of the one being written to the zip, for a single export
+        private int prefetchWindow = 8;
+
+        // Files up to this size are read ahead in memory, the larger ones are streamed when their turn comes
+        private int maxPrefetchedFileSize = 8388608;
+
+        public int getPrefetchThreads() {
+            return prefetchThreads;
+        }
+
+        public void setPrefetchThreads(int prefetchThreads) {
+            this.prefetchThreads = prefetchThreads;
+        }
+
+        public int getPrefetchWindow() {
+            return prefetchWindow;
+        }
+
+        public void setPrefetchWindow(int prefetchWindow) {
+            this.prefetchWindow = prefetchWindow;
+        }
+
+        public int getMaxPrefetchedFileSize() {
+            return maxPrefetchedFileSize;
+        }
+
+        public void setMaxPrefetchedFileSize(int maxPrefetchedFileSize) {
+            this.maxPrefetchedFileSize = maxPrefetchedFileSize;
+        }
+
+    }
+
+    public static class StaticFiles {
+
+        // Total size of the small files kept in memory, in bytes
+        private long maximumWeight = 67108864;
+
+        // Larger files are always streamed from GridFS
+        private int maxCachedFileSize = 1048576;
+
+        // In minutes
+        private long expireAfterAccess = 30;
+
+        // Containers whose GridFS bucket is resolved, evicted when the container or its datasource changes
+        private long maximumLocations = 1000;
+
+        // In minutes, bounds the use of a datasource changed without a published eviction
+        private long locationsExpireAfterWrite = 10;
+
+        public long getMaximumWeight() {
+            return maximumWeight;
+        }
+
+        public void setMaximumWeight(long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+        }
+
+        public int getMaxCachedFileSize() {
+            return maxCachedFileSize;
+        }
+
+        public void setMaxCachedFileSize(int maxCachedFileSize) {
+            this.maxCachedFileSize = maxCachedFileSize;
+        }
+
+        public long getExpireAfterAccess() {
+            return expireAfterAccess;
+        }
+
+        public void setExpireAfterAccess(long expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+        }
+
+        public long getMaximumLocations() {
+            return maximumLocations;
+        }
+
+        public void setMaximumLocations(long maximumLocations) {
+            this.maximumLocations = maximumLocations;
+        }
+
+        public long getLocationsExpireAfterWrite() {
+            return locationsExpireAfterWrite;
+        }
+
+        public void setLocationsExpireAfterWrite(long locationsExpireAfterWrite) {
+            this.locationsExpireAfterWrite = locationsExpireAfterWrite;
+        }
+
+    }
+
+    public static class Clients {
+
+        // Delay before an evicted client is closed, for the requests still using it. In milliseconds
+        private long closeDelay = 60000;
+
+        // Sizing per provider (mongo, elastic, couchbase, kafka, bigquery), the others use the defaults
+        private Map<String, ClientCache> providers = new HashMap<>();
+
+        private ClientCache defaults = new ClientCache();
+
+        public long getCloseDelay() {
+            return closeDelay;
+        }
+
+        public void setCloseDelay(long closeDelay) {
+            this.closeDelay = closeDelay;
+        }
+
+        public Map<String, ClientCache> getProviders() {
+            return providers;
+        }
+
+        public void setProviders(Map<String, ClientCache> providers) {
+            this.providers = providers;
+        }
+
+        public ClientCache getDefaults() {
+            return defaults;
+        }
+
+        public void setDefaults(ClientCache defaults) {
+            this.defaults = defaults;
+        }
+
+        public ClientCache getProvider(String provider) {
+            return providers != null && providers.containsKey(provider) ? providers.get(provider) : defaults;
+        }
+
+    }
+
+    public static class ClientCache {
+
+        private long maximumSize = 200;
+
+        // In minutes
+        private long expireAfterAccess = 60;
+
+        public long getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(long maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public long getExpireAfterAccess() {
+            return expireAfterAccess;
+        }
+
+        public void setExpireAfterAccess(long expireAfterAccess) {
+            this.expireAfterAccess = expireAfterAccess;
+        }
+
+    }
+
+    public static class RequestModels extends LocalCache {
+
+        // Threads generating the request model sources of a container save, the caller runs them when all busy
+        private int generationThreads = 4;
+
+        private int generationQueueCapacity = 100;
+
+        public int getGenerationThreads() {
+            return generationThreads;
+        }
+
+        public void setGenerationThreads(int generationThreads) {
+            this.generationThreads = generationThreads;
+        }
+
+        public int getGenerationQueueCapacity() {
+            return generationQueueCapacity;
+        }
+
+        public void setGenerationQueueCapacity(int generationQueueCapacity) {
+            this.generationQueueCapacity = generationQueueCapacity;
+        }
+
+    }
+
+    /**
+     * Field names, types and frequencies of the Mongo collections, inferred from a random sample of their
+     * documents
+     */
+    public static class CollectionSchemas extends LocalCache {
+
+        private int sampleSize = 1000;
+
+        // Levels of embedded documents whose fields are listed, 1 for the top-level fields only
+        private int maxDepth = 3;
+
+        private long maxTime = 10000;
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public void setSampleSize(int sampleSize) {
+            this.sampleSize = sampleSize;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public void setMaxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+        }
+
+        public long getMaxTime() {
+            return maxTime;
+        }
+
+        public void setMaxTime(long maxTime) {
+            this.maxTime = maxTime;
+        }
+
+    }
+
+    /**
+     * Databases and collection names of the Mongo datasources, listed on the datasource page
+     */
+    public static class MongoCatalogs extends LocalCache {
+
+        // Threads listing the collections of the databases of a datasource, the caller runs them when all busy
+        private int listingThreads = 8;
+
+        private int listingQueueCapacity = 200;
+
+        public int getListingThreads() {
+            return listingThreads;
+        }
+
+        public void setListingThreads(int listingThreads) {
+            this.listingThreads = listingThreads;
+        }
+
+        public int getListingQueueCapacity() {
+            return listingQueueCapacity;
+        }
+
+        public void setListingQueueCapacity(int listingQueueCapacity) {
+            this.listingQueueCapacity = listingQueueCapacity;
+        }
+
+    }
+
 }
@@ -24,6 +24,7 @@ import fr.codeonce.grizzly.core.domain.resource.ResourceParameter;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -53,6 +54,8 @@ public class Container {
 
     private List<ResourceGroup> resourceGroups = new ArrayList<>();
 
+    // Stored in the container_resource collection, loaded on first access
+    @Transient
     private List<Resource> resources = new ArrayList<>();
 
     private List<EndpointModel> endpointModels = new ArrayList<>();
@@ -19,6 +19,7 @@ import fr.codeonce.grizzly.common.runtime.Provider;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.io.Serializable;
@@ -44,6 +45,7 @@ public class DBSource implements Serializable {
 
     private String database;
 
+    @Indexed(name = "idx_datasource_email")
     private String userEmail;
 
     private String username;
@@ -74,6 +76,7 @@ public class DBSource implements Serializable {
 
     private boolean secured;
 
+    @Indexed(name = "idx_datasource_teams")
     private List<String> teamIds = new ArrayList<>();
 
     private List<CustomDatabase> databases = new ArrayList<>();
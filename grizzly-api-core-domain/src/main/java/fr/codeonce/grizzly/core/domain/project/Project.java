@@ -44,6 +44,7 @@ public class Project {
     private Date creationTime;
 
     @LastModifiedDate
+    @Indexed(name = "idx_project_last_update")
     private Date lastUpdate;
 
     @Indexed
@@ -55,6 +56,7 @@ public class Project {
 
     private List<String> roles = new ArrayList<>();
 
+    @Indexed(name = "idx_project_teams")
     private List<String> teamIds = new ArrayList<>();
 
     private String type;
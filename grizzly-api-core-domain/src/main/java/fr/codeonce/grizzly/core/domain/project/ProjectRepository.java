@@ -18,6 +18,7 @@ package fr.codeonce.grizzly.core.domain.project;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
@@ -48,4 +49,6 @@ public interface ProjectRepository extends MongoRepository<Project, String> {
 
     List<Project> findAllByAuthMSRuntimeURL(String authMSRuntimeURL);
 
+    List<Project> findByLastUpdateAfter(Date date);
+
 }
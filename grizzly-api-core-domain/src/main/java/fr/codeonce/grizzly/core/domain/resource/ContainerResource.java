@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.domain.resource;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A Resource of a Container, stored in its own collection so that the container document does not grow with
+ * its API and a single resource can be read or written without the others
+ */
+@Document("container_resource")
+@CompoundIndexes({
+        @CompoundIndex(name = "idx_container_resource_key", def = "{'containerId': 1, 'httpMethod': 1, 'path': 1, 'occurrence': 1}", unique = true),
+        @CompoundIndex(name = "idx_container_resource_position", def = "{'containerId': 1, 'position': 1}"),
+        @CompoundIndex(name = "idx_container_resource_collection", def = "{'resource.customQuery.datasource': 1, 'resource.customQuery.collectionName': 1}")})
+public class ContainerResource {
+
+    @Id
+    private String id;
+
+    private String containerId;
+
+    // Copied from the resource for the route index
+    private String httpMethod;
+
+    private String path;
+
+    // Rank of the resource among the ones of the container with the same route, the key of its upserts
+    private int occurrence;
+
+    // Index of the resource in the container, the order of declaration decides between duplicated routes
+    private int position;
+
+    // Hash of the stored resource, an unchanged resource is not written again
+    private String hash;
+
+    private Resource resource;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContainerId() {
+        return containerId;
+    }
+
+    public void setContainerId(String containerId) {
+        this.containerId = containerId;
+    }
+
+    public String getHttpMethod() {
+        return httpMethod;
+    }
+
+    public void setHttpMethod(String httpMethod) {
+        this.httpMethod = httpMethod;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public int getOccurrence() {
+        return occurrence;
+    }
+
+    public void setOccurrence(int occurrence) {
+        this.occurrence = occurrence;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public Resource getResource() {
+        return resource;
+    }
+
+    public void setResource(Resource resource) {
+        this.resource = resource;
+    }
+
+}
@@ -20,6 +20,8 @@ public class ResourceRequestModel {
     private String name;
     private String requestModel;
     private float lastUpdate;
+    // Hash of the schema the model was generated from
+    private String schemaHash;
 
     /**
      * @return the name
@@ -63,4 +65,12 @@ public class ResourceRequestModel {
         this.requestModel = requestModel;
     }
 
+    public String getSchemaHash() {
+        return schemaHash;
+    }
+
+    public void setSchemaHash(String schemaHash) {
+        this.schemaHash = schemaHash;
+    }
+
 }
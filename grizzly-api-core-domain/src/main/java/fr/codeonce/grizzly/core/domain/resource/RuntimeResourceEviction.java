@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.domain.resource;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * An eviction of the cached RuntimeResources, published by the node where a document changed and applied by
+ * the other nodes of the cluster
+ */
+@Document("runtime_resource_eviction")
+public class RuntimeResourceEviction {
+
+    @Id
+    private String id;
+
+    // container, project, identityProvider, dbsource, function, projectFunctions or all
+    private String type;
+
+    private String targetId;
+
+    // The publishing node, which has already evicted its own cache
+    private String node;
+
+    // Applied evictions are useless once the cached entries they target have expired anyway
+    @Indexed(name = "idx_runtime_resource_eviction_ttl", expireAfterSeconds = 3600)
+    private Date at;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getTargetId() {
+        return targetId;
+    }
+
+    public void setTargetId(String targetId) {
+        this.targetId = targetId;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    public Date getAt() {
+        return at;
+    }
+
+    public void setAt(Date at) {
+        this.at = at;
+    }
+
+}
@@ -18,6 +18,8 @@ package fr.codeonce.grizzly.core.domain.user;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 
@@ -33,4 +35,6 @@ public interface UserRepository extends MongoRepository<User, String> {
 
     boolean existsByEmailAndPassword(String email, String password);
 
+    List<User> findByEmailIn(Collection<String> emails);
+
 }
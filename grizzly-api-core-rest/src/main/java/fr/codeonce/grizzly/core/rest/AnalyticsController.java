@@ -16,13 +16,22 @@
 package fr.codeonce.grizzly.core.rest;
 
 import fr.codeonce.grizzly.common.runtime.HealthCheck;
+import fr.codeonce.grizzly.core.rest.config.security.Authorization;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucket.Granularity;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsDto;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsService;
+import fr.codeonce.grizzly.core.service.analytics.EndpointCountDto;
+import fr.codeonce.grizzly.core.service.analytics.RequestSeriesDto;
 import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
 
 @RestController
 @CrossOrigin
@@ -32,6 +41,9 @@ public class AnalyticsController {
     @Autowired
     private AnalyticsService analyticsService;
 
+    @Autowired
+    private Authorization authorization;
+
     @GetMapping
     public AnalyticsDto getAnalytics() {
         return analyticsService.getAnalytics();
@@ -47,5 +59,29 @@ public class AnalyticsController {
         return analyticsService.getHealthCheck(containerId);
     }
 
+    @GetMapping("/requests")
+    public List<RequestSeriesDto> getRequestSeries(@RequestParam String containerId,
+                                                   @RequestParam(defaultValue = "HOUR") Granularity granularity,
+                                                   @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                   @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        checkContainerAccess(containerId);
+        return analyticsService.getRequestSeries(containerId, granularity, from, to);
+    }
+
+    @GetMapping("/requests/top")
+    public List<EndpointCountDto> getTopEndpoints(@RequestParam String containerId,
+                                                  @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                  @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                  @RequestParam(defaultValue = "10") int limit) {
+        checkContainerAccess(containerId);
+        return analyticsService.getTopEndpoints(containerId, from, to, limit);
+    }
+
+    private void checkContainerAccess(String containerId) {
+        if (!authorization.checkContainerAccess(containerId)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Not allowed to read the analytics of this container");
+        }
+    }
+
 
 }
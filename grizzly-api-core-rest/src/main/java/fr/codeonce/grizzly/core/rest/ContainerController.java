@@ -18,6 +18,7 @@ package fr.codeonce.grizzly.core.rest;
 import fr.codeonce.grizzly.core.domain.container.Container;
 import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
 import fr.codeonce.grizzly.core.domain.resource.Resource;
+import fr.codeonce.grizzly.core.rest.config.security.Authorization;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsService;
 import fr.codeonce.grizzly.core.service.container.*;
 import fr.codeonce.grizzly.core.service.oauth2identityprovider.KeycloakOauthService;
@@ -33,10 +34,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.configurationprocessor.json.JSONException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -79,6 +83,9 @@ public class ContainerController {
     @Autowired
     private KeycloakOauthService keycloakOauthService;
 
+    @Autowired
+    private Authorization authorization;
+
     /**
      * Creates a new container given a container DTO
      *
@@ -245,6 +252,22 @@ public class ContainerController {
         return containerResourceService.getResource(containerId, resourcePath);
     }
 
+    /**
+     * Fetch the Resources of a Container, a page of them when page and size are given
+     *
+     * @param containerId
+     * @param page
+     * @param size
+     * @return
+     */
+    @GetMapping("/{containerId}/resources")
+    public List<Resource> getResources(@PathVariable String containerId, @RequestParam(required = false) Integer page,
+                                       @RequestParam(required = false) Integer size) {
+        log.info("request to fetch the resources of container with ID : {}", containerId);
+        return containerResourceService.getResources(containerId,
+                page != null && size != null ? PageRequest.of(page, size) : Pageable.unpaged());
+    }
+
     /**
      * Generate a ZIP file containing the Swagger file and the related uploaded
      * resources
@@ -258,9 +281,7 @@ public class ContainerController {
     public void export(@PathVariable String containerId, HttpServletResponse response) throws IOException {
         log.info("request to export container with ID : {}", containerId);
 
-        File directory = containerExportService.export(containerId);
-        List<String> fileList = containerExportService.getFileList(directory);
-        containerExportService.zipContainer(fileList, containerId, directory, response);
+        containerExportService.export(containerId, response);
     }
 
     @PostMapping("/import")
@@ -349,15 +370,28 @@ public class ContainerController {
 
     @PutMapping("/updateCollectionNameCustomQuery/{currentCollectionName}/{newCollectionName}")
     public boolean updateCollectionNameCustomQuery(@PathVariable String currentCollectionName,
-                                     @PathVariable String newCollectionName) {
-        System.out.println("request to update collection name from " + currentCollectionName + " to " + newCollectionName  );
-        containerService.updateCollectionName(currentCollectionName, newCollectionName);
+                                                   @PathVariable String newCollectionName,
+                                                   @RequestParam String dbsourceId) {
+        checkDBSourceAccess(dbsourceId);
+        log.info("request to update collection name from {} to {} for dbsource with ID : {}", currentCollectionName,
+                newCollectionName, dbsourceId);
+        long updated = containerService.updateCollectionName(dbsourceId, currentCollectionName, newCollectionName);
+        log.info("{} resources updated", updated);
         return true;
     }
 
     @GetMapping("/statCollection/{collectionName}")
-    public boolean containersByCollection(@PathVariable String collectionName) {
+    public boolean containersByCollection(@PathVariable String collectionName,
+                                          @RequestParam String dbsourceId) {
+        checkDBSourceAccess(dbsourceId);
         log.info("request to get if exist containers  with collectionName : {} ", collectionName);
-        return containerService.containersByCollection(collectionName);
+        return containerService.containersByCollection(dbsourceId, collectionName);
+    }
+
+    private void checkDBSourceAccess(String dbsourceId) {
+        // Method security is not enabled, the access is checked here
+        if (!authorization.checkDBSourceAccess(dbsourceId)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Not allowed to use this datasource");
+        }
     }
 }
@@ -19,6 +19,8 @@ import fr.codeonce.grizzly.core.domain.datasource.DBSource;
 import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceService;
+import fr.codeonce.grizzly.core.service.datasource.mongo.CollectionSchema;
+import fr.codeonce.grizzly.core.service.datasource.mongo.CollectionSchemaService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.IndexCollection;
 import fr.codeonce.grizzly.core.service.datasource.mongo.MongoDBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.MongoDBSourceStatsService;
@@ -29,6 +31,8 @@ import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -59,6 +63,9 @@ public class DataSourceController {
     @Autowired
     private MongoDBSourceStatsService dbSourceStatsService;
 
+    @Autowired
+    private CollectionSchemaService collectionSchemaService;
+
     @PostMapping("/create")
     public DBSourceDto saveDatasource(@RequestBody DBSourceDto dto) throws ParseException, SQLException {
         log.info("request to create datasource with name : {}", dto.getName());
@@ -82,9 +89,10 @@ public class DataSourceController {
     }
 
     @GetMapping("/all")
-    public List<DBSourceDto> getAll() {
+    public List<DBSourceDto> getAll(@RequestParam(required = false) Integer page,
+                                    @RequestParam(required = false) Integer size) {
         log.info("request to get all datasources");
-        return dbsourceService.getAll();
+        return dbsourceService.getAll(page != null && size != null ? PageRequest.of(page, size) : Pageable.unpaged());
     }
 
     @DeleteMapping("/delete/{dbsourceId}")
@@ -94,9 +102,22 @@ public class DataSourceController {
     }
 
     @GetMapping("/{dbsourceId}")
-    public DBSourceDto getDbSourceById(@PathVariable String dbsourceId) {
+    public DBSourceDto getDbSourceById(@PathVariable String dbsourceId,
+                                       @RequestParam(defaultValue = "false") boolean refresh) {
         log.info("request to get datasource DTO with ID : {}", dbsourceId);
-        return this.dbsourceService.getDbSourceDtoById(dbsourceId);
+        return this.dbsourceService.getDbSourceDtoById(dbsourceId, refresh);
+    }
+
+    @PostMapping("/refresh/{dbsourceId}")
+    public DBSourceDto refreshTables(@PathVariable String dbsourceId) {
+        log.info("request to refresh the tables of datasource with ID : {}", dbsourceId);
+        return this.dbsourceService.refreshSqlTables(dbsourceId);
+    }
+
+    @GetMapping("/schema/{dbsourceId}")
+    public DBSourceDto getSchema(@PathVariable String dbsourceId) {
+        log.info("request to get the schema snapshot of datasource with ID : {}", dbsourceId);
+        return this.dbsourceService.getSqlSchema(dbsourceId);
     }
 
     @GetMapping("/stats/{dbsourceId}/{databaseName}/{collectionName}")
@@ -142,6 +163,17 @@ public class DataSourceController {
         return this.mongoService.getCollectionFields(dbsourceId, databaseName,collectionName);
     }
 
+    /**
+     * Fetch the fields of a collection with their nested paths, BSON types and frequencies, inferred from a sample
+     * of its documents
+     */
+    @GetMapping("/collectionSchema/{dbsourceId}/{databaseName}/{collectionName}")
+    public CollectionSchema getCollectionSchema(@PathVariable String dbsourceId, @PathVariable String databaseName,
+                                                @PathVariable String collectionName) {
+        log.info("request to get the schema of collection {} for datasource with ID : {}", collectionName, dbsourceId);
+        return this.collectionSchemaService.getSchema(dbsourceId, databaseName, collectionName);
+    }
+
 
     @PostMapping("/createCollectionIndex/{dbsourceId}/{databaseName}/{collectionName}")
     public void createCollectionIndex(@PathVariable String dbsourceId,@PathVariable String databaseName,@PathVariable String collectionName,   @RequestBody IndexCollection indexRequest) {
@@ -182,9 +214,10 @@ public class DataSourceController {
 
     @PostMapping("/saveCSVtodatabase/{dbSourceId}/{collection}/{database}/{replaceData}/{csvFormat}")
     public String saveCSVtodatabase(@RequestParam MultipartFile file, @PathVariable String dbSourceId,
-                                    @PathVariable String collection, @PathVariable String database, @PathVariable Boolean replaceData, @PathVariable String csvFormat) throws IOException {
+                                    @PathVariable String collection, @PathVariable String database, @PathVariable Boolean replaceData, @PathVariable String csvFormat,
+                                    @RequestParam(defaultValue = "false") boolean inferTypes) throws IOException {
         log.info("request to upload csv file into database : {}", file.getOriginalFilename());
-        return dbsourceService.saveCSVtodatabase(file, dbSourceId, collection, database, replaceData, csvFormat);
+        return dbsourceService.saveCSVtodatabase(file, dbSourceId, collection, database, replaceData, csvFormat, inferTypes);
 
     }
 }
@@ -27,6 +27,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
@@ -157,9 +159,11 @@ public class ProjectController {
      * @return List<ProjectDto>
      */
     @GetMapping("/all")
-    public List<ProjectDto> getAll() {
+    public List<ProjectDto> getAll(@RequestParam(required = false) Integer page,
+                                   @RequestParam(required = false) Integer size) {
         log.info("Request for Deleting all projects for the signed-in user");
-        return projectService.getAllByUser();
+        return projectService
+                .getAllByUser(page != null && size != null ? PageRequest.of(page, size) : Pageable.unpaged());
     }
 
     @GetMapping("/existsByDatabaseName/{dbName}")
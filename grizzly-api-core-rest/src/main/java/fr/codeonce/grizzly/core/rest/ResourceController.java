@@ -26,13 +26,17 @@ import fr.codeonce.grizzly.common.runtime.resource.CreateResourceRequest;
 import fr.codeonce.grizzly.common.runtime.resource.RuntimeResource;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsService;
 import fr.codeonce.grizzly.core.service.container.ContainerResourceService;
+import fr.codeonce.grizzly.core.service.fs.StaticFileService;
+import fr.codeonce.grizzly.core.service.fs.StaticFileService.StaticFile;
 import fr.codeonce.grizzly.core.service.resource.ResourceService;
 import fr.codeonce.grizzly.core.service.util.CustomGitAPIException;
 import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.StopWatch;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
@@ -57,6 +61,9 @@ public class ResourceController {
     @Autowired
     private AnalyticsService analyticsService;
 
+    @Autowired
+    private StaticFileService staticFileService;
+
     @PostMapping(value = "/getbranchslist")
     public List<String> getRepoBranchsList(@RequestBody String body) {
 
@@ -134,17 +141,30 @@ public class ResourceController {
     }
 
     @GetMapping("/public/getResource")
-    public GridFsResource getResourceForTuntime(@RequestParam String containerId,
-                                                @RequestParam String resourcePath) {
-        return this.resourceService.getGridFsResource(this.resourceService.getResource(containerId, resourcePath),
-                containerId);
+    public ResponseEntity<Resource> getResourceForTuntime(@RequestParam String containerId,
+                                                          @RequestParam String resourcePath) {
+        return staticFile(this.staticFileService.getFile(containerId, resourcePath));
     }
 
     @GetMapping("/public/getResourceWithId")
-    public GridFsResource getResourceWithId(@RequestParam String containerId,
-                                            @RequestParam String fileId) {
-        return this.resourceService.getGridFsResource(this.resourceService.getResourceFileWithId(containerId, fileId),
-                containerId);
+    public ResponseEntity<Resource> getResourceWithId(@RequestParam String containerId,
+                                                      @RequestParam String fileId) {
+        return staticFile(this.staticFileService.getFileWithId(containerId, fileId));
+    }
+
+    /**
+     * Spring answers 304 to a matching If-None-Match or If-Modified-Since, and serves the requested ranges of
+     * the file
+     */
+    private static ResponseEntity<Resource> staticFile(StaticFile file) {
+        if (file == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()//
+                .eTag(file.getETag())//
+                .lastModified(file.lastModified())//
+                .cacheControl(CacheControl.noCache())//
+                .body(file);
     }
 
     @PostMapping("/public/resourceRequest")
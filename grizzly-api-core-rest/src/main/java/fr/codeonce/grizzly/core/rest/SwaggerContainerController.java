@@ -15,13 +15,18 @@
  */
 package fr.codeonce.grizzly.core.rest;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import fr.codeonce.grizzly.core.domain.container.InvalidSwaggerRepository;
 import fr.codeonce.grizzly.core.service.container.ContainerSwaggerService;
+import fr.codeonce.grizzly.core.service.swagger.SwaggerSpecCacheService.CachedSpec;
 import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
@@ -39,11 +44,31 @@ public class SwaggerContainerController {
     @Autowired
     private InvalidSwaggerRepository invalidSwaggerRepository;
 
+    /**
+     * Serve the cached document of a container, gzipped when the client accepts it, and answer the conditional
+     * requests of the docs viewers with a 304
+     */
     @GetMapping(value = "/{version}/{containerId}/{swaggerUuid}", produces = {"application/json"})
-    public String getSwaggerOrOpenApi(@PathVariable String version, @PathVariable String containerId,
-                                      @PathVariable String swaggerUuid) throws JsonProcessingException {
+    public ResponseEntity<byte[]> getSwaggerOrOpenApi(@PathVariable String version, @PathVariable String containerId,
+                                                      @PathVariable String swaggerUuid,
+                                                      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         log.info("request to download swagger for container with ID : {}", containerId);
-        return containerSwaggerService.getSwaggerOrOpenApiJson("prod", version, containerId, swaggerUuid);
+        CachedSpec spec = containerSwaggerService.getSwaggerOrOpenApiSpec("prod", version, containerId, swaggerUuid);
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        boolean notModified = spec.matches(ifNoneMatch, gzip);
+        // Clients may keep the document but must check that it did not change, each encoding has its own ETag
+        ResponseEntity.BodyBuilder builder = ResponseEntity
+                .status(notModified ? HttpStatus.NOT_MODIFIED : HttpStatus.OK).eTag(spec.getEtag(gzip))
+                .cacheControl(CacheControl.noCache()).varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (notModified) {
+            return builder.build();
+        }
+        builder.contentType(MediaType.APPLICATION_JSON);
+        if (gzip) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(spec.getGzip());
+        }
+        return builder.body(spec.getBytes());
     }
 
     /**
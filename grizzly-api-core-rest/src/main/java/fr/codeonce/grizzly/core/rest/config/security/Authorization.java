@@ -17,6 +17,12 @@ package fr.codeonce.grizzly.core.rest.config.security;
 
 import fr.codeonce.grizzly.core.domain.Organization.Member;
 import fr.codeonce.grizzly.core.domain.Organization.MemberRepository;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.domain.project.Project;
+import fr.codeonce.grizzly.core.domain.project.ProjectRepository;
 import fr.codeonce.grizzly.core.domain.user.AccountType;
 import fr.codeonce.grizzly.core.domain.user.User;
 import fr.codeonce.grizzly.core.domain.user.UserRepository;
@@ -26,12 +32,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
+
 @Component("authorization")
 public class Authorization {
     @Autowired
     MemberRepository memberRepository;
     @Autowired
     UserRepository userRepository;
+    @Autowired
+    ContainerRepository containerRepository;
+    @Autowired
+    ProjectRepository projectRepository;
+    @Autowired
+    DBSourceRepository dbSourceRepository;
 
     public boolean checkOrganisationAdmin(String id) {
         String email = SecurityContextUtil.getCurrentUserEmail();
@@ -86,4 +100,36 @@ public class Authorization {
 
     }
 
+    /**
+     * Whether the connected user owns the project of the container or shares it through one of their teams
+     */
+    public boolean checkContainerAccess(String containerId) {
+        Project project = containerRepository.findById(containerId).map(Container::getProjectId)
+                .flatMap(projectRepository::findById).orElse(null);
+        return project != null && isOwnedOrShared(project.getUserEmail(), project.getTeamIds());
+    }
+
+    /**
+     * Whether the connected user owns the datasource or shares it through one of their teams
+     */
+    public boolean checkDBSourceAccess(String dbsourceId) {
+        DBSource dbSource = dbSourceRepository.findById(dbsourceId).orElse(null);
+        return dbSource != null && isOwnedOrShared(dbSource.getUserEmail(), dbSource.getTeamIds());
+    }
+
+    private boolean isOwnedOrShared(String ownerEmail, List<String> teamIds) {
+        String email = SecurityContextUtil.getCurrentUserEmail();
+        if (!email.contains("@")) {
+            email = userRepository
+                    .findByApiKey(SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString())
+                    .orElseThrow(GlobalExceptionUtil.notFoundException(User.class, email)).getEmail();
+        }
+        if (email.equalsIgnoreCase(ownerEmail)) {
+            return true;
+        }
+        Member member = memberRepository.findByEmail(email);
+        return member != null && member.getTeamIds() != null && teamIds != null
+                && teamIds.stream().anyMatch(member.getTeamIds()::contains);
+    }
+
 }
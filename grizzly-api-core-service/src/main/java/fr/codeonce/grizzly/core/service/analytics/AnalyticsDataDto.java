@@ -15,12 +15,16 @@
  */
 package fr.codeonce.grizzly.core.service.analytics;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class AnalyticsDataDto {
     private double totalStored;
     private double downloaded;
     private double uploaded;
     private double storedContent;
     private double storedFile;
+    private Map<String, String> unavailableDatasources = new HashMap<>();
 
     public double getTotalStored() {
         return totalStored;
@@ -62,4 +66,12 @@ public class AnalyticsDataDto {
         this.storedFile = storedFile;
     }
 
+    public Map<String, String> getUnavailableDatasources() {
+        return unavailableDatasources;
+    }
+
+    public void setUnavailableDatasources(Map<String, String> unavailableDatasources) {
+        this.unavailableDatasources = unavailableDatasources;
+    }
+
 }
\ No newline at end of file
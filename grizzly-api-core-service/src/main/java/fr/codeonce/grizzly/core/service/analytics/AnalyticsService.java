@@ -16,10 +16,12 @@
 package fr.codeonce.grizzly.core.service.analytics;
 
 import fr.codeonce.grizzly.common.runtime.HealthCheck;
-import fr.codeonce.grizzly.common.runtime.Provider;
 import fr.codeonce.grizzly.core.domain.analytics.Analytics;
 import fr.codeonce.grizzly.core.domain.analytics.AnalyticsRepository;
 import fr.codeonce.grizzly.core.domain.analytics.ApiCount;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucket;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucket.Granularity;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucketRepository;
 import fr.codeonce.grizzly.core.domain.container.Container;
 import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
@@ -34,8 +36,7 @@ import fr.codeonce.grizzly.core.domain.user.UserRepository;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceMapper;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceService;
-import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
-import fr.codeonce.grizzly.core.service.datasource.mongo.MongoDBSourceStatsService;
+import fr.codeonce.grizzly.core.service.analytics.StorageUsageService.StorageUsage;
 import fr.codeonce.grizzly.core.service.user.UserService;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
@@ -44,6 +45,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.stereotype.Service;
 
 import java.sql.SQLException;
@@ -81,13 +87,19 @@ public class AnalyticsService {
     private ContainerRepository containerRepository;
 
     @Autowired
-    private MongoDBSourceStatsService dbSourceStatsService;
+    private StorageUsageService storageUsageService;
 
     @Autowired
-    private MongoCacheService cache;
+    private UserRepository userRepository;
 
     @Autowired
-    private UserRepository userRepository;
+    private RequestCountService requestCountService;
+
+    @Autowired
+    private RequestBucketRepository requestBucketRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
 
     @Value("${offres.free.msCount : 10}")
     private long freeMsCount;
@@ -112,6 +124,8 @@ public class AnalyticsService {
 
     private static final String STORAGE = "storage";
 
+    private static final String COUNT = "count";
+
     public AnalyticsDto getAnalytics() {
         AnalyticsDto analyticsDto = new AnalyticsDto();
         String currentUserEmail = userService.getConnectedUserEmail();
@@ -144,15 +158,13 @@ public class AnalyticsService {
         Long idpCount = identityProviderRepository.countByUserEmail(currentUserEmail);
         analyticsDto.setIdpCount(idpCount);
 
-        // COMPUTE DATA METRICS
-        List<DBSource> dbSourceList = dbSourceRepository.findAllByUserEmail(currentUserEmail).stream().map(d -> {
-            encryption.decrypt(d);
-            return d;
-        }).filter(db -> db.provider.equals(Provider.MONGO)).collect(Collectors.toList());
+        // DATA METRICS
+        StorageUsage usage = storageUsageService.getUsage(currentUserEmail);
         AnalyticsDataDto data = analyticsDto.getData();
 
-        data.setTotalStored(computeDataSize(dbSourceList));
-        data.setStoredFile(computeStoredFile(dbSourceList));
+        data.setTotalStored(usage.getTotalStored());
+        data.setStoredFile(usage.getStoredFile());
+        data.setUnavailableDatasources(usage.getUnavailableDatasources());
         data.setStoredContent(Math.round(data.getTotalStored() - data.getStoredFile()));
 
         // RETURN RESULT
@@ -160,47 +172,6 @@ public class AnalyticsService {
 
     }
 
-    private double computeStoredFile(List<DBSource> dbSourceList) {
-        double totalFiles = 0;
-        double totalChunks = 0;
-
-        totalFiles = dbSourceList.stream().filter(db -> cache.getMongoClient(db) != null).map(d -> {
-            try {
-                if (cache.getMongoClient(d).getDatabase(d.getDatabase()).listCollectionNames().into(new ArrayList<String>())
-                        .contains("fs.files")) {
-                    return dbSourceStatsService.getCollectionStats(d, d.getDatabase(), "fs.files");
-                } else {
-                    return new Document("size", 0);
-                }
-            } catch (RuntimeException e) {
-                return new Document("size", 0);
-            }
-
-        }).map(d -> d.get("size")).filter(Objects::nonNull).map(d -> (int) d).reduce(0, Integer::sum);
-        totalChunks = dbSourceList.stream().filter(db -> cache.getMongoClient(db) != null).map(d -> {
-            try {
-                if (cache.getMongoClient(d).getDatabase(d.getDatabase()).listCollectionNames().into(new ArrayList<String>())
-                        .contains("fs.chunks")) {
-                    return dbSourceStatsService.getCollectionStats(d, d.getDatabase(), "fs.chunks");
-                } else {
-                    return new Document("size", 0);
-                }
-            } catch (RuntimeException e) {
-                return new Document("size", 0);
-            }
-
-        }).map(d -> d.get("size")).filter(Objects::nonNull).map(d -> (int) d).reduce(0, Integer::sum);
-        return totalFiles + totalChunks;
-    }
-
-    private double computeDataSize(List<DBSource> dbSourceList) {
-        return Math.round(dbSourceList.stream()//
-                .map(d -> dbSourceStatsService.getDbStats(d, d.getDatabase()))//
-                .filter(Objects::nonNull)
-                .map(d -> Double.valueOf(String.valueOf(d.get("dataSize"))))//
-                .reduce(0D, Double::sum));
-    }
-
     public void updateContainerMetrics(Container container) {
 
         CompletableFuture.runAsync(() -> {
@@ -225,30 +196,82 @@ public class AnalyticsService {
     }
 
     public void removeContainerAnalytics(String containerId) {
+        requestCountService.discard(containerId);
         analyticsRepository.deleteByContainerId(containerId);
+        requestBucketRepository.deleteByContainerId(containerId);
     }
 
-    public void updateRequestCount(String containerId) {
-        Optional<Analytics> analytics = analyticsRepository.findByContainerId(containerId);
+    /**
+     * Count a runtime request, the counters are flushed in bulk by the RequestCountService
+     *
+     * @param containerId
+     * @param path        the matched resource path, null when no resource matched
+     * @param method
+     * @param status
+     */
+    public void updateRequestCount(String containerId, String path, String method, int status) {
+        requestCountService.increment(containerId, path, method, status);
+    }
 
-        if (analytics.isEmpty()) {
-            analytics = Optional.of(new Analytics());
-        }
+    /**
+     * Returns the requests of a container per bucket of the given granularity, in [from, to)
+     *
+     * @param containerId
+     * @param granularity
+     * @param from
+     * @param to
+     * @return the non empty buckets, oldest first
+     */
+    public List<RequestSeriesDto> getRequestSeries(String containerId, Granularity granularity, Date from, Date to) {
+        Aggregation aggregation = Aggregation.newAggregation(//
+                Aggregation.match(requestBucketCriteria(containerId, granularity, from, to)),
+                Aggregation.group("bucket").sum(COUNT).as(COUNT)//
+                        .sum(ConditionalOperators.when(Criteria.where("status").gte(400)).thenValueOf(COUNT)
+                                .otherwise(0))
+                        .as("errorCount"),
+                Aggregation.sort(Sort.Direction.ASC, "_id"));
+        return mongoTemplate.aggregate(aggregation, RequestBucket.class, Document.class).getMappedResults().stream()//
+                .map(d -> new RequestSeriesDto(d.getDate("_id"), ((Number) d.get(COUNT)).longValue(),
+                        ((Number) d.get("errorCount")).longValue()))
+                .collect(Collectors.toList());
+    }
 
-        analytics.ifPresent(a -> {
-            a.setContainerId(containerId);
-            a.setRequestCount(a.getRequestCount() + 1);
-            analyticsRepository.save(a);
-        });
+    /**
+     * Returns the most requested endpoints of a container in [from, to), at an hour precision
+     *
+     * @param containerId
+     * @param from
+     * @param to
+     * @param limit
+     * @return the endpoints, most requested first
+     */
+    public List<EndpointCountDto> getTopEndpoints(String containerId, Date from, Date to, int limit) {
+        Aggregation aggregation = Aggregation.newAggregation(//
+                Aggregation.match(requestBucketCriteria(containerId, Granularity.HOUR, from, to)//
+                        .and("path").ne(null)),
+                Aggregation.group("path", "method").sum(COUNT).as(COUNT),
+                Aggregation.sort(Sort.Direction.DESC, COUNT), //
+                Aggregation.limit(limit));
+        return mongoTemplate.aggregate(aggregation, RequestBucket.class, Document.class).getMappedResults().stream()//
+                .map(d -> {
+                    Document id = d.get("_id", Document.class);
+                    return new EndpointCountDto(id.getString("path"), id.getString("method"),
+                            ((Number) d.get(COUNT)).longValue());
+                }).collect(Collectors.toList());
+    }
+
+    private Criteria requestBucketCriteria(String containerId, Granularity granularity, Date from, Date to) {
+        return Criteria.where("containerId").is(containerId)//
+                .and("granularity").is(granularity.name())//
+                .and("bucket").gte(from).lt(to);
     }
 
     public Document checkUserLimits() {
 
-        AnalyticsDto analytics = getAnalytics();
-        long msCount = analytics.getMsCount();
-        long dbCount = analytics.getDbCount();
-        double storage = analytics.getData().getTotalStored();
         String currentUserEmail = userService.getConnectedUserEmail();
+        long msCount = projectRepository.countByUserEmail(currentUserEmail);
+        long dbCount = dbSourceRepository.countByUserEmail(currentUserEmail);
+        double storage = storageUsageService.getUsage(currentUserEmail).getTotalStored();
         Document metrics = new Document().append("ms", true).append(STORAGE, true).append("db", true);
 
         return this.userRepository.findByEmail(currentUserEmail).map(user -> {
@@ -293,9 +316,8 @@ public class AnalyticsService {
 
     public boolean storageLimitsOnUpload(long fileSize) {
 
-        AnalyticsDto analytics = getAnalytics();
-        double storage = analytics.getData().getTotalStored();
         String currentUserEmail = userService.getConnectedUserEmail();
+        double storage = storageUsageService.getUsage(currentUserEmail).getTotalStored();
 
         User user = this.userRepository.findByEmail(currentUserEmail)
                 .orElseThrow(GlobalExceptionUtil.notFoundException(User.class, currentUserEmail));
@@ -0,0 +1,440 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.analytics;
+
+import com.mongodb.bulk.BulkWriteError;
+import fr.codeonce.grizzly.core.domain.analytics.Analytics;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucket;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucket.Granularity;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Counts the runtime requests in memory, per container endpoint and minute, and periodically flushes them with
+ * bulk writes of $inc upserts : the lifetime count of the container Analytics, and the minute bucket with its
+ * hourly and daily rollups.
+ */
+@Service
+public class RequestCountService {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestCountService.class);
+
+    private static final String CONTAINER_ID = "containerId";
+
+    private static final String REQUEST_COUNT = "requestCount";
+
+    // Value of a counter removed from the map by a flush, the increments racing with the removal are retried
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    private final Map<RequestKey, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    // Bucket increments whose upsert failed, retried with the next flush. Only read and written under the flush lock
+    private final Map<BucketKey, Long> pendingBuckets = new HashMap<>();
+
+    // Runs the early flushes, off the request threads
+    private ThreadPoolExecutor flushExecutor;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Timer flushTimer;
+
+    private Counter droppedCounter;
+
+    @PostConstruct
+    public void initMetrics() {
+        AtomicInteger count = new AtomicInteger();
+        this.flushExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1), r -> {
+            Thread thread = new Thread(r, "RequestCountFlush-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        this.flushExecutor.allowCoreThreadTimeOut(true);
+        if (meterRegistry != null) {
+            Gauge.builder("analytics.requestcount.backlog", this, RequestCountService::getBacklog)//
+                    .description("Runtime requests counted but not flushed yet").register(meterRegistry);
+            Gauge.builder("analytics.requestcount.counters", counters, Map::size)//
+                    .description("Endpoints with a pending request counter").register(meterRegistry);
+            flushTimer = Timer.builder("analytics.requestcount.flush")//
+                    .description("Bulk write of the pending request counters").register(meterRegistry);
+            droppedCounter = Counter.builder("analytics.requestcount.dropped")//
+                    .description("Runtime requests not counted, all the counters were in use").register(meterRegistry);
+        }
+    }
+
+    /**
+     * Count a runtime request of a container endpoint
+     *
+     * @param containerId
+     * @param path        the matched resource path, null when no resource matched
+     * @param method
+     * @param status
+     */
+    public void increment(String containerId, String path, String method, int status) {
+        if (containerId == null) {
+            return;
+        }
+        RequestKey key = new RequestKey(containerId, path, method, status,
+                System.currentTimeMillis() / Granularity.MINUTE.getMillis());
+        while (true) {
+            AtomicLong counter = counters.get(key);
+            if (counter == null) {
+                int maxCounters = getRequestCount().getMaxCounters();
+                if (counters.size() >= maxCounters) {
+                    // Flush early rather than letting the map grow, idle counters are released by the flush
+                    requestFlush();
+                    if (counters.size() >= 2L * maxCounters) {
+                        // The flush does not keep up, the map stays bounded
+                        if (droppedCounter != null) {
+                            droppedCounter.increment();
+                        }
+                        return;
+                    }
+                }
+                counter = counters.computeIfAbsent(key, k -> new AtomicLong());
+            }
+            long count = counter.get();
+            if (count != REMOVED && counter.compareAndSet(count, count + 1)) {
+                return;
+            }
+            // Removed by a flush meanwhile, counted on the counter replacing it
+        }
+    }
+
+    /**
+     * Drop the pending counts of a removed container so that the flush does not recreate its Analytics
+     *
+     * @param containerId
+     */
+    public void discard(String containerId) {
+        if (containerId != null) {
+            counters.keySet().removeIf(key -> key.containerId.equals(containerId));
+            flushLock.lock();
+            try {
+                pendingBuckets.keySet().removeIf(bucketKey -> bucketKey.key.containerId.equals(containerId));
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    public long getBacklog() {
+        return counters.values().stream().mapToLong(AtomicLong::get).filter(count -> count != REMOVED).sum();
+    }
+
+    @Scheduled(fixedDelayString = "${app.requestCount.flushInterval:5000}")
+    public void scheduledFlush() {
+        flush(false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushExecutor.shutdownNow();
+        flush(true);
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            flushExecutor.execute(() -> {
+                flushRequested.set(false);
+                flush(false);
+            });
+        }
+    }
+
+    /**
+     * Drain the pending counters into unordered bulk writes. The counters of the failed upserts are put back to be
+     * retried with the next flush. Other errors may follow a partial write, the counts are not retried rather than
+     * counted twice.
+     *
+     * @param wait whether to wait for a running flush instead of skipping
+     */
+    private void flush(boolean wait) {
+        if (wait) {
+            flushLock.lock();
+        } else if (!flushLock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            Map<RequestKey, Long> drained = new HashMap<>();
+            for (RequestKey key : counters.keySet()) {
+                // Only this flush resets and removes counters, it holds the lock
+                counters.computeIfPresent(key, (k, counter) -> {
+                    long count = counter.getAndSet(0);
+                    if (count > 0) {
+                        drained.put(key, count);
+                        return counter;
+                    }
+                    // Idle for a whole interval, an increment racing with the removal sees it and retries
+                    return counter.compareAndSet(0, REMOVED) ? null : counter;
+                });
+            }
+            if (drained.isEmpty() && pendingBuckets.isEmpty()) {
+                return;
+            }
+            Set<String> failedContainers = writeRequestCounts(drained);
+            if (!failedContainers.isEmpty()) {
+                log.warn("Failed to flush the request counts of {} containers, retrying later",
+                        failedContainers.size());
+                // Their buckets are written along with the retried lifetime counts
+                drained.entrySet().removeIf(entry -> {
+                    if (failedContainers.contains(entry.getKey().containerId)) {
+                        putBack(entry.getKey(), entry.getValue());
+                        return true;
+                    }
+                    return false;
+                });
+            }
+            // The lifetime counts are written, the failed bucket upserts are retried on their own
+            writeBuckets(drained);
+            log.debug("Request counts of {} endpoints flushed", drained.size());
+        } finally {
+            flushLock.unlock();
+            if (flushTimer != null) {
+                flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void putBack(RequestKey key, long count) {
+        while (true) {
+            AtomicLong counter = counters.computeIfAbsent(key, k -> new AtomicLong());
+            long current = counter.get();
+            if (current != REMOVED && counter.compareAndSet(current, current + count)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the containers whose upsert failed, the others are written or were not retried after an error
+     */
+    private Set<String> writeRequestCounts(Map<RequestKey, Long> drained) {
+        // The lifetime count only holds the served requests, as before
+        Map<String, Long> perContainer = new HashMap<>();
+        drained.forEach((key, count) -> {
+            if (key.status < 400) {
+                perContainer.merge(key.containerId, count, Long::sum);
+            }
+        });
+        Set<String> failedContainers = new HashSet<>();
+        if (!perContainer.isEmpty()) {
+            List<String> containerIds = new ArrayList<>(perContainer.keySet());
+            BulkOperations operations = mongoTemplate.bulkOps(BulkMode.UNORDERED, Analytics.class);
+            containerIds.forEach(containerId -> operations.upsert(
+                    Query.query(Criteria.where(CONTAINER_ID).is(containerId)),
+                    new Update().inc(REQUEST_COUNT, perContainer.get(containerId))));
+            try {
+                operations.execute();
+            } catch (BulkOperationException e) {
+                // Unordered, only the upserts listed in the errors failed
+                for (BulkWriteError error : e.getErrors()) {
+                    failedContainers.add(containerIds.get(error.getIndex()));
+                }
+            } catch (RuntimeException e) {
+                // Not a bulk write error, nothing tells which upserts went through
+                log.warn("Failed to write the request counts of {} containers, they are not retried",
+                        containerIds.size(), e);
+            }
+        }
+        return failedContainers;
+    }
+
+    private void writeBuckets(Map<RequestKey, Long> drained) {
+        // Rollups are incremented along with the minute bucket, they never need to be recomputed
+        Map<BucketKey, Long> buckets = new HashMap<>(pendingBuckets);
+        pendingBuckets.clear();
+        drained.forEach((key, count) -> {
+            long time = key.minute * Granularity.MINUTE.getMillis();
+            for (Granularity granularity : Granularity.values()) {
+                buckets.merge(new BucketKey(key, granularity, granularity.truncate(time)), count, Long::sum);
+            }
+        });
+        if (buckets.isEmpty()) {
+            return;
+        }
+        long retention = TimeUnit.HOURS.toMillis(getRequestCount().getMinuteBucketRetention());
+        List<BucketKey> bucketKeys = new ArrayList<>(buckets.keySet());
+        BulkOperations operations = mongoTemplate.bulkOps(BulkMode.UNORDERED, RequestBucket.class);
+        bucketKeys.forEach(bucketKey -> {
+            long count = buckets.get(bucketKey);
+            RequestKey key = bucketKey.key;
+            Query query = Query.query(Criteria.where(CONTAINER_ID).is(key.containerId)//
+                    .and("granularity").is(bucketKey.granularity)//
+                    .and("bucket").is(bucketKey.bucket)//
+                    .and("path").is(key.path)//
+                    .and("method").is(key.method)//
+                    .and("status").is(key.status));
+            Update update = new Update().inc("count", count);
+            if (bucketKey.granularity == Granularity.MINUTE) {
+                update.setOnInsert("expireAt", new Date(bucketKey.bucket.getTime() + retention));
+            }
+            operations.upsert(query, update);
+        });
+        List<BucketKey> failed;
+        try {
+            operations.execute();
+            return;
+        } catch (BulkOperationException e) {
+            // Unordered, only the upserts listed in the errors failed
+            failed = e.getErrors().stream().map(error -> bucketKeys.get(error.getIndex()))
+                    .collect(Collectors.toList());
+        } catch (RuntimeException e) {
+            // Not a bulk write error, nothing tells which upserts went through
+            log.warn("Failed to write {} request buckets, they are not retried", bucketKeys.size(), e);
+            return;
+        }
+        // Bounded like the counters, while the database is down the buckets above the bound are lost
+        int maxPending = 2 * getRequestCount().getMaxCounters() * Granularity.values().length;
+        int kept = 0;
+        for (BucketKey bucketKey : failed) {
+            if (pendingBuckets.size() >= maxPending) {
+                break;
+            }
+            pendingBuckets.merge(bucketKey, buckets.get(bucketKey), Long::sum);
+            kept++;
+        }
+        log.warn("Failed to write {} request buckets, {} are retried with the next flush", failed.size(), kept);
+    }
+
+    private AppProperties.RequestCount getRequestCount() {
+        return appProperties.getRequestCount() != null ? appProperties.getRequestCount()
+                : new AppProperties.RequestCount();
+    }
+
+    private static final class RequestKey {
+
+        private final String containerId;
+
+        private final String path;
+
+        private final String method;
+
+        private final int status;
+
+        private final long minute;
+
+        private RequestKey(String containerId, String path, String method, int status, long minute) {
+            this.containerId = containerId;
+            this.path = path;
+            this.method = method;
+            this.status = status;
+            this.minute = minute;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey other = (RequestKey) o;
+            return status == other.status && minute == other.minute && containerId.equals(other.containerId)
+                    && Objects.equals(path, other.path) && Objects.equals(method, other.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(containerId, path, method, status, minute);
+        }
+
+    }
+
+    private static final class BucketKey {
+
+        private final RequestKey key;
+
+        private final Granularity granularity;
+
+        private final Date bucket;
+
+        private BucketKey(RequestKey key, Granularity granularity, Date bucket) {
+            this.key = key;
+            this.granularity = granularity;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BucketKey)) {
+                return false;
+            }
+            BucketKey other = (BucketKey) o;
+            // The minute of the request key is folded into the bucket
+            return granularity == other.granularity && bucket.equals(other.bucket)
+                    && key.status == other.key.status && key.containerId.equals(other.key.containerId)
+                    && Objects.equals(key.path, other.key.path) && Objects.equals(key.method, other.key.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key.containerId, key.path, key.method, key.status, granularity, bucket);
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.analytics;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
+import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the storage stats of Mongo datasources in parallel, on a dedicated bounded pool. Each datasource has
+ * its own deadline : a slow or unreachable one is reported as failed while the others are still summed. The
+ * same deadline is given to the server as maxTimeMS so that the workers stop too, and a datasource still being
+ * collected is not submitted again.
+ */
+@Service
+public class StorageStatsCollector {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageStatsCollector.class);
+
+    private static final String FREE = "FREE";
+
+    private static final String SIZE = "size";
+
+    private static final String[] GRIDFS_COLLECTIONS = {"fs.files", "fs.chunks", "blobs.files", "blobs.chunks",
+            "blobs.manifest"};
+
+    @Autowired
+    private MongoCacheService cache;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    private ThreadPoolExecutor executor;
+
+    // Running collections by datasource id, shared by the concurrent callers
+    private final Map<String, CompletableFuture<StorageStats>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initExecutor() {
+        AppProperties.StorageUsage spec = getSpec();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(spec.getStatsThreads(), spec.getStatsThreads(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(spec.getStatsQueueCapacity()), r -> {
+            Thread thread = new Thread(r, "StorageStats-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Collect the data size and GridFS size of the given datasources
+     *
+     * @param dbSources decrypted Mongo datasources
+     * @return the sums over the datasources that answered in time, and the failure of the others by datasource id
+     */
+    public StorageStats collect(List<DBSource> dbSources) {
+        long timeout = getSpec().getStatsTimeout();
+        List<CompletableFuture<StorageStats>> futures = new ArrayList<>();
+        for (DBSource dbSource : dbSources) {
+            CompletableFuture<StorageStats> created = new CompletableFuture<>();
+            CompletableFuture<StorageStats> future = inFlight.putIfAbsent(dbSource.getId(), created);
+            if (future == null) {
+                future = created;
+                try {
+                    CompletableFuture.supplyAsync(() -> collect(dbSource, timeout), executor)
+                            .whenComplete((stats, e) -> complete(dbSource.getId(), created, stats, e));
+                } catch (RuntimeException e) {
+                    // The queue is full
+                    complete(dbSource.getId(), created, null, e);
+                }
+            }
+            // The deadline of this caller does not complete the shared future
+            futures.add(future.copy().orTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .exceptionally(e -> StorageStats.failed(dbSource, reason(e))));
+        }
+        return futures.stream().map(CompletableFuture::join).reduce(StorageStats.empty(), StorageStats::plus);
+    }
+
+    private void complete(String dbSourceId, CompletableFuture<StorageStats> future, StorageStats stats,
+                          Throwable e) {
+        inFlight.remove(dbSourceId, future);
+        if (e != null) {
+            future.completeExceptionally(e);
+        } else {
+            future.complete(stats);
+        }
+    }
+
+    private StorageStats collect(DBSource dbSource, long timeout) {
+        // The client is checked out once for all the commands of this datasource
+        try (ClientRegistry.Lease<MongoClient> client = cache.checkoutMongoClient(dbSource)) {
+            if (client == null) {
+                return StorageStats.failed(dbSource, "Could not connect to the datasource");
+            }
+            String databaseName = dbSource.getConnectionMode().equalsIgnoreCase(FREE)
+                    ? dbSource.getPhysicalDatabase()
+                    : dbSource.getDatabase();
+            return collect(client.get().getDatabase(databaseName), timeout);
+        }
+    }
+
+    private StorageStats collect(MongoDatabase database, long timeout) {
+        Document dbStats = database.runCommand(
+                new Document("dbStats", 1).append("scale", 1024).append("maxTimeMS", timeout));
+        double dataSize = toDouble(dbStats.get("dataSize"));
+        double fileSize = 0;
+        List<String> collections = database.listCollectionNames().maxTime(timeout, TimeUnit.MILLISECONDS)
+                .into(new ArrayList<>());
+        for (String collection : GRIDFS_COLLECTIONS) {
+            if (collections.contains(collection)) {
+                fileSize += toDouble(database.runCommand(new Document("collStats", collection).append("scale", 1024)
+                        .append("maxTimeMS", timeout)).get(SIZE));
+            }
+        }
+        return new StorageStats(dataSize, fileSize, Collections.emptyMap());
+    }
+
+    private static double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private static String reason(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof TimeoutException) {
+            return "The datasource did not answer in time";
+        }
+        log.debug("Could not collect the storage stats", cause);
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    private AppProperties.StorageUsage getSpec() {
+        return appProperties.getStorageUsage() != null ? appProperties.getStorageUsage()
+                : new AppProperties.StorageUsage();
+    }
+
+    public static class StorageStats {
+
+        private final double dataSize;
+
+        private final double fileSize;
+
+        // Failure reason per datasource id, prefixed with the datasource name
+        private final Map<String, String> failures;
+
+        public StorageStats(double dataSize, double fileSize, Map<String, String> failures) {
+            this.dataSize = dataSize;
+            this.fileSize = fileSize;
+            this.failures = failures;
+        }
+
+        static StorageStats empty() {
+            return new StorageStats(0, 0, Collections.emptyMap());
+        }
+
+        static StorageStats failed(DBSource dbSource, String reason) {
+            // Keyed by id, two datasources may have the same name
+            return new StorageStats(0, 0,
+                    Collections.singletonMap(dbSource.getId(), dbSource.getName() + " : " + reason));
+        }
+
+        StorageStats plus(StorageStats other) {
+            Map<String, String> allFailures = new LinkedHashMap<>(failures);
+            allFailures.putAll(other.failures);
+            return new StorageStats(dataSize + other.dataSize, fileSize + other.fileSize, allFailures);
+        }
+
+        public double getDataSize() {
+            return dataSize;
+        }
+
+        public double getFileSize() {
+            return fileSize;
+        }
+
+        public Map<String, String> getFailures() {
+            return failures;
+        }
+
+    }
+
+}
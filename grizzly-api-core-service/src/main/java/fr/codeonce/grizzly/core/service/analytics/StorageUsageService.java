@@ -0,0 +1,219 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.analytics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.common.runtime.Provider;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.analytics.StorageStatsCollector.StorageStats;
+import fr.codeonce.grizzly.core.service.util.CryptoHelper;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the storage used by each user (sum of the dbStats of their Mongo datasources and of their GridFS
+ * collections) in memory. Values are refreshed in the background and adjusted on GridFS stores and deletes,
+ * so that the limit checks do not run the stats commands on every upload.
+ */
+@Service
+public class StorageUsageService {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageUsageService.class);
+
+    // The stats commands are run with a scale of 1024
+    private static final double KB = 1024D;
+
+    @Autowired
+    private DBSourceRepository dbSourceRepository;
+
+    @Autowired
+    private StorageStatsCollector statsCollector;
+
+    @Autowired
+    private CryptoHelper encryption;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    private Cache<String, StorageUsage> usages;
+
+    @PostConstruct
+    public void initUsages() {
+        AppProperties.StorageUsage spec = getSpec();
+        this.usages = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .build();
+    }
+
+    /**
+     * Returns the storage used by a user, computed synchronously only when it is unknown or older than the
+     * configured staleness bound
+     *
+     * @param userEmail
+     * @return StorageUsage
+     */
+    public StorageUsage getUsage(String userEmail) {
+        StorageUsage usage = usages.getIfPresent(userEmail);
+        if (usage == null || System.currentTimeMillis() - usage.getComputedAt() > getSpec().getMaxStaleness()) {
+            usage = refresh(userEmail);
+        }
+        usage.lastRead = System.currentTimeMillis();
+        return usage;
+    }
+
+    /**
+     * Add the size of files stored in GridFS to the usage of the datasource owner
+     *
+     * @param userEmail
+     * @param bytes
+     */
+    public void recordStored(String userEmail, long bytes) {
+        if (userEmail != null && bytes != 0) {
+            usages.asMap().computeIfPresent(userEmail, (email, usage) -> usage.plusFiles(bytes / KB));
+        }
+    }
+
+    public void recordDeleted(String userEmail, long bytes) {
+        recordStored(userEmail, -bytes);
+    }
+
+    public StorageUsage refresh(String userEmail) {
+        StorageUsage before = usages.getIfPresent(userEmail);
+        StorageUsage computed = compute(userEmail);
+        return usages.asMap().merge(userEmail, computed, (current, fresh) -> fresh.since(before, current));
+    }
+
+    /**
+     * Recompute the usage of the users read recently, the others are dropped
+     */
+    @Scheduled(fixedDelayString = "${app.storageUsage.refreshInterval:60000}")
+    public void refreshAll() {
+        long idle = TimeUnit.MINUTES.toMillis(getSpec().getExpireAfterAccess());
+        long now = System.currentTimeMillis();
+        usages.asMap().forEach((email, usage) -> {
+            if (now - usage.lastRead > idle) {
+                usages.asMap().remove(email, usage);
+                return;
+            }
+            try {
+                StorageUsage computed = compute(email);
+                usages.asMap().computeIfPresent(email, (k, current) -> computed.since(usage, current));
+            } catch (RuntimeException e) {
+                log.warn("Could not refresh the storage usage of {}", email, e);
+            }
+        });
+    }
+
+    private StorageUsage compute(String userEmail) {
+        List<DBSource> dbSourceList = dbSourceRepository.findAllByUserEmail(userEmail).stream().map(d -> {
+            encryption.decrypt(d);
+            return d;
+        }).filter(db -> db.provider.equals(Provider.MONGO)).collect(Collectors.toList());
+        StorageStats stats = statsCollector.collect(dbSourceList);
+        if (!stats.getFailures().isEmpty()) {
+            log.warn("Storage stats of {} are partial, unavailable datasources : {}", userEmail, stats.getFailures());
+        }
+        return new StorageUsage(Math.round(stats.getDataSize()), stats.getFileSize(), stats.getFailures(),
+                System.currentTimeMillis());
+    }
+
+    private AppProperties.StorageUsage getSpec() {
+        return appProperties.getStorageUsage() != null ? appProperties.getStorageUsage()
+                : new AppProperties.StorageUsage();
+    }
+
+    public static class StorageUsage {
+
+        private final double totalStored;
+
+        private final double storedFile;
+
+        private final Map<String, String> unavailableDatasources;
+
+        private final long computedAt;
+
+        private volatile long lastRead;
+
+        // Sum of the files recorded since the first computation, carried over by the next ones
+        private double recorded;
+
+        public StorageUsage(double totalStored, double storedFile, Map<String, String> unavailableDatasources,
+                            long computedAt) {
+            this.totalStored = totalStored;
+            this.storedFile = storedFile;
+            this.unavailableDatasources = unavailableDatasources;
+            this.computedAt = computedAt;
+            this.lastRead = computedAt;
+        }
+
+        private StorageUsage plusFiles(double size) {
+            return adjusted(size, recorded + size, lastRead);
+        }
+
+        /**
+         * Returns this computed usage with the files recorded on the current one since the computation started,
+         * which its stats may have missed
+         *
+         * @param before  the usage when the computation started, null if there was none
+         * @param current the usage when the computation completed
+         */
+        private StorageUsage since(StorageUsage before, StorageUsage current) {
+            return adjusted(current.recorded - (before != null ? before.recorded : 0), current.recorded,
+                    current.lastRead);
+        }
+
+        private StorageUsage adjusted(double size, double recorded, long lastRead) {
+            StorageUsage usage = new StorageUsage(Math.max(0, totalStored + size), Math.max(0, storedFile + size),
+                    unavailableDatasources, computedAt);
+            usage.recorded = recorded;
+            usage.lastRead = lastRead;
+            return usage;
+        }
+
+        public double getTotalStored() {
+            return totalStored;
+        }
+
+        public double getStoredFile() {
+            return storedFile;
+        }
+
+        /**
+         * @return the failure reason per id of the datasources missing from the sums
+         */
+        public Map<String, String> getUnavailableDatasources() {
+            return unavailableDatasources;
+        }
+
+        public long getComputedAt() {
+            return computedAt;
+        }
+
+    }
+
+}
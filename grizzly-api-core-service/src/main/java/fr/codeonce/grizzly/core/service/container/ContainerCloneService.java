@@ -15,36 +15,37 @@
  */
 package fr.codeonce.grizzly.core.service.container;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.client.gridfs.model.GridFSFile;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import fr.codeonce.grizzly.core.domain.container.Container;
 import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
 import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchy;
 import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchyRepository;
-import fr.codeonce.grizzly.core.domain.resource.Resource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.domain.resource.ResourceFile;
 import fr.codeonce.grizzly.core.domain.resource.ResourceLog;
-import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
-import fr.codeonce.grizzly.core.service.fs.model.CustomFile;
-import fr.codeonce.grizzly.core.service.fs.model.CustomFolder;
+import fr.codeonce.grizzly.core.service.analytics.StorageUsageService;
+import fr.codeonce.grizzly.core.service.fs.FilesHandler;
+import fr.codeonce.grizzly.core.service.fs.GridFsCopyService;
+import fr.codeonce.grizzly.core.service.fs.GridFsCopyService.CopiedFiles;
 import fr.codeonce.grizzly.core.service.log.LogDto;
 import fr.codeonce.grizzly.core.service.log.LogService;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
-import fr.codeonce.grizzly.core.service.util.JsonUtil;
 import org.apache.commons.lang3.StringUtils;
-import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -54,6 +55,10 @@ public class ContainerCloneService {
 
     private static final Logger log = LoggerFactory.getLogger(ContainerCloneService.class);
 
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String FILE_ID = "fileId";
+
     @Autowired
     private ContainerRepository containerRepository;
 
@@ -64,7 +69,16 @@ public class ContainerCloneService {
     private ContainerHierarchyRepository hierarchyRepository;
 
     @Autowired
-    private MongoCacheService cacheService;
+    private FilesHandler filesHandler;
+
+    @Autowired
+    private GridFsCopyService gridFsCopyService;
+
+    @Autowired
+    private DBSourceRepository dbSourceRepository;
+
+    @Autowired
+    private StorageUsageService storageUsageService;
 
     @Autowired
     private LogService logService;
@@ -121,27 +135,20 @@ public class ContainerCloneService {
 
         if (!StringUtils.isEmpty(hierarchy)) {
 
-            // copying hierarchy with new id
-            ContainerHierarchy h = new ContainerHierarchy();
-            h.setHierarchy(hierarchy);
-
-            // get saved hierarchy new ID
-            ContainerHierarchy newHierarchy = hierarchyRepository.save(h);
-            String newHierarchyId = newHierarchy.getId();
-            savedContainer.setHierarchyId(newHierarchyId);
-            // update new container with new hierarchyId
-            containerRepository.save(savedContainer);
+            Map<String, String> copiedFileIds = new HashMap<>();
             if (!hierarchy.equals("none")) {
-                hierarchy = hierarchy.replaceAll(currentContainerId, newContainerId);
-                ContainerHierarchy oldHierarchy = hierarchyRepository.findById(newHierarchyId)
-                        .orElseThrow(GlobalExceptionUtil.notFoundException(ContainerHierarchy.class, hierarchyId));
-                oldHierarchy.setHierarchy(hierarchy);
-                hierarchyRepository.save(oldHierarchy);
-                String jsonString = new ObjectMapper().writeValueAsString(hierarchy);
-                CustomFolder ccFolder = JsonUtil.readValue(jsonString, CustomFolder.class);
-                saveClone(ccFolder, newContainerId);
+                JsonNode root = FilesHandler.readHierarchy(hierarchy);
+                copiedFileIds = cloneFiles(currentContainer, newContainerId, root);
+                hierarchy = mapper.writeValueAsString(root);
             }
 
+            // copying hierarchy with new id
+            ContainerHierarchy newHierarchy = hierarchyRepository.save(new ContainerHierarchy(hierarchy));
+            savedContainer.setHierarchyId(newHierarchy.getId());
+            // update new container with new hierarchyId and the ids of the copied files
+            remapResourceFiles(savedContainer, copiedFileIds);
+            containerRepository.save(savedContainer);
+
         }
 
         Container c = containerRepository.findById(newContainerId)
@@ -151,73 +158,69 @@ public class ContainerCloneService {
 
     }
 
-    @SuppressWarnings("unchecked")
-    public void saveClone(CustomFolder mylist, String idContainer) {
-        this.containerRepository.findById(idContainer).ifPresent(container -> {
-            GridFsTemplate gridFsTemplate = cacheService.getGridFs(
-                    this.cacheService.getMongoClient(container.getDbsourceId()), container.getDatabaseName());
-            mylist.getChildren().forEach(item -> {
-                LinkedHashMap<String, String> i = (LinkedHashMap<String, String>) item;
-                if (i.get("type").equals("file")) {
-                    try {
-                        String jsonString = new ObjectMapper().writeValueAsString(i);
-                        CustomFile ccFile = JsonUtil.readValue(jsonString, CustomFile.class);
-                        InputStream inputStream;
-                        Document metaData;
-                        String fileUri;
-                        String oldFileId = ccFile.getFileId();
-                        GridFSFile file = gridFsTemplate.findOne(Query.query((Criteria.where("_id").is(oldFileId))));
-                        inputStream = gridFsTemplate.getResource(file.getFilename()).getInputStream();
-                        metaData = new Document();
-                        metaData.put("containerId", idContainer);
-                        fileUri = file.getMetadata().getString("fileUri");
-                        metaData.put("fileUri", fileUri);
-                        ccFile.setFileId(gridFsTemplate.store(inputStream, file.getFilename(), metaData).toString());
-                        String newFileId = ccFile.getFileId();
-
-                        // replace the old id by the new one
-                        Container c = containerRepository.findById(idContainer).get();
-
-                        List<Resource> listResources = c.getResources().stream().map(x -> {
-                            // Verify if the file is a primary resource
-
-                            String fileId = x.getResourceFile().getFileId();
-
-                            if (fileId.equals(oldFileId)) {
-                                x.getResourceFile().setFileId(newFileId);
-                            }
-
-                            // Verify if the file is a secondary resource
-                            x.getSecondaryFilePaths().stream().map(y -> {
-                                if (y.getFileId().equals(oldFileId)) {
-                                    y.setFileId(newFileId);
-                                }
-                                return y;
-                            });
-                            return x;
-
-                        }).collect(Collectors.toList());
-
-                        c.setResources(listResources);
-                        containerRepository.save(c);
-
-                        inputStream.close();
-                    } catch (Exception e) {
-                        log.debug("{}", e);
-                    }
-                } else {
-                    CustomFolder ccFolder;
-                    try {
-                        String jsonString = new ObjectMapper().writeValueAsString(i);
-                        ccFolder = JsonUtil.readValue(jsonString, CustomFolder.class);
-                        saveClone(ccFolder, idContainer);
-                    } catch (IOException e) {
-                        log.debug("{}", e);
-                    }
+    /**
+     * Copy the GridFS files of a hierarchy to the new container and rewrite the hierarchy with their ids. The
+     * copy runs in the database, the file contents are not downloaded.
+     *
+     * @param source
+     * @param newContainerId
+     * @param root           the hierarchy of the source container, updated in place
+     * @return the new file ids by old file id
+     */
+    private Map<String, String> cloneFiles(Container source, String newContainerId, JsonNode root) {
+        Map<String, String> copiedFileIds = new HashMap<>();
+        List<ObjectNode> files = FilesHandler.collectFiles(root);
+        if (!files.isEmpty()) {
+            List<ObjectId> fileIds = files.stream().map(file -> new ObjectId(file.get(FILE_ID).asText()))
+                    .collect(Collectors.toList());
+            CopiedFiles copied;
+            try (FilesHandler.GridFsDatabase database = filesHandler.checkoutGridFsDatabase(source.getDbsourceId(),
+                    source.getDatabaseName())) {
+                copied = gridFsCopyService.copy(database.get(), fileIds, newContainerId);
+            }
+            copied.getCopies().forEach((oldId, newId) -> copiedFileIds.put(oldId.toString(), newId.toString()));
+            dbSourceRepository.findById(source.getDbsourceId())
+                    .ifPresent(db -> storageUsageService.recordStored(db.getUserEmail(), copied.getBytes()));
+            log.debug("{} files of container {} copied to {}", copiedFileIds.size(), source.getId(), newContainerId);
+        }
+        // The names hold the import path, under a folder named by the container id
+        Deque<JsonNode> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            JsonNode node = nodes.pop();
+            if (node.isObject()) {
+                ObjectNode object = (ObjectNode) node;
+                if (object.path("name").isTextual()) {
+                    object.put("name", object.get("name").asText().replace(source.getId(), newContainerId));
                 }
-            });
+                String newFileId = copiedFileIds.get(object.path(FILE_ID).asText());
+                if (newFileId != null) {
+                    object.put(FILE_ID, newFileId);
+                }
+            }
+            node.path("children").forEach(nodes::push);
+        }
+        return copiedFileIds;
+    }
+
+    private static void remapResourceFiles(Container container, Map<String, String> copiedFileIds) {
+        if (copiedFileIds.isEmpty() || container.getResources() == null) {
+            return;
+        }
+        container.getResources().forEach(resource -> {
+            // Verify if the file is a primary resource
+            remapResourceFile(resource.getResourceFile(), copiedFileIds);
+            // Verify if the file is a secondary resource
+            if (resource.getSecondaryFilePaths() != null) {
+                resource.getSecondaryFilePaths().forEach(file -> remapResourceFile(file, copiedFileIds));
+            }
         });
+    }
 
+    private static void remapResourceFile(ResourceFile file, Map<String, String> copiedFileIds) {
+        if (file != null && file.getFileId() != null && copiedFileIds.containsKey(file.getFileId())) {
+            file.setFileId(copiedFileIds.get(file.getFileId()));
+        }
     }
 
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.container;
+
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.service.project.ProjectUseService;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterConvertEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Evict the in-memory views of a Container whenever it is saved or deleted through a repository, and track the
+ * use of its project on saves. The resources of the container are read, written and deleted along with it in
+ * the container_resource collection.
+ */
+@Component
+public class ContainerEventListener extends AbstractMongoEventListener<Container> {
+
+    private static final Logger log = LoggerFactory.getLogger(ContainerEventListener.class);
+
+    @Autowired
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
+    @Autowired
+    private ProjectUseService projectUseService;
+
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void onAfterConvert(AfterConvertEvent<Container> event) {
+        if (event.getSource().getId() != null && event.getDocument() != null) {
+            event.getSource().setResources(resourceStore.readResources(event.getSource().getId(), event.getDocument()));
+        }
+    }
+
+    @Override
+    public void onBeforeSave(BeforeSaveEvent<Container> event) {
+        // Written before the container document, which no longer embeds them once saved
+        resourceStore.saveResources(event.getSource());
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Container> event) {
+        // A new container only has an id now, the resources of the others were written before the save
+        if (!resourceStore.isStored(event.getSource())) {
+            resourceStore.saveResources(event.getSource());
+        }
+        // The routing index, the Swagger documents and the static files are evicted with the RuntimeResources,
+        // on every node
+        runtimeResourceCacheService.evictContainer(event.getSource().getId());
+        try {
+            projectUseService.onContainerSaved(event.getSource());
+        } catch (RuntimeException e) {
+            // The reconciliation will catch up, the save itself succeeded
+            log.warn("Could not track the use of project {}", event.getSource().getProjectId(), e);
+        }
+    }
+
+    @Override
+    public void onBeforeDelete(BeforeDeleteEvent<Container> event) {
+        Document query = event.getSource();
+        if (query != null && (query.get("_id") == null || query.get("_id") instanceof Document)) {
+            // Deleted by query (ie. by project), the ids are only known before the delete
+            BasicQuery ids = new BasicQuery(query, new Document("_id", 1));
+            List<String> containerIds = mongoTemplate.find(ids, Document.class, event.getCollectionName()).stream()
+                    .map(container -> String.valueOf(container.get("_id"))).collect(Collectors.toList());
+            resourceStore.delete(containerIds);
+        }
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Container> event) {
+        Document query = event.getSource();
+        if (query != null && query.get("_id") != null && !(query.get("_id") instanceof Document)) {
+            resourceStore.delete(String.valueOf(query.get("_id")));
+            runtimeResourceCacheService.evictContainer(String.valueOf(query.get("_id")));
+        } else {
+            // Deleted by query (ie. by project), the ids are unknown
+            runtimeResourceCacheService.evictAll();
+        }
+    }
+
+}
@@ -1,233 +1,273 @@
-/*
- * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package fr.codeonce.grizzly.core.service.container;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.client.gridfs.model.GridFSFile;
-import fr.codeonce.grizzly.core.domain.container.Container;
-import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
-import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchy;
-import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchyRepository;
-import fr.codeonce.grizzly.core.domain.util.FileSystemUtil;
-import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
-import fr.codeonce.grizzly.core.service.fs.model.CustomFile;
-import fr.codeonce.grizzly.core.service.fs.model.CustomFolder;
-import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
-import fr.codeonce.grizzly.core.service.util.JsonUtil;
-import jakarta.servlet.http.HttpServletResponse;
-import org.apache.commons.io.FileUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.GridFsTemplate;
-import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.ResourceUtils;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-@Service
-@Transactional
-public class ContainerExportService {
-
-    private static final Logger log = LoggerFactory.getLogger(ContainerExportService.class);
-
-    @Autowired
-    private ContainerSwaggerService containerSwaggerService;
-
-    @Autowired
-    private ContainerRepository containerRepository;
-
-    @Autowired
-    private ContainerHierarchyRepository hierarchyRepository;
-
-    @Autowired
-    private MongoCacheService cacheService;
-
-    public File export(String currentContainerId) throws IOException {
-        Container c = containerRepository.findById(currentContainerId)
-                .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, currentContainerId));
-        String hierarchyId = c.getHierarchyId();
-        // if files are imported, there is an hierarchy
-        ContainerHierarchy hierarachy = hierarchyRepository.findById(hierarchyId)
-                .orElseThrow(GlobalExceptionUtil.notFoundException(ContainerHierarchy.class, hierarchyId));
-
-        String h = hierarachy.getHierarchy();
-        if (h.equals("none") || h.equals("")) {
-            return null;
-        }
-
-        String jsonString = new ObjectMapper().writeValueAsString(h);
-        CustomFolder ccFolder = JsonUtil.readValue(jsonString, CustomFolder.class);
-        // recursive function to save files
-        File projectFolder = new File(ccFolder.getName());
-        if (projectFolder.mkdirs())
-            log.debug("folder created");
-        String rootFolderPath = FileSystemUtil.getTempFolderPath(currentContainerId);
-        GridFsTemplate gridFsTemplate = cacheService.getGridFs(cacheService.getMongoClient(c.getDbsourceId()),
-                c.getDatabaseName());
-        exportRecursive(rootFolderPath, ccFolder, currentContainerId, gridFsTemplate);
-        return ResourceUtils.getFile(rootFolderPath);
-
-    }
-
-    private void exportRecursive(String rootFolderPath, CustomFolder list, String idContainer,
-                                 GridFsTemplate gridFsTemplate) {
-        list.getChildren().forEach(item -> {
-            @SuppressWarnings("unchecked")
-            LinkedHashMap<String, String> i = (LinkedHashMap<String, String>) item;
-            if (i.get("type").equals("file")) {
-                try {
-                    String jsonString = new ObjectMapper().writeValueAsString(i);
-                    CustomFile ccFile = JsonUtil.readValue(jsonString, CustomFile.class);
-                    InputStream inputStream;
-
-                    String oldFileId = ccFile.getFileId();
-                    GridFSFile file = gridFsTemplate.findOne(Query.query((Criteria.where("_id").is(oldFileId))));
-
-                    String fileUri = file.getMetadata().getString("fileUri");
-
-                    File f = new File(rootFolderPath + File.separator + fileUri);
-                    if (f.createNewFile()) {
-                        log.debug("{} file created", fileUri);
-                        inputStream = gridFsTemplate.getResource(file.getFilename()).getInputStream();
-                        FileUtils.copyToFile(inputStream, f);
-                        inputStream.close();
-                    } else {
-                        log.debug("temp file already created {} :", file.getFilename());
-                    }
-
-                } catch (Exception e) {
-                    log.debug("{}", e);
-                }
-            } else {
-                CustomFolder ccFolder;
-                try {
-                    String jsonString = new ObjectMapper().writeValueAsString(i);
-                    ccFolder = JsonUtil.readValue(jsonString, CustomFolder.class);
-                    String fileUri = ccFolder.getName().replaceAll("\\\\", "/")
-                            .substring(ccFolder.getName().indexOf(idContainer) + idContainer.length() + 1);
-                    File folder = new File(rootFolderPath + File.separator + fileUri);
-                    if (folder.mkdirs()) {
-                        log.debug("{} folder created", folder.getAbsoluteFile());
-                    } else {
-                        log.debug("temp folder already created {} :", folder.getName());
-                    }
-                    exportRecursive(rootFolderPath, ccFolder, idContainer, gridFsTemplate);
-                } catch (IOException e) {
-                    log.debug("{}", e);
-                }
-            }
-        });
-    }
-
-    public List<String> getFileList(File directory) {
-        List<String> fileList = new ArrayList<>();
-        appendFileList(directory, fileList);
-        return fileList;
-    }
-
-    /**
-     * Get files list from the directory recursive to the sub directory.
-     */
-    private void appendFileList(File directory, List<String> fileList) {
-        File[] files = directory.listFiles();
-        if (files != null && files.length > 0) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    fileList.add(file.getAbsolutePath());
-                } else {
-                    appendFileList(file, fileList);
-                }
-            }
-        }
-    }
-
-    public void zipContainer(List<String> fileList, String containerId, File directory, HttpServletResponse response)
-            throws IOException {
-
-        // setting headers
-        String fileName = containerId + ".zip";
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.addHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-        response.setHeader("Content-Type", "application/zip");
-
-        String swaggerFileName = containerSwaggerService.generateOpenApi("dev", containerId).getPath();
-        File swaggerTemp = new File(directory.getAbsolutePath() + File.separator + swaggerFileName);
-        if (swaggerTemp.createNewFile()) {
-            log.debug("{} file created", swaggerFileName);
-            FileUtils.copyFile(containerSwaggerService.generateOpenApi("dev", containerId), swaggerTemp);
-        } else {
-            log.debug("error creating temp file {}", swaggerFileName);
-        }
-        fileList.add(swaggerTemp.getAbsolutePath());
-
-        try (ZipOutputStream zos = new ZipOutputStream(response.getOutputStream())) {
-
-            for (String filePath : fileList) {
-
-                // Creates a ZIP entry.
-                String name = filePath.substring(directory.getAbsolutePath().lastIndexOf(File.separator) + 1);
-
-                ZipEntry zipEntry = new ZipEntry(name);
-                zos.putNextEntry(zipEntry);
-
-                // Read file content and write to ZIP output stream.
-
-                try (FileInputStream fis = new FileInputStream(filePath)) {
-                    byte[] buffer = new byte[1024];
-                    int length;
-                    while ((length = fis.read(buffer)) > 0) {
-                        zos.write(buffer, 0, length);
-                    }
-
-                    // Close the ZIP entry.
-                    zos.flush();
-                    zos.closeEntry();
-                } catch (Exception e) {
-                    log.debug("an exception has occured : {}", e);
-                }
-            }
-
-            deleteDirectoryStream(directory.getAbsoluteFile().toPath());
-
-        } catch (IOException e) {
-            log.debug("an exception has occured : {}", e);
-        }
-
-    }
-
-    private void deleteDirectoryStream(Path path) throws IOException {
-        try (Stream<Path> files = Files.walk(path)) {
-            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-        }
-    }
-
-}
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.container;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
+import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchy;
+import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchyRepository;
+import fr.codeonce.grizzly.core.service.fs.FilesHandler;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService;
+import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletResponse;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the OpenAPI document and the imported files of a container as a zip written straight to the response.
+ * The files are read from GridFS, through their blobs, in hierarchy order, the next ones being read ahead on a
+ * shared pool while the current one is written, and nothing is written to disk.
+ */
+@Service
+public class ContainerExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(ContainerExportService.class);
+
+    private static final String FILE_URI = "fileUri";
+
+    @Autowired
+    private ContainerSwaggerService containerSwaggerService;
+
+    @Autowired
+    private ContainerRepository containerRepository;
+
+    @Autowired
+    private ContainerHierarchyRepository hierarchyRepository;
+
+    @Autowired
+    private FilesHandler filesHandler;
+
+    @Autowired
+    private GridFsBlobService blobService;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void initExecutor() {
+        AppProperties.FileExport spec = getSpec();
+        AtomicInteger count = new AtomicInteger();
+        // Unbounded queue, the files read ahead are bounded per export
+        this.executor = new ThreadPoolExecutor(spec.getPrefetchThreads(), spec.getPrefetchThreads(), 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "ContainerExport-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Write the zip of a container to the response : its OpenAPI document first, then its imported files under
+     * their fileUri, all in a folder named by the container id
+     *
+     * @param containerId
+     * @param response
+     * @throws IOException
+     */
+    public void export(String containerId, HttpServletResponse response) throws IOException {
+        Container container = containerRepository.findById(containerId)
+                .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, containerId));
+        byte[] spec = containerSwaggerService.generateOpenApiContent(container, "dev")
+                .getBytes(StandardCharsets.UTF_8);
+        String swaggerFileName = containerSwaggerService.getSwaggerFileName("dev", containerId);
+        List<GridFSFile> files = findFiles(container);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.addHeader("Content-Disposition", "attachment; filename=\"" + containerId + ".zip\"");
+        response.setHeader("Content-Type", "application/zip");
+
+        long start = System.currentTimeMillis();
+        // The client is kept open while the files are streamed
+        try (FilesHandler.GridFsDatabase database = filesHandler.checkoutGridFsDatabase(container.getDbsourceId(),
+                container.getDatabaseName());
+             ZipOutputStream zos = new ZipOutputStream(response.getOutputStream())) {
+            // The document is generated before the response starts, the first bytes do not wait for GridFS
+            zos.putNextEntry(new ZipEntry(containerId + "/" + swaggerFileName));
+            zos.write(spec);
+            zos.closeEntry();
+            writeFiles(zos, containerId, database.get(), files);
+        }
+        log.debug("Container {} exported with {} files in {} ms", containerId, files.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the size of the files imported in a container
+     *
+     * @param containerId
+     * @return the sum of their GridFS lengths in bytes
+     */
+    public long sizeOf(String containerId) {
+        Container container = containerRepository.findById(containerId)
+                .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, containerId));
+        return findFiles(container).stream().mapToLong(GridFSFile::getLength).sum();
+    }
+
+    /**
+     * Returns the GridFS files of the container hierarchy, in hierarchy order, with a single query per collection
+     */
+    private List<GridFSFile> findFiles(Container container) throws IllegalArgumentException {
+        List<ObjectId> fileIds = getHierarchyFileIds(container);
+        if (fileIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        MongoDatabase database = filesHandler.getGridFsDatabase(container.getDbsourceId(),
+                container.getDatabaseName());
+        Map<ObjectId, GridFSFile> byId = new HashMap<>();
+        for (GridFSFile file : blobService.find(database, Filters.in("_id", fileIds))) {
+            byId.put(file.getObjectId(), file);
+        }
+        List<GridFSFile> files = new ArrayList<>(byId.size());
+        fileIds.forEach(id -> {
+            GridFSFile file = byId.remove(id);
+            if (file != null && file.getMetadata() != null && file.getMetadata().getString(FILE_URI) != null) {
+                files.add(file);
+            }
+        });
+        return files;
+    }
+
+    private List<ObjectId> getHierarchyFileIds(Container container) {
+        List<ObjectId> fileIds = new ArrayList<>();
+        String hierarchyId = container.getHierarchyId();
+        if (hierarchyId == null || hierarchyId.isEmpty()) {
+            return fileIds;
+        }
+        ContainerHierarchy hierarchy = hierarchyRepository.findById(hierarchyId)
+                .orElseThrow(GlobalExceptionUtil.notFoundException(ContainerHierarchy.class, hierarchyId));
+        try {
+            FilesHandler.collectFiles(FilesHandler.readHierarchy(hierarchy.getHierarchy()))
+                    .forEach(file -> fileIds.add(new ObjectId(file.get("fileId").asText())));
+        } catch (IOException e) {
+            log.warn("The hierarchy {} of container {} is not valid", hierarchyId, container.getId(), e);
+        }
+        return fileIds;
+    }
+
+    private void writeFiles(ZipOutputStream zos, String containerId, MongoDatabase database, List<GridFSFile> files)
+            throws IOException {
+        AppProperties.FileExport spec = getSpec();
+        List<CompletableFuture<byte[]>> prefetched = new ArrayList<>(files.size());
+        Set<String> entryNames = new HashSet<>();
+        int next = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                // Keep the window of files read ahead full
+                for (; next < files.size() && next <= i + spec.getPrefetchWindow(); next++) {
+                    prefetched.add(prefetch(database, files.get(next), spec.getMaxPrefetchedFileSize()));
+                }
+                GridFSFile file = files.get(i);
+                String entryName = containerId + "/" + file.getMetadata().getString(FILE_URI);
+                byte[] content = join(prefetched.get(i));
+                // Released as soon as written
+                prefetched.set(i, null);
+                if (!entryNames.add(entryName)) {
+                    log.debug("Duplicate file {} skipped from the export of {}", entryName, containerId);
+                    continue;
+                }
+                zos.putNextEntry(new ZipEntry(entryName));
+                if (content != null) {
+                    zos.write(content);
+                } else {
+                    try (InputStream in = blobService.open(database, file)) {
+                        transfer(in, zos);
+                    }
+                }
+                zos.closeEntry();
+            }
+        } finally {
+            prefetched.stream().filter(future -> future != null).forEach(future -> future.cancel(false));
+        }
+    }
+
+    /**
+     * Read a small file ahead, the larger ones complete with null and are streamed by the writer
+     */
+    private CompletableFuture<byte[]> prefetch(MongoDatabase database, GridFSFile file, int maxSize) {
+        if (file.getLength() > maxSize) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return blobService.read(database, file);
+            } catch (UncheckedIOException e) {
+                throw new CompletionException(e.getCause());
+            }
+        }, executor);
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void transfer(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+    }
+
+    private AppProperties.FileExport getSpec() {
+        return appProperties.getFileExport() != null ? appProperties.getFileExport()
+                : new AppProperties.FileExport();
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.container;
+
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import fr.codeonce.grizzly.core.service.util.SchedulerLock;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.stream.Stream;
+
+/**
+ * One-time move of the resources embedded in the containers saved by previous versions to the
+ * container_resource collection. Until then these containers are read as before, and any save moves them.
+ */
+@Component
+public class ContainerResourceMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(ContainerResourceMigration.class);
+
+    static final String NAME = "container-resources-split";
+
+    static final String COLLECTION = "migration";
+
+    private static final String RESOURCES = "resources";
+
+    private static final String LAST_UPDATE = "lastUpdate";
+
+    private static final long LOCK_AT_MOST_FOR = 3_600_000L;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
+    @Autowired
+    private SchedulerLock schedulerLock;
+
+    @Autowired
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        if (isApplied()) {
+            return;
+        }
+        schedulerLock.runLocked(NAME, LOCK_AT_MOST_FOR, 0, () -> {
+            // Checked again, another instance may have run it meanwhile
+            if (isApplied()) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            Query embedded = Query.query(Criteria.where(RESOURCES).exists(true));
+            embedded.fields().include(RESOURCES, LAST_UPDATE);
+            String collectionName = mongoTemplate.getCollectionName(Container.class);
+            int migrated = 0;
+            // One container in memory at a time
+            try (Stream<Document> containers = mongoTemplate.stream(embedded, Document.class, collectionName)) {
+                for (Document container : (Iterable<Document>) containers::iterator) {
+                    migrate(container, collectionName);
+                    migrated++;
+                }
+            }
+            mongoTemplate.insert(new Document("_id", NAME).append("appliedAt", new Date()), COLLECTION);
+            log.info("Migration {} applied to {} containers in {} ms", NAME, migrated,
+                    System.currentTimeMillis() - start);
+        });
+    }
+
+    private void migrate(Document container, String collectionName) {
+        String containerId = String.valueOf(container.get("_id"));
+        // Claimed first : a container saved meanwhile no longer embeds its resources, its save stored them
+        Query unchanged = Query.query(Criteria.where("_id").is(container.get("_id")).and(LAST_UPDATE)
+                .is(container.get(LAST_UPDATE)).and(RESOURCES).exists(true));
+        Document claimed = mongoTemplate.findAndModify(unchanged, new Update().unset(RESOURCES),
+                FindAndModifyOptions.options().returnNew(false), Document.class, collectionName);
+        if (claimed == null) {
+            log.debug("Container {} was saved during the migration of its resources", containerId);
+            return;
+        }
+        try {
+            resourceStore.save(containerId, resourceStore.readResources(containerId, claimed));
+        } catch (RuntimeException e) {
+            // Embedded again for the next run, unless the container was saved meanwhile
+            Query stillClaimed = Query.query(Criteria.where("_id").is(container.get("_id")).and(LAST_UPDATE)
+                    .is(container.get(LAST_UPDATE)).and(RESOURCES).exists(false));
+            mongoTemplate.updateFirst(stillClaimed, new Update().set(RESOURCES, claimed.get(RESOURCES)),
+                    collectionName);
+            throw e;
+        } finally {
+            // Read without any resource between the claim and the store, under the same lastUpdate. The routing
+            // index and the Swagger documents are evicted with the RuntimeResources, on every node.
+            runtimeResourceCacheService.evictContainer(containerId);
+        }
+    }
+
+    private boolean isApplied() {
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(NAME)), COLLECTION);
+    }
+
+}
@@ -21,6 +21,7 @@ import fr.codeonce.grizzly.core.domain.resource.CustomQuery;
 import fr.codeonce.grizzly.core.domain.resource.Resource;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -35,6 +36,9 @@ public class ContainerResourceService {
     @Autowired
     private ContainerRepository containerRepository;
 
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
     /**
      * Fetch a Resource From DB based on the Container ID and The Resource Path
      *
@@ -52,6 +56,28 @@ public class ContainerResourceService {
         throw GlobalExceptionUtil.notFoundException(Resource.class, resourcePath).get();
     }
 
+    /**
+     * Fetch a page of the Resources of a Container, in their order of declaration
+     *
+     * @param containerId
+     * @param pageable
+     * @return List<Resource>
+     */
+    public List<Resource> getResources(String containerId, Pageable pageable) {
+        Container container = containerRepository.findById(containerId)
+                .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, containerId));
+        if (resourceStore.isStored(container)) {
+            return resourceStore.findPage(containerId, pageable);
+        }
+        // Saved by a previous version, the resources are still embedded
+        List<Resource> resources = container.getResources();
+        if (pageable.isUnpaged()) {
+            return resources;
+        }
+        int from = (int) Math.min(pageable.getOffset(), resources.size());
+        return resources.subList(from, Math.min(from + pageable.getPageSize(), resources.size()));
+    }
+
     public Boolean getUniqueResource(String containerId, String path, String method) {
         Boolean unique = true;
         return unique;
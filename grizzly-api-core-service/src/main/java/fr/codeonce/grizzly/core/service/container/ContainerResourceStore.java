@@ -0,0 +1,384 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.container;
+
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.resource.ContainerResource;
+import fr.codeonce.grizzly.core.domain.resource.Resource;
+import fr.codeonce.grizzly.core.domain.resource.ResourceRequestModel;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Reads and writes the resources of the containers in the container_resource collection. A saved list is
+ * compared with the stored one : only the added, changed or moved resources are written, and the removed ones
+ * deleted, with a single bulk write. Resources are keyed by their container, route and rank among the resources
+ * with the same route, unique in the collection : concurrent saves of a container upsert the same documents.
+ */
+@Service
+public class ContainerResourceStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ContainerResourceStore.class);
+
+    private static final String CONTAINER_ID = "containerId";
+
+    private static final String HTTP_METHOD = "httpMethod";
+
+    private static final String PATH = "path";
+
+    private static final String OCCURRENCE = "occurrence";
+
+    private static final String POSITION = "position";
+
+    private static final String HASH = "hash";
+
+    private static final String RESOURCE = "resource";
+
+    private static final String COLLECTION_NAME = "customQuery.collectionName";
+
+    private static final String DATASOURCE = "customQuery.datasource";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // Whether the resources embedded by previous versions were all moved
+    private volatile boolean migrated;
+
+    /**
+     * Returns the resources of a container read from a stored document : the stored ones are read on first
+     * access, the ones still embedded in a document written by a previous version are converted
+     *
+     * @param containerId
+     * @param document    the container document
+     * @return List<Resource>
+     */
+    List<Resource> readResources(String containerId, Document document) {
+        List<Document> embedded = document.getList("resources", Document.class);
+        if (embedded == null) {
+            return new LazyResourceList(containerId, this::findAll);
+        }
+        return embedded.stream().map(r -> mongoTemplate.getConverter().read(Resource.class, r))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * Write the resources of a saved container, unless they were read from the store and never accessed
+     *
+     * @param container
+     */
+    void saveResources(Container container) {
+        if (container.getId() == null || LazyResourceList.isUnreadFor(container.getResources(), container.getId())) {
+            return;
+        }
+        List<Resource> resources = container.getResources() != null ? container.getResources() : new ArrayList<>();
+        save(container.getId(), resources);
+        if (!LazyResourceList.isStoredFor(resources, container.getId())) {
+            container.setResources(new LazyResourceList(container.getId(), resources));
+        }
+    }
+
+    /**
+     * @return whether the resources of the container are read from the store, false until a container saved by
+     * a previous version is migrated
+     */
+    public boolean isStored(Container container) {
+        return container.getId() != null && LazyResourceList.isStoredFor(container.getResources(), container.getId());
+    }
+
+    public List<Resource> findAll(String containerId) {
+        Query query = Query.query(Criteria.where(CONTAINER_ID).is(containerId)).with(Sort.by(POSITION));
+        return mongoTemplate.find(query, ContainerResource.class).stream().map(ContainerResource::getResource)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Read the stored resources of several containers with a single query, ie. for the list views that map all
+     * of them. The containers whose resources were already read are left as they are.
+     *
+     * @param containers as read from the repository
+     */
+    public void loadResources(Collection<Container> containers) {
+        Map<String, Container> unread = new HashMap<>();
+        containers.stream().filter(c -> c.getId() != null && LazyResourceList.isUnreadFor(c.getResources(), c.getId()))
+                .forEach(c -> unread.put(c.getId(), c));
+        if (unread.isEmpty()) {
+            return;
+        }
+        Map<String, List<Resource>> resources = new HashMap<>();
+        Query query = Query.query(Criteria.where(CONTAINER_ID).in(unread.keySet()))
+                .with(Sort.by(CONTAINER_ID, POSITION));
+        mongoTemplate.find(query, ContainerResource.class).forEach(stored -> resources
+                .computeIfAbsent(stored.getContainerId(), id -> new ArrayList<>()).add(stored.getResource()));
+        unread.forEach((containerId, container) -> LazyResourceList.load(container.getResources(),
+                resources.getOrDefault(containerId, new ArrayList<>())));
+    }
+
+    public List<Resource> findPage(String containerId, Pageable pageable) {
+        Query query = Query.query(Criteria.where(CONTAINER_ID).is(containerId)).with(pageable)
+                .with(Sort.by(POSITION));
+        return mongoTemplate.find(query, ContainerResource.class).stream().map(ContainerResource::getResource)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the routes of the container resources : resources holding only their HTTP method and path
+     *
+     * @param container
+     * @return List<Resource>
+     */
+    public List<Resource> findRoutes(Container container) {
+        if (!LazyResourceList.isUnreadFor(container.getResources(), container.getId())) {
+            return container.getResources();
+        }
+        Query query = Query.query(Criteria.where(CONTAINER_ID).is(container.getId())).with(Sort.by(POSITION));
+        query.fields().include(HTTP_METHOD, PATH);
+        return mongoTemplate.find(query, ContainerResource.class).stream().map(stored -> {
+            Resource route = new Resource();
+            route.setHttpMethod(stored.getHttpMethod());
+            route.setPath(stored.getPath());
+            return route;
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the first declared resource of a route
+     *
+     * @param containerId
+     * @param httpMethod
+     * @param path        the resource path (ie. /users/{id})
+     * @return the Resource, null if not stored
+     */
+    public Resource findOne(String containerId, String httpMethod, String path) {
+        Query query = Query.query(Criteria.where(CONTAINER_ID).is(containerId).and(HTTP_METHOD).is(httpMethod)
+                .and(PATH).is(path)).with(Sort.by(POSITION)).limit(1);
+        ContainerResource stored = mongoTemplate.findOne(query, ContainerResource.class);
+        return stored != null ? stored.getResource() : null;
+    }
+
+    public List<ResourceRequestModel> findRequestModels(String containerId) {
+        Query query = Query.query(Criteria.where(CONTAINER_ID).is(containerId).and("resource.requestModels.0")
+                .exists(true));
+        query.fields().include("resource.requestModels");
+        return mongoTemplate.find(query, ContainerResource.class).stream()
+                .flatMap(stored -> stored.getResource().getRequestModels().stream()).collect(Collectors.toList());
+    }
+
+    /**
+     * Add a resource at the end of a stored container without reading the others
+     *
+     * @param containerId
+     * @param resource
+     */
+    public void add(String containerId, Resource resource) {
+        int position = (int) mongoTemplate.count(Query.query(Criteria.where(CONTAINER_ID).is(containerId)),
+                ContainerResource.class);
+        ContainerResource added = newStored(containerId, resource, position);
+        added.setOccurrence((int) mongoTemplate.count(Query.query(Criteria.where(CONTAINER_ID).is(containerId)
+                .and(HTTP_METHOD).is(resource.getHttpMethod()).and(PATH).is(resource.getPath())),
+                ContainerResource.class));
+        added.setHash(hash(write(resource)));
+        mongoTemplate.insert(added);
+    }
+
+    /**
+     * Replace the stored resources of a container with the given ones
+     *
+     * @param containerId
+     * @param resources
+     */
+    public void save(String containerId, List<Resource> resources) {
+        Query query = Query.query(Criteria.where(CONTAINER_ID).is(containerId));
+        query.fields().include(HTTP_METHOD, PATH, OCCURRENCE, POSITION, HASH);
+        // The stored resources by route and occurrence
+        Map<String, ContainerResource> stored = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        mongoTemplate.find(query, ContainerResource.class).forEach(s -> {
+            ContainerResource duplicate = stored.put(key(s.getHttpMethod(), s.getPath(), s.getOccurrence()), s);
+            if (duplicate != null) {
+                removed.add(duplicate.getId());
+            }
+        });
+
+        BulkOperations operations = mongoTemplate.bulkOps(BulkMode.UNORDERED, ContainerResource.class);
+        Map<String, Integer> occurrences = new HashMap<>();
+        int writes = 0;
+        for (int position = 0; position < resources.size(); position++) {
+            Resource resource = resources.get(position);
+            int occurrence = occurrences.merge(route(resource.getHttpMethod(), resource.getPath()), 1, Integer::sum)
+                    - 1;
+            Document document = write(resource);
+            String hash = hash(document);
+            ContainerResource previous = stored.remove(key(resource.getHttpMethod(), resource.getPath(), occurrence));
+            if (previous == null) {
+                // Inserted with the fields of the key, unless a concurrent save of the container just did
+                operations.upsert(byKey(containerId, resource, occurrence),
+                        new Update().set(RESOURCE, document).set(HASH, hash).set(POSITION, position));
+                writes++;
+            } else if (!hash.equals(previous.getHash())) {
+                // The occurrence is set again on the resources stored before it was part of the key
+                operations.updateOne(Query.query(Criteria.where("_id").is(previous.getId())), new Update()
+                        .set(RESOURCE, document).set(HASH, hash).set(POSITION, position).set(OCCURRENCE, occurrence));
+                writes++;
+            } else if (previous.getPosition() != position) {
+                operations.updateOne(Query.query(Criteria.where("_id").is(previous.getId())),
+                        new Update().set(POSITION, position).set(OCCURRENCE, occurrence));
+                writes++;
+            }
+        }
+        stored.values().forEach(s -> removed.add(s.getId()));
+        if (!removed.isEmpty()) {
+            operations.remove(Query.query(Criteria.where("_id").in(removed)));
+            writes++;
+        }
+        if (writes > 0) {
+            operations.execute();
+        }
+        log.debug("Resources of container {} saved : {} writes, {} removed", containerId, writes, removed.size());
+    }
+
+    /**
+     * Returns the ids of the containers having a resource that queries the given collection
+     *
+     * @param dbsourceId     the datasource of the collection, any when null
+     * @param collectionName
+     * @return List<String>
+     */
+    public List<String> findContainerIdsByCollection(String dbsourceId, String collectionName) {
+        List<String> containerIds = new ArrayList<>(mongoTemplate.findDistinct(
+                Query.query(byCollection(RESOURCE + '.', dbsourceId, collectionName)), CONTAINER_ID,
+                ContainerResource.class, String.class));
+        if (hasEmbeddedResources()) {
+            mongoTemplate.findDistinct(Query.query(byEmbeddedCollection(dbsourceId, collectionName)), "_id",
+                            embeddingCollection(), Object.class)
+                    .forEach(id -> containerIds.add(String.valueOf(id)));
+        }
+        return containerIds;
+    }
+
+    public boolean isCollectionUsed(String dbsourceId, String collectionName) {
+        return mongoTemplate.exists(Query.query(byCollection(RESOURCE + '.', dbsourceId, collectionName)),
+                ContainerResource.class)
+                || (hasEmbeddedResources() && mongoTemplate.exists(
+                Query.query(byEmbeddedCollection(dbsourceId, collectionName)), embeddingCollection()));
+    }
+
+    /**
+     * Point the resources that query a collection to its new name, without reading them
+     *
+     * @param dbsourceId     the datasource of the collection, any when null
+     * @param collectionName
+     * @param newName
+     * @return the number of updated resources, or of updated containers for the ones still embedding them
+     */
+    public long renameCollection(String dbsourceId, String collectionName, String newName) {
+        // The stored hash no longer matches, the next save writes these resources again
+        long updated = mongoTemplate.updateMulti(Query.query(byCollection(RESOURCE + '.', dbsourceId, collectionName)),
+                new Update().set(RESOURCE + '.' + COLLECTION_NAME, newName).unset(HASH),
+                ContainerResource.class).getModifiedCount();
+        if (hasEmbeddedResources()) {
+            Update update = new Update().set("resources.$[r]." + COLLECTION_NAME, newName)
+                    .filterArray(byCollection("r.", dbsourceId, collectionName));
+            updated += mongoTemplate.updateMulti(Query.query(byEmbeddedCollection(dbsourceId, collectionName)),
+                    update, embeddingCollection()).getModifiedCount();
+        }
+        return updated;
+    }
+
+    private static Criteria byCollection(String prefix, String dbsourceId, String collectionName) {
+        Criteria criteria = Criteria.where(prefix + COLLECTION_NAME).is(collectionName);
+        return dbsourceId != null ? criteria.and(prefix + DATASOURCE).is(dbsourceId) : criteria;
+    }
+
+    private static Criteria byEmbeddedCollection(String dbsourceId, String collectionName) {
+        return Criteria.where("resources").elemMatch(byCollection("", dbsourceId, collectionName));
+    }
+
+    private String embeddingCollection() {
+        return mongoTemplate.getCollectionName(Container.class);
+    }
+
+    private boolean hasEmbeddedResources() {
+        if (!migrated) {
+            migrated = mongoTemplate.exists(Query.query(Criteria.where("_id").is(ContainerResourceMigration.NAME)),
+                    ContainerResourceMigration.COLLECTION);
+        }
+        return !migrated;
+    }
+
+    public void delete(String containerId) {
+        mongoTemplate.remove(Query.query(Criteria.where(CONTAINER_ID).is(containerId)), ContainerResource.class);
+    }
+
+    public void delete(Collection<String> containerIds) {
+        if (!containerIds.isEmpty()) {
+            mongoTemplate.remove(Query.query(Criteria.where(CONTAINER_ID).in(containerIds)), ContainerResource.class);
+        }
+    }
+
+    private static Query byKey(String containerId, Resource resource, int occurrence) {
+        return Query.query(Criteria.where(CONTAINER_ID).is(containerId).and(HTTP_METHOD).is(resource.getHttpMethod())
+                .and(PATH).is(resource.getPath()).and(OCCURRENCE).is(occurrence));
+    }
+
+    private static ContainerResource newStored(String containerId, Resource resource, int position) {
+        ContainerResource stored = new ContainerResource();
+        stored.setContainerId(containerId);
+        stored.setHttpMethod(resource.getHttpMethod());
+        stored.setPath(resource.getPath());
+        stored.setPosition(position);
+        stored.setResource(resource);
+        return stored;
+    }
+
+    private Document write(Resource resource) {
+        Document document = new Document();
+        mongoTemplate.getConverter().write(resource, document);
+        return document;
+    }
+
+    private static String hash(Document document) {
+        return DigestUtils.sha256Hex(document.toJson());
+    }
+
+    private static String route(String httpMethod, String path) {
+        return Objects.toString(httpMethod) + ' ' + Objects.toString(path);
+    }
+
+    private static String key(String httpMethod, String path, int occurrence) {
+        return route(httpMethod, path) + ' ' + occurrence;
+    }
+
+}
@@ -27,7 +27,10 @@ import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.mapper.MongoDBSourceMapperService;
 import fr.codeonce.grizzly.core.service.project.ProjectExample;
+import fr.codeonce.grizzly.core.service.swagger.SwaggerConverterService;
 import fr.codeonce.grizzly.core.service.swagger.SwaggerGenerator;
+import fr.codeonce.grizzly.core.service.swagger.SwaggerSpecCacheService;
+import fr.codeonce.grizzly.core.service.swagger.SwaggerSpecCacheService.CachedSpec;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
 import io.swagger.models.Swagger;
 import io.swagger.v3.oas.models.OpenAPI;
@@ -38,32 +41,35 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.FileCopyUtils;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 @Service
 @Transactional
 public class ContainerSwaggerService {
 
-    private static final String API_URL = "https://converter.swagger.io/api/convert";
-
     private static final String JSON = ".json";
 
     private static final String APP_JSON = "application/json";
 
     private static final String URL_NOT_VALID = "URL is not valid";
 
+    private static final String SWAGGER_V2 = "V2";
+
+    private static final String OPENAPI_V3 = "V3";
+
     @Autowired
     private ContainerRepository containerRepository;
 
@@ -88,6 +94,15 @@ public class ContainerSwaggerService {
     @Autowired
     private DBSourceService dbsourceService;
 
+    @Autowired
+    private SwaggerSpecCacheService specCacheService;
+
+    @Autowired
+    private SwaggerConverterService swaggerConverterService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     private static final Logger log = LoggerFactory.getLogger(ContainerSwaggerService.class);
 
     /**
@@ -112,20 +127,15 @@ public class ContainerSwaggerService {
         }
     }
 
+    /**
+     * Convert a Swagger 2 document to OpenAPI 3, in process
+     */
     public String getOpenApi(String content) {
-        RestTemplate restTamplate = new RestTemplate();
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Content-Type", APP_JSON);
-        HttpEntity<String> request = new HttpEntity<>(content, headers);
-        return restTamplate.postForObject(API_URL, request, String.class);
+        return swaggerConverterService.toOpenApi(content);
     }
 
     public File generateSwaggerFile(Container container, String type, String json) {
-        String fileName = buildFileName(container);
-        if (type.equalsIgnoreCase("dev")) {
-            fileName = fileName + "-dev";
-        }
-        fileName = fileName.concat(JSON);
+        String fileName = buildFileName(container, type);
         try (FileWriter fw = new FileWriter(fileName)) {
             fw.write(json);
             fw.flush();
@@ -137,17 +147,23 @@ public class ContainerSwaggerService {
     }
 
     public File generateOpenApi(String type, String containerId) throws IOException {
-        Container container = containerRepository.findById(containerId)//
+        Container container = findSpecHeader(containerId)//
                 .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, containerId));
-        String json = swaggerGenerator.generateOpenAPI(container, type);
-        return generateSwaggerFile(container, type, json);
+        return generateSwaggerFile(container, type, getSpec(container, type, OPENAPI_V3).getContent());
     }
 
     public File generateSwagger(String type, String containerId) throws IOException {
-        Container container = containerRepository.findById(containerId)//
+        Container container = findSpecHeader(containerId)//
                 .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, containerId));
-        String json = swaggerGenerator.generate(container, type);
-        return generateSwaggerFile(container, type, json);
+        return generateSwaggerFile(container, type, getSpec(container, type, SWAGGER_V2).getContent());
+    }
+
+    private String buildFileName(Container container, String type) {
+        String fileName = buildFileName(container);
+        if (type.equalsIgnoreCase("dev")) {
+            fileName = fileName + "-dev";
+        }
+        return fileName.concat(JSON);
     }
 
     private String buildFileName(Container container) {
@@ -302,30 +318,76 @@ public class ContainerSwaggerService {
     }
 
     public String getSwaggerJson(String type, String containerId, String swaggerUuid) throws JsonProcessingException {
-        Optional<Container> container = containerRepository.findById(containerId);
-        if (container.isPresent() && container.get().getSwaggerUuid().equals(swaggerUuid)) {
-            return this.swaggerGenerator.generate(container.get(), type);
-        } else {
-            throw new IllegalArgumentException(URL_NOT_VALID);
-        }
+        return getSwaggerOrOpenApiSpec(type, SWAGGER_V2, containerId, swaggerUuid).getContent();
     }
 
     public String getSwaggerOrOpenApiJson(String type, String version, String containerId, String swaggerUuid) throws JsonProcessingException {
-        Optional<Container> container = containerRepository.findById(containerId);
-        if (container.isPresent() && container.get().getSwaggerUuid().equals(swaggerUuid)) {
-            return this.swaggerGenerator.generateSwaggerOrOpenapi(container.get(), type, version);
-        } else {
-            throw new IllegalArgumentException(URL_NOT_VALID);
-        }
+        return getSwaggerOrOpenApiSpec(type, version, containerId, swaggerUuid).getContent();
+    }
+
+    /**
+     * Returns the cached Swagger 2 or OpenAPI 3 document of a container, with its gzip encoding and ETag
+     *
+     * @param type        dev or prod
+     * @param version     V2 for Swagger 2, OpenAPI 3 otherwise
+     * @param containerId
+     * @param swaggerUuid the secret part of the public URL
+     * @return CachedSpec
+     */
+    public CachedSpec getSwaggerOrOpenApiSpec(String type, String version, String containerId, String swaggerUuid) {
+        Container container = findSpecHeader(containerId)
+                .filter(c -> c.getSwaggerUuid() != null && c.getSwaggerUuid().equals(swaggerUuid))
+                .orElseThrow(() -> new IllegalArgumentException(URL_NOT_VALID));
+        return getSpec(container, type, SWAGGER_V2.equalsIgnoreCase(version) ? SWAGGER_V2 : OPENAPI_V3);
+    }
+
+    /**
+     * Generates the OpenAPI document of a container without the cache, ie. for an export that holds the current
+     * functions and collections of the container whatever the evictions still to be applied
+     *
+     * @param container as read from the repository, with its resources
+     * @param type      dev or prod
+     * @return the document content
+     */
+    public String generateOpenApiContent(Container container, String type) {
+        return swaggerGenerator.generateOpenAPI(container, type);
+    }
+
+    /**
+     * @return the name of the file generated by {@link #generateOpenApi} and {@link #generateSwagger}
+     */
+    public String getSwaggerFileName(String type, String containerId) {
+        Container container = findSpecHeader(containerId)//
+                .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, containerId));
+        return buildFileName(container, type);
     }
 
     public String getSwagger(String type, String containerId) throws JsonProcessingException {
-        Optional<Container> container = containerRepository.findById(containerId);
-        if (container.isPresent()) {
-            return this.swaggerGenerator.generate(container.get(), type);
-        } else {
-            throw new IllegalArgumentException(URL_NOT_VALID);
-        }
+        Container container = findSpecHeader(containerId)
+                .orElseThrow(() -> new IllegalArgumentException(URL_NOT_VALID));
+        return getSpec(container, type, SWAGGER_V2).getContent();
+    }
+
+    /**
+     * The full container is only read when its document is not cached yet
+     */
+    private CachedSpec getSpec(Container header, String type, String version) {
+        return specCacheService.get(header.getId(), header.getProjectId(), header.getLastUpdate(), type, version,
+                () -> {
+                    Container container = containerRepository.findById(header.getId())
+                            .orElseThrow(GlobalExceptionUtil.notFoundException(Container.class, header.getId()));
+                    return SWAGGER_V2.equals(version) ? swaggerGenerator.generate(container, type)
+                            : swaggerGenerator.generateOpenAPI(container, type);
+                });
+    }
+
+    /**
+     * Read the fields identifying the document of a container, without its resources
+     */
+    private Optional<Container> findSpecHeader(String containerId) {
+        Query query = Query.query(Criteria.where("_id").is(containerId));
+        query.fields().include("name", "projectId", "swaggerUuid", "lastUpdate");
+        return Optional.ofNullable(mongoTemplate.findOne(query, Container.class));
     }
 
     private Container addDefaultAuthGoup(Container container) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.container;
+
+import fr.codeonce.grizzly.core.domain.resource.Resource;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Function;
+
+/**
+ * The resources of a stored Container, read from the container_resource collection on first access. A list
+ * that was never read is known to be unchanged and is not written back when the container is saved.
+ */
+final class LazyResourceList extends AbstractList<Resource> implements RandomAccess {
+
+    private final String containerId;
+
+    private final Function<String, List<Resource>> loader;
+
+    private List<Resource> resources;
+
+    LazyResourceList(String containerId, Function<String, List<Resource>> loader) {
+        this.containerId = containerId;
+        this.loader = loader;
+    }
+
+    /**
+     * @param containerId
+     * @param resources   the resources as stored
+     */
+    LazyResourceList(String containerId, List<Resource> resources) {
+        this(containerId, (Function<String, List<Resource>>) null);
+        this.resources = resources;
+    }
+
+    /**
+     * @return whether the given list holds the stored resources of the container, read or not
+     */
+    static boolean isStoredFor(List<Resource> resources, String containerId) {
+        return resources instanceof LazyResourceList && ((LazyResourceList) resources).containerId.equals(containerId);
+    }
+
+    /**
+     * @return whether the given list holds the stored resources of the container and was never read
+     */
+    static boolean isUnreadFor(List<Resource> resources, String containerId) {
+        return isStoredFor(resources, containerId) && ((LazyResourceList) resources).resources == null;
+    }
+
+    /**
+     * Set the resources of a list that was never read, ie. read along with the ones of other containers
+     *
+     * @param resources the list of a container
+     * @param stored    the resources as stored
+     */
+    static void load(List<Resource> resources, List<Resource> stored) {
+        LazyResourceList lazy = (LazyResourceList) resources;
+        if (lazy.resources == null) {
+            lazy.resources = new ArrayList<>(stored);
+        }
+    }
+
+    private List<Resource> resources() {
+        if (resources == null) {
+            resources = new ArrayList<>(loader.apply(containerId));
+        }
+        return resources;
+    }
+
+    @Override
+    public Resource get(int index) {
+        return resources().get(index);
+    }
+
+    @Override
+    public int size() {
+        return resources().size();
+    }
+
+    @Override
+    public Resource set(int index, Resource element) {
+        return resources().set(index, element);
+    }
+
+    @Override
+    public void add(int index, Resource element) {
+        resources().add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public Resource remove(int index) {
+        modCount++;
+        return resources().remove(index);
+    }
+
+}
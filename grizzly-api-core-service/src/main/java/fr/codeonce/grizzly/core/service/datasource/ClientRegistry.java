@@ -0,0 +1,361 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the clients of the datasources (MongoClient, RestHighLevelClient, KafkaProducer...), with one
+ * bounded cache per provider. A client is closed once it is evicted (idle, replaced after a change of the
+ * datasource, removed), after a delay letting the running requests finish, and only when no checkout holds it.
+ */
+@Service
+public class ClientRegistry {
+
+    public static final String MONGO = "mongo";
+
+    public static final String ELASTIC = "elastic";
+
+    public static final String COUCHBASE = "couchbase";
+
+    public static final String KAFKA = "kafka";
+
+    public static final String BIGQUERY = "bigquery";
+
+    private static final Logger log = LoggerFactory.getLogger(ClientRegistry.class);
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Cache<String, Entry>> caches = new ConcurrentHashMap<>();
+
+    // Clients created and not closed yet, per provider
+    private final Map<String, AtomicInteger> openClients = new ConcurrentHashMap<>();
+
+    // Evicted clients waiting to be closed
+    private final Set<Entry> retired = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService closer;
+
+    @PostConstruct
+    public void initCloser() {
+        this.closer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ClientRegistry-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void closeClients() {
+        closer.shutdownNow();
+        caches.values().forEach(Cache::invalidateAll);
+        caches.values().forEach(Cache::cleanUp);
+        // No request is served anymore
+        retired.forEach(Entry::close);
+    }
+
+    /**
+     * Returns the client of a datasource, created on a miss. The client may be closed once evicted, long running
+     * uses should {@link #checkout} it instead.
+     *
+     * @param provider one of the provider constants
+     * @param key      identifies the datasource and its connection settings
+     * @param factory  creates the client and how to close it, may return null when it could not be created
+     * @return the client, null if the factory could not create it
+     */
+    public <T> T get(String provider, String key, Supplier<Client<T>> factory) {
+        return get(provider, key, null, factory);
+    }
+
+    /**
+     * Returns the client of a datasource for the given connection settings. Concurrent misses of a key share a
+     * single creation, and a client created with other settings (ie. rotated credentials) is replaced.
+     *
+     * @param provider    one of the provider constants
+     * @param key         identifies the datasource, ie. its id
+     * @param fingerprint hash of the connection settings of the client
+     * @param factory     creates the client and how to close it, may return null when it could not be created
+     * @return the client, null if the factory could not create it
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String provider, String key, String fingerprint, Supplier<Client<T>> factory) {
+        Entry entry = getEntry(provider, key, fingerprint, factory);
+        return entry != null ? (T) entry.client.client : null;
+    }
+
+    /**
+     * Check out the client of a datasource, it is not closed before the returned lease is
+     *
+     * @param provider one of the provider constants
+     * @param key      identifies the datasource and its connection settings
+     * @param factory  creates the client and how to close it, may return null when it could not be created
+     * @return the lease, to be closed by the caller. Null if the factory could not create the client.
+     */
+    public <T> Lease<T> checkout(String provider, String key, Supplier<Client<T>> factory) {
+        while (true) {
+            Entry entry = getEntry(provider, key, null, factory);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.acquire()) {
+                return new Lease<>(entry);
+            }
+            // Closed in between, the cache already holds a new one
+        }
+    }
+
+    /**
+     * Replace the client of a datasource, the previous one is closed once released
+     *
+     * @param provider
+     * @param key
+     * @param client   null to only evict the previous one
+     * @return the new client
+     */
+    public <T> T put(String provider, String key, Client<T> client) {
+        return put(provider, key, null, client);
+    }
+
+    public <T> T put(String provider, String key, String fingerprint, Client<T> client) {
+        if (client == null || client.client == null) {
+            evict(provider, key);
+            return null;
+        }
+        getCache(provider).put(key, newEntry(provider, fingerprint, client));
+        return client.client;
+    }
+
+    public void evict(String provider, String key) {
+        if (key != null) {
+            getCache(provider).invalidate(key);
+        }
+    }
+
+    public void evictAll(String provider) {
+        getCache(provider).invalidateAll();
+    }
+
+    private <T> Entry getEntry(String provider, String key, String fingerprint, Supplier<Client<T>> factory) {
+        Cache<String, Entry> cache = getCache(provider);
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && Objects.equals(entry.fingerprint, fingerprint)) {
+            return entry;
+        }
+        // Computed under the lock of the key, a replaced entry is retired by the removal listener. Caffeine does
+        // not store a null value, a failed creation is retried on the next call.
+        return cache.asMap().compute(key, (k, current) -> {
+            if (current != null && Objects.equals(current.fingerprint, fingerprint)) {
+                return current;
+            }
+            Client<T> client = factory.get();
+            return client != null && client.client != null ? newEntry(provider, fingerprint, client) : null;
+        });
+    }
+
+    private Entry newEntry(String provider, String fingerprint, Client<?> client) {
+        openClients.computeIfAbsent(provider, p -> new AtomicInteger()).incrementAndGet();
+        return new Entry(provider, fingerprint, client);
+    }
+
+    private Cache<String, Entry> getCache(String provider) {
+        return caches.computeIfAbsent(provider, p -> {
+            AppProperties.ClientCache spec = getSpec().getProvider(p);
+            AtomicInteger open = openClients.computeIfAbsent(p, k -> new AtomicInteger());
+            if (meterRegistry != null) {
+                Gauge.builder("datasource.clients", open, AtomicInteger::get).tag("provider", p)//
+                        .description("Open datasource clients, evicted ones included until closed")
+                        .register(meterRegistry);
+            }
+            return Caffeine.newBuilder()/**/
+                    .maximumSize(spec.getMaximumSize())/**/
+                    .expireAfterAccess(spec.getExpireAfterAccess(), TimeUnit.MINUTES)/**/
+                    .<String, Entry>removalListener((key, entry, cause) -> retire(key, entry, cause))/**/
+                    .build();
+        });
+    }
+
+    private void retire(String key, Entry entry, RemovalCause cause) {
+        if (entry == null) {
+            return;
+        }
+        log.debug("Retiring the {} client {} ({})", entry.provider, key, cause);
+        retired.add(entry);
+        scheduleClose(entry);
+    }
+
+    private void scheduleClose(Entry entry) {
+        try {
+            closer.schedule(() -> {
+                if (!entry.tryClose()) {
+                    // Still checked out
+                    scheduleClose(entry);
+                }
+            }, getSpec().getCloseDelay(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Shutting down, closed by closeClients
+            log.debug("Could not schedule the close of a {} client", entry.provider, e);
+        }
+    }
+
+    private AppProperties.Clients getSpec() {
+        return appProperties.getClients() != null ? appProperties.getClients() : new AppProperties.Clients();
+    }
+
+    /**
+     * Closes a client, ie. MongoClient::close
+     */
+    @FunctionalInterface
+    public interface Closer<T> {
+
+        void close(T client) throws Exception;
+
+    }
+
+    /**
+     * A client and the way to close it
+     */
+    public static final class Client<T> {
+
+        private final T client;
+
+        private final Closer<? super T> closer;
+
+        private Client(T client, Closer<? super T> closer) {
+            this.client = client;
+            this.closer = closer;
+        }
+
+        public static <T> Client<T> of(T client, Closer<? super T> closer) {
+            return new Client<>(client, closer);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void close() throws Exception {
+            ((Closer<Object>) closer).close(client);
+        }
+
+    }
+
+    /**
+     * A checked out client, released by {@link #close()}
+     */
+    public static final class Lease<T> implements AutoCloseable {
+
+        private final Entry entry;
+
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get() {
+            return (T) entry.client.client;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                entry.release();
+            }
+        }
+
+    }
+
+    private final class Entry {
+
+        private final String provider;
+
+        // Hash of the connection settings, null when the key is enough
+        private final String fingerprint;
+
+        private final Client<?> client;
+
+        // Checkouts in progress, -1 once closed
+        private final AtomicInteger references = new AtomicInteger();
+
+        private Entry(String provider, String fingerprint, Client<?> client) {
+            this.provider = provider;
+            this.fingerprint = fingerprint;
+            this.client = client;
+        }
+
+        private boolean acquire() {
+            int count;
+            do {
+                count = references.get();
+                if (count < 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        private void release() {
+            references.decrementAndGet();
+        }
+
+        private boolean tryClose() {
+            if (!references.compareAndSet(0, -1)) {
+                return false;
+            }
+            close();
+            return true;
+        }
+
+        private void close() {
+            if (!retired.remove(this)) {
+                return;
+            }
+            references.set(-1);
+            openClients.get(provider).decrementAndGet();
+            try {
+                client.close();
+            } catch (Exception e) {
+                log.warn("Could not close a {} client", provider, e);
+            }
+        }
+
+    }
+
+}
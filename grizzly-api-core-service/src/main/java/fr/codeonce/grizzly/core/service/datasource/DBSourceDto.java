@@ -82,6 +82,11 @@ public class DBSourceDto {
 
     protected boolean connectionSucceeded;
 
+    // SQL only, state of the tables snapshot, see SqlSchemaSnapshotService
+    private String schemaStatus;
+
+    private Long schemaVersion;
+
     public boolean isDockerMode() {
         return dockerMode;
     }
@@ -305,4 +310,20 @@ public class DBSourceDto {
     public void setConnectionSucceeded(boolean connectionSucceeded) {
         this.connectionSucceeded = connectionSucceeded;
     }
+
+    public String getSchemaStatus() {
+        return schemaStatus;
+    }
+
+    public void setSchemaStatus(String schemaStatus) {
+        this.schemaStatus = schemaStatus;
+    }
+
+    public Long getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    public void setSchemaVersion(Long schemaVersion) {
+        this.schemaVersion = schemaVersion;
+    }
 }
@@ -17,10 +17,8 @@ package fr.codeonce.grizzly.core.service.datasource;
 
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.BulkWriteOptions;
-import com.mongodb.client.model.InsertOneModel;
-import com.mongodb.client.model.WriteModel;
 import fr.codeonce.grizzly.common.runtime.Provider;
+import fr.codeonce.grizzly.core.domain.Organization.Member;
 import fr.codeonce.grizzly.core.domain.Organization.MemberRepository;
 import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
@@ -29,20 +27,27 @@ import fr.codeonce.grizzly.core.service.datasource.couchdb.CouchDBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.couchdb.mapper.CouchDBSourceMapperService;
 import fr.codeonce.grizzly.core.service.datasource.elastic.ElasticDBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.elastic.mapper.ElasticDBSourceMapperService;
+import fr.codeonce.grizzly.core.service.datasource.mongo.CollectionSchemaService;
+import fr.codeonce.grizzly.core.service.datasource.mongo.CsvImportService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
+import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCatalogService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.MongoDBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.mapper.MongoDBSourceMapperService;
+import fr.codeonce.grizzly.core.service.datasource.sql.SqlCacheService;
 import fr.codeonce.grizzly.core.service.datasource.sql.SqlDBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.sql.mapper.SqlDBSourceMapperService;
+import fr.codeonce.grizzly.core.service.organization.TeamScopedLister;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
 import fr.codeonce.grizzly.core.service.user.UserService;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
+import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.bson.Document;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -51,9 +56,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.stream.Collectors;
 
 @Service
@@ -101,27 +104,65 @@ public class DBSourceService {
     @Autowired
     private MemberRepository memberRepository;
 
+    @Autowired
+    private TeamScopedLister teamScopedLister;
+
+    @Autowired
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
     public static String TYPE = "text/csv";
 
     @Autowired
     private MongoCacheService mongoCacheService;
 
+    @Autowired
+    private SqlCacheService sqlCacheService;
+
+    @Autowired
+    private CsvImportService csvImportService;
+
+    @Autowired
+    private CollectionSchemaService collectionSchemaService;
+
+    @Autowired
+    private MongoCatalogService mongoCatalogService;
+
     private static final Logger log = LoggerFactory.getLogger(DBSourceService.class);
 
     public DBSourceDto saveDBSource(DBSourceDto dto) throws ParseException, SQLException {
+        // The save itself reads through the clients, catalog and tables, which must not be those of the old settings
+        sqlCacheService.evict(dto.getId());
+        mongoCatalogService.evictDBSource(dto.getId());
+        sqlDBSourceService.evictTables(dto.getId());
+        DBSourceDto saved;
         if (dto.getType() != null && dto.getType().equalsIgnoreCase("sql")) {
-            return sqlDBSourceService.saveDBSource(dto);
+            saved = sqlDBSourceService.saveDBSource(dto);
         } else {
             if (dto.provider.equals(Provider.MONGO)) {
-                return mongoService.saveDBSource(dto);
+                saved = mongoService.saveDBSource(dto);
             } else if (dto.provider.equals(Provider.COUCHDB)) {
-                return couchService.saveDBSource(dto);
+                saved = couchService.saveDBSource(dto);
             } else if (dto.provider.equals(Provider.ELASTICSEARCH)) {
-                return elasticService.saveDBSource(dto);
+                saved = elasticService.saveDBSource(dto);
             } else {
-                return null;
+                saved = null;
             }
         }
+        // Evicted once the new settings are stored, a concurrent miss during the save may have cached the old ones
+        evictDBSource(dto.getId());
+        return saved;
+    }
+
+    /**
+     * Evict the in-memory views of an updated or deleted datasource
+     *
+     * @param dbsourceId null for a new datasource, nothing is cached for it yet
+     */
+    private void evictDBSource(String dbsourceId) {
+        runtimeResourceCacheService.evictDBSource(dbsourceId);
+        collectionSchemaService.evictDBSource(dbsourceId);
+        mongoCatalogService.evictDBSource(dbsourceId);
+        sqlDBSourceService.evictTables(dbsourceId);
     }
 
     public boolean checkTempConnection(DBSourceDto dto) throws SQLException {
@@ -141,73 +182,40 @@ public class DBSourceService {
     }
 
     public List<DBSourceDto> getAll() {
-        String currentUserEmail = userService.getConnectedUserEmail();
-        List<DBSource> allDbsources = repository.findAll();
-        List<DBSource> dbSources = new ArrayList<>();
-        List<DBSource> personnalDBsources = repository.findAllByUserEmail(currentUserEmail);
-
-        if (memberRepository.findByEmail(currentUserEmail) != null) {
-            List<String> memberTeams = memberRepository.findByEmail(currentUserEmail).getTeamIds();
-            for (int i = 0; i < memberTeams.size(); i++) {
-                String teamId = memberTeams.get(i);
-                for (int j = 0; j < allDbsources.size(); j++) {
-                    DBSource dbSource = allDbsources.get(j);
-                    if (dbSource.getTeamIds().contains(teamId)) {
-                        dbSources.add(dbSource);
-                    }
-                }
-            }
-
-            personnalDBsources.forEach(db -> {
-                if (!containsName(dbSources, db.getName())) {
-                    dbSources.add(db);
-                }
-            });
-            for (int i = 0; i < dbSources.size(); i++) {
-                DBSource dbSource = dbSources.get(i);
-                dbSource.setOrganizationId(memberRepository.findByEmail(currentUserEmail).getOrganisationId());
-                repository.save(dbSource);
-            }
+        return getAll(Pageable.unpaged());
+    }
 
-            return dbSources.stream().map(db -> {
-                encryption.decrypt(db);
-                if (db.getType() != null && db.getType().equalsIgnoreCase("sql")) {
-                    return this.sqlMapper.mapToDto(db);
+    /**
+     * Returns the datasources shared with the teams of the connected user and their own ones
+     *
+     * @param pageable
+     * @return List<DBSourceDto>
+     */
+    public List<DBSourceDto> getAll(Pageable pageable) {
+        String currentUserEmail = userService.getConnectedUserEmail();
+        Member member = memberRepository.findByEmail(currentUserEmail);
+        List<DBSource> dbSources = teamScopedLister.findVisible(DBSource.class, currentUserEmail,
+                member != null ? member.getTeamIds() : null, pageable);
+        String organizationId = member != null ? member.getOrganisationId() : null;
+        return dbSources.stream().map(db -> {
+            // Not saved, the stored organizationId is backfilled by OrganizationMigration
+            db.setOrganizationId(organizationId);
+            encryption.decrypt(db);
+            if (db.getType() != null && db.getType().equalsIgnoreCase("sql")) {
+                // Never waits for the server, the schema is read in the background and polled by the UI
+                return sqlDBSourceService.getSchemaSummary(this.sqlMapper.mapToSummaryDto(db), member == null);
+            } else {
+                if (db.provider.equals(Provider.MONGO)) {
+                    return mongoMapper.mapToDto(db);
+                } else if (db.provider.equals(Provider.COUCHDB)) {
+                    return couchMapper.mapToDto(db);
+                } else if (db.provider.equals(Provider.ELASTICSEARCH)) { // Elastic
+                    return elasticMapper.mapToDto(db);
                 } else {
-                    if (db.provider.equals(Provider.MONGO)) {
-                        return mongoMapper.mapToDto(db);
-                    } else if (db.provider.equals(Provider.COUCHDB)) {
-                        return couchMapper.mapToDto(db);
-                    } else if (db.provider.equals(Provider.ELASTICSEARCH)) { // Elastic
-                        return elasticMapper.mapToDto(db);
-                    } else {
-                        return null;
-                    }
+                    return null;
                 }
-            }).collect(Collectors.toList());
-        } else {
-            for (int i = 0; i < personnalDBsources.size(); i++) {
-                DBSource dbSource = personnalDBsources.get(i);
-                dbSource.setOrganizationId(null);
-                repository.save(dbSource);
             }
-            return personnalDBsources.stream().map(db -> {
-                encryption.decrypt(db);
-                if (db.getType() != null && db.getType().equalsIgnoreCase("sql")) {
-                    return sqlDBSourceService.getTables(this.sqlMapper.mapToDto(db), "all");
-                } else {
-                    if (db.provider.equals(Provider.MONGO)) {
-                        return mongoMapper.mapToDto(db);
-                    } else if (db.provider.equals(Provider.COUCHDB)) {
-                        return couchMapper.mapToDto(db);
-                    } else if (db.provider.equals(Provider.ELASTICSEARCH)) { // Elastic
-                        return elasticMapper.mapToDto(db);
-                    } else {
-                        return null;
-                    }
-                }
-            }).collect(Collectors.toList());
-        }
+        }).collect(Collectors.toList());
     }
 
     public void deleteById(String dbsourceId) {
@@ -219,13 +227,58 @@ public class DBSourceService {
             } else {
                 this.repository.deleteById(dbsourceId);
             }
+            // The Mongo datasources are removed without delete events
+            evictDBSource(dbsourceId);
         });
 
     }
 
+    /**
+     * Read the tables of a SQL datasource again in the background, the current snapshot is returned meanwhile
+     *
+     * @param dbsourceId
+     * @return DBSourceDto
+     */
+    public DBSourceDto refreshSqlTables(String dbsourceId) {
+        return sqlDBSourceService.refreshTables(getSqlSummaryDto(dbsourceId));
+    }
+
+    /**
+     * Returns the schema snapshot of a SQL datasource without waiting for the server, to be polled until its
+     * version changes
+     *
+     * @param dbsourceId
+     * @return DBSourceDto
+     */
+    public DBSourceDto getSqlSchema(String dbsourceId) {
+        return sqlDBSourceService.getSchemaSummary(getSqlSummaryDto(dbsourceId), true);
+    }
+
+    private DBSourceDto getSqlSummaryDto(String dbsourceId) {
+        DBSource db = this.repository.findById(dbsourceId)
+                .orElseThrow(GlobalExceptionUtil.notFoundException(DBSource.class, dbsourceId));
+        encryption.decrypt(db);
+        return this.sqlMapper.mapToSummaryDto(db);
+    }
+
     public DBSourceDto getDbSourceDtoById(String dbsourceId) {
+        return getDbSourceDtoById(dbsourceId, false);
+    }
+
+    /**
+     * Returns a datasource with its databases
+     *
+     * @param dbsourceId
+     * @param refresh    whether to list the collections of a Mongo datasource again, ie. after they were changed
+     *                   outside of Grizzly, instead of reading its cached catalog
+     * @return DBSourceDto
+     */
+    public DBSourceDto getDbSourceDtoById(String dbsourceId, boolean refresh) {
         return this.repository.findById(dbsourceId).map(db -> {
             encryption.decrypt(db);
+            if (refresh) {
+                mongoCatalogService.evictDBSource(dbsourceId);
+            }
             if (db.getType() != null && db.getType().equalsIgnoreCase("sql")) {
                 return sqlDBSourceService.getTables(this.sqlMapper.mapToDto(db), "constraints");
             } else {
@@ -312,12 +365,18 @@ public class DBSourceService {
         return name;
     }
 
-    private boolean containsName(final List<DBSource> list, final String name) {
-        return list.stream().map(DBSource::getName).anyMatch(db -> db.equalsIgnoreCase(name));
+    public String saveCSVtodatabase(MultipartFile file, String dbSourceId, String collection, String database,
+                                    Boolean replaceData, String csvFormat) throws IOException {
+        return saveCSVtodatabase(file, dbSourceId, collection, database, replaceData, csvFormat, false);
     }
 
+    /**
+     * Stream the rows of a CSV file into a collection, see {@link CsvImportService}
+     *
+     * @param inferTypes whether to store numbers, booleans and ISO dates with their type instead of strings
+     */
     public String saveCSVtodatabase(MultipartFile file, String dbSourceId, String collection, String database,
-                                    Boolean replaceData, String csvFormat) throws IOException {
+                                    Boolean replaceData, String csvFormat, boolean inferTypes) throws IOException {
         String response = "";
         if (TYPE.equals(file.getContentType())) {
             BufferedReader fileReader = new BufferedReader(new InputStreamReader(file.getInputStream(), "UTF-8"));
@@ -331,8 +390,12 @@ public class DBSourceService {
                     CSVFormat.DEFAULT.withDelimiter(delimiter).withIgnoreEmptyLines().withHeader())) {
 
                 this.dbSourceRepository.findById(dbSourceId).ifPresent(dbSource -> {
-                    MongoClient mClient = mongoCacheService.getMongoClient(dbSource);
-                    if (mClient != null) {
+                    // Checked out, the client is not closed while the rows are written
+                    try (ClientRegistry.Lease<MongoClient> lease = mongoCacheService.checkoutMongoClient(dbSource)) {
+                        if (lease == null) {
+                            return;
+                        }
+                        MongoClient mClient = lease.get();
                         StringBuilder databaseName = new StringBuilder();
                         if (dbSource.getConnectionMode().equalsIgnoreCase("FREE")) {
                             databaseName.append(dbSource.getPhysicalDatabase());
@@ -346,14 +409,9 @@ public class DBSourceService {
                             phdatabase.createCollection(collection);
                         }
 
-                        List<WriteModel<Document>> writes = writeModelList(csvParser);
-                        List<List<WriteModel<Document>>> list = paginateDocuments(writes);
-
-                        BulkWriteOptions bWriteOptions = new BulkWriteOptions();
-                        bWriteOptions.ordered(false);
-                        list.parallelStream().forEach(g -> {
-                            phdatabase.getCollection(collection).bulkWrite(g);
-                        });
+                        csvImportService.importRows(csvParser, phdatabase.getCollection(collection), inferTypes);
+                        collectionSchemaService.evictCollection(dbSourceId, collection);
+                        mongoCatalogService.collectionCreated(dbSourceId, databaseName.toString(), collection);
                     }
                 });
             }
@@ -364,38 +422,4 @@ public class DBSourceService {
         return response;
     }
 
-    private List<List<WriteModel<Document>>> paginateDocuments(List<WriteModel<Document>> writes) {
-        List<List<WriteModel<Document>>> list = new ArrayList<>();
-        int pageSize = writes.size();
-        if (writes.size() <= 100) {
-            pageSize = 100;
-        }
-        final int numPages = (int) Math.ceil((double) writes.size() / (double) pageSize);
-        for (int pageNum = 0; pageNum < numPages; ) {
-            list.add(writes.subList(pageNum * pageSize, Math.min(++pageNum * pageSize, writes.size())));
-        }
-        return list;
-    }
-
-    private List<WriteModel<Document>> writeModelList(CSVParser csvParser) {
-        List<Document> documents = new ArrayList<>();
-        csvParser.forEach(rec -> {
-            Map<String, String> map = new HashMap<>(rec.toMap());
-            csvParser.getHeaderMap().keySet().parallelStream().forEach(key -> {
-                if (rec.get(key).matches("[0-9]+")) {
-                    map.replace(key, rec.get(key), Integer.toString(Integer.parseInt(rec.get(key))));
-                }
-                if (rec.get(key).matches("([0-9]*)\\.([0-9]*)")) {
-                    map.replace(key, rec.get(key), Double.toString(Double.parseDouble(rec.get(key))));
-                }
-            });
-            Document document = new Document();
-            document.putAll(map);
-            documents.add(document);
-        });
-        return documents.parallelStream()
-                .map(InsertOneModel::new)
-                .collect(Collectors.toList());
-    }
-
 }
\ No newline at end of file
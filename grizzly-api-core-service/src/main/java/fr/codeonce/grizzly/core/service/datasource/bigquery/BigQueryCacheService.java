@@ -5,13 +5,14 @@ import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
 import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 @Service
 public class BigQueryCacheService {
@@ -20,9 +21,42 @@ public class BigQueryCacheService {
     private DBSourceRepository repository;
 
 
-    @Cacheable(value = "bigQueryClients", key = "#file.hashCode()")
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    /**
+     * Returns the client of a datasource not saved yet, shared by the calls with the same credentials
+     *
+     * @param file the service account key
+     * @return BigQuery
+     * @throws IOException
+     */
     public BigQuery getClient(byte[] file) throws IOException {
-        return buildBigQueryClient(file);
+        return getClient(null, file);
+    }
+
+    /**
+     * Returns the client of a datasource, replaced when its service account key changes. BigQuery clients are
+     * thread safe.
+     *
+     * @param dbsourceId null for a datasource not saved yet
+     * @param file       the service account key
+     * @return BigQuery
+     * @throws IOException
+     */
+    public BigQuery getClient(String dbsourceId, byte[] file) throws IOException {
+        String fingerprint = DigestUtils.sha256Hex(file);
+        try {
+            return clientRegistry.get(ClientRegistry.BIGQUERY, key(dbsourceId, fingerprint), fingerprint, () -> {
+                try {
+                    return managed(buildBigQueryClient(file));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     // Method to create a BigQuery client and cache it
@@ -38,13 +72,25 @@ public class BigQueryCacheService {
         }
     }
 
-    @CachePut(value = "bigQueryClients", key = "#file.hashCode()")
-    public BigQuery updateCache(byte[] file) {
+    public BigQuery updateCache(String dbsourceId, byte[] file) {
         try {
-            return buildBigQueryClient(file);
+            String fingerprint = DigestUtils.sha256Hex(file);
+            return clientRegistry.put(ClientRegistry.BIGQUERY, key(dbsourceId, fingerprint), fingerprint,
+                    managed(buildBigQueryClient(file)));
         } catch (Exception e) {
             System.err.println("Error updating cache: " + e.getMessage());
             return null;
         }
     }
+
+    // A datasource not saved yet is only known by its key file
+    private static String key(String dbsourceId, String fingerprint) {
+        return dbsourceId != null ? dbsourceId : "key:" + fingerprint;
+    }
+
+    // The client only holds HTTP transports, there is nothing to close
+    private static ClientRegistry.Client<BigQuery> managed(BigQuery client) {
+        return ClientRegistry.Client.of(client, c -> {
+        });
+    }
 }
\ No newline at end of file
@@ -32,7 +32,7 @@ public class BigquerySourceService {
         String fileContent = new String(fileBytes, StandardCharsets.UTF_8);
         System.out.println(fileContent); */
             source = repository.save(source);
-            cacheService.updateCache(file);
+            cacheService.updateCache(source.getId(), file);
             return mapper.mapToDto(source, file);
         } catch (IOException e) {
             throw e;
@@ -19,14 +19,13 @@ import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
 import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -39,23 +38,26 @@ public class CouchCacheService {
     @Qualifier("coreCryptoHelper")
     private CryptoHelper encryption;
 
-    @Cacheable(value = "buckets", key = "#dto.id")
+    @Autowired
+    private ClientRegistry clientRegistry;
+
     public Bucket connectToBucket(DBSourceDto dto) {
-        Cluster cluster = getCluster(dto.getHost());
-        return getBucket(cluster, dto.getBucketName(), String.valueOf(dto.getPassword()));
+        return clientRegistry.get(ClientRegistry.COUCHBASE, dto.getId(), () -> {
+            Cluster cluster = getCluster(dto.getHost());
+            return managed(cluster, getBucket(cluster, dto.getBucketName(), String.valueOf(dto.getPassword())));
+        });
     }
 
-    @Cacheable(value = "buckets", key = "#entity.id")
     public Bucket connectToBucket(DBSource entity) {
-        return buildBucket(entity);
+        return clientRegistry.get(ClientRegistry.COUCHBASE, entity.getId(), () -> buildBucket(entity));
     }
 
-    @Cacheable(value = "buckets", key = "#sourceId")
     public Bucket getBucket(String sourceId) {
-        return this.repository.findById(sourceId).map(db -> {
-            encryption.decrypt(db);
-            return connectToBucket(db);
-        }).orElseThrow();
+        return clientRegistry.get(ClientRegistry.COUCHBASE, sourceId,
+                () -> this.repository.findById(sourceId).map(db -> {
+                    encryption.decrypt(db);
+                    return buildBucket(db);
+                }).orElseThrow());
 
     }
 
@@ -67,9 +69,14 @@ public class CouchCacheService {
         }
     }
 
-    private Bucket buildBucket(DBSource entity) {
+    private ClientRegistry.Client<Bucket> buildBucket(DBSource entity) {
         Cluster cluster = getCluster(entity.getHost());
-        return getBucket(cluster, entity.getBucketName(), String.valueOf(entity.getPassword()));
+        return managed(cluster, getBucket(cluster, entity.getBucketName(), String.valueOf(entity.getPassword())));
+    }
+
+    // A bucket is closed with the cluster it was opened from
+    private static ClientRegistry.Client<Bucket> managed(Cluster cluster, Bucket bucket) {
+        return ClientRegistry.Client.of(bucket, b -> cluster.disconnect());
     }
 
     private Bucket getBucket(Cluster cluster, String name, String password) {
@@ -86,8 +93,7 @@ public class CouchCacheService {
         return getBucket(cluster, dto.getBucketName(), ObjectUtils.defaultIfNull(dto.getPassword(), StringUtils.EMPTY).toString());
     }
 
-    @CachePut(value = "buckets", key = "#couchSource.id")
     public Bucket updateCache(DBSource couchSource) {
-        return buildBucket(couchSource);
+        return clientRegistry.put(ClientRegistry.COUCHBASE, couchSource.getId(), buildBucket(couchSource));
     }
 }
@@ -17,6 +17,7 @@ package fr.codeonce.grizzly.core.service.datasource.elastic;
 
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
 import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
@@ -36,8 +37,6 @@ import org.elasticsearch.client.RestClientBuilder.RequestConfigCallback;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -56,10 +55,13 @@ public class ElasticCacheService {
     @Qualifier("coreCryptoHelper")
     private CryptoHelper encryption;
 
-    @Cacheable(value = "elasticClients", key = "#db.id")
+    @Autowired
+    private ClientRegistry clientRegistry;
+
     public RestHighLevelClient getClient(DBSource db) {
 
-        return buildRestHighLevelClient(db);
+        return clientRegistry.get(ClientRegistry.ELASTIC, db.getId(),
+                () -> ClientRegistry.Client.of(buildRestHighLevelClient(db), RestHighLevelClient::close));
     }
 
     public RestHighLevelClient buildRestHighLevelClient(DBSource db) {
@@ -142,9 +144,9 @@ public class ElasticCacheService {
         return pwd == null ? "" : String.valueOf(pwd);
     }
 
-    @CachePut(value = "elasticClients", key = "#db.id")
     public RestHighLevelClient updateCache(DBSource db) {
-        return buildRestHighLevelClient(db);
+        return clientRegistry.put(ClientRegistry.ELASTIC, db.getId(),
+                ClientRegistry.Client.of(buildRestHighLevelClient(db), RestHighLevelClient::close));
     }
 
 }
@@ -35,14 +35,15 @@ public class KafkaSourceService {
         encryption.encrypt(kafkaSource);
         kafkaSource = repository.save(kafkaSource);
         encryption.decrypt(kafkaSource);
-        cacheService.updateCache(dto);
+        cacheService.updateCache(kafkaSource.getId(), dto);
         return mapper.mapToDto(kafkaSource);
     }
 
 
     public boolean checkTempConnection(DBSourceDto dto) {
         try {
-            KafkaProducer<String, String> kafkaProducer = cacheService.getProducer(dto);
+            // Not the cached producer, it would be closed for its other users
+            KafkaProducer<String, String> kafkaProducer = cacheService.getTemporaryProducer(dto);
             kafkaProducer.close();
             return true; // If the connection succeeded
         } catch (Exception e) {
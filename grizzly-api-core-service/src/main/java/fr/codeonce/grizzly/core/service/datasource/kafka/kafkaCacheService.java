@@ -1,17 +1,37 @@
 package fr.codeonce.grizzly.core.service.datasource.kafka;
 
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.kafka.clients.producer.KafkaProducer;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.Properties;
 
 @Service
 public class kafkaCacheService {
-    @Cacheable(value = "kafkaProducers", key = "#dto.hashCode()")
+
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    /**
+     * Returns the producer of a datasource, shared by all its users : KafkaProducer is thread safe. It is
+     * replaced, and the previous one closed, when the connection settings change.
+     *
+     * @param dto
+     * @return KafkaProducer
+     */
     public KafkaProducer<String, String> getProducer(DBSourceDto dto) {
+        String fingerprint = fingerprint(dto);
+        return clientRegistry.get(ClientRegistry.KAFKA, key(dto.getId(), fingerprint), fingerprint,
+                () -> ClientRegistry.Client.of(buildKafkaProducer(dto), KafkaProducer::close));
+    }
+
+    /**
+     * Returns a producer that is not cached, to be closed by the caller
+     */
+    public KafkaProducer<String, String> getTemporaryProducer(DBSourceDto dto) {
         return buildKafkaProducer(dto);
     }
 
@@ -21,15 +41,37 @@ public class kafkaCacheService {
         properties.put("security.protocol", "SASL_SSL");
         properties.put("sasl.mechanism", "PLAIN");
         properties.put("sasl.jaas.config", "org.apache.kafka.common.security.plain.PlainLoginModule required " +
-                "username=\"" + dto.getUsername() + "\" password=\"" + dto.getPassword() + "\";");
+                "username=\"" + dto.getUsername() + "\" password=\"" + getSafeValue(dto.getPassword()) + "\";");
         properties.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
         properties.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
 
         return new KafkaProducer<>(properties);
     }
 
-    @CachePut(value = "kafkaProducers", key = "#dto.hashCode()")
-    public KafkaProducer<String, String> updateCache(DBSourceDto dto) {
-        return buildKafkaProducer(dto);
+    /**
+     * Replace the producer of a saved datasource
+     *
+     * @param dbsourceId
+     * @param dto        the saved settings
+     * @return KafkaProducer
+     */
+    public KafkaProducer<String, String> updateCache(String dbsourceId, DBSourceDto dto) {
+        String fingerprint = fingerprint(dto);
+        return clientRegistry.put(ClientRegistry.KAFKA, key(dbsourceId, fingerprint), fingerprint,
+                ClientRegistry.Client.of(buildKafkaProducer(dto), KafkaProducer::close));
+    }
+
+    // A datasource not saved yet is only known by its settings
+    private static String key(String dbsourceId, String fingerprint) {
+        return dbsourceId != null ? dbsourceId : "settings:" + fingerprint;
+    }
+
+    private static String fingerprint(DBSourceDto dto) {
+        return DigestUtils.sha256Hex(dto.getHost() + '\n' + dto.getPort() + '\n' + dto.getUsername() + '\n'
+                + getSafeValue(dto.getPassword()));
+    }
+
+    private static String getSafeValue(char[] pwd) {
+        return pwd == null ? "" : String.valueOf(pwd);
     }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource.mongo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of a Mongo collection observed in a random sample of its documents
+ */
+public class CollectionSchema {
+
+    // Number of sampled documents
+    private final long sampleSize;
+
+    private final List<Field> fields;
+
+    private final long computedAt;
+
+    public CollectionSchema(long sampleSize, List<Field> fields, long computedAt) {
+        this.sampleSize = sampleSize;
+        this.fields = fields;
+        this.computedAt = computedAt;
+    }
+
+    public long getSampleSize() {
+        return sampleSize;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public long getComputedAt() {
+        return computedAt;
+    }
+
+    public static class Field {
+
+        // Dotted path of the field, ie. address.city
+        private final String path;
+
+        // 1 for the top-level fields
+        private final int depth;
+
+        // Number of sampled documents having the field
+        private final long count;
+
+        private final double frequency;
+
+        // Number of occurrences per BSON type alias (string, int, object...)
+        private final Map<String, Long> types;
+
+        public Field(String path, int depth, long count, double frequency, Map<String, Long> types) {
+            this.path = path;
+            this.depth = depth;
+            this.count = count;
+            this.frequency = frequency;
+            this.types = types;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getFrequency() {
+            return frequency;
+        }
+
+        public Map<String, Long> getTypes() {
+            return types;
+        }
+
+    }
+
+}
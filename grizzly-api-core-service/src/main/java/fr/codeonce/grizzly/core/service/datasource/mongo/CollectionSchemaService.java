@@ -0,0 +1,228 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource.mongo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.client.MongoClient;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
+import fr.codeonce.grizzly.core.service.util.CryptoHelper;
+import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Infers the fields of the Mongo collections on the server : a $sample of the documents is flattened into
+ * (path, value) pairs, embedded documents included up to a maximum depth, and grouped by path and BSON type.
+ * Only the groups are returned, whatever the size of the collection. Schemas are cached per collection.
+ */
+@Service
+public class CollectionSchemaService {
+
+    private static final Logger log = LoggerFactory.getLogger(CollectionSchemaService.class);
+
+    private static final String CACHE_NAME = "collectionSchemas";
+
+    private static final String FREE = "FREE";
+
+    private static final String ID = "_id";
+
+    // The flattened (k: path, v: value, d: depth) pair
+    private static final String PAIR = "$f";
+
+    @Autowired
+    private DBSourceRepository dbSourceRepository;
+
+    @Autowired
+    private MongoCacheService cacheService;
+
+    @Autowired
+    private CryptoHelper encryption;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, CollectionSchema> schemas;
+
+    @PostConstruct
+    public void initSchemas() {
+        AppProperties.CollectionSchemas spec = getSpec();
+        this.schemas = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .expireAfterWrite(spec.getExpireAfterWrite(), spec.getTimeUnit())/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, schemas, CACHE_NAME);
+        }
+    }
+
+    /**
+     * Returns the inferred schema of a collection, sampled on a miss
+     *
+     * @param dbsourceId
+     * @param databaseName   ignored for the FREE datasources
+     * @param collectionName
+     * @return CollectionSchema
+     */
+    public CollectionSchema getSchema(String dbsourceId, String databaseName, String collectionName) {
+        return schemas.get(key(dbsourceId, databaseName, collectionName), k -> {
+            DBSource dbsource = dbSourceRepository.findById(dbsourceId)
+                    .orElseThrow(GlobalExceptionUtil.notFoundException(DBSource.class, dbsourceId));
+            encryption.decrypt(dbsource);
+            return infer(dbsource, databaseName, collectionName);
+        });
+    }
+
+    /**
+     * Returns the top-level field names of a collection, the most frequent first
+     *
+     * @param dbsourceId
+     * @param databaseName
+     * @param collectionName
+     * @return Set<String>
+     */
+    public Set<String> getFieldNames(String dbsourceId, String databaseName, String collectionName) {
+        CollectionSchema schema = getSchema(dbsourceId, databaseName, collectionName);
+        if (schema == null) {
+            return new LinkedHashSet<>();
+        }
+        return schema.getFields().stream().filter(field -> field.getDepth() == 1).map(CollectionSchema.Field::getPath)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Evict the schema of a collection after its documents changed, in any database of the datasource
+     *
+     * @param dbsourceId
+     * @param collectionName
+     */
+    public void evictCollection(String dbsourceId, String collectionName) {
+        if (dbsourceId != null) {
+            schemas.asMap().keySet()
+                    .removeIf(key -> key.startsWith(dbsourceId + '|') && key.endsWith('|' + collectionName));
+        }
+    }
+
+    public void evictDBSource(String dbsourceId) {
+        if (dbsourceId != null) {
+            schemas.asMap().keySet().removeIf(key -> key.startsWith(dbsourceId + '|'));
+        }
+    }
+
+    private CollectionSchema infer(DBSource dbsource, String databaseName, String collectionName) {
+        AppProperties.CollectionSchemas spec = getSpec();
+        String database = dbsource.getConnectionMode().equalsIgnoreCase(FREE) ? dbsource.getPhysicalDatabase()
+                : databaseName;
+        long start = System.currentTimeMillis();
+        List<Document> groups;
+        try (ClientRegistry.Lease<MongoClient> client = cacheService.checkoutMongoClient(dbsource)) {
+            if (client == null) {
+                // Not cached, the next call tries to connect again
+                return null;
+            }
+            groups = client.get().getDatabase(database).getCollection(collectionName)
+                    .aggregate(pipeline(spec.getSampleSize(), spec.getMaxDepth()))//
+                    .allowDiskUse(true)//
+                    .maxTime(spec.getMaxTime(), TimeUnit.MILLISECONDS)//
+                    .into(new ArrayList<>());
+        }
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        Map<String, Map<String, Long>> types = new LinkedHashMap<>();
+        for (Document group : groups) {
+            Document id = group.get(ID, Document.class);
+            String path = id.getString("path");
+            long count = ((Number) group.get("count")).longValue();
+            counts.merge(path, count, Long::sum);
+            depths.put(path, ((Number) group.get("depth")).intValue());
+            types.computeIfAbsent(path, p -> new LinkedHashMap<>()).put(id.getString("type"), count);
+        }
+        // Every document has an _id
+        long sampled = counts.getOrDefault(ID, counts.values().stream().mapToLong(Long::longValue).max().orElse(0));
+        List<CollectionSchema.Field> fields = counts.entrySet().stream()
+                .map(e -> new CollectionSchema.Field(e.getKey(), depths.get(e.getKey()), e.getValue(),
+                        sampled > 0 ? (double) e.getValue() / sampled : 0, types.get(e.getKey())))
+                .sorted(Comparator.comparingLong(CollectionSchema.Field::getCount).reversed()
+                        .thenComparing(CollectionSchema.Field::getPath))
+                .collect(Collectors.toList());
+        log.debug("Schema of {}.{} inferred from {} documents in {} ms : {} fields", database, collectionName,
+                sampled, System.currentTimeMillis() - start, fields.size());
+        return new CollectionSchema(sampled, fields, System.currentTimeMillis());
+    }
+
+    /**
+     * $sample, then one (path, value) pair per field : the pairs of the embedded documents are added level by
+     * level, each level only expanding the pairs of the previous one. Arrays are not entered.
+     */
+    static List<Document> pipeline(int sampleSize, int maxDepth) {
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$sample", new Document("size", sampleSize)));
+        pipeline.add(new Document("$project", new Document(ID, 0).append("f", pairs("$$ROOT", "$$this.k", 1))));
+        pipeline.add(new Document("$unwind", PAIR));
+        for (int depth = 1; depth < maxDepth; depth++) {
+            Document expand = new Document("$and", List.of(new Document("$eq", List.of("$f.d", depth)),
+                    new Document("$eq", List.of(new Document("$type", "$f.v"), "object"))));
+            Document children = pairs("$f.v", new Document("$concat", List.of("$f.k", ".", "$$this.k")), depth + 1);
+            pipeline.add(new Document("$project", new Document("f", new Document("$cond",
+                    List.of(expand, new Document("$concatArrays", List.of(List.of(PAIR), children)), List.of(PAIR))))));
+            pipeline.add(new Document("$unwind", PAIR));
+        }
+        pipeline.add(new Document("$group",
+                new Document(ID, new Document("path", "$f.k").append("type", new Document("$type", "$f.v")))
+                        .append("depth", new Document("$min", "$f.d"))
+                        .append("count", new Document("$sum", 1))));
+        return pipeline;
+    }
+
+    private static Document pairs(String document, Object path, int depth) {
+        return new Document("$map", new Document("input", new Document("$objectToArray", document))
+                .append("in", new Document("k", path).append("v", "$$this.v").append("d", depth)));
+    }
+
+    private static String key(String dbsourceId, String databaseName, String collectionName) {
+        return dbsourceId + '|' + databaseName + '|' + collectionName;
+    }
+
+    private AppProperties.CollectionSchemas getSpec() {
+        return appProperties.getCollectionSchemas() != null ? appProperties.getCollectionSchemas()
+                : new AppProperties.CollectionSchemas();
+    }
+
+}
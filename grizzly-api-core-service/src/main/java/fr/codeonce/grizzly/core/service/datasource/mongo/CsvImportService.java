@@ -0,0 +1,269 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource.mongo;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Imports CSV rows into a Mongo collection while they are parsed : rows are converted one at a time and written
+ * by unordered bulk inserts of a bounded size. At most a few batches are in flight, the parsing waits for a
+ * write to complete otherwise, so the memory used does not depend on the size of the file.
+ */
+@Service
+public class CsvImportService {
+
+    private static final Logger log = LoggerFactory.getLogger(CsvImportService.class);
+
+    // Unsigned, the sign is handled apart so that -0 is written as 0
+    private static final Pattern INTEGER = Pattern.compile("[0-9]+");
+
+    private static final Pattern DECIMAL = Pattern.compile("[0-9]*\\.[0-9]+|[0-9]+\\.[0-9]*");
+
+    // Significant digits of a Decimal128, a longer integer is kept as a string
+    private static final int DECIMAL128_DIGITS = 34;
+
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+    @Autowired
+    private AppProperties appProperties;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void initExecutor() {
+        AppProperties.CsvImport spec = getSpec();
+        AtomicInteger count = new AtomicInteger();
+        // Unbounded queue, the number of batches in flight is bounded by the callers
+        this.executor = new ThreadPoolExecutor(spec.getWriteThreads(), spec.getWriteThreads(), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "CsvImport-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Insert the rows of the parser into the collection
+     *
+     * @param parser     a parser reading the header from the first line
+     * @param collection
+     * @param inferTypes whether to store numbers, booleans and ISO dates with their type instead of strings
+     * @return the number of rows inserted
+     */
+    public long importRows(CSVParser parser, MongoCollection<Document> collection, boolean inferTypes) {
+        AppProperties.CsvImport spec = getSpec();
+        Semaphore inFlight = new Semaphore(spec.getMaxBatchesInFlight());
+        List<Future<?>> pending = new ArrayList<>();
+        List<WriteModel<Document>> batch = new ArrayList<>(spec.getBatchSize());
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        int batches = 0;
+        try {
+            for (CSVRecord rec : parser) {
+                batch.add(new InsertOneModel<>(toDocument(rec, inferTypes)));
+                rows++;
+                if (batch.size() >= spec.getBatchSize()) {
+                    pending.add(submit(collection, batch, inFlight));
+                    batch = new ArrayList<>(spec.getBatchSize());
+                    batches++;
+                    if (batches % spec.getProgressInterval() == 0) {
+                        log.info("CSV import into {} : {} rows parsed", collection.getNamespace(), rows);
+                    }
+                    // Surface a failed write without waiting for the end of the file
+                    pending.removeIf(future -> future.isDone() && get(future));
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.add(submit(collection, batch, inFlight));
+            }
+            pending.forEach(CsvImportService::get);
+        } catch (RuntimeException e) {
+            pending.forEach(future -> future.cancel(false));
+            throw e;
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.info("CSV import into {} : {} rows in {} ms ({} rows/s)", collection.getNamespace(), rows, elapsed,
+                rows * 1000 / elapsed);
+        return rows;
+    }
+
+    private Future<?> submit(MongoCollection<Document> collection, List<WriteModel<Document>> batch,
+                             Semaphore inFlight) {
+        // Back-pressure : the parsing waits while too many batches are being written
+        inFlight.acquireUninterruptibly();
+        try {
+            return executor.submit(() -> {
+                try {
+                    collection.bulkWrite(batch, UNORDERED);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for a batch write and rethrow its failure
+     *
+     * @return true once the write succeeded
+     */
+    private static boolean get(Future<?> future) {
+        try {
+            future.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("CSV import interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Document toDocument(CSVRecord rec, boolean inferTypes) {
+        Document document = new Document();
+        for (Map.Entry<String, String> entry : rec.toMap().entrySet()) {
+            document.put(entry.getKey(), inferTypes ? inferType(entry.getValue()) : normalize(entry.getValue()));
+        }
+        return document;
+    }
+
+    /**
+     * Numbers are kept as strings but written in their canonical form (ie. 007 as 7, -0 as 0), as before. A
+     * decimal too large for a double is kept as it is.
+     */
+    private static String normalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        boolean negative = value.startsWith("-");
+        String digits = negative ? value.substring(1) : value;
+        if (INTEGER.matcher(digits).matches()) {
+            BigInteger number = new BigInteger(digits);
+            return (negative ? number.negate() : number).toString();
+        }
+        if (DECIMAL.matcher(digits).matches()) {
+            double number = Double.parseDouble(digits);
+            if (Double.isInfinite(number)) {
+                return value;
+            }
+            return Double.toString(negative && number != 0 ? -number : number);
+        }
+        return value;
+    }
+
+    private static Object inferType(String value) {
+        if (value == null || value.isEmpty()) {
+            return value;
+        }
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return Boolean.valueOf(value);
+        }
+        boolean negative = value.startsWith("-");
+        String digits = negative ? value.substring(1) : value;
+        if (INTEGER.matcher(digits).matches()) {
+            BigInteger number = new BigInteger(digits);
+            if (negative) {
+                number = number.negate();
+            }
+            if (number.bitLength() < 32) {
+                return number.intValue();
+            }
+            if (number.bitLength() < 64) {
+                return number.longValue();
+            }
+            // Beyond a Decimal128 the encoding would fail the whole batch
+            BigDecimal decimal = new BigDecimal(number);
+            return decimal.precision() <= DECIMAL128_DIGITS ? new Decimal128(decimal) : value;
+        }
+        if (DECIMAL.matcher(digits).matches()) {
+            double number = Double.parseDouble(digits);
+            if (Double.isInfinite(number)) {
+                return value;
+            }
+            return negative && number != 0 ? -number : number;
+        }
+        return inferDate(value);
+    }
+
+    private static Object inferDate(String value) {
+        // Only the ISO-8601 forms, the other formats are ambiguous
+        if (value.length() == 10) {
+            try {
+                return Date.from(LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant());
+            } catch (DateTimeParseException e) {
+                return value;
+            }
+        }
+        if (value.length() > 10 && value.charAt(10) == 'T') {
+            try {
+                return Date.from(OffsetDateTime.parse(value).toInstant());
+            } catch (DateTimeParseException e) {
+                return value;
+            }
+        }
+        return value;
+    }
+
+    private AppProperties.CsvImport getSpec() {
+        return appProperties.getCsvImport() != null ? appProperties.getCsvImport() : new AppProperties.CsvImport();
+    }
+
+}
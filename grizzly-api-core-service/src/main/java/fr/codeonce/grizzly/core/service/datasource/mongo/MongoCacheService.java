@@ -15,24 +15,26 @@
  */
 package fr.codeonce.grizzly.core.service.datasource.mongo;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.mongodb.*;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
 import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
 import fr.codeonce.grizzly.core.service.datasource.mongo.mapper.MongoDBSourceMapperService;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 @Service
@@ -57,9 +59,16 @@ public class MongoCacheService {
     private MongoClient atlasMongoClient;
 
 
-    @Cacheable(value = "mongoClients", key = "#dbsourceId")
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    // GridFS templates per client and database, dropped with their client
+    private final Cache<MongoClient, Map<String, GridFsTemplate>> gridFsTemplates = Caffeine.newBuilder()/**/
+            .weakKeys()/**/
+            .build();
+
     public MongoClient getMongoClient(String dbsourceId) {
-        return getClient(dbsourceId);
+        return clientRegistry.get(ClientRegistry.MONGO, dbsourceId, () -> managed(getClient(dbsourceId)));
     }
 
     public MongoClient getTemporaryMClient(DBSourceDto dbsourceDto) {
@@ -72,31 +81,57 @@ public class MongoCacheService {
         return atlasMongoClient;
     }
 
-    @CachePut(value = "mongoClients", key = "#dbsource.id")
     public MongoClient getUpdatedMongoClient(DBSource dbsource) {
-        return this.prepareMongoClient(dbsource);
+        return clientRegistry.put(ClientRegistry.MONGO, dbsource.getId(), managed(this.prepareMongoClient(dbsource)));
     }
 
-    @Cacheable(value = "mongoClients", key = "#dbsource.id")
     public MongoClient getMongoClient(DBSource dbsource) {
-        return this.prepareMongoClient(dbsource);
+        return clientRegistry.get(ClientRegistry.MONGO, dbsource.getId(),
+                () -> managed(this.prepareMongoClient(dbsource)));
+    }
 
+    /**
+     * Check out the client of a datasource for a long running use, it is not closed before the lease is
+     *
+     * @param dbsource decrypted
+     * @return the lease, null if the client could not be created
+     */
+    public ClientRegistry.Lease<MongoClient> checkoutMongoClient(DBSource dbsource) {
+        return clientRegistry.checkout(ClientRegistry.MONGO, dbsource.getId(),
+                () -> managed(this.prepareMongoClient(dbsource)));
     }
 
-    @Cacheable(value = "gridFsObjects")
     public GridFsTemplate getGridFs(MongoClient mongoClient, String databaseName) {
-        MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, databaseName);
-        return new GridFsTemplate(mongoTemplate.getMongoDatabaseFactory(), mongoTemplate.getConverter());
+        return gridFsTemplates.get(mongoClient, client -> new ConcurrentHashMap<>()).computeIfAbsent(databaseName,
+                name -> {
+                    MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, name);
+                    return new GridFsTemplate(mongoTemplate.getMongoDatabaseFactory(), mongoTemplate.getConverter());
+                });
     }
 
-    @CacheEvict(value = "gridFsObjects")
     public void evictGridFs(MongoClient mongoClient, String databaseName) {
-        // Empty GridFsTemplate Instance From Cache
+        Map<String, GridFsTemplate> templates = gridFsTemplates.getIfPresent(mongoClient);
+        if (templates != null) {
+            templates.remove(databaseName);
+        }
     }
 
-    @CacheEvict(value = "mongoClients", key = "#dbsourceId")
     public void evictMongoClient(String dbsourceId) {
-        // Empty MongoClient Instance From Cache
+        clientRegistry.evict(ClientRegistry.MONGO, dbsourceId);
+    }
+
+    public void evictMongoClients() {
+        clientRegistry.evictAll(ClientRegistry.MONGO);
+    }
+
+    private ClientRegistry.Client<MongoClient> managed(MongoClient mongoClient) {
+        return ClientRegistry.Client.of(mongoClient, client -> {
+            gridFsTemplates.invalidate(client);
+            // The Atlas client of the FREE datasources is shared
+            if (client != atlasMongoClient) {
+                client.close();
+            }
+        });
     }
 
     private MongoClient prepareMongoClient(DBSource dbsource) {
@@ -155,9 +190,8 @@ public class MongoCacheService {
         }
     }
 
-    @CachePut(value = "mongoClients", key = "#dbsourceID")
     public MongoClient updateCache(String dbsourceID) {
-        return getClient(dbsourceID);
+        return clientRegistry.put(ClientRegistry.MONGO, dbsourceID, managed(getClient(dbsourceID)));
     }
 
     private MongoClient getClient(String dbsourceId) {
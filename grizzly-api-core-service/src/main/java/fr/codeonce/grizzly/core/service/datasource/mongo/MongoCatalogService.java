@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource.mongo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.client.MongoClient;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * Catalog of the databases of a Mongo datasource and of their collection names. The collections of the
+ * databases are listed in parallel on the cached client, and the catalog is cached per datasource : collections
+ * created, dropped or renamed through Grizzly update it in place instead of listing everything again. The ones
+ * changed elsewhere show up once the catalog expires, or when the datasource is read with a refresh.
+ */
+@Service
+public class MongoCatalogService {
+
+    private static final String CACHE_NAME = "mongoCatalogs";
+
+    private static final Set<String> SYSTEM_DATABASES = Set.of("admin", "config", "local");
+
+    private static final Set<String> GRIDFS_COLLECTIONS = Set.of("fs.chunks", "fs.files", "blobs.chunks", "blobs.files",
+            "blobs.manifest");
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    // Collection names by database name, by datasource id
+    private Cache<String, Map<String, List<String>>> catalogs;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        AppProperties.MongoCatalogs spec = getSpec();
+        this.catalogs = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .expireAfterWrite(spec.getExpireAfterWrite(), spec.getTimeUnit())/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, catalogs, CACHE_NAME);
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(spec.getListingThreads(), spec.getListingThreads(), 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(spec.getListingQueueCapacity()), r -> {
+            Thread thread = new Thread(r, "MongoCatalog-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the catalog of a datasource, listed on a miss
+     *
+     * @param dbsourceId   null for a datasource not saved yet, whose catalog is not cached
+     * @param mongoClient
+     * @param databaseName the only database of the catalog, or null for all the non system databases
+     * @return the collection names by database name
+     */
+    public Map<String, List<String>> getCatalog(String dbsourceId, MongoClient mongoClient, String databaseName) {
+        if (dbsourceId == null) {
+            return list(mongoClient, databaseName);
+        }
+        return catalogs.get(dbsourceId, k -> list(mongoClient, databaseName));
+    }
+
+    /**
+     * Returns the collection names of a database, GridFS collections excluded
+     *
+     * @param mongoClient
+     * @param databaseName
+     * @return List<String>
+     */
+    public List<String> listCollections(MongoClient mongoClient, String databaseName) {
+        List<String> collections = new ArrayList<>();
+        for (String collection : mongoClient.getDatabase(databaseName).listCollectionNames()) {
+            if (!GRIDFS_COLLECTIONS.contains(collection.toLowerCase())) {
+                collections.add(collection);
+            }
+        }
+        return collections;
+    }
+
+    public void collectionCreated(String dbsourceId, String databaseName, String collectionName) {
+        update(dbsourceId, databaseName, collections -> {
+            if (collections.contains(collectionName)) {
+                return collections;
+            }
+            List<String> updated = new ArrayList<>(collections);
+            updated.add(collectionName);
+            return updated;
+        });
+    }
+
+    public void collectionDropped(String dbsourceId, String databaseName, String collectionName) {
+        update(dbsourceId, databaseName, collections -> {
+            List<String> updated = new ArrayList<>(collections);
+            updated.remove(collectionName);
+            return updated;
+        });
+    }
+
+    public void collectionRenamed(String dbsourceId, String databaseName, String oldCollectionName,
+                                  String newCollectionName) {
+        update(dbsourceId, databaseName, collections -> {
+            List<String> updated = new ArrayList<>(collections);
+            int index = updated.indexOf(oldCollectionName);
+            if (index < 0) {
+                updated.add(newCollectionName);
+            } else {
+                updated.set(index, newCollectionName);
+            }
+            return updated;
+        });
+    }
+
+    /**
+     * Evict the catalogs holding a database, when the datasource it was changed through is unknown
+     *
+     * @param databaseName
+     */
+    public void evictDatabase(String databaseName) {
+        catalogs.asMap().values().removeIf(catalog -> catalog.containsKey(databaseName));
+    }
+
+    public void evictDBSource(String dbsourceId) {
+        if (dbsourceId != null) {
+            catalogs.invalidate(dbsourceId);
+        }
+    }
+
+    private void update(String dbsourceId, String databaseName, UnaryOperator<List<String>> operator) {
+        if (dbsourceId == null || databaseName == null) {
+            return;
+        }
+        // Cached catalogs are never modified, the updated one replaces them
+        catalogs.asMap().computeIfPresent(dbsourceId, (id, catalog) -> {
+            if (!catalog.containsKey(databaseName)) {
+                // A database created along with its first collection, or outside of Grizzly : listed again
+                return null;
+            }
+            Map<String, List<String>> updated = new LinkedHashMap<>(catalog);
+            updated.put(databaseName, Collections.unmodifiableList(operator.apply(catalog.get(databaseName))));
+            return Collections.unmodifiableMap(updated);
+        });
+    }
+
+    private Map<String, List<String>> list(MongoClient mongoClient, String databaseName) {
+        List<String> databaseNames = new ArrayList<>();
+        if (databaseName != null) {
+            databaseNames.add(databaseName);
+        } else {
+            for (String name : mongoClient.listDatabaseNames()) {
+                // System databases are skipped before any of their collections is listed
+                if (!SYSTEM_DATABASES.contains(name.toLowerCase())) {
+                    databaseNames.add(name);
+                }
+            }
+        }
+        List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+        for (String name : databaseNames) {
+            futures.add(CompletableFuture.supplyAsync(() -> listCollections(mongoClient, name), executor));
+        }
+        Map<String, List<String>> catalog = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < databaseNames.size(); i++) {
+                catalog.put(databaseNames.get(i), Collections.unmodifiableList(futures.get(i).join()));
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return Collections.unmodifiableMap(catalog);
+    }
+
+    private AppProperties.MongoCatalogs getSpec() {
+        return appProperties.getMongoCatalogs() != null ? appProperties.getMongoCatalogs()
+                : new AppProperties.MongoCatalogs();
+    }
+
+}
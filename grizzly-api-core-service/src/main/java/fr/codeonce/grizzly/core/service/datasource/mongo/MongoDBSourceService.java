@@ -94,6 +94,12 @@ public class MongoDBSourceService implements IDBSourceService {
     @Autowired
     private MongoCacheService cacheService;
 
+    @Autowired
+    private CollectionSchemaService collectionSchemaService;
+
+    @Autowired
+    private MongoCatalogService catalogService;
+
     @Autowired
     @Qualifier("coreRestTemplate")
     private RestTemplate restTemplate;
@@ -383,12 +389,15 @@ public class MongoDBSourceService implements IDBSourceService {
      * @Deprecated Fetch the List of all Collections within a given MongoDB
      */
     public List<String> getDBCollectionsList(MongoClient mongoClient, String databaseName) {
-        MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, databaseName);
-        return mongoTemplate.getCollectionNames().stream()
-                .filter(coll -> (!coll.equalsIgnoreCase("fs.chunks") && !coll.equalsIgnoreCase("fs.files")))
-                .collect(Collectors.toList());
+        return catalogService.listCollections(mongoClient, databaseName);
     }
 
+    /**
+     * Returns the databases of a datasource with their collections, from the cached catalog
+     *
+     * @param dto
+     * @return List<CustomDatabase>
+     */
     public List<CustomDatabase> getDBdatabasesList(DBSourceDto dto) {
 
         List<CustomDatabase> databasesList = new ArrayList<>();
@@ -396,24 +405,19 @@ public class MongoDBSourceService implements IDBSourceService {
 
         if (dto.getConnectionMode().equalsIgnoreCase(FREE)) {
             mClient = this.cacheService.getAtlasMongoClient();
-            this.dbSourceRepository.findById(dto.getId())
-                    .map(dbsource -> databasesList.add(new CustomDatabase(dbsource.getDatabase(),
-                            getDBCollectionsList(mClient, dbsource.getPhysicalDatabase()))))
+            DBSource dbsource = this.dbSourceRepository.findById(dto.getId())
                     .orElseThrow(GlobalExceptionUtil.notFoundException(DBSource.class, dto.getId()));
+            // The physical database is shown under the name given by the user
+            catalogService.getCatalog(dto.getId(), mClient, dbsource.getPhysicalDatabase()).values()
+                    .forEach(collections -> databasesList
+                            .add(new CustomDatabase(dbsource.getDatabase(), new ArrayList<>(collections))));
             return databasesList;
         } else {
 
             mClient = cacheService.getMongoClient(mapper.mapToDomain(dto));
             if (mClient != null) {
-                Spliterator<String> spitr = mClient.listDatabaseNames().spliterator();
-                spitr.forEachRemaining(db -> {
-                    // Filter MONGO System Databases
-                    if (!db.equalsIgnoreCase("config") && !db.equalsIgnoreCase("local") && !db.equalsIgnoreCase(ADMIN)) {
-
-                        CustomDatabase customDatabase = new CustomDatabase(db, getDBCollectionsList(mClient, db));
-                        databasesList.add(customDatabase);
-                    }
-                });
+                catalogService.getCatalog(dto.getId(), mClient, null).forEach((db, collections) -> databasesList
+                        .add(new CustomDatabase(db, new ArrayList<>(collections))));
             }
             return databasesList;
         }
@@ -431,8 +435,10 @@ public class MongoDBSourceService implements IDBSourceService {
                 }
                 MongoDatabase database = mClient.getDatabase(dbsource.getDatabase());
                 database.getCollection(collectionName).drop();
+                catalogService.collectionDropped(dbsourceId, dbsource.getDatabase(), collectionName);
             }
         });
+        collectionSchemaService.evictCollection(dbsourceId, collectionName);
     }
 
     public void renameCollection(String dbsourceId, String databaseName, String oldCollectionName, String newCollectionName) {
@@ -447,9 +453,13 @@ public class MongoDBSourceService implements IDBSourceService {
                 }
                 MongoDatabase database = mClient.getDatabase(dbsource.getDatabase());
                 database.getCollection(oldCollectionName).renameCollection(new MongoNamespace(database.getName(), newCollectionName));
+                catalogService.collectionRenamed(dbsourceId, dbsource.getDatabase(), oldCollectionName,
+                        newCollectionName);
 
             }
         });
+        collectionSchemaService.evictCollection(dbsourceId, oldCollectionName);
+        collectionSchemaService.evictCollection(dbsourceId, newCollectionName);
     }
 
     public void createCollectionIndex(String dbsourceId, String databaseName, String collectionName, IndexCollection indexRequest) {
@@ -473,28 +483,16 @@ public class MongoDBSourceService implements IDBSourceService {
         });
     }
 
-    public  Set<String> getCollectionFields(String dbsourceId, String databaseName, String collectionName){
-        Set<String> fields = new HashSet<>();
-        this.dbSourceRepository.findById(dbsourceId).ifPresent(dbsource -> {
-            encryption.decrypt(dbsource);
-            MongoClient mClient = cacheService.getMongoClient(dbsourceId);
-            if (mClient != null) {
-                if (dbsource.getConnectionMode().equalsIgnoreCase(FREE)) {
-                    dbsource.setDatabase(dbsource.getPhysicalDatabase());
-                } else {
-                    dbsource.setDatabase(databaseName);
-                }
-                MongoDatabase database = mClient.getDatabase(dbsource.getDatabase());
-
-                MongoCollection<Document> collection = database.getCollection(collectionName);
-                List<Document> documents =  collection.find().into(new ArrayList<>());
-
-                for (Document document : documents) {
-                    fields.addAll(document.keySet());
-                }
-            }
-        });
-        return fields;
+    /**
+     * Returns the top-level fields of a collection, inferred from a sample of its documents
+     *
+     * @param dbsourceId
+     * @param databaseName
+     * @param collectionName
+     * @return Set<String>
+     */
+    public Set<String> getCollectionFields(String dbsourceId, String databaseName, String collectionName) {
+        return collectionSchemaService.getFieldNames(dbsourceId, databaseName, collectionName);
     }
 
 
@@ -527,6 +525,8 @@ public class MongoDBSourceService implements IDBSourceService {
                 database.getCollection(DEMO).insertOne(document2);
 
             }
+            // The datasource of the database is unknown here
+            catalogService.evictDatabase(databaseName);
 
             return true;
         } catch (Exception e) {
@@ -557,6 +557,7 @@ public class MongoDBSourceService implements IDBSourceService {
             BasicDBObject options = new BasicDBObject();
             options.put("size", 12121212);
             database.createCollection(collectionName);
+            catalogService.collectionCreated(dbsource.getId(), databaseName, collectionName);
         }
     }
 
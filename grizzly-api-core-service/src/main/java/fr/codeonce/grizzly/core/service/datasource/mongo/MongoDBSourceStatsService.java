@@ -39,6 +39,9 @@ public class MongoDBSourceStatsService {
     @Autowired
     private MongoCacheService mongoCacheService;
 
+    @Autowired
+    private CollectionSchemaService collectionSchemaService;
+
     public Document getCollectionStats(DBSource dbSource, String databaseName, String collectionName) {
         Map<String, Object> options = new LinkedHashMap<>();
         options.put("collStats", collectionName);
@@ -46,17 +49,15 @@ public class MongoDBSourceStatsService {
         return getStats(dbSource, databaseName, new Document(options));
     }
 
+    /**
+     * Returns the top-level fields of a collection, inferred from a sample of its documents instead of the first
+     * one only
+     */
     public Set<String> getCollectionAttributes(DBSource dbSource, String databaseName, String collectionName) {
-        MongoClient mClient = mongoCacheService.getMongoClient(dbSource);
-        if (dbSource.getConnectionMode().equalsIgnoreCase("FREE")) {
-            dbSource.setDatabase(dbSource.getPhysicalDatabase());
-        } else {
-            dbSource.setDatabase(databaseName);
-        }
         try {
-            MongoDatabase database = mClient.getDatabase(dbSource.getDatabase());
-            return database.getCollection(collectionName).find().first().keySet();
+            return collectionSchemaService.getFieldNames(dbSource.getId(), databaseName, collectionName);
         } catch (Exception e) {
+            log.debug("Could not infer the fields of {}", collectionName, e);
             return new HashSet<>();
         }
     }
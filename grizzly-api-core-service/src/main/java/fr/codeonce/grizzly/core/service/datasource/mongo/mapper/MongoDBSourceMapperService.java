@@ -17,11 +17,11 @@ package fr.codeonce.grizzly.core.service.datasource.mongo.mapper;
 
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
+import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
 import fr.codeonce.grizzly.core.service.datasource.mongo.MongoDBSourceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.CacheManager;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StopWatch;
@@ -36,8 +36,9 @@ public class MongoDBSourceMapperService extends MongoDBSourceMapperImpl {
     @Autowired
     private MongoDBSourceService dbService;
 
+    @Lazy
     @Autowired
-    private CacheManager cacheManager;
+    private MongoCacheService cacheService;
 
     @Override
     public DBSourceDto mapToDto(DBSource entity) {
@@ -52,7 +53,7 @@ public class MongoDBSourceMapperService extends MongoDBSourceMapperImpl {
             dto.setActive(dbService.checkConnection(dto));
         } catch (IllegalStateException e) {
             // MongoClient Expired
-            cacheManager.getCache("mongoClients").clear();
+            cacheService.evictMongoClients();
         } catch (Exception e) {
             log.debug(e.getMessage());
         }
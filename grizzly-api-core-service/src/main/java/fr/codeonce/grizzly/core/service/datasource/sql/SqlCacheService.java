@@ -15,23 +15,51 @@
  */
 package fr.codeonce.grizzly.core.service.datasource.sql;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
 import fr.codeonce.grizzly.common.runtime.Provider;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
 import fr.codeonce.grizzly.core.domain.datasource.DBSource;
 import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Registry of the connection pools of the SQL datasources, one HikariCP pool per DBSource (or per connection
+ * url for settings not saved yet). Pools are bounded, report leaked connections and are closed once evicted :
+ * idle for too long, replaced after a change of the connection settings, or removed. An evicted pool is closed
+ * after a delay letting the running queries finish, as the clients of the {@link fr.codeonce.grizzly.core.service.datasource.ClientRegistry}.
+ * The pool of a saved datasource is evicted with the RuntimeResources, on every node.
+ */
 @DependsOnDatabaseInitialization
 @Service
-public class SqlCacheService {
+public class SqlCacheService implements RuntimeResourceCacheService.EvictionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SqlCacheService.class);
 
     @Autowired
     private DBSourceRepository dBSourceRepository;
@@ -39,19 +67,173 @@ public class SqlCacheService {
     @Autowired
     private CryptoHelper encryption;
 
-    @Cacheable(value = "dbSource", key = "#dbSource.id")
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, SqlPool> pools;
+
+    // Evicted pools waiting to be closed
+    private final Set<HikariDataSource> retired = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService closer;
+
+    @PostConstruct
+    public void initPools() {
+        AppProperties.SqlPool spec = getSpec();
+        this.closer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SqlCacheService-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pools = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumPools())/**/
+                .expireAfterAccess(spec.getExpireAfterAccess(), TimeUnit.MINUTES)/**/
+                .<String, SqlPool>removalListener((key, pool, cause) -> {
+                    if (pool != null) {
+                        log.debug("Retiring the SQL pool {} ({})", pool.dataSource.getPoolName(), cause);
+                        retire(pool.dataSource);
+                    }
+                })/**/
+                .build();
+        if (meterRegistry != null) {
+            Gauge.builder("sql.pools", pools, Cache::estimatedSize)//
+                    .description("Open SQL datasource pools").register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    public void closePools() {
+        closer.shutdownNow();
+        pools.invalidateAll();
+        pools.cleanUp();
+        // No query is served anymore
+        retired.forEach(HikariDataSource::close);
+    }
+
     public DataSource getClientDatasource(DBSource dbSource) {
+        return getPool(dbSource).dataSource;
+    }
+
+    private SqlPool getPool(DBSource dbSource) {
         encryption.decrypt(dbSource);
-        DataSourceBuilder dataSourceBuilder = DataSourceBuilder.create();
-        String url = "jdbc:" + dbSource.getProvider().name().toLowerCase() + "://" + dbSource.getHost() + ":"
-                + dbSource.getPort() + "/" + dbSource.getDatabase() + "&useSSL=false";
-        dataSourceBuilder.driverClassName(getDriverClassName(dbSource.getProvider()));
-        dataSourceBuilder.url(url);
-        dataSourceBuilder.url(generateConnectionUrl(dbSource));
-        dataSourceBuilder.username(dbSource.getUsername());
-        String password = getSafeValue(dbSource.getPassword());
-        dataSourceBuilder.password(password);
-        return dataSourceBuilder.build();
+        return getPool(dbSource.getId(), dbSource.getProvider(), generateConnectionUrl(dbSource));
+    }
+
+    /**
+     * Returns the pool of a datasource, created on first use or when the connection url changed
+     *
+     * @param dbSourceId null for settings not saved yet
+     * @param provider
+     * @param url        the full connection url, credentials included
+     * @return SqlPool
+     */
+    private SqlPool getPool(String dbSourceId, Provider provider, String url) {
+        String fingerprint = DigestUtils.sha256Hex(url);
+        String key = dbSourceId != null ? dbSourceId : "url:" + fingerprint;
+        // The pool is created lazily, it only connects on the first borrow, outside of the map lock
+        return pools.asMap().compute(key, (k, pool) -> pool != null && pool.fingerprint.equals(fingerprint) ? pool
+                : new SqlPool(createDataSource(dbSourceId, fingerprint, provider, url), fingerprint));
+    }
+
+    /**
+     * Borrow a connection for settings that may not be saved, ie. while testing or saving a datasource, to be
+     * closed by the caller. The pool of the saved datasource is only shared when it has the same connection url,
+     * other settings get their own pool keyed by the url so that the one serving the runtime is left untouched.
+     * A pool that could not be reached is retired right away instead of waiting to expire.
+     *
+     * @param dbSourceId the saved datasource, null if there is none
+     * @param provider
+     * @param url        the full connection url, credentials included
+     * @return Connection
+     * @throws SQLException
+     */
+    public Connection getConnection(String dbSourceId, Provider provider, String url) throws SQLException {
+        SqlPool saved = dbSourceId != null ? pools.getIfPresent(dbSourceId) : null;
+        DataSource dataSource = saved != null && saved.fingerprint.equals(DigestUtils.sha256Hex(url))
+                ? saved.dataSource
+                : getPool(null, provider, url).dataSource;
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException | RuntimeException e) {
+            pools.asMap().values().removeIf(pool -> pool.dataSource == dataSource);
+            throw e;
+        }
+    }
+
+    /**
+     * Close the pool of a datasource after its update or removal
+     *
+     * @param dbSourceId
+     */
+    public void evict(String dbSourceId) {
+        if (dbSourceId != null) {
+            pools.invalidate(dbSourceId);
+        }
+    }
+
+    @Override
+    public void onEviction(String type, String id) {
+        if (RuntimeResourceCacheService.DBSOURCE.equals(type)) {
+            evict(id);
+        }
+    }
+
+    /**
+     * Drop the idle connections of an evicted pool, and close it once the queries holding one are done.
+     * A connection still borrowed after the lifetime of the pool connections is considered leaked.
+     */
+    private void retire(HikariDataSource dataSource) {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        if (pool != null) {
+            // The idle connections are closed now, the borrowed ones when returned
+            pool.softEvictConnections();
+        }
+        retired.add(dataSource);
+        scheduleClose(dataSource, System.currentTimeMillis() + getSpec().getMaxLifetime());
+    }
+
+    private void scheduleClose(HikariDataSource dataSource, long deadline) {
+        try {
+            closer.schedule(() -> {
+                HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+                if (pool != null && pool.getActiveConnections() > 0 && System.currentTimeMillis() < deadline) {
+                    // Still borrowed
+                    scheduleClose(dataSource, deadline);
+                } else {
+                    log.debug("Closing the SQL pool {}", dataSource.getPoolName());
+                    dataSource.close();
+                    retired.remove(dataSource);
+                }
+            }, getSpec().getCloseDelay(), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Shutting down, closed by closePools
+            log.debug("Could not schedule the close of the SQL pool {}", dataSource.getPoolName(), e);
+        }
+    }
+
+    private HikariDataSource createDataSource(String dbSourceId, String fingerprint, Provider provider, String url) {
+        AppProperties.SqlPool spec = getSpec();
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("sql-" + (dbSourceId != null ? dbSourceId : fingerprint.substring(0, 12)));
+        String driverClassName = getDriverClassName(provider);
+        if (driverClassName != null) {
+            dataSource.setDriverClassName(driverClassName);
+        }
+        dataSource.setJdbcUrl(url);
+        dataSource.setMaximumPoolSize(spec.getMaximumPoolSize());
+        dataSource.setMinimumIdle(spec.getMinimumIdle());
+        dataSource.setIdleTimeout(spec.getIdleTimeout());
+        dataSource.setConnectionTimeout(spec.getConnectionTimeout());
+        dataSource.setMaxLifetime(spec.getMaxLifetime());
+        dataSource.setLeakDetectionThreshold(spec.getLeakDetectionThreshold());
+        if (meterRegistry != null) {
+            // hikaricp.connections.* tagged with the pool name
+            dataSource.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+        }
+        return dataSource;
     }
 
     private String getProviderName(Provider provider) {
@@ -59,7 +241,7 @@ public class SqlCacheService {
             case MYSQL:
                 return "mysql";
             case MARIADB:
-                return "mysql";
+                return "mariadb";
             case POSTGRESQL:
                 return "postgresql";
             case SQLSERVER:
@@ -83,13 +265,17 @@ public class SqlCacheService {
     }
 
 
-    @Cacheable(value = "jdbctemplate")
+    /**
+     * The saved settings are only read and decrypted when the datasource has no pool, an update on any node
+     * evicts it
+     */
     public JdbcTemplate prepareDatasourceClient(String datasourceId) {
-        JdbcTemplate jt = new JdbcTemplate();
+        SqlPool pool = pools.getIfPresent(datasourceId);
+        if (pool != null) {
+            return pool.template;
+        }
         DBSource dbSource = dBSourceRepository.findById(datasourceId).orElseThrow(GlobalExceptionUtil.notFoundException(DBSource.class, datasourceId));
-        DataSource datasource = getClientDatasource(dbSource);
-        jt.setDataSource(datasource);
-        return jt;
+        return getPool(dbSource).template;
     }
 
     private String getDriverClassName(Provider provider) {
@@ -110,4 +296,26 @@ public class SqlCacheService {
     private String getSafeValue(char[] pwd) {
         return pwd == null ? "" : String.valueOf(pwd);
     }
+
+    private AppProperties.SqlPool getSpec() {
+        return appProperties.getSqlPool() != null ? appProperties.getSqlPool() : new AppProperties.SqlPool();
+    }
+
+    private static class SqlPool {
+
+        private final HikariDataSource dataSource;
+
+        // Hash of the connection url, a change of the settings replaces the pool
+        private final String fingerprint;
+
+        private final JdbcTemplate template;
+
+        private SqlPool(HikariDataSource dataSource, String fingerprint) {
+            this.dataSource = dataSource;
+            this.fingerprint = fingerprint;
+            this.template = new JdbcTemplate(dataSource);
+        }
+
+    }
+
 }
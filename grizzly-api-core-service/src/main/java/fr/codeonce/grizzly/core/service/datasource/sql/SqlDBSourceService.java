@@ -21,6 +21,7 @@ import fr.codeonce.grizzly.core.domain.user.User;
 import fr.codeonce.grizzly.core.domain.user.UserRepository;
 import fr.codeonce.grizzly.core.service.datasource.DBSourceDto;
 import fr.codeonce.grizzly.core.service.datasource.query.CustomQueryDto;
+import fr.codeonce.grizzly.core.service.datasource.sql.SqlSchemaSnapshotService.SchemaSnapshot;
 import fr.codeonce.grizzly.core.service.datasource.sql.mapper.SqlDBSourceMapperService;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
@@ -53,11 +54,16 @@ public class SqlDBSourceService {
     @Autowired
     private SqlCacheService sqlCacheService;
 
+    @Autowired
+    private SqlSchemaIntrospector schemaIntrospector;
+
+    @Autowired
+    private SqlSchemaSnapshotService snapshotService;
+
     private static final String SQL_SERVER = "sqlserver";
     private static final String MY_SQL = "mysql";
     private static final String POSTGRESQL = "postgresql";
     private static final String MARIA_DB = "mariadb";
-    private static final String COLUMN_NAME = "COLUMN_NAME";
 
     private static final Logger log = LoggerFactory.getLogger(SqlDBSourceService.class);
 
@@ -97,219 +103,107 @@ public class SqlDBSourceService {
     }
 
     public boolean checkTempConnection(DBSourceDto dto) throws SQLException {
-        Connection conn = null;
-        try {
-            String url = generateConnectionUrl(dto);
-            conn = DriverManager.getConnection(url);
+        try (Connection conn = getConnection(dto)) {
             return conn.isValid(1000);
         } catch (Exception e) {
             log.warn("Can't get status : {}", e.getMessage());
             return false;
-        } finally {
-            if (conn != null) {
-                conn.close();
-            }
         }
     }
 
-    private String getTableName(DBSourceDto dto, ResultSet resultSet) throws SQLException {
-        String tableName = "";
-        if (dto.getProvider().name().equalsIgnoreCase(SQL_SERVER)) {
-            tableName = resultSet.getString(2) + "." + resultSet.getString(3);
-        } else {
-            tableName = resultSet.getString(3);
-        }
-        return tableName;
+    /**
+     * Borrow a connection for the settings of the dto, which may not be saved yet, to be closed by the caller
+     */
+    private Connection getConnection(DBSourceDto dto) throws SQLException {
+        return sqlCacheService.getConnection(dto.getId(), dto.getProvider(), generateConnectionUrl(dto));
     }
 
-    private Set<String> getPrimaryKeys(String tableName, DatabaseMetaData metadata) throws SQLException {
-        ResultSet pkColumns = metadata.getPrimaryKeys(null, null, tableName);
-        Set<String> pkColumnSet = new TreeSet<>();
-        while (pkColumns.next()) {
-            pkColumnSet.add(pkColumns.getString(COLUMN_NAME));
-        }
-        return pkColumnSet;
+    /**
+     * Returns the tables of the datasource from its schema snapshot, waiting for the first read only
+     *
+     * @param dto
+     * @param mode columns, constraints or all, see {@link SqlSchemaIntrospector#introspect}
+     * @return the dto with a single database holding the tables
+     */
+    public DBSourceDto getTables(DBSourceDto dto, String mode) {
+        SchemaSnapshot snapshot = dto.getId() != null ? snapshotService.get(dto.getId(), () -> readTables(dto))
+                : snapshotService.read(() -> readTables(dto));
+        setSchema(dto, snapshot);
+        setTables(dto, snapshot.getTables(), mode);
+        return dto;
     }
 
-    private List<Column> getColumns(String tableName, DatabaseMetaData metadata) throws SQLException {
-        List<Column> columns = new ArrayList<>();
-        ResultSet rsCols = metadata.getColumns(null, null, tableName, null);
-        while (rsCols.next()) {
-            Column column = new Column();
-            column.setUnique(false);
-            column.setName(rsCols.getString(COLUMN_NAME));
-            column.setType((rsCols.getString("TYPE_NAME")));
-            boolean isNullable = rsCols.getString("IS_NULLABLE").equalsIgnoreCase("yes");
-            column.setNullable(isNullable);
-            boolean autoIncrement = rsCols.getString("IS_AUTOINCREMENT").equalsIgnoreCase("yes");
-            column.setAutoIncrement(autoIncrement);
-            columns.add(column);
+    /**
+     * Describes the schema snapshot of the datasource without connecting to it : a missing or stale snapshot
+     * is read in the background and the caller polls the returned version
+     *
+     * @param dto        a saved datasource
+     * @param withTables whether to add the tables of the current snapshot, if any
+     * @return the dto with its schema status and version
+     */
+    public DBSourceDto getSchemaSummary(DBSourceDto dto, boolean withTables) {
+        SchemaSnapshot snapshot = snapshotService.peek(dto.getId(), () -> readTables(dto));
+        setSchema(dto, snapshot);
+        if (withTables && snapshot != null) {
+            setTables(dto, snapshot.getTables(), SqlSchemaIntrospector.MODE_ALL);
         }
-        return columns;
+        return dto;
     }
 
-    private void getUniqueColumns(DBSourceDto dto, DatabaseMetaData metadata, List<Column> columns, String tableName)
-            throws SQLException {
-        ResultSet uniqueVaules = null;
-        if (dto.getProvider().equals(Provider.SQLSERVER) || dto.getProvider().equals(Provider.POSTGRESQL)) {
-            String schema = tableName.split("\\.")[0];
-            String tabName = tableName.split("\\.")[1];
-            uniqueVaules = metadata.getIndexInfo(null, schema, tabName, true, false);
-        } else {
-            uniqueVaules = metadata.getIndexInfo(null, null, tableName, true, false);
-        }
-
-        for (Column col : columns) {
-            while (uniqueVaules.next()) {
-                if (col.getName().equals(uniqueVaules.getString(COLUMN_NAME))) {
-                    col.setUnique(true);
-                }
-            }
-        }
+    /**
+     * Read the tables again in the background, the current snapshot is served until the read completes
+     */
+    public DBSourceDto refreshTables(DBSourceDto dto) {
+        snapshotService.refresh(dto.getId(), () -> readTables(dto));
+        return getSchemaSummary(dto, true);
     }
 
-    private List<Index> getIndexes(DBSourceDto dto, DatabaseMetaData metadata, String tableName) throws SQLException {
-        try {
-            List<Index> indexes = new ArrayList<>();
-            ResultSet indexValues = null;
-            if (dto.getProvider().equals(Provider.SQLSERVER) || dto.getProvider().equals(Provider.POSTGRESQL)) {
-                String schema = tableName.split("\\.")[0];
-                String tabName = tableName.split("\\.")[1];
-                indexValues = metadata.getIndexInfo(null, schema, tabName, false, false);
-            } else {
-                indexValues = metadata.getIndexInfo(null, null, tableName, false, false);
-            }
-            while (indexValues.next()) {
-                Index index = new Index();
-                String dbIndexName = indexValues.getString("INDEX_NAME");
-                String dbColumnName = indexValues.getString(COLUMN_NAME);
-                index.setName(dbIndexName);
-                index.setColumn(dbColumnName);
-                if (dbIndexName != null) {
-                    indexes.add(index);
-                }
-            }
-            return indexes;
-        } catch (SQLException exception) {
-            return new ArrayList<Index>();
-        }
+    public void evictTables(String dbSourceId) {
+        snapshotService.evict(dbSourceId);
     }
 
-    private List<Constraint> getConstraints(DatabaseMetaData metadata, DBSourceDto dto, String tableName)
-            throws SQLException {
-        ResultSet forignColumns = null;
-        List<Constraint> constraints = new ArrayList<>();
-        if (dto.getProvider().equals(Provider.SQLSERVER)) {
-            String schema = tableName.split("\\.")[0];
-            String tabName = tableName.split("\\.")[1];
-            forignColumns = metadata.getImportedKeys(null, schema, tabName);
-
-        } else {
-            forignColumns = metadata.getImportedKeys(null, null, tableName);
-
+    private List<Table> readTables(DBSourceDto dto) {
+        try (Connection conn = getConnection(dto)) {
+            return schemaIntrospector.introspect(conn, dto.getProvider(), dto.getDatabase(),
+                    SqlSchemaIntrospector.MODE_ALL);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e.getMessage(), e);
         }
-        while (forignColumns.next()) {
-            int onDelete = Integer.parseInt(forignColumns.getString("DELETE_RULE"));
-            int onUpdate = Integer.parseInt(forignColumns.getString("UPDATE_RULE"));
-            Constraint constraint = new Constraint();
-            constraint.setColumnName(forignColumns.getString("FKCOLUMN_NAME"));
-            constraint.setRefColumn(forignColumns.getString("PKCOLUMN_NAME"));
-            constraint.setRefTable(forignColumns.getString("PKTABLE_NAME"));
-            constraint.setName(forignColumns.getString("FK_NAME"));
-            constraint.setOnUpdate(setConstraintRule(onUpdate));
-            constraint.setOnDelete(setConstraintRule(onDelete));
-            constraints.add(constraint);
-        }
-        return constraints;
     }
 
-    public DatabaseMetaData getMetadata(DBSourceDto dto) throws SQLException {
-        String url = generateConnectionUrl(dto);
-        Connection conn = DriverManager.getConnection(url);
-        return conn.getMetaData();
-
+    private void setSchema(DBSourceDto dto, SchemaSnapshot snapshot) {
+        dto.setSchemaStatus(snapshotService.getStatus(dto.getId(), snapshot));
+        dto.setSchemaVersion(snapshot != null ? snapshot.getVersion() : null);
+        // The last read tells whether the server is reachable, without opening a connection here
+        dto.setActive(snapshot != null && snapshot.isAvailable());
     }
 
-    public DBSourceDto getTables(DBSourceDto dto, String mode) {
-        List<Table> tables = new ArrayList<>();
-        try {
-            DatabaseMetaData metadata = getMetadata(dto);
-            ResultSet rs = metadata.getTables(dto.getDatabase(), null, "%", new String[]{"TABLE"});
-            while (rs.next()) {
-                Table table = new Table();
-                String tableName = getTableName(dto, rs);
-                table.setName(tableName);
-                switch (mode) {
-                    // get tables names + columns
-                    case "columns":
-                        try {
-                            table.setPrimaryKeys(getPrimaryKeys(tableName, metadata));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        try {
-                            table.setColumns(getColumns(tableName, metadata));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        break;
-                    // get tables names + columns + constraints
-                    case "constraints":
-                        try {
-                            table.setPrimaryKeys(getPrimaryKeys(tableName, metadata));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        try {
-                            table.setConstraints(getConstraints(metadata, dto, tableName));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        try {
-                            table.setColumns(getColumns(tableName, metadata));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-
-                        break;
-                    // get tables + columns + constraints
-                    case "all":
-                        try {
-                            table.setPrimaryKeys(getPrimaryKeys(tableName, metadata));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        try {
-                            table.setConstraints(getConstraints(metadata, dto, tableName));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        try {
-                            table.setIndexes(getIndexes(dto, metadata, tableName));
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        List<Column> columns = getColumns(tableName, metadata);
-                        try {
-                            getUniqueColumns(dto, metadata, columns, tableName);
-                        } catch (Exception exception) {
-                            log.error(exception.getMessage());
-                        }
-                        table.setColumns(getColumns(tableName, metadata));
-                        break;
-                    default:
-                        break;
-                }
-                tables.add(table);
+    /**
+     * The snapshot holds every detail, the tables are copied with the ones of the requested mode
+     */
+    private static void setTables(DBSourceDto dto, List<Table> snapshot, String mode) {
+        List<Table> tables = new ArrayList<>(snapshot.size());
+        for (Table source : snapshot) {
+            Table table = new Table();
+            table.setName(source.getName());
+            if (SqlSchemaIntrospector.MODE_COLUMNS.equals(mode) || SqlSchemaIntrospector.MODE_CONSTRAINTS.equals(mode)
+                    || SqlSchemaIntrospector.MODE_ALL.equals(mode)) {
+                // Read with the columns, see SqlSchemaIntrospector#introspect
+                table.setPrimaryKeys(source.getPrimaryKeys());
+                table.setColumns(source.getColumns());
             }
-        } catch (Exception e) {
-            log.error(e.getMessage());
+            if (SqlSchemaIntrospector.MODE_CONSTRAINTS.equals(mode) || SqlSchemaIntrospector.MODE_ALL.equals(mode)) {
+                table.setConstraints(source.getConstraints());
+            }
+            if (SqlSchemaIntrospector.MODE_ALL.equals(mode)) {
+                table.setIndexes(source.getIndexes());
+            }
+            tables.add(table);
         }
         CustomDatabase customDatabase = new CustomDatabase();
         customDatabase.setTables(tables);
         customDatabase.setName(dto.getDatabase());
         dto.setDatabases(Collections.singletonList(customDatabase));
-        return dto;
     }
 
     private String insertUserQuery(String provider) {
@@ -441,21 +335,6 @@ public class SqlDBSourceService {
         }
     }
 
-    private String setConstraintRule(int code) {
-        switch (code) {
-            case 0:
-                return "CASCADE";
-            case 1:
-                return "RESTRICT";
-            case 2:
-                return "SET NULL";
-            case 3:
-                return "NO ACTION";
-            default:
-                return "NO ACTION";
-        }
-    }
-
     private String generateConnectionUrl(DBSourceDto dto) {
         String url = "";
         if (dto.getProvider().name().equalsIgnoreCase(SQL_SERVER)) {
@@ -474,7 +353,7 @@ public class SqlDBSourceService {
             case MYSQL:
                 return MY_SQL;
             case MARIADB:
-                return MY_SQL;
+                return MARIA_DB;
             case POSTGRESQL:
                 return POSTGRESQL;
             case SQLSERVER:
@@ -491,6 +370,8 @@ public class SqlDBSourceService {
     public void executeQuery(String dbSourceId, CustomQueryDto customQueryDto) {
         JdbcTemplate jt = sqlCacheService.prepareDatasourceClient(dbSourceId);
         jt.execute(customQueryDto.getQuery());
+        // The query may have changed the schema
+        evictTables(dbSourceId);
     }
 
     public String getSafeValue(char[] pwd) {
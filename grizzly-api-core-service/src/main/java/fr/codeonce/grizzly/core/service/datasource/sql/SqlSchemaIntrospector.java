@@ -0,0 +1,324 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource.sql;
+
+import fr.codeonce.grizzly.common.runtime.Provider;
+import fr.codeonce.grizzly.core.domain.datasource.Column;
+import fr.codeonce.grizzly.core.domain.datasource.Constraint;
+import fr.codeonce.grizzly.core.domain.datasource.Index;
+import fr.codeonce.grizzly.core.domain.datasource.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Reads the tables of a SQL datasource with one catalog-wide query per kind of metadata (columns, primary keys,
+ * foreign keys, indexes) grouped in memory, instead of several DatabaseMetaData calls per table. Providers
+ * without a known catalog query fall back to the per-table calls.
+ */
+@Service
+public class SqlSchemaIntrospector {
+
+    private static final Logger log = LoggerFactory.getLogger(SqlSchemaIntrospector.class);
+
+    public static final String MODE_COLUMNS = "columns";
+
+    public static final String MODE_CONSTRAINTS = "constraints";
+
+    public static final String MODE_ALL = "all";
+
+    private static final Set<Provider> BULK_PROVIDERS = EnumSet.of(Provider.MYSQL, Provider.MARIADB,
+            Provider.POSTGRESQL, Provider.SQLSERVER);
+
+    private static final String COLUMN_NAME = "COLUMN_NAME";
+
+    private static final String PRIMARY_KEYS = "SELECT kcu.TABLE_SCHEMA, kcu.TABLE_NAME, kcu.COLUMN_NAME"
+            + " FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS tc JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE kcu"
+            + " ON kcu.CONSTRAINT_SCHEMA = tc.CONSTRAINT_SCHEMA AND kcu.CONSTRAINT_NAME = tc.CONSTRAINT_NAME"
+            + " AND kcu.TABLE_NAME = tc.TABLE_NAME WHERE tc.CONSTRAINT_TYPE = 'PRIMARY KEY'";
+
+    private static final String MYSQL_PRIMARY_KEYS = PRIMARY_KEYS + " AND tc.TABLE_SCHEMA = DATABASE()";
+
+    private static final String MYSQL_FOREIGN_KEYS = "SELECT kcu.TABLE_SCHEMA, kcu.TABLE_NAME, kcu.COLUMN_NAME,"
+            + " kcu.CONSTRAINT_NAME, kcu.REFERENCED_TABLE_NAME, kcu.REFERENCED_COLUMN_NAME, rc.UPDATE_RULE,"
+            + " rc.DELETE_RULE FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE kcu"
+            + " JOIN INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS rc ON rc.CONSTRAINT_SCHEMA = kcu.CONSTRAINT_SCHEMA"
+            + " AND rc.CONSTRAINT_NAME = kcu.CONSTRAINT_NAME AND rc.TABLE_NAME = kcu.TABLE_NAME"
+            + " WHERE kcu.TABLE_SCHEMA = DATABASE() AND kcu.REFERENCED_TABLE_NAME IS NOT NULL";
+
+    private static final String FOREIGN_KEYS = "SELECT fk.TABLE_SCHEMA, fk.TABLE_NAME, fk.COLUMN_NAME,"
+            + " rc.CONSTRAINT_NAME, pk.TABLE_NAME, pk.COLUMN_NAME, rc.UPDATE_RULE, rc.DELETE_RULE"
+            + " FROM INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS rc JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE fk"
+            + " ON fk.CONSTRAINT_SCHEMA = rc.CONSTRAINT_SCHEMA AND fk.CONSTRAINT_NAME = rc.CONSTRAINT_NAME"
+            + " JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE pk ON pk.CONSTRAINT_SCHEMA = rc.UNIQUE_CONSTRAINT_SCHEMA"
+            + " AND pk.CONSTRAINT_NAME = rc.UNIQUE_CONSTRAINT_NAME AND pk.ORDINAL_POSITION = fk.ORDINAL_POSITION";
+
+    private static final String MYSQL_INDEXES = "SELECT TABLE_SCHEMA, TABLE_NAME, INDEX_NAME, COLUMN_NAME,"
+            + " NON_UNIQUE = 0 FROM INFORMATION_SCHEMA.STATISTICS WHERE TABLE_SCHEMA = DATABASE()"
+            + " ORDER BY TABLE_NAME, INDEX_NAME, SEQ_IN_INDEX";
+
+    private static final String POSTGRESQL_INDEXES = "SELECT n.nspname, t.relname, i.relname, a.attname,"
+            + " ix.indisunique FROM pg_index ix JOIN pg_class t ON t.oid = ix.indrelid"
+            + " JOIN pg_class i ON i.oid = ix.indexrelid JOIN pg_namespace n ON n.oid = t.relnamespace"
+            + " JOIN pg_attribute a ON a.attrelid = t.oid AND a.attnum = ANY(ix.indkey)"
+            + " WHERE t.relkind = 'r' AND n.nspname NOT IN ('pg_catalog', 'information_schema')"
+            + " ORDER BY t.relname, i.relname";
+
+    private static final String SQLSERVER_INDEXES = "SELECT s.name, t.name, i.name, c.name, i.is_unique"
+            + " FROM sys.indexes i JOIN sys.index_columns ic ON ic.object_id = i.object_id"
+            + " AND ic.index_id = i.index_id JOIN sys.columns c ON c.object_id = ic.object_id"
+            + " AND c.column_id = ic.column_id JOIN sys.tables t ON t.object_id = i.object_id"
+            + " JOIN sys.schemas s ON s.schema_id = t.schema_id WHERE i.name IS NOT NULL"
+            + " ORDER BY t.name, i.name, ic.key_ordinal";
+
+    /**
+     * Read the tables of the connected database
+     *
+     * @param conn     a connection to the datasource, not closed
+     * @param provider
+     * @param catalog  the database name
+     * @param mode     "columns" for the primary keys and columns, "constraints" to add the foreign keys, "all" to
+     *                 add the indexes and unique columns, anything else for the table names only
+     * @return the tables, named schema.table for SQL Server
+     * @throws SQLException when the tables could not be listed
+     */
+    public List<Table> introspect(Connection conn, Provider provider, String catalog, String mode)
+            throws SQLException {
+        DatabaseMetaData metadata = conn.getMetaData();
+        Map<String, TableRef> tables = new LinkedHashMap<>();
+        try (ResultSet rs = metadata.getTables(catalog, null, "%", new String[]{"TABLE"})) {
+            while (rs.next()) {
+                TableRef ref = new TableRef(rs.getString(2), rs.getString(3));
+                ref.table.setName(provider == Provider.SQLSERVER ? ref.schema + "." + ref.name : ref.name);
+                tables.put(key(provider, ref.schema, ref.name), ref);
+            }
+        }
+        if (MODE_COLUMNS.equals(mode) || MODE_CONSTRAINTS.equals(mode) || MODE_ALL.equals(mode)) {
+            boolean bulk = BULK_PROVIDERS.contains(provider);
+            load("primary keys", () -> loadPrimaryKeys(conn, metadata, provider, bulk, tables));
+            load("columns", () -> loadColumns(metadata, provider, catalog, tables));
+            if (!MODE_COLUMNS.equals(mode)) {
+                load("constraints", () -> loadConstraints(conn, metadata, provider, bulk, tables));
+            }
+            if (MODE_ALL.equals(mode)) {
+                load("indexes", () -> loadIndexes(conn, metadata, provider, bulk, tables));
+            }
+        }
+        return tables.values().stream().map(ref -> ref.table).collect(Collectors.toList());
+    }
+
+    private void loadPrimaryKeys(Connection conn, DatabaseMetaData metadata, Provider provider, boolean bulk,
+                                 Map<String, TableRef> tables) throws SQLException {
+        tables.values().forEach(ref -> ref.table.setPrimaryKeys(new TreeSet<>()));
+        if (bulk) {
+            query(conn, isMySql(provider) ? MYSQL_PRIMARY_KEYS : PRIMARY_KEYS, rs -> {
+                TableRef ref = tables.get(key(provider, rs.getString(1), rs.getString(2)));
+                if (ref != null) {
+                    ref.table.getPrimaryKeys().add(rs.getString(3));
+                }
+            });
+            return;
+        }
+        for (TableRef ref : tables.values()) {
+            try (ResultSet rs = metadata.getPrimaryKeys(null, null, ref.name)) {
+                while (rs.next()) {
+                    ref.table.getPrimaryKeys().add(rs.getString(COLUMN_NAME));
+                }
+            }
+        }
+    }
+
+    private void loadColumns(DatabaseMetaData metadata, Provider provider, String catalog,
+                             Map<String, TableRef> tables) throws SQLException {
+        tables.values().forEach(ref -> ref.table.setColumns(new ArrayList<>()));
+        try (ResultSet rs = metadata.getColumns(catalog, null, "%", "%")) {
+            while (rs.next()) {
+                TableRef ref = tables.get(key(provider, rs.getString("TABLE_SCHEM"), rs.getString("TABLE_NAME")));
+                if (ref == null) {
+                    continue;
+                }
+                Column column = new Column();
+                column.setUnique(false);
+                column.setName(rs.getString(COLUMN_NAME));
+                column.setType(rs.getString("TYPE_NAME"));
+                column.setNullable("yes".equalsIgnoreCase(rs.getString("IS_NULLABLE")));
+                column.setAutoIncrement("yes".equalsIgnoreCase(rs.getString("IS_AUTOINCREMENT")));
+                ref.table.getColumns().add(column);
+            }
+        }
+    }
+
+    private void loadConstraints(Connection conn, DatabaseMetaData metadata, Provider provider, boolean bulk,
+                                 Map<String, TableRef> tables) throws SQLException {
+        tables.values().forEach(ref -> ref.table.setConstraints(new ArrayList<>()));
+        if (bulk) {
+            query(conn, isMySql(provider) ? MYSQL_FOREIGN_KEYS : FOREIGN_KEYS, rs -> {
+                TableRef ref = tables.get(key(provider, rs.getString(1), rs.getString(2)));
+                if (ref != null) {
+                    ref.table.getConstraints().add(constraint(rs.getString(4), rs.getString(3), rs.getString(5),
+                            rs.getString(6), rs.getString(7), rs.getString(8)));
+                }
+            });
+            return;
+        }
+        for (TableRef ref : tables.values()) {
+            try (ResultSet rs = metadata.getImportedKeys(null, null, ref.name)) {
+                while (rs.next()) {
+                    ref.table.getConstraints().add(constraint(rs.getString("FK_NAME"), rs.getString("FKCOLUMN_NAME"),
+                            rs.getString("PKTABLE_NAME"), rs.getString("PKCOLUMN_NAME"),
+                            ruleName(rs.getInt("UPDATE_RULE")), ruleName(rs.getInt("DELETE_RULE"))));
+                }
+            }
+        }
+    }
+
+    private void loadIndexes(Connection conn, DatabaseMetaData metadata, Provider provider, boolean bulk,
+                             Map<String, TableRef> tables) throws SQLException {
+        tables.values().forEach(ref -> ref.table.setIndexes(new ArrayList<>()));
+        if (bulk) {
+            query(conn, indexesQuery(provider), rs -> {
+                TableRef ref = tables.get(key(provider, rs.getString(1), rs.getString(2)));
+                if (ref != null) {
+                    addIndex(ref.table, rs.getString(3), rs.getString(4), rs.getBoolean(5));
+                }
+            });
+            return;
+        }
+        for (TableRef ref : tables.values()) {
+            // Unique and non unique indexes in a single call
+            try (ResultSet rs = metadata.getIndexInfo(null, ref.schema, ref.name, false, false)) {
+                while (rs.next()) {
+                    addIndex(ref.table, rs.getString("INDEX_NAME"), rs.getString(COLUMN_NAME),
+                            !rs.getBoolean("NON_UNIQUE"));
+                }
+            }
+        }
+    }
+
+    private static void addIndex(Table table, String indexName, String columnName, boolean unique) {
+        if (indexName == null) {
+            return;
+        }
+        Index index = new Index();
+        index.setName(indexName);
+        index.setColumn(columnName);
+        table.getIndexes().add(index);
+        if (unique && table.getColumns() != null) {
+            table.getColumns().stream().filter(column -> column.getName().equals(columnName))
+                    .forEach(column -> column.setUnique(true));
+        }
+    }
+
+    private static Constraint constraint(String name, String columnName, String refTable, String refColumn,
+                                         String onUpdate, String onDelete) {
+        Constraint constraint = new Constraint();
+        constraint.setName(name);
+        constraint.setColumnName(columnName);
+        constraint.setRefTable(refTable);
+        constraint.setRefColumn(refColumn);
+        constraint.setOnUpdate(onUpdate);
+        constraint.setOnDelete(onDelete);
+        return constraint;
+    }
+
+    private static String indexesQuery(Provider provider) {
+        if (isMySql(provider)) {
+            return MYSQL_INDEXES;
+        }
+        return provider == Provider.POSTGRESQL ? POSTGRESQL_INDEXES : SQLSERVER_INDEXES;
+    }
+
+    private static String ruleName(int code) {
+        switch (code) {
+            case DatabaseMetaData.importedKeyCascade:
+                return "CASCADE";
+            case DatabaseMetaData.importedKeyRestrict:
+                return "RESTRICT";
+            case DatabaseMetaData.importedKeySetNull:
+                return "SET NULL";
+            default:
+                return "NO ACTION";
+        }
+    }
+
+    private static boolean isMySql(Provider provider) {
+        return provider == Provider.MYSQL || provider == Provider.MARIADB;
+    }
+
+    /**
+     * MySQL reports the database as the catalog and has no schema, the others group the tables by schema
+     */
+    private static String key(Provider provider, String schema, String table) {
+        return isMySql(provider) ? table : schema + "." + table;
+    }
+
+    private static void query(Connection conn, String sql, RowHandler handler) throws SQLException {
+        try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                handler.handle(rs);
+            }
+        }
+    }
+
+    private static void load(String kind, MetadataLoader loader) {
+        try {
+            loader.load();
+        } catch (SQLException | RuntimeException e) {
+            // The other kinds of metadata are still returned, as before
+            log.error("Could not load the {} : {}", kind, e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface MetadataLoader {
+        void load() throws SQLException;
+    }
+
+    private static class TableRef {
+
+        private final String schema;
+
+        private final String name;
+
+        private final Table table = new Table();
+
+        private TableRef(String schema, String name) {
+            this.schema = schema;
+            this.name = name;
+        }
+
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.datasource.sql;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.Table;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Snapshots of the tables of the SQL datasources, read on a dedicated bounded pool so that the listings never
+ * wait for a remote server. A snapshot older than the configured age is still served while a single background
+ * read replaces it, and every snapshot carries a version the UI can poll. A failed read keeps the tables of the
+ * previous snapshot with the error, and is retried sooner than a successful one.
+ */
+@Service
+public class SqlSchemaSnapshotService {
+
+    private static final Logger log = LoggerFactory.getLogger(SqlSchemaSnapshotService.class);
+
+    public static final String STATUS_PENDING = "PENDING";
+
+    public static final String STATUS_REFRESHING = "REFRESHING";
+
+    public static final String STATUS_READY = "READY";
+
+    public static final String STATUS_FAILED = "FAILED";
+
+    // Increasing across evictions, a snapshot read again always gets a greater version
+    private final AtomicLong versions = new AtomicLong();
+
+    private final Map<String, CompletableFuture<SchemaSnapshot>> refreshing = new ConcurrentHashMap<>();
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, SchemaSnapshot> snapshots;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void initSnapshots() {
+        AppProperties.SqlSchemas spec = getSpec();
+        this.snapshots = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .build();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(spec.getRefreshThreads(), spec.getRefreshThreads(), 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(spec.getRefreshQueueCapacity()), r -> {
+            Thread thread = new Thread(r, "SqlSchema-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        if (meterRegistry != null) {
+            Gauge.builder("sql.schemas.refreshing", refreshing, Map::size)//
+                    .description("SQL schemas being read in the background").register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the snapshot of a datasource without waiting, a read is started when it is missing or stale
+     *
+     * @param dbSourceId
+     * @param reader     reads the tables from the server, called on the refresh pool
+     * @return the current snapshot, null until the first read completes
+     */
+    public SchemaSnapshot peek(String dbSourceId, Supplier<List<Table>> reader) {
+        SchemaSnapshot snapshot = snapshots.getIfPresent(dbSourceId);
+        if (snapshot == null || isStale(snapshot)) {
+            refresh(dbSourceId, reader);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the snapshot of a datasource, waiting for the first read when there is none. A stale snapshot is
+     * returned as is while it is read again in the background.
+     *
+     * @param dbSourceId
+     * @param reader
+     * @return SchemaSnapshot
+     */
+    public SchemaSnapshot get(String dbSourceId, Supplier<List<Table>> reader) {
+        SchemaSnapshot snapshot = peek(dbSourceId, reader);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        CompletableFuture<SchemaSnapshot> pending = refreshing.get(dbSourceId);
+        if (pending != null) {
+            return pending.join();
+        }
+        // The pool is saturated, read in the caller thread
+        return store(dbSourceId, read(snapshots.getIfPresent(dbSourceId), reader));
+    }
+
+    /**
+     * Start a read of the schema unless one is already running for this datasource
+     *
+     * @param dbSourceId
+     * @param reader
+     * @return the running read
+     */
+    public CompletableFuture<SchemaSnapshot> refresh(String dbSourceId, Supplier<List<Table>> reader) {
+        CompletableFuture<SchemaSnapshot> promise = new CompletableFuture<>();
+        CompletableFuture<SchemaSnapshot> running = refreshing.putIfAbsent(dbSourceId, promise);
+        if (running != null) {
+            return running;
+        }
+        try {
+            executor.execute(() -> {
+                SchemaSnapshot snapshot = read(snapshots.getIfPresent(dbSourceId), reader);
+                // Dropped when the datasource was evicted meanwhile, it was read with outdated settings
+                if (refreshing.remove(dbSourceId, promise)) {
+                    snapshots.put(dbSourceId, snapshot);
+                }
+                promise.complete(snapshot);
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("The schema of {} will be read later, the refresh queue is full", dbSourceId);
+            refreshing.remove(dbSourceId, promise);
+            promise.completeExceptionally(e);
+        }
+        return promise;
+    }
+
+    /**
+     * @return the status of the snapshot of a datasource, one of the STATUS_ constants
+     */
+    public String getStatus(String dbSourceId, SchemaSnapshot snapshot) {
+        if (refreshing.containsKey(dbSourceId)) {
+            return snapshot != null ? STATUS_REFRESHING : STATUS_PENDING;
+        }
+        if (snapshot == null) {
+            return STATUS_PENDING;
+        }
+        return snapshot.isAvailable() ? STATUS_READY : STATUS_FAILED;
+    }
+
+    /**
+     * Drop the snapshot and cancel the result of a running read, to be called when the datasource settings or
+     * its schema change
+     *
+     * @param dbSourceId
+     */
+    public void evict(String dbSourceId) {
+        if (dbSourceId != null) {
+            refreshing.remove(dbSourceId);
+            snapshots.invalidate(dbSourceId);
+        }
+    }
+
+    /**
+     * Read the tables once, outside of the cache, for datasources which are not saved yet
+     */
+    public SchemaSnapshot read(Supplier<List<Table>> reader) {
+        return read(null, reader);
+    }
+
+    /**
+     * @param previous the tables kept when the read fails, null if there are none
+     */
+    private SchemaSnapshot read(SchemaSnapshot previous, Supplier<List<Table>> reader) {
+        try {
+            return new SchemaSnapshot(reader.get(), nextVersion(), null);
+        } catch (RuntimeException e) {
+            log.warn("Could not read the SQL schema : {}", e.getMessage());
+            return new SchemaSnapshot(previous != null ? previous.getTables() : Collections.emptyList(),
+                    nextVersion(), e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+    }
+
+    private SchemaSnapshot store(String dbSourceId, SchemaSnapshot snapshot) {
+        snapshots.put(dbSourceId, snapshot);
+        return snapshot;
+    }
+
+    private boolean isStale(SchemaSnapshot snapshot) {
+        AppProperties.SqlSchemas spec = getSpec();
+        long maxAge = snapshot.isAvailable() ? spec.getTimeUnit().toMillis(spec.getExpireAfterWrite())
+                : TimeUnit.SECONDS.toMillis(spec.getRetryAfterFailure());
+        return System.currentTimeMillis() - snapshot.getReadAt() > maxAge;
+    }
+
+    private long nextVersion() {
+        return versions.updateAndGet(v -> Math.max(v + 1, System.currentTimeMillis()));
+    }
+
+    private AppProperties.SqlSchemas getSpec() {
+        return appProperties.getSqlSchemas() != null ? appProperties.getSqlSchemas()
+                : new AppProperties.SqlSchemas();
+    }
+
+    /**
+     * The tables of a datasource as read at a given time. The tables are shared and must not be modified.
+     */
+    public static class SchemaSnapshot {
+
+        private final List<Table> tables;
+
+        private final long version;
+
+        private final long readAt;
+
+        private final String error;
+
+        public SchemaSnapshot(List<Table> tables, long version, String error) {
+            this.tables = tables;
+            this.version = version;
+            this.readAt = System.currentTimeMillis();
+            this.error = error;
+        }
+
+        public List<Table> getTables() {
+            return tables;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getReadAt() {
+            return readAt;
+        }
+
+        /**
+         * @return why the server could not be read on the last attempt, null when the tables are up to date
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isAvailable() {
+            return error == null;
+        }
+
+    }
+
+}
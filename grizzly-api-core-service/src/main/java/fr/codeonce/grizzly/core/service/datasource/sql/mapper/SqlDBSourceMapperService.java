@@ -52,4 +52,11 @@ public class SqlDBSourceMapperService extends SqlDBSourceMapperImpl {
 
         return dto;
     }
+
+    /**
+     * Map without checking the connection, the listings take the status from the schema snapshot instead
+     */
+    public DBSourceDto mapToSummaryDto(DBSource entity) {
+        return super.mapToDto(entity);
+    }
 }
@@ -1,327 +1,497 @@
-/*
- * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package fr.codeonce.grizzly.core.service.fs;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.client.MongoClient;
-import com.mongodb.client.gridfs.model.GridFSFile;
-import fr.codeonce.grizzly.core.domain.container.Container;
-import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
-import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchy;
-import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchyRepository;
-import fr.codeonce.grizzly.core.domain.datasource.DBSource;
-import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
-import fr.codeonce.grizzly.core.domain.util.FileSystemUtil;
-import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
-import fr.codeonce.grizzly.core.service.fs.model.CustomFile;
-import fr.codeonce.grizzly.core.service.fs.model.CustomFolder;
-import org.apache.commons.io.FileUtils;
-import org.bson.Document;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
-import org.springframework.data.mongodb.gridfs.GridFsTemplate;
-import org.springframework.stereotype.Service;
-import org.springframework.util.StopWatch;
-
-import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
-
-/**
- * Handle Project import : GIT or Local ZIP File and Return hierarchy as JSON
- *
- * @author rayen
- */
-@Service
-public class FilesHandler {
-
-    // TMP Directory for storing files
-    static final String TMPDIR = FileSystemUtil.getTempFolder();
-
-    private static final Logger log = LoggerFactory.getLogger(FilesHandler.class);
-
-    private static final ObjectMapper mapper = new ObjectMapper();
-
-    @Autowired
-    private ContainerHierarchyRepository containerHierarchyRepository;
-
-    @Autowired
-    private ContainerRepository containerRepository;
-
-    @Autowired
-    private MongoCacheService cacheService;
-
-    @Autowired
-    private DBSourceRepository dbSourceRepository;
-
-    /**
-     * Returns the hierarchy of a given directory
-     *
-     * @param fullDirectoryName
-     * @param idContainer
-     * @return hierarchy of the directory
-     * @throws IllegalAccessException
-     */
-    public String getJsonHierarchy(String fullDirectoryName, String idContainer, String dbsourceId,
-                                   String databaseName) {
-        GridFsTemplate gridFsTemp = getGridFsTemplate(dbsourceId, databaseName);
-        String jsonHierarchy = "";
-        StopWatch stopWatch = new StopWatch();
-
-        stopWatch.start("Delete old files in GridFS");
-
-        // Delete the old GridFs files under this container
-        deleteGridfsFiles(idContainer);
-        stopWatch.stop();
-
-        stopWatch.start("saving the hierarchy detailed");
-
-        try {
-            CustomFolder parentFolder = new CustomFolder(fullDirectoryName.replaceAll("\\s", ""));
-            CustomFolder mylist = displayIt(parentFolder);
-
-            replaceParentWithChild(mylist);
-
-            mylist.getChildren().forEach(item -> {
-                if (item instanceof CustomFolder folder) {
-                    saveIt(folder, idContainer, gridFsTemp);
-                } else if (item instanceof CustomFile customFile) {
-                    File file = new File(customFile.getName());
-                    InputStream inputStream;
-                    try {
-                        inputStream = new FileInputStream(file);
-                        Document metaData = new Document();
-                        metaData.put("containerId", idContainer);
-                        String fileUri = file.getPath()
-                                .substring(file.getPath().indexOf(idContainer) + idContainer.length() + 1)
-                                .replaceAll("\\\\", "/");
-                        metaData.put("fileUri", fileUri);
-                        metaData.put("parentPath", mylist.getName().indexOf(idContainer) + idContainer.length() + 1);
-                        customFile
-                                .setFileId(gridFsTemp.store(inputStream, file.getName(), metaData).toString());
-                        inputStream.close();
-
-                    } catch (FileNotFoundException e) {
-                        log.debug("FileNotFoundException {}", e);
-                    } catch (IOException e) {
-                        log.debug("IOException : {}", e);
-                    }
-                }
-            });
-            jsonHierarchy = mapper.writeValueAsString(mylist);
-            saveHierarchy(idContainer, jsonHierarchy);
-
-            // Delete Folder from server after extracting the hierarchy
-            FileUtils.deleteDirectory(new File(TMPDIR + idContainer));
-            stopWatch.stop();
-            log.debug(stopWatch.prettyPrint());
-
-            return jsonHierarchy;
-        } catch (IOException e) {
-            log.debug("IOException : {}", e);
-        }
-        return jsonHierarchy;
-
-    }
-
-    /**
-     * Checks if the parent folder has on child as folder with the same Name If it
-     * exists, the parent folder will be skipped and the child takes it's place
-     *
-     * @param mylist
-     */
-    private void replaceParentWithChild(CustomFolder mylist) {
-        if (mylist.getChildren().size() == 1 && (mylist.getChildren().get(0) instanceof CustomFolder)) {
-
-            CustomFolder firstFolder = (CustomFolder) mylist.getChildren().get(0);
-            String firstFolderName = firstFolder.getName()
-                    .substring(firstFolder.getName().lastIndexOf(File.separator) + 1);
-
-            if (firstFolderName.equals(mylist.getName().substring(mylist.getName().lastIndexOf(File.separator) + 1))) {
-                CustomFolder childFolder = (CustomFolder) mylist.getChildren().get(0);
-                mylist.setName(childFolder.getName());
-                mylist.setChildren(childFolder.getChildren());
-            }
-        }
-    }
-
-    public void deleteGridfsFiles(String containerId) {
-        this.containerRepository.findById(containerId).ifPresent(cont -> {
-            if (cont.getDbsourceId() != null) {
-                this.cacheService
-                        .getGridFs(this.cacheService.getMongoClient(cont.getDbsourceId()), cont.getDatabaseName())//
-                        .delete(Query.query((Criteria.where("metadata.containerId").is(containerId))));
-
-                String hierarchyId = cont.getHierarchyId();
-                this.containerHierarchyRepository.findById(hierarchyId).ifPresent(hierarchy -> {
-                    hierarchy.setHierarchy(null);
-                    this.containerHierarchyRepository.save(hierarchy);
-                    cont.setHierarchyId(hierarchyId);
-                    this.containerRepository.save(cont);
-                });
-            }
-        });
-    }
-
-    /**
-     * Save the New Hierarchy in DataBase and Set the New Hierarchy ID in the
-     * Container
-     *
-     * @param idContainer
-     * @param jsonHierarchy
-     */
-    public void saveHierarchy(String idContainer, String jsonHierarchy) {
-        // Save Hierarchy
-        ContainerHierarchy hierarchy = new ContainerHierarchy(jsonHierarchy);
-        String hierarchyId = containerHierarchyRepository.save(hierarchy).getId();
-        Optional<Container> container = containerRepository.findById(idContainer);
-        if (container.isPresent()) {
-            Container containerToSave = container.get();
-            String currentHierarchyId = containerToSave.getHierarchyId();
-            containerHierarchyRepository.deleteById(currentHierarchyId);
-            containerToSave.setHierarchyId(hierarchyId);
-            containerRepository.save(containerToSave);
-        }
-    }
-
-    /**
-     * Exports hierarchy as a JSON object for a given Directory
-     *
-     * @param parentFolder
-     * @return
-     * @throws IOException
-     */
-    public static CustomFolder displayIt(CustomFolder parentFolder) throws IOException {
-        File node = new File(parentFolder.getName());
-        // List all folders but the .GIT folder
-        if (node.isDirectory()) {
-            String[] subNote = node.list();
-            for (String filename : subNote) {
-                // Eliminate .gitFolder
-                if (!filename.equals(".git")) {
-                    String path = node + File.separator + filename;
-                    if (new File(path).isDirectory()) {
-                        CustomFolder folder = new CustomFolder(path);
-                        parentFolder.addFolder(folder);
-                        displayIt(folder);
-                    } else {
-                        parentFolder.addFolder(new CustomFile(path));
-                    }
-                }
-            }
-        }
-        return parentFolder;
-    }
-
-    /**
-     * Save all files and sub directories of a given directory in GridFS and add
-     * file id to every file
-     *
-     * @param mylist
-     */
-    public void saveIt(CustomFolder mylist, String idContainer, GridFsTemplate gridFsTemp) {
-        mylist.getChildren().forEach(item -> {
-            if (item instanceof CustomFile customFile) {
-                File file = new File(customFile.getName());
-                try {
-                    InputStream inputStream = new FileInputStream(file);
-                    Document metaData = new Document();
-                    metaData.put("containerId", idContainer);
-                    String fileUri = file.getPath()
-                            .substring(file.getPath().indexOf(idContainer) + idContainer.length() + 1)
-                            .replaceAll("\\\\", "/");
-                    metaData.put("fileUri", fileUri);
-                    metaData.put("parentPath", mylist.getName()
-                            .substring(mylist.getName().indexOf(idContainer) + idContainer.length() + 1));
-                    customFile.setFileId(gridFsTemp.store(inputStream, file.getName(), metaData).toString());
-                    inputStream.close();
-                } catch (Exception e) {
-                    log.debug("{}", e);
-                }
-            } else if (item instanceof CustomFolder folder) {
-                saveIt(folder, idContainer, gridFsTemp);
-            }
-        });
-    }
-
-
-    public GridFSFile getResource(String containerId, String path) {
-
-        return this.containerRepository.findById(containerId).map(cont -> {
-            MongoClient mongoClient = this.cacheService.getMongoClient(cont.getDbsourceId());
-            GridFsTemplate gridFsTemplate = this.cacheService.getGridFs(mongoClient, cont.getDatabaseName());
-            return gridFsTemplate.findOne(Query
-                    .query((Criteria.where("metadata.fileUri").is(path).and("metadata.containerId").is(containerId))));
-        }).orElseThrow();
-    }
-
-    public GridFsTemplate getGridFsTemplate(String dbsourceId, String databaseName) {
-        Optional<DBSource> dbOp = this.dbSourceRepository.findById(dbsourceId);
-        MongoClient mClient;
-        if (dbOp.isPresent()) {
-            if (dbOp.get().getConnectionMode().equalsIgnoreCase("FREE")) {
-                mClient = this.cacheService.getAtlasMongoClient();
-                databaseName = dbOp.get().getPhysicalDatabase();
-            } else {
-                mClient = this.cacheService.getMongoClient(dbOp.get());
-            }
-            return this.cacheService.getGridFs(mClient, databaseName);
-        }
-        throw new IllegalArgumentException("Can't find the Datasource to retrieve the GridFsTemplate");
-    }
-
-    public GridFSFile getResourceFileWithId(String containerId, String fileId) {
-        Map<String, GridFSFile> map = new HashMap<>();
-        this.containerRepository.findById(containerId)
-                .ifPresent(container -> this.dbSourceRepository.findById(container.getDbsourceId()).ifPresent(db -> {
-                    String dbName;
-                    if (db.getConnectionMode().equalsIgnoreCase("FREE")) {
-                        dbName = db.getPhysicalDatabase();
-                    } else {
-                        dbName = container.getDatabaseName();
-                    }
-                    map.put("fs",
-                            this.cacheService
-                                    .getGridFs(this.cacheService.getMongoClient(container.getDbsourceId()), dbName)//
-                                    .findOne(Query.query((Criteria.where("_id").is(fileId)))));
-                }));
-        return map.get("fs");
-    }
-
-    public GridFsResource getGridFsResource(GridFSFile fsFile, String containerId) {
-        Map<String, GridFsResource> map = new HashMap<>();
-        this.containerRepository.findById(containerId).ifPresent(container ->
-                this.dbSourceRepository.findById(container.getDbsourceId()).ifPresent(db -> {
-                    String dbName;
-                    if (db.getConnectionMode().equalsIgnoreCase("FREE")) {
-                        dbName = db.getPhysicalDatabase();
-                    } else {
-                        dbName = container.getDatabaseName();
-                    }
-                    map.put("fs",
-                            this.cacheService.getGridFs(this.cacheService.getMongoClient(container.getDbsourceId()), dbName)
-                                    .getResource(fsFile));
-                })
-        );
-        return map.get("fs");
-    }
-
-}
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.fs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
+import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchy;
+import fr.codeonce.grizzly.core.domain.container.hierarchy.ContainerHierarchyRepository;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.domain.util.FileSystemUtil;
+import fr.codeonce.grizzly.core.service.analytics.StorageUsageService;
+import fr.codeonce.grizzly.core.service.datasource.ClientRegistry;
+import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
+import fr.codeonce.grizzly.core.service.fs.model.CustomFile;
+import fr.codeonce.grizzly.core.service.fs.model.CustomFolder;
+import org.apache.commons.io.FileUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StopWatch;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Handle Project import : GIT or Local ZIP File and Return hierarchy as JSON
+ *
+ * @author rayen
+ */
+@Service
+public class FilesHandler {
+
+    // TMP Directory for storing files
+    static final String TMPDIR = FileSystemUtil.getTempFolder();
+
+    private static final Logger log = LoggerFactory.getLogger(FilesHandler.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String CONTAINER_ID = "metadata.containerId";
+
+    @Autowired
+    private ContainerHierarchyRepository containerHierarchyRepository;
+
+    @Autowired
+    private ContainerRepository containerRepository;
+
+    @Autowired
+    private MongoCacheService cacheService;
+
+    @Autowired
+    private DBSourceRepository dbSourceRepository;
+
+    @Autowired
+    private StorageUsageService storageUsageService;
+
+    @Autowired
+    private GridFsUploadService uploadService;
+
+    @Autowired
+    private GridFsBlobService blobService;
+
+    /**
+     * Returns the hierarchy of a given directory
+     *
+     * @param fullDirectoryName
+     * @param idContainer
+     * @return hierarchy of the directory
+     * @throws IllegalAccessException
+     */
+    public String getJsonHierarchy(String fullDirectoryName, String idContainer, String dbsourceId,
+                                   String databaseName) {
+        String jsonHierarchy = "";
+        StopWatch stopWatch = new StopWatch();
+
+        // The old GridFs files under this container are deleted once the new ones are saved
+        List<ObjectId> oldFileIds = getGridfsFileIds(idContainer);
+
+        stopWatch.start("saving the hierarchy detailed");
+
+        // The client is kept open for the whole import
+        try (GridFsDatabase database = checkoutGridFsDatabase(dbsourceId, databaseName)) {
+            CustomFolder parentFolder = new CustomFolder(fullDirectoryName.replaceAll("\\s", ""));
+            CustomFolder mylist = displayIt(parentFolder);
+
+            replaceParentWithChild(mylist);
+
+            GridFsUploadService.Upload upload = uploadService.start(database.get(), idContainer);
+            saveIt(mylist, idContainer, upload);
+            jsonHierarchy = saveImportedHierarchy(mylist, idContainer, dbsourceId, upload.finish());
+            deleteGridfsFiles(idContainer, oldFileIds);
+
+            // Delete Folder from server after extracting the hierarchy
+            FileUtils.deleteDirectory(new File(TMPDIR + idContainer));
+            stopWatch.stop();
+            log.debug(stopWatch.prettyPrint());
+
+            return jsonHierarchy;
+        } catch (IOException e) {
+            log.debug("IOException : {}", e);
+        }
+        return jsonHierarchy;
+
+    }
+
+    /**
+     * Save the hierarchy of imported files, once all of them are stored in GridFS
+     *
+     * @param root        the imported folder, its files hold their GridFS id
+     * @param idContainer
+     * @param dbsourceId
+     * @param storedBytes size of the stored files, added to the storage usage of the datasource owner
+     * @return the hierarchy as JSON
+     */
+    public String saveImportedHierarchy(CustomFolder root, String idContainer, String dbsourceId, long storedBytes)
+            throws IOException {
+        String jsonHierarchy = mapper.writeValueAsString(root);
+        saveHierarchy(idContainer, jsonHierarchy);
+        this.dbSourceRepository.findById(dbsourceId)
+                .ifPresent(db -> storageUsageService.recordStored(db.getUserEmail(), storedBytes));
+        return jsonHierarchy;
+    }
+
+    /**
+     * GridFS metadata of an imported file
+     *
+     * @param idContainer
+     * @param filePath    full path of the file in the import folder
+     * @param parentPath  full path of its folder
+     * @return Document
+     */
+    public static Document importMetadata(String idContainer, String filePath, String parentPath) {
+        Document metaData = new Document();
+        metaData.put("containerId", idContainer);
+        metaData.put("fileUri", relativePath(filePath, idContainer).replaceAll("\\\\", "/"));
+        metaData.put("parentPath", relativePath(parentPath, idContainer));
+        return metaData;
+    }
+
+    private static String relativePath(String path, String idContainer) {
+        return path.substring(path.indexOf(idContainer) + idContainer.length() + 1);
+    }
+
+    /**
+     * Checks if the parent folder has on child as folder with the same Name If it
+     * exists, the parent folder will be skipped and the child takes it's place
+     *
+     * @param mylist
+     */
+    static CustomFolder replaceParentWithChild(CustomFolder mylist) {
+        if (mylist.getChildren().size() == 1 && (mylist.getChildren().get(0) instanceof CustomFolder)) {
+
+            CustomFolder firstFolder = (CustomFolder) mylist.getChildren().get(0);
+            String firstFolderName = firstFolder.getName()
+                    .substring(firstFolder.getName().lastIndexOf(File.separator) + 1);
+
+            if (firstFolderName.equals(mylist.getName().substring(mylist.getName().lastIndexOf(File.separator) + 1))) {
+                CustomFolder childFolder = (CustomFolder) mylist.getChildren().get(0);
+                mylist.setName(childFolder.getName());
+                mylist.setChildren(childFolder.getChildren());
+            }
+        }
+        return mylist;
+    }
+
+    /**
+     * Returns the ids of the GridFS files of a container, to delete them once an import replaced them
+     *
+     * @param containerId
+     * @return the ids, empty when the container has no datasource
+     */
+    public List<ObjectId> getGridfsFileIds(String containerId) {
+        List<ObjectId> fileIds = new ArrayList<>();
+        this.containerRepository.findById(containerId).filter(cont -> cont.getDbsourceId() != null)
+                .ifPresent(cont -> this.dbSourceRepository.findById(cont.getDbsourceId()).ifPresent(db ->
+                        fileIds.addAll(blobService.findIds(getGridFsDatabase(db, cont.getDatabaseName()),
+                                Filters.eq(CONTAINER_ID, containerId)))));
+        return fileIds;
+    }
+
+    /**
+     * Delete the given GridFS files of a container, the ones stored since are kept
+     *
+     * @param containerId
+     * @param fileIds     as returned by {@link #getGridfsFileIds} before an import
+     */
+    public void deleteGridfsFiles(String containerId, List<ObjectId> fileIds) {
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        this.containerRepository.findById(containerId).filter(cont -> cont.getDbsourceId() != null)
+                .ifPresent(cont -> deleteFiles(cont,
+                        Filters.and(Filters.in("_id", fileIds), Filters.eq(CONTAINER_ID, containerId))));
+    }
+
+    public void deleteGridfsFiles(String containerId) {
+        this.containerRepository.findById(containerId).ifPresent(cont -> {
+            if (cont.getDbsourceId() != null) {
+                deleteFiles(cont, Filters.eq(CONTAINER_ID, containerId));
+
+                String hierarchyId = cont.getHierarchyId();
+                this.containerHierarchyRepository.findById(hierarchyId).ifPresent(hierarchy -> {
+                    hierarchy.setHierarchy(null);
+                    this.containerHierarchyRepository.save(hierarchy);
+                    cont.setHierarchyId(hierarchyId);
+                    this.containerRepository.save(cont);
+                });
+            }
+        });
+    }
+
+    /**
+     * Delete files of a container, their blobs are deleted once no other file references them
+     */
+    private void deleteFiles(Container cont, Bson filter) {
+        this.dbSourceRepository.findById(cont.getDbsourceId()).ifPresent(db -> {
+            long freedBytes = blobService.delete(getGridFsDatabase(db, cont.getDatabaseName()), filter);
+            storageUsageService.recordDeleted(db.getUserEmail(), freedBytes);
+        });
+    }
+
+    /**
+     * Save the New Hierarchy in DataBase and Set the New Hierarchy ID in the
+     * Container
+     *
+     * @param idContainer
+     * @param jsonHierarchy
+     */
+    public void saveHierarchy(String idContainer, String jsonHierarchy) {
+        // Save Hierarchy
+        ContainerHierarchy hierarchy = new ContainerHierarchy(jsonHierarchy);
+        String hierarchyId = containerHierarchyRepository.save(hierarchy).getId();
+        Optional<Container> container = containerRepository.findById(idContainer);
+        if (container.isPresent()) {
+            Container containerToSave = container.get();
+            String currentHierarchyId = containerToSave.getHierarchyId();
+            containerHierarchyRepository.deleteById(currentHierarchyId);
+            containerToSave.setHierarchyId(hierarchyId);
+            containerRepository.save(containerToSave);
+        }
+    }
+
+    /**
+     * Exports hierarchy as a JSON object for a given Directory
+     *
+     * @param parentFolder
+     * @return
+     * @throws IOException
+     */
+    public static CustomFolder displayIt(CustomFolder parentFolder) throws IOException {
+        File node = new File(parentFolder.getName());
+        // List all folders but the .GIT folder
+        if (node.isDirectory()) {
+            String[] subNote = node.list();
+            for (String filename : subNote) {
+                // Eliminate .gitFolder
+                if (!filename.equals(".git")) {
+                    String path = node + File.separator + filename;
+                    if (new File(path).isDirectory()) {
+                        CustomFolder folder = new CustomFolder(path);
+                        parentFolder.addFolder(folder);
+                        displayIt(folder);
+                    } else {
+                        parentFolder.addFolder(new CustomFile(path));
+                    }
+                }
+            }
+        }
+        return parentFolder;
+    }
+
+    /**
+     * Submit all files and sub directories of a given directory to the upload, the file ids are set once they
+     * are stored
+     *
+     * @param mylist
+     */
+    private void saveIt(CustomFolder mylist, String idContainer, GridFsUploadService.Upload upload) {
+        mylist.getChildren().forEach(item -> {
+            if (item instanceof CustomFile customFile) {
+                File file = new File(customFile.getName());
+                upload.store(file.getName(), importMetadata(idContainer, file.getPath(), mylist.getName()), file,
+                        id -> customFile.setFileId(id.toString()));
+            } else if (item instanceof CustomFolder folder) {
+                saveIt(folder, idContainer, upload);
+            }
+        });
+    }
+
+
+    public GridFSFile getResource(String containerId, String path) {
+
+        return this.containerRepository.findById(containerId).map(cont -> blobService.findOne(
+                getGridFsDatabase(cont.getDbsourceId(), cont.getDatabaseName()),
+                Filters.and(Filters.eq("metadata.fileUri", path), Filters.eq(CONTAINER_ID, containerId))))
+                .orElseThrow();
+    }
+
+    public GridFsTemplate getGridFsTemplate(String dbsourceId, String databaseName) {
+        Optional<DBSource> dbOp = this.dbSourceRepository.findById(dbsourceId);
+        MongoClient mClient;
+        if (dbOp.isPresent()) {
+            if (dbOp.get().getConnectionMode().equalsIgnoreCase("FREE")) {
+                mClient = this.cacheService.getAtlasMongoClient();
+                databaseName = dbOp.get().getPhysicalDatabase();
+            } else {
+                mClient = this.cacheService.getMongoClient(dbOp.get());
+            }
+            return this.cacheService.getGridFs(mClient, databaseName);
+        }
+        throw new IllegalArgumentException("Can't find the Datasource to retrieve the GridFsTemplate");
+    }
+
+    /**
+     * Returns the database holding the GridFS files of a datasource. It is only valid as long as the cached client
+     * is, it is not to be kept : long running uses check it out with {@link #checkoutGridFsDatabase}.
+     */
+    public MongoDatabase getGridFsDatabase(String dbsourceId, String databaseName) {
+        return getGridFsDatabase(findDBSource(dbsourceId), databaseName);
+    }
+
+    /**
+     * Returns the database holding the GridFS files of a datasource, through the cached client of the datasource
+     *
+     * @param db           as read from the repository
+     * @param databaseName ignored for the FREE datasources, whose files are in their physical database
+     */
+    public MongoDatabase getGridFsDatabase(DBSource db, String databaseName) {
+        if (db.getConnectionMode().equalsIgnoreCase("FREE")) {
+            return this.cacheService.getAtlasMongoClient().getDatabase(db.getPhysicalDatabase());
+        }
+        return this.cacheService.getMongoClient(db).getDatabase(databaseName);
+    }
+
+    /**
+     * Check out the database holding the GridFS files of a datasource for a long running use (an import, an
+     * export, a clone) : its client is not closed before the returned lease is, even if evicted meanwhile
+     *
+     * @param dbsourceId
+     * @param databaseName
+     * @return the lease, to be closed by the caller
+     */
+    public GridFsDatabase checkoutGridFsDatabase(String dbsourceId, String databaseName) {
+        DBSource db = findDBSource(dbsourceId);
+        if (db.getConnectionMode().equalsIgnoreCase("FREE")) {
+            // The Atlas client is shared and never closed
+            return new GridFsDatabase(this.cacheService.getAtlasMongoClient().getDatabase(db.getPhysicalDatabase()),
+                    null);
+        }
+        ClientRegistry.Lease<MongoClient> lease = this.cacheService.checkoutMongoClient(db);
+        if (lease == null) {
+            throw new IllegalArgumentException("Can't connect to the Datasource " + dbsourceId);
+        }
+        return new GridFsDatabase(lease.get().getDatabase(databaseName), lease);
+    }
+
+    private DBSource findDBSource(String dbsourceId) {
+        return this.dbSourceRepository.findById(dbsourceId).orElseThrow(
+                () -> new IllegalArgumentException("Can't find the Datasource to retrieve the GridFsTemplate"));
+    }
+
+    /**
+     * Parse a saved hierarchy, some of them were saved as an encoded JSON string
+     *
+     * @param hierarchy
+     * @return the root folder, null for an empty hierarchy
+     * @throws IOException
+     */
+    public static JsonNode readHierarchy(String hierarchy) throws IOException {
+        if (hierarchy == null || hierarchy.equals("none") || hierarchy.equals("")) {
+            return null;
+        }
+        JsonNode root = mapper.readTree(hierarchy);
+        return root.isTextual() ? mapper.readTree(root.asText()) : root;
+    }
+
+    /**
+     * Returns the file nodes of a hierarchy, in hierarchy order
+     *
+     * @param root
+     * @return the nodes holding a valid fileId
+     */
+    public static List<ObjectNode> collectFiles(JsonNode root) {
+        List<ObjectNode> files = new ArrayList<>();
+        if (root == null) {
+            return files;
+        }
+        // Iterative, hierarchies may be deep
+        Deque<JsonNode> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            JsonNode node = nodes.pop();
+            if ("file".equals(node.path("type").asText())) {
+                if (node.isObject() && ObjectId.isValid(node.path("fileId").asText())) {
+                    files.add((ObjectNode) node);
+                }
+            } else {
+                JsonNode children = node.path("children");
+                // Pushed in reverse to keep the hierarchy order
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    nodes.push(children.get(i));
+                }
+            }
+        }
+        return files;
+    }
+
+    public GridFSFile getResourceFileWithId(String containerId, String fileId) {
+        if (!ObjectId.isValid(fileId)) {
+            return null;
+        }
+        Map<String, GridFSFile> map = new HashMap<>();
+        this.containerRepository.findById(containerId)
+                .ifPresent(container -> this.dbSourceRepository.findById(container.getDbsourceId()).ifPresent(db -> {
+                    GridFSFile file = blobService.findOne(getGridFsDatabase(db, container.getDatabaseName()),
+                            Filters.eq("_id", new ObjectId(fileId)));
+                    if (file != null) {
+                        map.put("fs", file);
+                    }
+                }));
+        return map.get("fs");
+    }
+
+    /**
+     * A database of the GridFS files whose client is checked out, released by {@link #close()}
+     */
+    public static final class GridFsDatabase implements AutoCloseable {
+
+        private final MongoDatabase database;
+
+        // Null for the shared Atlas client
+        private final ClientRegistry.Lease<MongoClient> lease;
+
+        private GridFsDatabase(MongoDatabase database, ClientRegistry.Lease<MongoClient> lease) {
+            this.database = database;
+            this.lease = lease;
+        }
+
+        public MongoDatabase get() {
+            return database;
+        }
+
+        @Override
+        public void close() {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+
+    }
+
+    public GridFsResource getGridFsResource(GridFSFile fsFile, String containerId) {
+        Map<String, GridFsResource> map = new HashMap<>();
+        this.containerRepository.findById(containerId).ifPresent(container ->
+                this.dbSourceRepository.findById(container.getDbsourceId()).ifPresent(db -> {
+                    // The content is read from the blob of the file
+                    MongoDatabase database = getGridFsDatabase(db, container.getDatabaseName());
+                    map.put("fs", new GridFsResource(fsFile, blobService.open(database, fsFile)));
+                })
+        );
+        return map.get("fs");
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.fs;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed store of the container files. The contents are blobs of the "blobs" GridFS bucket, identified
+ * by their SHA-256 and shared by every file with the same content. The files of a container are its manifest :
+ * entries of the "blobs.manifest" collection, shaped like GridFS files, holding the usual metadata (containerId,
+ * fileUri...) and the id of their blob. Each blob counts the entries referencing it and is deleted with the last
+ * one, so that clones and unchanged re-imports only write metadata.
+ * <p>
+ * The default bucket only holds the files stored before the blobs, with their own chunks, so that it stays valid
+ * for the plain GridFS readers (mongofiles, backups...). Files are looked up in the manifest, then in the default
+ * bucket, and the ones of the default bucket are read and deleted as before.
+ */
+@Service
+public class GridFsBlobService {
+
+    private static final Logger log = LoggerFactory.getLogger(GridFsBlobService.class);
+
+    public static final String BLOBS = "blobs";
+
+    // Metadata of a file holding the id of its blob
+    public static final String BLOB = "blob";
+
+    public static final String MANIFEST = "blobs.manifest";
+
+    private static final String FILES = "fs.files";
+
+    private static final String CONTAINER_ID = "metadata.containerId";
+
+    private static final String FILE_URI = "metadata.fileUri";
+
+    private static final String SHA256 = "metadata.sha256";
+
+    private static final String REFS = "metadata.refs";
+
+    // The default of the GridFS buckets
+    public static final int DEFAULT_CHUNK_SIZE = 255 * 1024;
+
+    /**
+     * Store a file whose content is in memory : an existing blob with the same content is referenced instead of
+     * being written again
+     *
+     * @param database  the database of the container files
+     * @param filename
+     * @param metadata  of the file, ie. its containerId and fileUri
+     * @param content
+     * @param chunkSize of the blob when it is written
+     * @return the stored file
+     */
+    public StoredFile store(MongoDatabase database, String filename, Document metadata, byte[] content,
+                            int chunkSize) {
+        String sha256 = DigestUtils.sha256Hex(content);
+        Document blob = acquire(database, sha256, null);
+        long storedBytes = 0;
+        if (blob == null) {
+            ObjectId blobId = getBucket(database).uploadFromStream(sha256, new ByteArrayInputStream(content),
+                    new GridFSUploadOptions().chunkSizeBytes(chunkSize)
+                            .metadata(new Document("sha256", sha256).append("refs", 1)));
+            blob = new Document("_id", blobId);
+            storedBytes = content.length;
+        }
+        return new StoredFile(addFile(database, filename, metadata, blob.getObjectId("_id"), sha256,
+                content.length, chunkSize), storedBytes);
+    }
+
+    /**
+     * Store a file streamed from the caller, too large to be kept in memory. The blob is written while its hash
+     * is computed and merged afterwards into an older blob with the same content, if any.
+     *
+     * @param database
+     * @param filename
+     * @param metadata
+     * @param in        read up to its end but not closed
+     * @param chunkSize
+     * @return the stored file
+     */
+    public StoredFile store(MongoDatabase database, String filename, Document metadata, InputStream in,
+                            int chunkSize) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        GridFSBucket bucket = getBucket(database);
+        ObjectId blobId = bucket.uploadFromStream(filename, new DigestInputStream(in, digest),
+                new GridFSUploadOptions().chunkSizeBytes(chunkSize).metadata(new Document("refs", 1)));
+        String sha256 = Hex.encodeHexString(digest.digest());
+        MongoCollection<Document> blobs = getBlobs(database);
+        Document written = blobs.findOneAndUpdate(Filters.eq("_id", blobId),
+                Updates.combine(Updates.set(SHA256, sha256), Updates.set("filename", sha256)),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        long length = written.get("length", Number.class).longValue();
+        long storedBytes = length;
+        // Only merged into an older blob, so that two concurrent writes of a content never merge into each other
+        Document older = acquire(database, sha256, blobId);
+        if (older != null) {
+            blobId = older.getObjectId("_id");
+            storedBytes -= release(database, written.getObjectId("_id"), 1);
+        }
+        return new StoredFile(addFile(database, filename, metadata, blobId, sha256, length, chunkSize),
+                storedBytes);
+    }
+
+    /**
+     * Returns the files matching a filter, those of the manifest first
+     *
+     * @param database
+     * @param filter   on the GridFS files fields (_id, metadata.containerId...)
+     * @return the files
+     */
+    public List<GridFSFile> find(MongoDatabase database, Bson filter) {
+        List<GridFSFile> files = getManifest(database).find(filter).into(new ArrayList<>());
+        GridFSBuckets.create(database).find(filter).into(files);
+        return files;
+    }
+
+    /**
+     * @return the first file matching a filter, null if there is none
+     */
+    public GridFSFile findOne(MongoDatabase database, Bson filter) {
+        GridFSFile file = getManifest(database).find(filter).first();
+        return file != null ? file : GridFSBuckets.create(database).find(filter).first();
+    }
+
+    /**
+     * @return the ids of the files matching a filter
+     */
+    public List<ObjectId> findIds(MongoDatabase database, Bson filter) {
+        List<ObjectId> ids = new ArrayList<>();
+        for (String collection : new String[]{MANIFEST, FILES}) {
+            database.getCollection(collection).find(filter).projection(Projections.include("_id"))
+                    .forEach(file -> ids.add(file.getObjectId("_id")));
+        }
+        return ids;
+    }
+
+    /**
+     * Reference the blobs of files in new files, ie. to clone a container, without writing any content
+     *
+     * @param database
+     * @param files       entries of the manifest or of the default bucket, the ones without a blob are skipped
+     * @param containerId the container of the copies
+     * @return the ids of the copies by id of their source
+     */
+    public Map<ObjectId, ObjectId> copy(MongoDatabase database, List<Document> files, String containerId) {
+        Map<ObjectId, List<Document>> filesByBlob = new LinkedHashMap<>();
+        for (Document file : files) {
+            ObjectId blobId = file.get("metadata", new Document()).getObjectId(BLOB);
+            if (blobId != null) {
+                filesByBlob.computeIfAbsent(blobId, id -> new ArrayList<>()).add(file);
+            }
+        }
+        Map<ObjectId, ObjectId> copies = new LinkedHashMap<>();
+        Map<ObjectId, Integer> acquired = new HashMap<>();
+        List<Document> entries = new ArrayList<>();
+        try {
+            for (Map.Entry<ObjectId, List<Document>> blob : filesByBlob.entrySet()) {
+                int count = blob.getValue().size();
+                // Referenced by the sources, unless they were deleted meanwhile
+                if (getBlobs(database).updateOne(Filters.and(Filters.eq("_id", blob.getKey()), Filters.gt(REFS, 0)),
+                        Updates.inc(REFS, count)).getModifiedCount() == 0) {
+                    continue;
+                }
+                acquired.put(blob.getKey(), count);
+                for (Document file : blob.getValue()) {
+                    ObjectId copyId = new ObjectId();
+                    Document metadata = new Document(file.get("metadata", Document.class));
+                    metadata.put("containerId", containerId);
+                    entries.add(new Document(file).append("_id", copyId).append("metadata", metadata));
+                    copies.put(file.getObjectId("_id"), copyId);
+                }
+            }
+            if (!entries.isEmpty()) {
+                database.getCollection(MANIFEST).insertMany(entries);
+            }
+        } catch (RuntimeException e) {
+            // No copy is left referencing the blobs
+            database.getCollection(MANIFEST).deleteMany(Filters.in("_id", copies.values()));
+            acquired.forEach((blobId, count) -> release(database, blobId, count));
+            throw e;
+        }
+        return copies;
+    }
+
+    /**
+     * Open the content of a file, from its blob or from its own chunks for the files stored before the blobs
+     */
+    public InputStream open(MongoDatabase database, GridFSFile file) {
+        ObjectId blobId = getBlobId(file);
+        return blobId != null ? getBucket(database).openDownloadStream(blobId)
+                : GridFSBuckets.create(database).openDownloadStream(file.getId());
+    }
+
+    public byte[] read(MongoDatabase database, GridFSFile file) {
+        try (InputStream in = open(database, file)) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Delete files and the blobs no other file references
+     *
+     * @param database
+     * @param filter   on the GridFS files fields
+     * @return the number of bytes freed
+     */
+    public long delete(MongoDatabase database, Bson filter) {
+        long freedBytes = 0;
+        MongoCollection<GridFSFile> manifest = getManifest(database);
+        for (GridFSFile file : manifest.find(filter)) {
+            if (manifest.deleteOne(Filters.eq("_id", file.getId())).getDeletedCount() > 0) {
+                freedBytes += release(database, getBlobId(file), 1);
+            }
+        }
+        GridFSBucket files = GridFSBuckets.create(database);
+        for (GridFSFile file : files.find(filter)) {
+            // The chunks of a file stored before the blobs are deleted with it
+            files.delete(file.getId());
+            ObjectId blobId = getBlobId(file);
+            freedBytes += blobId != null ? release(database, blobId, 1) : file.getLength();
+        }
+        return freedBytes;
+    }
+
+    /**
+     * @return the id of the blob of a file, null for a file holding its own chunks
+     */
+    public static ObjectId getBlobId(GridFSFile file) {
+        return file.getMetadata() != null ? file.getMetadata().getObjectId(BLOB) : null;
+    }
+
+    /**
+     * Reference a blob with the given content
+     *
+     * @param before only a blob older than this one, null for any
+     * @return the blob, null if there is none
+     */
+    private Document acquire(MongoDatabase database, String sha256, ObjectId before) {
+        // A blob whose count reached 0 is being deleted, it is not referenced again
+        Bson filter = Filters.and(Filters.eq(SHA256, sha256), Filters.gt(REFS, 0));
+        if (before != null) {
+            filter = Filters.and(filter, Filters.lt("_id", before));
+        }
+        return getBlobs(database).findOneAndUpdate(filter, Updates.inc(REFS, 1),
+                new FindOneAndUpdateOptions().sort(Sorts.ascending("_id")));
+    }
+
+    /**
+     * Drop references to a blob, the blob is deleted with its last reference
+     *
+     * @return the number of bytes freed
+     */
+    private long release(MongoDatabase database, ObjectId blobId, int count) {
+        Document blob = getBlobs(database).findOneAndUpdate(Filters.eq("_id", blobId), Updates.inc(REFS, -count),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (blob == null || blob.get("metadata", Document.class).get("refs", Number.class).longValue() > 0) {
+            return 0;
+        }
+        try {
+            getBucket(database).delete(blobId);
+        } catch (MongoException e) {
+            // Left without references, it is no longer read
+            log.warn("Could not delete the blob {} of {}", blobId, database.getName(), e);
+            return 0;
+        }
+        return blob.get("length", Number.class).longValue();
+    }
+
+    private ObjectId addFile(MongoDatabase database, String filename, Document metadata, ObjectId blobId,
+                             String sha256, long length, int chunkSize) {
+        ObjectId id = new ObjectId();
+        Document fileMetadata = new Document(metadata != null ? metadata : new Document()).append(BLOB, blobId)
+                .append("sha256", sha256);
+        try {
+            database.getCollection(MANIFEST).insertOne(new Document("_id", id).append("length", length)
+                    .append("chunkSize", chunkSize).append("uploadDate", new Date()).append("filename", filename)
+                    .append("metadata", fileMetadata));
+        } catch (RuntimeException e) {
+            release(database, blobId, 1);
+            throw e;
+        }
+        return id;
+    }
+
+    /**
+     * Create the indexes looking the blobs up by content and the files by uri, to be called before storing files
+     * in a database
+     */
+    public void ensureIndex(MongoDatabase database) {
+        try {
+            getBlobs(database).createIndex(Indexes.ascending(SHA256), new IndexOptions().name("idx_blob_sha256"));
+            database.getCollection(MANIFEST).createIndex(Indexes.ascending(CONTAINER_ID, FILE_URI),
+                    new IndexOptions().name("idx_container_file_uri"));
+        } catch (MongoException e) {
+            // ie. a read only user, the store fails afterwards anyway
+            log.debug("Could not create the blobs index of {}", database.getName(), e);
+        }
+    }
+
+    private static GridFSBucket getBucket(MongoDatabase database) {
+        return GridFSBuckets.create(database, BLOBS);
+    }
+
+    private static MongoCollection<Document> getBlobs(MongoDatabase database) {
+        return database.getCollection(BLOBS + ".files");
+    }
+
+    private static MongoCollection<GridFSFile> getManifest(MongoDatabase database) {
+        // Decoded as the GridFS buckets do, whatever the registry of the client
+        return database.getCollection(MANIFEST, GridFSFile.class).withCodecRegistry(CodecRegistries
+                .fromRegistries(database.getCodecRegistry(), MongoClientSettings.getDefaultCodecRegistry()));
+    }
+
+    /**
+     * A file of a container and the number of bytes its store actually wrote
+     */
+    public static class StoredFile {
+
+        private final ObjectId id;
+
+        private final long storedBytes;
+
+        StoredFile(ObjectId id, long storedBytes) {
+            this.id = id;
+            this.storedBytes = storedBytes;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        /**
+         * @return 0 when an existing blob was referenced
+         */
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+    }
+
+}
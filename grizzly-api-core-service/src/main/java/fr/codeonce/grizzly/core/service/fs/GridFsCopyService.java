@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.fs;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies GridFS files to another container inside the database. The files stored as blobs only get new manifest
+ * entries referencing the same blobs, the chunks of the files stored before the blobs are duplicated by an aggregation
+ * merged into the chunks collection, so that the file contents never go through the application.
+ */
+@Service
+public class GridFsCopyService {
+
+    private static final Logger log = LoggerFactory.getLogger(GridFsCopyService.class);
+
+    @Autowired
+    private GridFsBlobService blobService;
+
+    private static final String FILES = "fs.files";
+
+    private static final String CHUNKS = "fs.chunks";
+
+    private static final String FILES_ID = "files_id";
+
+    // Bounds the size of the id arrays sent with each aggregation
+    private static final int BATCH_SIZE = 500;
+
+    // Chunks of 255 KB, about 4 MB per insert
+    private static final int CHUNK_BATCH_SIZE = 16;
+
+    /**
+     * Copy GridFS files, their copy holds the given container id in its metadata
+     *
+     * @param database    the database of the default GridFS bucket
+     * @param fileIds
+     * @param containerId the container of the copies
+     * @return the copies, mapped by the id of their source. Missing source files are skipped.
+     */
+    public CopiedFiles copy(MongoDatabase database, List<ObjectId> fileIds, String containerId) {
+        MongoCollection<Document> manifest = database.getCollection(GridFsBlobService.MANIFEST);
+        MongoCollection<Document> files = database.getCollection(FILES);
+        MongoCollection<Document> chunks = database.getCollection(CHUNKS);
+        Map<ObjectId, ObjectId> copies = new LinkedHashMap<>();
+        List<ObjectId> blobCopyIds = new ArrayList<>();
+        long bytes = 0;
+        try {
+            for (int from = 0; from < fileIds.size(); from += BATCH_SIZE) {
+                List<ObjectId> batch = fileIds.subList(from, Math.min(fileIds.size(), from + BATCH_SIZE));
+                List<ObjectId> sourceIds = new ArrayList<>();
+                List<ObjectId> copyIds = new ArrayList<>();
+                List<Document> copiedFiles = new ArrayList<>();
+                List<Document> blobFiles = manifest.find(Filters.in("_id", batch)).into(new ArrayList<>());
+                for (Document file : files.find(Filters.in("_id", batch))) {
+                    if (copies.containsKey(file.getObjectId("_id"))) {
+                        continue;
+                    }
+                    // Entries of the default bucket referencing a blob, written before the manifest
+                    if (file.get("metadata", new Document()).getObjectId(GridFsBlobService.BLOB) != null) {
+                        blobFiles.add(file);
+                        continue;
+                    }
+                    ObjectId copyId = new ObjectId();
+                    sourceIds.add(file.getObjectId("_id"));
+                    copyIds.add(copyId);
+                    copies.put(file.getObjectId("_id"), copyId);
+                    Document metadata = new Document(file.get("metadata", new Document()));
+                    metadata.put("containerId", containerId);
+                    copiedFiles.add(new Document(file).append("_id", copyId).append("metadata", metadata));
+                    bytes += file.get("length", Number.class).longValue();
+                }
+                Map<ObjectId, ObjectId> blobCopies = blobService.copy(database, blobFiles, containerId);
+                copies.putAll(blobCopies);
+                blobCopyIds.addAll(blobCopies.values());
+                if (copiedFiles.isEmpty()) {
+                    continue;
+                }
+                copyChunks(chunks, sourceIds, copyIds);
+                // Inserted once their chunks exist, readers never see an incomplete file
+                files.insertMany(copiedFiles);
+            }
+        } catch (RuntimeException e) {
+            blobService.delete(database, Filters.in("_id", blobCopyIds));
+            List<ObjectId> copyIds = new ArrayList<>(copies.values());
+            copyIds.removeAll(blobCopyIds);
+            chunks.deleteMany(Filters.in(FILES_ID, copyIds));
+            files.deleteMany(Filters.in("_id", copyIds));
+            throw e;
+        }
+        return new CopiedFiles(copies, bytes);
+    }
+
+    private void copyChunks(MongoCollection<Document> chunks, List<ObjectId> sourceIds, List<ObjectId> copyIds) {
+        // The copy id is looked up by the position of the source id, _id is generated by $merge
+        Document copyId = new Document("$arrayElemAt",
+                Arrays.asList(copyIds, new Document("$indexOfArray", Arrays.asList(sourceIds, "$" + FILES_ID))));
+        List<Document> pipeline = Arrays.asList(//
+                new Document("$match", new Document(FILES_ID, new Document("$in", sourceIds))),
+                new Document("$project", new Document("_id", 0).append(FILES_ID, copyId).append("n", 1)
+                        .append("data", 1)),
+                new Document("$merge", new Document("into", CHUNKS).append("whenMatched", "fail")
+                        .append("whenNotMatched", "insert")));
+        try {
+            chunks.aggregate(pipeline).allowDiskUse(true).toCollection();
+        } catch (MongoCommandException e) {
+            // $merge into the aggregated collection needs MongoDB 4.4
+            log.debug("Server side copy of the chunks unavailable, copying them in batches", e);
+            copyChunksInBatches(chunks, sourceIds, copyIds);
+        }
+    }
+
+    private void copyChunksInBatches(MongoCollection<Document> chunks, List<ObjectId> sourceIds,
+                                     List<ObjectId> copyIds) {
+        chunks.deleteMany(Filters.in(FILES_ID, copyIds));
+        List<Document> batch = new ArrayList<>();
+        for (Document chunk : chunks.find(Filters.in(FILES_ID, sourceIds)).batchSize(CHUNK_BATCH_SIZE)) {
+            chunk.remove("_id");
+            chunk.put(FILES_ID, copyIds.get(sourceIds.indexOf(chunk.getObjectId(FILES_ID))));
+            batch.add(chunk);
+            if (batch.size() == CHUNK_BATCH_SIZE) {
+                chunks.insertMany(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            chunks.insertMany(batch);
+        }
+    }
+
+    public static class CopiedFiles {
+
+        private final Map<ObjectId, ObjectId> copies;
+
+        private final long bytes;
+
+        CopiedFiles(Map<ObjectId, ObjectId> copies, long bytes) {
+            this.copies = copies;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the copy ids by source id
+         */
+        public Map<ObjectId, ObjectId> getCopies() {
+            return copies;
+        }
+
+        /**
+         * @return the size of the copied chunks, the copies sharing a blob do not store anything
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+    }
+
+}
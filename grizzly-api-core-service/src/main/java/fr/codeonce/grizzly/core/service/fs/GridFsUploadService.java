@@ -0,0 +1,318 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.fs;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService.StoredFile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Stores the files of a zip or git import in GridFS on a shared bounded pool. Each import is an {@link Upload}
+ * with a bounded number of files in flight, so that reading the next entries waits for the slowest writes
+ * instead of buffering the whole import. The contents go to the {@link GridFsBlobService}, an unchanged file is
+ * only referenced again.
+ */
+@Service
+public class GridFsUploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(GridFsUploadService.class);
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired
+    private GridFsBlobService blobService;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    private Timer uploadTimer;
+
+    private Counter uploadedBytes;
+
+    @PostConstruct
+    public void initExecutor() {
+        AppProperties.FileImport spec = getSpec();
+        AtomicInteger count = new AtomicInteger();
+        // Unbounded queue, the number of files in flight is bounded per upload
+        this.executor = new ThreadPoolExecutor(spec.getUploadThreads(), spec.getUploadThreads(), 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "GridFsUpload-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        if (meterRegistry != null) {
+            uploadTimer = Timer.builder("files.import.upload")//
+                    .description("Store of an imported file in GridFS").register(meterRegistry);
+            uploadedBytes = Counter.builder("files.import.bytes")//
+                    .description("Bytes of the imported files stored in GridFS").baseUnit("bytes")
+                    .register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start storing the files of an import
+     *
+     * @param database the database of the container files, checked out by the caller until the import is
+     *                 finished or aborted (see {@link FilesHandler#checkoutGridFsDatabase})
+     * @param label    names the import in the logs
+     * @return Upload
+     */
+    public Upload start(MongoDatabase database, String label) {
+        blobService.ensureIndex(database);
+        return new Upload(database, label, getSpec());
+    }
+
+    private AppProperties.FileImport getSpec() {
+        return appProperties.getFileImport() != null ? appProperties.getFileImport()
+                : new AppProperties.FileImport();
+    }
+
+    /**
+     * The files of a single import. Not thread safe : the files are submitted by the thread reading the import.
+     */
+    public class Upload {
+
+        private final MongoDatabase database;
+
+        private final String label;
+
+        private final AppProperties.FileImport spec;
+
+        private final Semaphore inFlight;
+
+        private final List<Future<?>> pending = new ArrayList<>();
+
+        // Stored so far, deleted when the import is aborted
+        private final Queue<ObjectId> storedIds = new ConcurrentLinkedQueue<>();
+
+        // Written to the blobs, the unchanged contents are not counted
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicInteger unchanged = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final long start = System.currentTimeMillis();
+
+        private int files;
+
+        private Upload(MongoDatabase database, String label, AppProperties.FileImport spec) {
+            this.database = database;
+            this.label = label;
+            this.spec = spec;
+            this.inFlight = new Semaphore(spec.getMaxUploadsInFlight());
+        }
+
+        /**
+         * Store a file read from a stream owned by the caller, such as the current entry of a zip. Small files
+         * are buffered and stored in the background, larger ones are streamed in the caller thread.
+         *
+         * @param filename
+         * @param metadata
+         * @param in       read up to its end but not closed
+         * @param onStored receives the id of the stored file
+         */
+        public void store(String filename, Document metadata, InputStream in, Consumer<ObjectId> onStored)
+                throws IOException {
+            int limit = spec.getMaxBufferedEntrySize();
+            byte[] head = in.readNBytes(limit + 1);
+            if (head.length <= limit) {
+                submit(filename, metadata, () -> new ByteArrayInputStream(head), onStored);
+                return;
+            }
+            // Too large to be buffered, the rest of the entry is read while it is stored
+            InputStream stream = new SequenceInputStream(new ByteArrayInputStream(head), new FilterInputStream(in) {
+                @Override
+                public void close() {
+                    // The entries that follow are still to be read
+                }
+            });
+            files++;
+            try {
+                onStored.accept(writeStream(filename, metadata, stream));
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                log.warn("Import {} : could not store {}", label, filename, e);
+            }
+        }
+
+        /**
+         * Store a file of the local file system in the background
+         */
+        public void store(String filename, Document metadata, File file, Consumer<ObjectId> onStored) {
+            submit(filename, metadata, () -> new BufferedInputStream(new FileInputStream(file)), onStored);
+        }
+
+        private void submit(String filename, Document metadata, StreamSupplier source, Consumer<ObjectId> onStored) {
+            // Back-pressure : the import waits while too many files are being stored
+            inFlight.acquireUninterruptibly();
+            try {
+                pending.add(executor.submit(() -> {
+                    try (InputStream stream = source.open()) {
+                        onStored.accept(write(filename, metadata, stream));
+                    } catch (IOException | RuntimeException e) {
+                        // As before, a file which cannot be stored is left without id
+                        failures.incrementAndGet();
+                        log.warn("Import {} : could not store {}", label, filename, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+            files++;
+            if (files % spec.getProgressInterval() == 0) {
+                log.info("Import {} : {} files read, {} bytes stored", label, files, bytes.get());
+            }
+            // Release the completed futures, an import may have many files
+            pending.removeIf(Future::isDone);
+        }
+
+        private ObjectId write(String filename, Document metadata, InputStream stream) throws IOException {
+            long startNanos = System.nanoTime();
+            int limit = spec.getMaxBufferedEntrySize();
+            byte[] head = stream.readNBytes(limit + 1);
+            if (head.length > limit) {
+                return writeStream(filename, metadata, new SequenceInputStream(new ByteArrayInputStream(head), stream));
+            }
+            // Hashed first, an unchanged content is referenced again without being written
+            return record(blobService.store(database, filename, metadata, head, spec.getChunkSize()), startNanos);
+        }
+
+        /**
+         * Too large to be hashed before, the blob is written and then merged with an identical one
+         */
+        private ObjectId writeStream(String filename, Document metadata, InputStream stream) {
+            long startNanos = System.nanoTime();
+            return record(blobService.store(database, filename, metadata, stream, spec.getChunkSize()), startNanos);
+        }
+
+        private ObjectId record(StoredFile stored, long startNanos) {
+            storedIds.add(stored.getId());
+            bytes.addAndGet(stored.getStoredBytes());
+            if (stored.getStoredBytes() == 0) {
+                unchanged.incrementAndGet();
+            }
+            if (uploadTimer != null) {
+                uploadTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                uploadedBytes.increment(stored.getStoredBytes());
+            }
+            return stored.getId();
+        }
+
+        /**
+         * Wait for the files still being stored
+         *
+         * @return the number of bytes written, the contents already stored are not counted
+         */
+        public long finish() {
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abort();
+                    throw new IllegalStateException("Import interrupted", e);
+                } catch (ExecutionException e) {
+                    // The failures are counted by the task itself
+                    log.debug("Import {} : store failed", label, e.getCause());
+                }
+            }
+            pending.clear();
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            log.info("Import {} : {} files ({} unchanged), {} bytes in {} ms ({} KB/s), {} failed", label, files,
+                    unchanged.get(), bytes.get(), elapsed, bytes.get() * 1000 / 1024 / elapsed, failures.get());
+            return bytes.get();
+        }
+
+        /**
+         * Cancel the pending files and delete the ones already stored
+         */
+        public void abort() {
+            // The queued files are dropped, the ones being stored are awaited to be deleted as well
+            pending.forEach(future -> future.cancel(false));
+            for (Future<?> future : pending) {
+                if (!future.isCancelled()) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        log.debug("Import {} : store failed", label, e.getCause());
+                    }
+                }
+            }
+            pending.clear();
+            List<ObjectId> ids = new ArrayList<>(storedIds);
+            storedIds.clear();
+            if (!ids.isEmpty()) {
+                try {
+                    blobService.delete(database, Filters.in("_id", ids));
+                } catch (RuntimeException e) {
+                    log.warn("Import {} : could not delete the {} stored files", label, ids.size(), e);
+                }
+            }
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface StreamSupplier {
+
+        InputStream open() throws IOException;
+
+    }
+
+}
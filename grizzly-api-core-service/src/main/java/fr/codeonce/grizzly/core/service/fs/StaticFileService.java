@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.fs;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the GridFS files of the containers to the runtime. The datasource of each container is resolved once,
+ * its client on each request, files are looked up through an index on their container and uri, and the content
+ * of the small ones is kept in a bounded in-memory cache. GridFS files are never modified, their content is
+ * cached by blob id, shared by the containers holding the same file, or by file id for the files stored before
+ * the blobs. The resolved datasources are evicted with the RuntimeResources, on every node, and expire after
+ * a while for the changes that were not published.
+ */
+@Service
+public class StaticFileService implements RuntimeResourceCacheService.EvictionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(StaticFileService.class);
+
+    private static final String CACHE_NAME = "staticFiles";
+
+    private static final String CONTAINER_ID = "metadata.containerId";
+
+    private static final String FILE_URI = "metadata.fileUri";
+
+    @Autowired
+    private ContainerRepository containerRepository;
+
+    @Autowired
+    private DBSourceRepository dbSourceRepository;
+
+    @Autowired
+    private FilesHandler filesHandler;
+
+    @Autowired
+    private GridFsBlobService blobService;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, Location> locations;
+
+    private Cache<String, byte[]> contents;
+
+    // Databases whose files collection already has the lookup index
+    private final Set<String> indexedDatabases = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void initCaches() {
+        AppProperties.StaticFiles spec = getSpec();
+        this.locations = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumLocations())/**/
+                .expireAfterWrite(spec.getLocationsExpireAfterWrite(), TimeUnit.MINUTES)/**/
+                .build();
+        this.contents = Caffeine.newBuilder()/**/
+                .maximumWeight(spec.getMaximumWeight())/**/
+                .<String, byte[]>weigher((fileId, content) -> content.length)/**/
+                .expireAfterAccess(spec.getExpireAfterAccess(), TimeUnit.MINUTES)/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            // Exposes cache.gets{result=hit|miss}, cache.evictions... under /actuator/metrics
+            CaffeineCacheMetrics.monitor(meterRegistry, contents, CACHE_NAME);
+        }
+    }
+
+    /**
+     * Returns a file of a container by its uri
+     *
+     * @param containerId
+     * @param fileUri     the path of the file in the imported folder
+     * @return the file, null if the container or the file does not exist
+     */
+    public StaticFile getFile(String containerId, String fileUri) {
+        Location location = getLocation(containerId);
+        if (location == null) {
+            return null;
+        }
+        MongoDatabase database = getDatabase(location);
+        GridFSFile file = blobService.findOne(database,
+                Filters.and(Filters.eq(CONTAINER_ID, containerId), Filters.eq(FILE_URI, fileUri)));
+        return file != null ? new StaticFile(file, database) : null;
+    }
+
+    /**
+     * Returns a file of a container by its GridFS id
+     *
+     * @param containerId
+     * @param fileId
+     * @return the file, null if the container or the file does not exist
+     */
+    public StaticFile getFileWithId(String containerId, String fileId) {
+        Location location = getLocation(containerId);
+        if (location == null || !ObjectId.isValid(fileId)) {
+            return null;
+        }
+        MongoDatabase database = getDatabase(location);
+        GridFSFile file = blobService.findOne(database, Filters.eq("_id", new ObjectId(fileId)));
+        return file != null ? new StaticFile(file, database) : null;
+    }
+
+    public void evictContainer(String containerId) {
+        if (containerId != null) {
+            locations.invalidate(containerId);
+        }
+    }
+
+    public void evictDBSource(String dbSourceId) {
+        if (dbSourceId != null) {
+            locations.asMap().values().removeIf(location -> Objects.equals(location.dbSource.getId(), dbSourceId));
+        }
+    }
+
+    public void evictAll() {
+        locations.invalidateAll();
+    }
+
+    @Override
+    public void onEviction(String type, String id) {
+        if (RuntimeResourceCacheService.CONTAINER.equals(type)) {
+            evictContainer(id);
+        } else if (RuntimeResourceCacheService.DBSOURCE.equals(type)) {
+            evictDBSource(id);
+        } else if (RuntimeResourceCacheService.ALL.equals(type)) {
+            evictAll();
+        }
+    }
+
+    private Location getLocation(String containerId) {
+        if (containerId == null) {
+            return null;
+        }
+        Location location = locations.getIfPresent(containerId);
+        if (location == null) {
+            location = containerRepository.findById(containerId).filter(c -> c.getDbsourceId() != null)
+                    .flatMap(c -> dbSourceRepository.findById(c.getDbsourceId())
+                            .map(db -> new Location(db, c.getDatabaseName())))
+                    .orElse(null);
+            if (location == null) {
+                return null;
+            }
+            ensureIndex(location);
+            locations.put(containerId, location);
+        }
+        return location;
+    }
+
+    /**
+     * Resolves the database of a location through the cached client of its datasource, which stays open as long
+     * as it is used
+     */
+    private MongoDatabase getDatabase(Location location) {
+        return filesHandler.getGridFsDatabase(location.dbSource, location.databaseName);
+    }
+
+    private void ensureIndex(Location location) {
+        MongoDatabase database = getDatabase(location);
+        if (!indexedDatabases.add(location.dbSource.getId() + '|' + database.getName())) {
+            return;
+        }
+        try {
+            // Files of older imports are created by the driver without it
+            database.getCollection("fs.files").createIndex(Indexes.ascending(CONTAINER_ID, FILE_URI),
+                    new IndexOptions().name("idx_container_file_uri"));
+        } catch (MongoException e) {
+            // ie. a read only user, the lookups still work
+            log.debug("Could not create the files index of the datasource {}", location.dbSource.getId(), e);
+        }
+        blobService.ensureIndex(database);
+    }
+
+    private AppProperties.StaticFiles getSpec() {
+        return appProperties.getStaticFiles() != null ? appProperties.getStaticFiles()
+                : new AppProperties.StaticFiles();
+    }
+
+    /**
+     * Where the files of a container are. Only the datasource and the database name are kept : the client is
+     * looked up on each request, a cached handle would outlive the client once evicted from the registry.
+     */
+    private static class Location {
+
+        private final DBSource dbSource;
+
+        private final String databaseName;
+
+        private Location(DBSource dbSource, String databaseName) {
+            this.dbSource = dbSource;
+            this.databaseName = databaseName;
+        }
+
+    }
+
+    /**
+     * A GridFS file that can be read several times (ie. once per requested range). Small files are read from
+     * the cache, the others are streamed chunk by chunk from GridFS.
+     */
+    public class StaticFile extends AbstractResource {
+
+        private final GridFSFile file;
+
+        private final MongoDatabase database;
+
+        private StaticFile(GridFSFile file, MongoDatabase database) {
+            this.file = file;
+            this.database = database;
+        }
+
+        /**
+         * @return the GridFS id, files are never modified
+         */
+        public String getETag() {
+            return '"' + file.getObjectId().toHexString() + '"';
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (file.getLength() <= getSpec().getMaxCachedFileSize()) {
+                ObjectId blobId = GridFsBlobService.getBlobId(file);
+                String key = (blobId != null ? blobId : file.getObjectId()).toHexString();
+                try {
+                    return new ByteArrayInputStream(contents.get(key, k -> blobService.read(database, file)));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            return blobService.open(database, file);
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return file.getLength();
+        }
+
+        @Override
+        public long lastModified() {
+            return file.getUploadDate() != null ? file.getUploadDate().getTime() : 0;
+        }
+
+        @Override
+        public String getFilename() {
+            return file.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return "GridFS file [" + file.getObjectId().toHexString() + ", " + file.getFilename() + "]";
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return this == other || (other instanceof StaticFile
+                    && file.getObjectId().equals(((StaticFile) other).file.getObjectId()));
+        }
+
+        @Override
+        public int hashCode() {
+            return file.getObjectId().hashCode();
+        }
+
+    }
+
+}
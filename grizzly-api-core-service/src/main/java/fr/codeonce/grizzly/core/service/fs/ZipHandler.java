@@ -16,8 +16,12 @@
 package fr.codeonce.grizzly.core.service.fs;
 
 import fr.codeonce.grizzly.core.domain.util.FileSystemUtil;
+import fr.codeonce.grizzly.core.service.fs.model.CustomFile;
+import fr.codeonce.grizzly.core.service.fs.model.CustomFolder;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
 import org.apache.commons.io.FileUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,6 +33,9 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -42,27 +49,73 @@ public class ZipHandler {
     @Autowired
     private FilesHandler filesHandler;
 
+    @Autowired
+    private GridFsUploadService uploadService;
+
+    /**
+     * Import the files of a zip in GridFS while it is read from the upload, without a copy on disk. The hierarchy
+     * is built during the pass with the same names as an import extracted in the TMP directory.
+     *
+     * @return the hierarchy as JSON
+     */
     public String importZipFile(MultipartFile zipFile, String idContainer, String dbsourceId, String databaseName)
             throws IOException {
-        log.debug("system : {}", System.getProperty("os.name"));
-
-        log.debug("tmpdir : {}", TMPDIR);
-
         StopWatch stopWatch = new StopWatch();
 
-        String zipFileName = zipFile.getOriginalFilename().substring(0, zipFile.getOriginalFilename().lastIndexOf('.'));
-
-        stopWatch.start("saving zip in temp");
-        saveZip(zipFile, idContainer + File.separator + zipFileName);
+        String originalName = zipFile.getOriginalFilename();
+        String zipFileName = originalName.substring(0, originalName.lastIndexOf('.'));
+        String rootPath = (TMPDIR + idContainer + File.separator + zipFileName).replaceAll("\\s", "");
+
+        // The previous files are only deleted once the new ones are stored, a corrupt upload keeps them
+        List<ObjectId> oldFileIds = filesHandler.getGridfsFileIds(idContainer);
+
+        stopWatch.start("streaming entries to GridFS");
+        CustomFolder root = new CustomFolder(rootPath);
+        long storedBytes;
+        // The client is kept open for the whole import
+        try (FilesHandler.GridFsDatabase database = filesHandler.checkoutGridFsDatabase(dbsourceId, databaseName)) {
+            GridFsUploadService.Upload upload = uploadService.start(database.get(), idContainer);
+            try (ZipInputStream zipinputstream = new ZipInputStream(new BufferedInputStream(zipFile.getInputStream()),
+                    StandardCharsets.ISO_8859_1)) {
+                Map<String, CustomFolder> folders = new HashMap<>();
+                folders.put("", root);
+                boolean empty = true;
+                ZipEntry zipentry;
+                while ((zipentry = zipinputstream.getNextEntry()) != null) {
+                    empty = false;
+                    // As when extracted, spaces are eliminated from the names
+                    String entryName = zipentry.getName().replaceAll("\\s", "");
+                    if (isImported(entryName, originalName)) {
+                        if (zipentry.isDirectory()) {
+                            getFolder(folders, entryName.substring(0, entryName.length() - 1));
+                        } else {
+                            storeEntry(upload, zipinputstream, entryName, folders, idContainer);
+                        }
+                    }
+                    zipinputstream.closeEntry();
+                }
+                if (empty) {
+                    throw new FileNotFoundException("File is not valid");
+                }
+                storedBytes = upload.finish();
+            } catch (IOException e) {
+                upload.abort();
+                log.debug("a zip execption: {}", e);
+                throw new FileNotFoundException("File is not valid");
+            } catch (RuntimeException e) {
+                upload.abort();
+                throw e;
+            }
+        }
         stopWatch.stop();
 
-        stopWatch.start("unzipping");
-        unzip(TMPDIR + idContainer + File.separator + zipFileName, zipFile.getOriginalFilename());
+        stopWatch.start("saving the hierarchy");
+        String hierarchy = filesHandler.saveImportedHierarchy(FilesHandler.replaceParentWithChild(root), idContainer,
+                dbsourceId, storedBytes);
         stopWatch.stop();
 
-        stopWatch.start("getJsonHierarchy");
-        String hierarchy = filesHandler.getJsonHierarchy(TMPDIR + idContainer + File.separator + zipFileName,
-                idContainer, dbsourceId, databaseName);
+        stopWatch.start("Delete old files in GridFS");
+        filesHandler.deleteGridfsFiles(idContainer, oldFileIds);
         stopWatch.stop();
 
         log.debug(stopWatch.prettyPrint());
@@ -70,6 +123,46 @@ public class ZipHandler {
         return hierarchy;
     }
 
+    private static boolean isImported(String entryName, String zipFileOriginalName) {
+        if (entryName.contains("__MACOSX") || entryName.equals(zipFileOriginalName)) {
+            return false;
+        }
+        for (String segment : entryName.split("/")) {
+            // The .git folders are not imported, the entries escaping the folder are rejected
+            if (segment.equals(".git") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void storeEntry(GridFsUploadService.Upload upload, ZipInputStream zipinputstream, String entryName,
+                            Map<String, CustomFolder> folders, String idContainer) throws IOException {
+        int slash = entryName.lastIndexOf('/');
+        CustomFolder parent = getFolder(folders, slash > 0 ? entryName.substring(0, slash) : "");
+        String path = parent.getName() + File.separator + entryName.substring(slash + 1);
+        CustomFile customFile = new CustomFile(path);
+        parent.addFolder(customFile);
+        Document metaData = FilesHandler.importMetadata(idContainer, path, parent.getName());
+        upload.store(entryName.substring(slash + 1), metaData, zipinputstream,
+                id -> customFile.setFileId(id.toString()));
+    }
+
+    /**
+     * Returns the folder of a relative path, created with its parents on the first entry under it
+     */
+    private static CustomFolder getFolder(Map<String, CustomFolder> folders, String relativePath) {
+        CustomFolder folder = folders.get(relativePath);
+        if (folder == null) {
+            int slash = relativePath.lastIndexOf('/');
+            CustomFolder parent = getFolder(folders, slash > 0 ? relativePath.substring(0, slash) : "");
+            folder = new CustomFolder(parent.getName() + File.separator + relativePath.substring(slash + 1));
+            parent.addFolder(folder);
+            folders.put(relativePath, folder);
+        }
+        return folder;
+    }
+
     /**
      * Saves the Zip in the TMP directory
      *
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.organization;
+
+import fr.codeonce.grizzly.core.domain.Organization.Member;
+import fr.codeonce.grizzly.core.domain.Organization.MemberRepository;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.project.Project;
+import fr.codeonce.grizzly.core.service.util.SchedulerLock;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * One-time backfill of the organizationId of the projects and datasources, and of the security settings of the
+ * projects created by previous versions. The listings used to save every listed document to stamp them.
+ */
+@Component
+public class OrganizationMigration {
+
+    private static final Logger log = LoggerFactory.getLogger(OrganizationMigration.class);
+
+    private static final String NAME = "organizationId-backfill";
+
+    private static final String COLLECTION = "migration";
+
+    private static final long LOCK_AT_MOST_FOR = 3_600_000L;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MemberRepository memberRepository;
+
+    @Autowired
+    private SchedulerLock schedulerLock;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        if (isApplied()) {
+            return;
+        }
+        schedulerLock.runLocked(NAME, LOCK_AT_MOST_FOR, 0, () -> {
+            // Checked again, another instance may have run it meanwhile
+            if (isApplied()) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            memberRepository.findAll().forEach(this::stampOrganization);
+            mongoTemplate.updateMulti(Query.query(Criteria.where("identityProviderIds").is(null)),
+                    new Update().set("securityEnabled", true).set("identityProviderIds", Collections.emptyList()),
+                    Project.class);
+            mongoTemplate.insert(new Document("_id", NAME).append("appliedAt", new Date()), COLLECTION);
+            log.info("Migration {} applied in {} ms", NAME, System.currentTimeMillis() - start);
+        });
+    }
+
+    private void stampOrganization(Member member) {
+        if (member.getOrganisationId() == null) {
+            return;
+        }
+        Criteria visible = member.getTeamIds() != null && !member.getTeamIds().isEmpty()
+                ? new Criteria().orOperator(Criteria.where("teamIds").in(member.getTeamIds()),
+                Criteria.where("userEmail").is(member.getEmail()))
+                : Criteria.where("userEmail").is(member.getEmail());
+        Update update = new Update().set("organizationId", member.getOrganisationId());
+        mongoTemplate.updateMulti(Query.query(visible), update, Project.class);
+        mongoTemplate.updateMulti(Query.query(visible), update, DBSource.class);
+    }
+
+    private boolean isApplied() {
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(NAME)), COLLECTION);
+    }
+
+}
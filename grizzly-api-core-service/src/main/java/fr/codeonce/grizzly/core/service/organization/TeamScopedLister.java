@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.organization;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Lists the documents a user can see : those shared with one of their teams, then their own ones unless a shared
+ * document has the same name. Both parts are read by indexed queries on teamIds and userEmail sorted by id, and
+ * the page is applied to each of them by the database, so that only the documents of the page are loaded.
+ */
+@Service
+public class TeamScopedLister {
+
+    private static final String ID = "_id";
+
+    private static final String NAME = "name";
+
+    private static final String USER_EMAIL = "userEmail";
+
+    private static final String TEAM_IDS = "teamIds";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * @param type      a document with name, userEmail and teamIds fields
+     * @param userEmail
+     * @param teamIds   the teams of the user, null or empty when they are not a member of an organization
+     * @param pageable  applied to the visible documents, in the order described above
+     * @return the visible documents of the page
+     */
+    public <T> List<T> findVisible(Class<T> type, String userEmail, Collection<String> teamIds, Pageable pageable) {
+        boolean member = teamIds != null && !teamIds.isEmpty();
+        if (!member) {
+            return find(type, Criteria.where(USER_EMAIL).is(userEmail), pageable.isPaged() ? pageable.getOffset() : 0,
+                    pageable.isPaged() ? pageable.getPageSize() : 0);
+        }
+        String collectionName = mongoTemplate.getCollectionName(type);
+        Criteria shared = Criteria.where(TEAM_IDS).in(teamIds);
+        // Own documents not shared with the teams of the user, hidden by a shared one of the same name
+        List<Pattern> sharedNames = mongoTemplate.findDistinct(Query.query(shared), NAME, collectionName, String.class)
+                .stream().filter(Objects::nonNull)
+                .map(name -> Pattern.compile("^" + Pattern.quote(name) + "$", Pattern.CASE_INSENSITIVE))
+                .collect(Collectors.toList());
+        Criteria personal = Criteria.where(USER_EMAIL).is(userEmail).and(TEAM_IDS).nin(teamIds);
+        if (!sharedNames.isEmpty()) {
+            personal = personal.and(NAME).nin(sharedNames);
+        }
+        if (!pageable.isPaged()) {
+            List<T> documents = find(type, shared, 0, 0);
+            documents.addAll(find(type, personal, 0, 0));
+            return documents;
+        }
+        long sharedCount = mongoTemplate.count(Query.query(shared), collectionName);
+        long offset = pageable.getOffset();
+        int size = pageable.getPageSize();
+        List<T> documents = new ArrayList<>(size);
+        if (offset < sharedCount) {
+            documents.addAll(find(type, shared, offset, size));
+        }
+        if (documents.size() < size) {
+            documents.addAll(find(type, personal, Math.max(0, offset - sharedCount), size - documents.size()));
+        }
+        return documents;
+    }
+
+    /**
+     * @param limit 0 for all the documents
+     */
+    private <T> List<T> find(Class<T> type, Criteria criteria, long skip, int limit) {
+        Query query = Query.query(criteria).with(Sort.by(ID)).skip(skip).limit(limit);
+        return mongoTemplate.find(query, type);
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.project;
+
+import fr.codeonce.grizzly.core.domain.project.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Track the use of a Project whenever it is saved through a repository. The documents generated from its
+ * containers are evicted with its RuntimeResources.
+ */
+@Component
+public class ProjectEventListener extends AbstractMongoEventListener<Project> {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectEventListener.class);
+
+    @Autowired
+    private ProjectUseService projectUseService;
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Project> event) {
+        try {
+            projectUseService.onProjectSaved(event.getSource());
+        } catch (RuntimeException e) {
+            // The reconciliation will catch up, the save itself succeeded
+            log.warn("Could not track the use of project {}", event.getSource().getId(), e);
+        }
+    }
+
+}
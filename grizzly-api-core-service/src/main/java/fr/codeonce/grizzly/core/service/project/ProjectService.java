@@ -20,6 +20,7 @@ import com.mongodb.client.MongoClient;
 import fr.codeonce.grizzly.common.runtime.IdentityProviders;
 import fr.codeonce.grizzly.common.runtime.Provider;
 import fr.codeonce.grizzly.common.runtime.SecurityApiConfig;
+import fr.codeonce.grizzly.core.domain.Organization.Member;
 import fr.codeonce.grizzly.core.domain.Organization.MemberRepository;
 import fr.codeonce.grizzly.core.domain.analytics.ProjectUse;
 import fr.codeonce.grizzly.core.domain.analytics.ProjectUseRepository;
@@ -31,9 +32,7 @@ import fr.codeonce.grizzly.core.domain.enums.SecurityLevel;
 import fr.codeonce.grizzly.core.domain.project.Project;
 import fr.codeonce.grizzly.core.domain.project.ProjectRepository;
 import fr.codeonce.grizzly.core.domain.resource.ResourceGroup;
-import fr.codeonce.grizzly.core.domain.user.AccountType;
 import fr.codeonce.grizzly.core.domain.user.User;
-import fr.codeonce.grizzly.core.domain.user.UserRepository;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsService;
 import fr.codeonce.grizzly.core.service.container.ContainerDto;
 import fr.codeonce.grizzly.core.service.container.ContainerMapperService;
@@ -45,6 +44,8 @@ import fr.codeonce.grizzly.core.service.datasource.mongo.mapper.MongoDBSourceMap
 import fr.codeonce.grizzly.core.service.datasource.sql.SqlDBSourceService;
 import fr.codeonce.grizzly.core.service.datasource.sql.mapper.SqlDBSourceMapperService;
 import fr.codeonce.grizzly.core.service.fs.GitHandler;
+import fr.codeonce.grizzly.core.service.organization.TeamScopedLister;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
 import fr.codeonce.grizzly.core.service.user.UserService;
 import fr.codeonce.grizzly.core.service.util.CryptoHelper;
 import fr.codeonce.grizzly.core.service.util.CustomGitAPIException;
@@ -56,11 +57,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -72,7 +73,6 @@ import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -98,15 +98,15 @@ public class ProjectService {
     @Autowired
     private ProjectUseRepository projectUseRepository;
 
-    @Autowired
-    private UserRepository userRepository;
-
     @Autowired
     private UserService userService;
 
     @Autowired
     private MemberRepository memberRepository;
 
+    @Autowired
+    private TeamScopedLister teamScopedLister;
+
     @Autowired
     private ContainerService containerService;
 
@@ -152,6 +152,9 @@ public class ProjectService {
     @Autowired
     private AnalyticsService analyticsService;
 
+    @Autowired
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
     public static KeyPair generateRSAKkeyPair() throws NoSuchAlgorithmException {
         KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
 
@@ -343,6 +346,8 @@ public class ProjectService {
             projectRepository.save(p);// UPDATE ENTITY
             if (p.getDbsourceId() != null) {
                 updateRelatedContainers(p.getId(), p.getDbsourceId(), p.getDatabaseName());
+                // The containers are updated without save events, after the project save evicted them
+                runtimeResourceCacheService.evictProject(p.getId());
             }
             if ((p.getGitBranch() != null && !p.getGitBranch().equals(newProjectDto.getGitBranch()))
                     || (p.getGitToken() != null && !p.getGitToken().equals(newProjectDto.getGitToken()))
@@ -479,67 +484,31 @@ public class ProjectService {
         return projectJson.toString();
     }
 
-    private boolean containsName(final List<Project> list, final String name) {
-        return list.stream().map(Project::getName).filter(name::equalsIgnoreCase).findFirst().isPresent();
+    public List<ProjectDto> getAllByUser() {
+        return getAllByUser(Pageable.unpaged());
     }
 
     /**
-     * return a list of all the projects of a given user
+     * return the projects shared with the teams of the connected user and their own ones
      *
-     * @param userEmail
+     * @param pageable
      * @return List<ProjectDto>
      */
-    public List<ProjectDto> getAllByUser() {
+    public List<ProjectDto> getAllByUser(Pageable pageable) {
         String currentUserEmail = userService.getConnectedUserEmail();
-        List<Project> allProjects = projectRepository.findAll();
-        List<Project> projects = new ArrayList<Project>();
-        List<Project> personnalProjects = projectRepository.findAllByUserEmail(currentUserEmail);
-
-        if (memberRepository.findByEmail(currentUserEmail) != null) {
-            List<String> memberTeams = memberRepository.findByEmail(currentUserEmail).getTeamIds();
-            for (int i = 0; i < memberTeams.size(); i++) {
-                String TeamId = memberTeams.get(i);
-                for (int j = 0; j < allProjects.size(); j++) {
-                    Project project = allProjects.get(j);
-                    if (project.getTeamIds().contains(TeamId)) {
-                        projects.add(project);
-                    }
-                }
-            }
-
-            personnalProjects.forEach(proj -> {
-                if (!containsName(projects, proj.getName())) {
-                    projects.add(proj);
-                }
-            });
-            for (int i = 0; i < projects.size(); i++) {
-                Project p = projects.get(i);
-                p.setOrganizationId(memberRepository.findByEmail(currentUserEmail).getOrganisationId());
-                if (p.getIdentityProviderIds() == null) { // In case of projects implemeted on previous versions
-                    p.setSecurityEnabled(true);
-                    p.setIdentityProviderIds(Collections.emptyList());
-                }
-                projectRepository.save(p);
-            }
-
-            return projects.stream()// GET ALL BY USER
-                    .map(p -> mapper.mapToDto(p))// MAP ALL TO DTOs
-                    .collect(Collectors.toList());
-        } else {
-            for (int i = 0; i < personnalProjects.size(); i++) {
-                Project p = personnalProjects.get(i);
-                p.setOrganizationId(null);
-                if (p.getIdentityProviderIds() == null) { // In case of projects implemeted on previous versions
-                    p.setSecurityEnabled(true);
-                    p.setIdentityProviderIds(Collections.emptyList());
-                }
-                projectRepository.save(p);
+        Member member = memberRepository.findByEmail(currentUserEmail);
+        List<Project> projects = teamScopedLister.findVisible(Project.class, currentUserEmail,
+                member != null ? member.getTeamIds() : null, pageable);
+        String organizationId = member != null ? member.getOrganisationId() : null;
+        return projects.stream().map(p -> {
+            // Not saved, the stored values are backfilled by OrganizationMigration
+            p.setOrganizationId(organizationId);
+            if (p.getIdentityProviderIds() == null) { // In case of projects implemeted on previous versions
+                p.setSecurityEnabled(true);
+                p.setIdentityProviderIds(Collections.emptyList());
             }
-            return personnalProjects.stream()// GET ALL BY USER
-                    .map(p -> mapper.mapToDto(p))// MAP ALL TO DTOs
-                    .collect(Collectors.toList());
-        }
-
+            return mapper.mapToDto(p);
+        }).collect(Collectors.toList());
     }
 
     public Boolean existsProjectByDbSourceName(String databaseName) {
@@ -578,37 +547,6 @@ public class ProjectService {
         return this.projectRepository.findByUserEmailAndUsed(userEmail, true).size();
     }
 
-    @Scheduled(cron = "*/5 * * * * ?")
-    public void getUsedProject() {
-        this.projectRepository.findAll().forEach(project -> {
-            LocalDateTime now = LocalDateTime.now();
-            LocalDateTime lastUpdated = LocalDateTime.ofInstant(project.getLastUpdate().toInstant(),
-                    ZoneId.systemDefault());
-            long unit = ChronoUnit.SECONDS.between(lastUpdated, now);
-            if (unit < 86400) {
-                Optional<User> userOp = userRepository.findByEmail(project.getUserEmail());
-                if (userOp.isPresent()) {
-                    User user = userOp.get();
-                    if (user.getAccountType().equals(AccountType.SCALABILITY)) {
-                        if (!projectUseRepository.existsByProjectId(project.getId())) {
-                            ProjectUse projectUse = new ProjectUse(project.getId(), user.getEmail(),
-                                    project.getLastUpdate());
-                            projectUseRepository.save(projectUse);
-                        } else {
-                            ProjectUse projectUse = projectUseRepository.findByProjectId(project.getId());
-                            List<Container> containers = containerRepository.findAllByProjectId(project.getId())
-                                    .stream().sorted((o1, o2) -> o1.getLastUpdate().compareTo(o2.getLastUpdate()))
-                                    .collect(Collectors.toList());
-                            projectUse.setUseDate(containers.get(containers.size() - 1).getLastUpdate());
-                            projectUseRepository.save(projectUse);
-
-                        }
-                    }
-                }
-            }
-        });
-    }
-
     public List<ProjectUse> getAllProjectUsed() {
         return this.projectUseRepository.findAll();
     }
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.project;
+
+import fr.codeonce.grizzly.core.domain.analytics.ProjectUse;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.project.Project;
+import fr.codeonce.grizzly.core.domain.project.ProjectRepository;
+import fr.codeonce.grizzly.core.domain.user.AccountType;
+import fr.codeonce.grizzly.core.domain.user.User;
+import fr.codeonce.grizzly.core.domain.user.UserRepository;
+import fr.codeonce.grizzly.core.service.util.SchedulerLock;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Tracks the projects of SCALABILITY users used during the last 24 hours. The ProjectUse is upserted when a
+ * project or one of its containers is saved, and a periodic reconciliation, run by a single instance, catches
+ * the changes made without going through the repositories.
+ */
+@Service
+public class ProjectUseService {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectUseService.class);
+
+    private static final String LOCK_NAME = "projectUseReconciliation";
+
+    private static final long USE_WINDOW = TimeUnit.DAYS.toMillis(1);
+
+    private static final String PROJECT_ID = "projectId";
+
+    private static final String USE_DATE = "useDate";
+
+    private static final String LAST_UPDATE = "lastUpdate";
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SchedulerLock schedulerLock;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    /**
+     * Create the ProjectUse of a recently updated project, an existing one is kept as is
+     *
+     * @param project
+     */
+    public void onProjectSaved(Project project) {
+        if (isRecent(project.getLastUpdate()) && isScalability(project.getUserEmail())) {
+            mongoTemplate.upsert(byProject(project.getId()), new Update()//
+                    .setOnInsert("userEmail", project.getUserEmail())//
+                    .setOnInsert(USE_DATE, project.getLastUpdate()), ProjectUse.class);
+        }
+    }
+
+    /**
+     * Move the use date of the container project to the container last update
+     *
+     * @param container
+     */
+    public void onContainerSaved(Container container) {
+        if (container.getProjectId() == null || container.getLastUpdate() == null) {
+            return;
+        }
+        projectRepository.findById(container.getProjectId())//
+                .filter(project -> isRecent(project.getLastUpdate()))//
+                .filter(project -> isScalability(project.getUserEmail()))//
+                .ifPresent(project -> mongoTemplate.upsert(byProject(project.getId()),
+                        useUpdate(project.getUserEmail(), container.getLastUpdate()), ProjectUse.class));
+    }
+
+    @Scheduled(fixedDelayString = "${app.projectUse.reconcileInterval:300000}")
+    public void reconcile() {
+        AppProperties.ProjectUse spec = getSpec();
+        schedulerLock.runLocked(LOCK_NAME, spec.getLockAtMostFor(), spec.getLockAtLeastFor(),
+                this::reconcileRecentProjects);
+    }
+
+    private void reconcileRecentProjects() {
+        // Served by the lastUpdate index instead of a scan of all the projects
+        List<Project> projects = projectRepository
+                .findByLastUpdateAfter(new Date(System.currentTimeMillis() - USE_WINDOW));
+        if (projects.isEmpty()) {
+            return;
+        }
+        Set<String> emails = projects.stream().map(Project::getUserEmail).filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        Set<String> scalabilityEmails = userRepository.findByEmailIn(emails).stream()
+                .filter(user -> AccountType.SCALABILITY.equals(user.getAccountType())).map(User::getEmail)
+                .collect(Collectors.toSet());
+        List<Project> usedProjects = projects.stream()
+                .filter(project -> scalabilityEmails.contains(project.getUserEmail())).collect(Collectors.toList());
+        if (usedProjects.isEmpty()) {
+            return;
+        }
+        Map<String, Date> latestUpdates = getLatestContainerUpdates(
+                usedProjects.stream().map(Project::getId).collect(Collectors.toList()));
+        BulkOperations operations = mongoTemplate.bulkOps(BulkMode.UNORDERED, ProjectUse.class);
+        usedProjects.forEach(project -> {
+            Date latestUpdate = latestUpdates.get(project.getId());
+            operations.upsert(byProject(project.getId()), useUpdate(project.getUserEmail(),
+                    latestUpdate != null ? latestUpdate : project.getLastUpdate()));
+        });
+        operations.execute();
+        log.debug("Use of {} projects reconciled", usedProjects.size());
+    }
+
+    /**
+     * @param projectIds
+     * @return the latest container lastUpdate per project id, computed by the database
+     */
+    private Map<String, Date> getLatestContainerUpdates(Collection<String> projectIds) {
+        Aggregation aggregation = Aggregation.newAggregation(//
+                Aggregation.match(Criteria.where(PROJECT_ID).in(projectIds)),
+                Aggregation.group(PROJECT_ID).max(LAST_UPDATE).as(LAST_UPDATE));
+        Map<String, Date> latestUpdates = new HashMap<>();
+        mongoTemplate.aggregate(aggregation, Container.class, Document.class).getMappedResults()
+                .forEach(result -> {
+                    if (result.getDate(LAST_UPDATE) != null) {
+                        latestUpdates.put(result.getString("_id"), result.getDate(LAST_UPDATE));
+                    }
+                });
+        return latestUpdates;
+    }
+
+    private static Query byProject(String projectId) {
+        return Query.query(Criteria.where(PROJECT_ID).is(projectId));
+    }
+
+    private static Update useUpdate(String userEmail, Date useDate) {
+        // $max keeps the use date monotonic whatever the order of the concurrent writes
+        return new Update().setOnInsert("userEmail", userEmail).max(USE_DATE, useDate);
+    }
+
+    private static boolean isRecent(Date lastUpdate) {
+        return lastUpdate != null && System.currentTimeMillis() - lastUpdate.getTime() < USE_WINDOW;
+    }
+
+    private boolean isScalability(String userEmail) {
+        return userEmail != null && userRepository.findByEmail(userEmail)
+                .filter(user -> AccountType.SCALABILITY.equals(user.getAccountType())).isPresent();
+    }
+
+    private AppProperties.ProjectUse getSpec() {
+        return appProperties.getProjectUse() != null ? appProperties.getProjectUse()
+                : new AppProperties.ProjectUse();
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.resource;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.resource.Resource;
+import fr.codeonce.grizzly.core.domain.resource.ResourceRequestModel;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceStore;
+import fr.codeonce.grizzly.core.service.util.Json2Pojo;
+import fr.codeonce.grizzly.core.service.util.RequestModelUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates the request model sources (POJOs of the JSON request bodies) of the resources with functions. The
+ * source of a model only depends on its schema : a schema that did not change since the previous save, or
+ * that was generated recently, is not generated again, and the others are generated in parallel.
+ */
+@Service
+public class RequestModelService {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestModelService.class);
+
+    private static final String CACHE_NAME = "requestModels";
+
+    private static final String JSON = "application/json";
+
+    private static final String PACKAGE_NAME = "codeonce";
+
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    // Generated sources by schema hash
+    private Cache<String, String> sources;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        AppProperties.RequestModels spec = getSpec();
+        this.sources = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .expireAfterWrite(spec.getExpireAfterWrite(), spec.getTimeUnit())/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, sources, CACHE_NAME);
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(spec.getGenerationThreads(), spec.getGenerationThreads(), 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(spec.getGenerationQueueCapacity()), r -> {
+            Thread thread = new Thread(r, "RequestModel-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Set the request model of the container resources having functions and a JSON request body
+     *
+     * @param container  the container to save, its id is null on creation
+     * @param lastUpdate of the container, in seconds
+     */
+    public void generateRequestModels(Container container, float lastUpdate) {
+        Map<Resource, String> schemas = new LinkedHashMap<>();
+        container.getResources().forEach(r -> {
+            if (hasFunctions(r) && r.getRequestBody() != null && r.getRequestBody().getContent() != null
+                    && r.getRequestBody().getContent().get(JSON) != null
+                    && r.getRequestBody().getContent().get(JSON).getSchema().getRef() != null) {
+                schemas.put(r, RequestModelUtils.collectApiParameters(
+                        RequestModelUtils.parseEndpointModelsToBodyRequest(container.getEndpointModels(),
+                                r.getRequestBody().getContent().get(JSON).getSchema().getRef(), null, true),
+                        r.getParameters()));
+            }
+        });
+        if (schemas.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> previous = getPreviousSources(container.getId());
+        // A single generation per distinct schema
+        Map<String, CompletableFuture<String>> generations = new HashMap<>();
+        Map<Resource, String> hashes = new LinkedHashMap<>();
+        schemas.forEach((r, schema) -> {
+            String hash = DigestUtils.sha256Hex(schema);
+            hashes.put(r, hash);
+            generations.computeIfAbsent(hash, h -> {
+                String source = previous.containsKey(h) ? previous.get(h) : sources.getIfPresent(h);
+                if (source != null) {
+                    return CompletableFuture.completedFuture(source);
+                }
+                return CompletableFuture.supplyAsync(() -> Json2Pojo.jsonSchema2Pojo(schema, PACKAGE_NAME),
+                        executor);
+            });
+        });
+
+        hashes.forEach((r, hash) -> {
+            String source = join(generations.get(hash));
+            sources.put(hash, source);
+            ResourceRequestModel requestModel = new ResourceRequestModel();
+            requestModel.setName(r.getRequestBody().getName());
+            requestModel.setLastUpdate(lastUpdate);
+            requestModel.setRequestModel(source);
+            requestModel.setSchemaHash(hash);
+            r.setRequestModels(new ArrayList<>());
+            r.getRequestModels().add(requestModel);
+        });
+        log.debug("{} request models of container {}, {} distinct schemas", hashes.size(), container.getId(),
+                generations.size());
+    }
+
+    private static boolean hasFunctions(Resource r) {
+        return (r.getOutFunctions() != null && !r.getOutFunctions().isEmpty()
+                && !r.getOutFunctions().get(0).isEmpty())
+                || (r.getInFunctions() != null && !r.getInFunctions().isEmpty()
+                && !r.getInFunctions().get(0).isEmpty());
+    }
+
+    /**
+     * Returns the request model sources saved with the container, by schema hash. The DTOs do not carry them.
+     */
+    private Map<String, String> getPreviousSources(String containerId) {
+        Map<String, String> previous = new HashMap<>();
+        if (containerId == null) {
+            return previous;
+        }
+        resourceStore.findRequestModels(containerId).stream()
+                .filter(m -> m.getSchemaHash() != null && m.getRequestModel() != null)
+                .forEach(m -> previous.put(m.getSchemaHash(), m.getRequestModel()));
+        return previous;
+    }
+
+    private static String join(CompletableFuture<String> generation) {
+        try {
+            return generation.join();
+        } catch (CompletionException e) {
+            // As if generated by the caller
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private AppProperties.RequestModels getSpec() {
+        return appProperties.getRequestModels() != null ? appProperties.getRequestModels()
+                : new AppProperties.RequestModels();
+    }
+
+}
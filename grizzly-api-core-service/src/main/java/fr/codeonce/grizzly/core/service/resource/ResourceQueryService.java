@@ -25,6 +25,7 @@ import fr.codeonce.grizzly.core.domain.endpointModel.EndpointModel;
 import fr.codeonce.grizzly.core.domain.endpointModel.ModelProperty;
 import fr.codeonce.grizzly.core.domain.resource.*;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsService;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceStore;
 import fr.codeonce.grizzly.core.service.resource.utils.ResourceRuntimeMapper;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.math.NumberUtils;
@@ -51,6 +52,9 @@ public class ResourceQueryService {
     @Autowired
     private DBSourceRepository dbSourceRepository;
 
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
 
     private List<String> keyWords = new ArrayList<>(
             List.of("findBy", "And", "Or", "Not", "Is", "Equals", "Between", "LessThan", "LessThanEqual", "GreaterThan",
@@ -268,9 +272,6 @@ public class ResourceQueryService {
         }
         resource.setParameters(params);
         // resource.getParameters()
-        List<Resource> lresource = containerToSave.getResources();
-        lresource.add(resource);
-        containerToSave.setResources(lresource);
         List<EndpointModel> endpointModels = containerToSave.getEndpointModels();
 
         if (createResourceRequest.getHttpMethod().equalsIgnoreCase("post")) {
@@ -289,6 +290,12 @@ public class ResourceQueryService {
         resource.setResponses(apiResponses);
 
         containerToSave.setEndpointModels(endpointModels);
+        if (resourceStore.isStored(containerToSave)) {
+            // Only the new resource is written, the container save leaves the unread resources as they are
+            resourceStore.add(containerId, resource);
+        } else {
+            containerToSave.getResources().add(resource);
+        }
 
         Container savedContainer = containerRepository.save(containerToSave);
         analyticsService.updateContainerMetrics(savedContainer);
@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.resource;
+
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.resource.Resource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable routing table of a Container : one path-segment trie per HTTP method.
+ * Literal segments are matched (ignoring case) before {param} segments.
+ */
+public class ResourceRouteIndex {
+
+    private final String containerId;
+
+    private final String projectId;
+
+    private final long version;
+
+    private final Map<String, Node> routes = new HashMap<>();
+
+    private ResourceRouteIndex(String containerId, String projectId, long version) {
+        this.containerId = containerId;
+        this.projectId = projectId;
+        this.version = version;
+    }
+
+    /**
+     * Build the routing table of a container, the version is the container's last update
+     *
+     * @param container
+     * @return ResourceRouteIndex
+     */
+    public static ResourceRouteIndex build(Container container) {
+        return build(container, container.getResources());
+    }
+
+    /**
+     * Build the routing table of a container from the given routes of its resources
+     *
+     * @param container
+     * @param resources the resources, or only their HTTP method and path
+     * @return ResourceRouteIndex
+     */
+    public static ResourceRouteIndex build(Container container, List<Resource> resources) {
+        long version = container.getLastUpdate() != null ? container.getLastUpdate().getTime() : 0L;
+        ResourceRouteIndex index = new ResourceRouteIndex(container.getId(), container.getProjectId(), version);
+        if (resources != null) {
+            resources.forEach(index::add);
+        }
+        return index;
+    }
+
+    private void add(Resource resource) {
+        if (resource == null || resource.getPath() == null || resource.getPath().isEmpty()
+                || resource.getHttpMethod() == null) {
+            return;
+        }
+        Node node = routes.computeIfAbsent(resource.getHttpMethod(), m -> new Node());
+        for (String segment : segments(resource.getPath())) {
+            if (segment.contains("{")) {
+                if (node.param == null) {
+                    node.param = new Node();
+                }
+                node = node.param;
+            } else {
+                node = node.literals.computeIfAbsent(segment.toLowerCase(Locale.ROOT), s -> new Node());
+            }
+        }
+        // First declared resource wins, as with the previous linear scan
+        if (node.resource == null) {
+            node.resource = resource;
+        }
+    }
+
+    /**
+     * Find the Resource matching the received path and method
+     *
+     * @param method
+     * @param resourcePath
+     * @return the matching Resource, null if none
+     */
+    public Resource find(String method, String resourcePath) {
+        if (method == null || resourcePath == null || resourcePath.isEmpty()) {
+            return null;
+        }
+        Node root = routes.get(method);
+        if (root == null) {
+            return null;
+        }
+        return match(root, segments(resourcePath), 0);
+    }
+
+    private static Resource match(Node node, String[] segments, int depth) {
+        if (depth == segments.length) {
+            return node.resource;
+        }
+        Node literal = node.literals.get(segments[depth].toLowerCase(Locale.ROOT));
+        if (literal != null) {
+            Resource resource = match(literal, segments, depth + 1);
+            if (resource != null) {
+                return resource;
+            }
+        }
+        return node.param != null ? match(node.param, segments, depth + 1) : null;
+    }
+
+    private static String[] segments(String path) {
+        return path.substring(1).split("/");
+    }
+
+    public String getContainerId() {
+        return containerId;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> literals = new HashMap<>();
+
+        private Node param;
+
+        private Resource resource;
+
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.resource;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceStore;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps an in-memory routing index per Container so that the runtime lookup does not scan the container
+ * resources on every request. Indexes are built when a container is saved and evicted on change, along with the
+ * RuntimeResources of the container on every node.
+ */
+@Service
+public class ResourceRouteService implements RuntimeResourceCacheService.EvictionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceRouteService.class);
+
+    @Autowired
+    private ContainerRepository containerRepository;
+
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
+    @Autowired
+    private AppProperties appProperties;
+
+    private Cache<String, ResourceRouteIndex> routes;
+
+    @PostConstruct
+    public void initRoutes() {
+        AppProperties.LocalCache routing = appProperties.getRouting() != null ? appProperties.getRouting()
+                : new AppProperties.LocalCache();
+        this.routes = Caffeine.newBuilder()/**/
+                .maximumSize(routing.getMaximumSize())/**/
+                .expireAfterWrite(routing.getExpireAfterWrite(), routing.getTimeUnit())/**/
+                .build();
+    }
+
+    /**
+     * Returns the routing index of a container, built on a miss from the routes of its stored resources
+     *
+     * @param containerId
+     * @return ResourceRouteIndex, null if the container does not exist
+     */
+    public ResourceRouteIndex getRoutes(String containerId) {
+        return routes.get(containerId, id -> containerRepository.findById(id)
+                .map(container -> ResourceRouteIndex.build(container, resourceStore.findRoutes(container)))
+                .orElse(null));
+    }
+
+    /**
+     * (Re)build the routing index of a saved container, an older version never replaces a newer one
+     *
+     * @param container
+     */
+    public void index(Container container) {
+        if (container == null || container.getId() == null) {
+            return;
+        }
+        ResourceRouteIndex index = ResourceRouteIndex.build(container);
+        routes.asMap().merge(container.getId(), index,
+                (current, built) -> current.getVersion() > built.getVersion() ? current : built);
+        log.debug("Routing index built for container {} with version {}", container.getId(), index.getVersion());
+    }
+
+    public void evict(String containerId) {
+        if (containerId != null) {
+            routes.invalidate(containerId);
+        }
+    }
+
+    public void evictAll() {
+        routes.invalidateAll();
+    }
+
+    @Override
+    public void onEviction(String type, String id) {
+        if (RuntimeResourceCacheService.CONTAINER.equals(type)) {
+            evict(id);
+        } else if (RuntimeResourceCacheService.ALL.equals(type)) {
+            evictAll();
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ package fr.codeonce.grizzly.core.service.resource;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import fr.codeonce.grizzly.common.runtime.IdentityProviders;
 import fr.codeonce.grizzly.common.runtime.resource.CreateResourceRequest;
@@ -36,13 +37,18 @@ import fr.codeonce.grizzly.core.domain.project.ProjectRepository;
 import fr.codeonce.grizzly.core.domain.resource.Resource;
 import fr.codeonce.grizzly.core.function.util.FunctionRuntimeMapper;
 import fr.codeonce.grizzly.core.service.analytics.AnalyticsService;
+import fr.codeonce.grizzly.core.service.analytics.StorageUsageService;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceStore;
 import fr.codeonce.grizzly.core.service.datasource.mongo.MongoCacheService;
 import fr.codeonce.grizzly.core.service.fs.FilesHandler;
 import fr.codeonce.grizzly.core.service.fs.GitHandler;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService.StoredFile;
 import fr.codeonce.grizzly.core.service.fs.ZipHandler;
 import fr.codeonce.grizzly.core.service.fs.model.CustomFile;
 import fr.codeonce.grizzly.core.service.fs.model.CustomFolder;
 import fr.codeonce.grizzly.core.service.function.FunctionService;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService.CachedRuntimeResource;
 import fr.codeonce.grizzly.core.service.resource.utils.ResourceRuntimeMapper;
 import fr.codeonce.grizzly.core.service.util.CustomGitAPIException;
 import fr.codeonce.grizzly.core.service.util.GlobalExceptionUtil;
@@ -51,6 +57,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.stereotype.Service;
@@ -58,11 +65,13 @@ import org.springframework.util.StopWatch;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * A service to Handle files with GridFs : Insert, Delete, Retrieve and Update
@@ -84,6 +93,9 @@ public class ResourceService {
     @Autowired
     private FilesHandler filesHandler;
 
+    @Autowired
+    private GridFsBlobService blobService;
+
     @Autowired
     private ContainerRepository containerRepository;
 
@@ -105,6 +117,9 @@ public class ResourceService {
     @Autowired
     private AnalyticsService analyticsService;
 
+    @Autowired
+    private StorageUsageService storageUsageService;
+
     @Autowired
     private MappingJackson2HttpMessageConverter springMvcJacksonConverter;
 
@@ -120,6 +135,15 @@ public class ResourceService {
     @Autowired
     private IdentityProviderRepository identityProviderRepository;
 
+    @Autowired
+    private ResourceRouteService resourceRouteService;
+
+    @Autowired
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
+    @Autowired
+    private ContainerResourceStore resourceStore;
+
     private static final Logger log = LoggerFactory.getLogger(ResourceService.class);
 
     /**
@@ -238,135 +262,123 @@ public class ResourceService {
     }
 
     public RuntimeResource getRuntimeResource(String containerId, String resourcePath, String method, String returnType) {
-        return this.containerRepository.findById(containerId).map(container -> {
-            StringBuilder secretKey = new StringBuilder();
-            StringBuilder clientId = new StringBuilder();
-            StringBuilder projectType = new StringBuilder();
-            boolean defaultIdp = false;
-            // Prepare the RuntimeResource
-            Resource ress = container.getResources().stream().filter(res -> hasSamePath(resourcePath, method, res))
-                    .findFirst().orElse(null);
+        return Optional.ofNullable(resourceRouteService.getRoutes(containerId)).map(routes -> {
+            Resource ress = routes.find(method, resourcePath);
             if (ress == null) {
+                analyticsService.updateRequestCount(containerId, null, method, HttpStatus.NOT_FOUND.value());
                 return null;
             }
-            RuntimeResource resource = resourceRuntimeMapper.mapToRuntime(ress);
-            resource.getCustomQuery().setQueryName(ress.getCustomQuery().getQueryName());
-            Optional<Project> project = this.projectRepository.findById(container.getProjectId());
-            if (project.isPresent()) {
-                Project proj = project.get();
-                if (proj.getSecurityConfig().getSecretKey() != null) {
-                    secretKey.append(proj.getSecurityConfig().getSecretKey());
-                }
-                if (proj.getSecurityConfig().getClientId() != null) {
-                    clientId.append(proj.getSecurityConfig().getClientId());
-                }
-                projectType.append(proj.getType());
-                if (proj.getAuthMSRuntimeURL() != null) {
-                    resource.setAuthMSRuntimeUrl(proj.getAuthMSRuntimeURL());
-                }
-                if (proj.getType().equals("authentication microservice")) {
-                    resource.setAuthMSRuntimeUrl(proj.getRuntimeUrl());
-                    resource.setAuthorizedApps(proj.getAuthorizedApps());
-                }
+            analyticsService.updateRequestCount(containerId, ress.getPath(), method, HttpStatus.OK.value());
+            // Keyed by the matched path : every /users/{id} call shares the same assembled resource
+            return runtimeResourceCacheService.get(containerId, method, ress.getPath(), returnType,
+                    key -> assembleRuntimeResource(routes, ress, returnType));
+        }).orElse(null);
+    }
 
-                List<String> list = new ArrayList<>();
-                if (!proj.getIdentityProviderIds().isEmpty()) {
-                    if (proj.getIdentityProviderIds().get(0).equalsIgnoreCase(IdentityProviders.GRIZZLY.toString())) {
-                        resource.setDefaultIdP(true);
-                        defaultIdp = true;
-                    } else {
-                        proj.getIdentityProviderIds().stream().forEach(ip -> {
-                            IdentityProvider idp = this.identityProviderRepository.findById(ip).get();
-                            list.add(idp.getName().toString());
-                        });
-                    }
-                }
-                resource.setExistedIdentityProvidersName(list);
+    /**
+     * Assemble the RuntimeResource of a matched Resource with its project security, identity providers,
+     * datasource and functions
+     *
+     * @param routes
+     * @param route      the matched resource, the index may only hold its HTTP method and path
+     * @param returnType
+     * @return the RuntimeResource with the ids of the documents it was built from
+     */
+    private CachedRuntimeResource assembleRuntimeResource(ResourceRouteIndex routes, Resource route, String returnType) {
+        // Only the matched resource is read, a container saved by a previous version is indexed with all of them
+        Resource stored = resourceStore.findOne(routes.getContainerId(), route.getHttpMethod(), route.getPath());
+        Resource ress = stored != null ? stored : route;
+        StringBuilder secretKey = new StringBuilder();
+        StringBuilder clientId = new StringBuilder();
+        StringBuilder projectType = new StringBuilder();
+        boolean defaultIdp = false;
+        List<String> identityProviderIds = new ArrayList<>();
+        // Prepare the RuntimeResource
+        RuntimeResource resource = resourceRuntimeMapper.mapToRuntime(ress);
+        resource.getCustomQuery().setQueryName(ress.getCustomQuery().getQueryName());
+        Optional<Project> project = this.projectRepository.findById(routes.getProjectId());
+        if (project.isPresent()) {
+            Project proj = project.get();
+            if (proj.getSecurityConfig().getSecretKey() != null) {
+                secretKey.append(proj.getSecurityConfig().getSecretKey());
             }
-            resource.setSecurityKey(secretKey.toString());
-            resource.setClientId(clientId.toString());
-            resource.setCurrentMicroservicetype(projectType.toString());
-            resource.setReturnType(returnType);
-            CompletableFuture.runAsync(() -> analyticsService.updateRequestCount(containerId));
-            // don't call it if it XSL
-            if (!projectType.toString().equals("authentication microservice") ||
-                    (projectType.toString().equals("authentication microservice") && defaultIdp)) {
-                this.dbSourceRepository.findById(resource.getCustomQuery().getDatasource()).ifPresent(db -> {
-                    resource.setConnectionMode(db.getConnectionMode());
-                    resource.setPhysicalDatabase(db.getPhysicalDatabase());
-                    resource.setProvider(db.getProvider());
-                    resource.setBucketName(db.getBucketName());
-                    resource.setDatabaseType(db.getType());
-                });
+            if (proj.getSecurityConfig().getClientId() != null) {
+                clientId.append(proj.getSecurityConfig().getClientId());
             }
-            // fetch functions
-            try {
-                if (ress.getInFunctions() != null && !ress.getInFunctions().isEmpty()) {
-                    resource.setInFunctions(new ArrayList<RuntimeResourceFunction>());
-                    resource.getInFunctions().add(funtionRuntimeMapper
-                            .dtoToRuntime(this.functionService.findFunctionById(ress.getInFunctions().get(0))));
-                }
-            } catch (Exception e) {
-                resource.setInFunctions(new ArrayList<RuntimeResourceFunction>());
+            projectType.append(proj.getType());
+            if (proj.getAuthMSRuntimeURL() != null) {
+                resource.setAuthMSRuntimeUrl(proj.getAuthMSRuntimeURL());
             }
-            try {
-                if (ress.getOutFunctions() != null && !ress.getOutFunctions().isEmpty()) {
-                    resource.setOutFunctions(new ArrayList<RuntimeResourceFunction>());
-
-                    resource.getOutFunctions().add(funtionRuntimeMapper
-                            .dtoToRuntime(this.functionService.findFunctionById(ress.getOutFunctions().get(0))));
-                }
-            } catch (Exception e) {
-                resource.setOutFunctions(new ArrayList<RuntimeResourceFunction>());
+            if (proj.getType().equals("authentication microservice")) {
+                resource.setAuthMSRuntimeUrl(proj.getRuntimeUrl());
+                resource.setAuthorizedApps(proj.getAuthorizedApps());
             }
-            try {
-                if (ress.getFunctions() != null && !ress.getFunctions().isEmpty()) {
-                    resource.setFunctions(new ArrayList<RuntimeResourceFunction>());
 
-                    resource.getFunctions().add(funtionRuntimeMapper
-                            .dtoToRuntime(this.functionService.findFunctionById(ress.getFunctions().get(0))));
+            List<String> list = new ArrayList<>();
+            if (!proj.getIdentityProviderIds().isEmpty()) {
+                identityProviderIds.addAll(proj.getIdentityProviderIds());
+                if (proj.getIdentityProviderIds().get(0).equalsIgnoreCase(IdentityProviders.GRIZZLY.toString())) {
+                    resource.setDefaultIdP(true);
+                    defaultIdp = true;
+                } else {
+                    proj.getIdentityProviderIds().stream().forEach(ip -> {
+                        IdentityProvider idp = this.identityProviderRepository.findById(ip).get();
+                        list.add(idp.getName().toString());
+                    });
                 }
-            } catch (Exception e) {
-                resource.setFunctions(new ArrayList<RuntimeResourceFunction>());
             }
-            return resource;
-        }).orElse(null);
-    }
-
-    /**
-     * Test if the Received Path matches the Resource Path considering PathVariables
-     *
-     * @param resourcePath
-     * @param res
-     * @return boolean, True if paths match, false if not
-     */
-    private boolean hasSamePath(String resourcePath, String method, Resource res) {
+            resource.setExistedIdentityProvidersName(list);
+        }
+        resource.setSecurityKey(secretKey.toString());
+        resource.setClientId(clientId.toString());
+        resource.setCurrentMicroservicetype(projectType.toString());
+        resource.setReturnType(returnType);
+        // don't call it if it XSL
+        if (!projectType.toString().equals("authentication microservice") ||
+                (projectType.toString().equals("authentication microservice") && defaultIdp)) {
+            this.dbSourceRepository.findById(resource.getCustomQuery().getDatasource()).ifPresent(db -> {
+                resource.setConnectionMode(db.getConnectionMode());
+                resource.setPhysicalDatabase(db.getPhysicalDatabase());
+                resource.setProvider(db.getProvider());
+                resource.setBucketName(db.getBucketName());
+                resource.setDatabaseType(db.getType());
+            });
+        }
+        // fetch functions
+        try {
+            if (ress.getInFunctions() != null && !ress.getInFunctions().isEmpty()) {
+                resource.setInFunctions(new ArrayList<RuntimeResourceFunction>());
+                resource.getInFunctions().add(funtionRuntimeMapper
+                        .dtoToRuntime(this.functionService.findFunctionById(ress.getInFunctions().get(0))));
+            }
+        } catch (Exception e) {
+            resource.setInFunctions(new ArrayList<RuntimeResourceFunction>());
+        }
+        try {
+            if (ress.getOutFunctions() != null && !ress.getOutFunctions().isEmpty()) {
+                resource.setOutFunctions(new ArrayList<RuntimeResourceFunction>());
 
-        boolean result = false;
-        List<String> receivedPath = Arrays.asList(resourcePath.substring(1).split("/"));
-        List<String> resspath = Arrays.asList(res.getPath().substring(1).split("/"));
-        if (receivedPath.size() != resspath.size()) {
-            return false;
+                resource.getOutFunctions().add(funtionRuntimeMapper
+                        .dtoToRuntime(this.functionService.findFunctionById(ress.getOutFunctions().get(0))));
+            }
+        } catch (Exception e) {
+            resource.setOutFunctions(new ArrayList<RuntimeResourceFunction>());
         }
-        if (!res.getHttpMethod().equals(method)) {
-            return false;
-        } else {
-            if (!res.getPath().contains("{")) {
-                if (resourcePath.equalsIgnoreCase(res.getPath())) {
-                    return true;
-                }
-            } else {
-                String var1 = res.getPath().replace("{", ".");
-                if (resourcePath.length() >= var1.split("\\.")[0].length()) {
-                    if (resourcePath.substring(0, var1.split("\\.")[0].length())
-                            .equalsIgnoreCase(var1.split("\\.")[0])) {
-                        return true;
-                    }
-                }
+        try {
+            if (ress.getFunctions() != null && !ress.getFunctions().isEmpty()) {
+                resource.setFunctions(new ArrayList<RuntimeResourceFunction>());
 
+                resource.getFunctions().add(funtionRuntimeMapper
+                        .dtoToRuntime(this.functionService.findFunctionById(ress.getFunctions().get(0))));
             }
+        } catch (Exception e) {
+            resource.setFunctions(new ArrayList<RuntimeResourceFunction>());
         }
-        return result;
+        List<String> functionIds = new ArrayList<>();
+        Stream.of(ress.getInFunctions(), ress.getOutFunctions(), ress.getFunctions()).filter(Objects::nonNull)
+                .forEach(functionIds::addAll);
+        return new CachedRuntimeResource(resource, routes.getContainerId(), routes.getProjectId(),
+                resource.getCustomQuery().getDatasource(), identityProviderIds, functionIds);
     }
 
     /**
@@ -391,8 +403,16 @@ public class ResourceService {
                 Document metaData = new Document();
                 metaData.put("containerId", idContainer);
                 metaData.put("fileUri", file.getOriginalFilename());
-                String fileId = this.cacheService.getGridFs(mClient, databaseName)
-                        .store(file.getInputStream(), file.getOriginalFilename(), metaData).toHexString();
+                MongoDatabase database = this.filesHandler.getGridFsDatabase(container.getDbsourceId(),
+                        databaseName);
+                this.blobService.ensureIndex(database);
+                StoredFile stored;
+                try (InputStream in = file.getInputStream()) {
+                    stored = this.blobService.store(database, file.getOriginalFilename(), metaData, in,
+                            GridFsBlobService.DEFAULT_CHUNK_SIZE);
+                }
+                String fileId = stored.getId().toHexString();
+                dbsource.ifPresent(db -> storageUsageService.recordStored(db.getUserEmail(), stored.getStoredBytes()));
                 Optional<ContainerHierarchy> hierarchyOp = this.cHierarchyRepository.findById(container.getHierarchyId());
                 if (hierarchyOp.isPresent()) {
                     ContainerHierarchy hierarchy = hierarchyOp.get();
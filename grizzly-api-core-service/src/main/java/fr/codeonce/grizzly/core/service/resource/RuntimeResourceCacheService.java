@@ -0,0 +1,285 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.resource;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.common.runtime.resource.RuntimeResource;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.resource.RuntimeResourceEviction;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Cache of the fully assembled RuntimeResources served to the runtime, so that a hit costs no database read.
+ * Every entry remembers the Container, Project, IdentityProviders, DBSource and Functions it was built from
+ * and is evicted as soon as one of them changes. Evictions are published to the other nodes, which apply them
+ * within a few seconds, and passed to the EvictionListeners of the caches built from the same documents.
+ */
+@Service
+public class RuntimeResourceCacheService {
+
+    private static final Logger log = LoggerFactory.getLogger(RuntimeResourceCacheService.class);
+
+    private static final String CACHE_NAME = "runtimeResources";
+
+    public static final String CONTAINER = "container";
+
+    public static final String PROJECT = "project";
+
+    public static final String IDENTITY_PROVIDER = "identityProvider";
+
+    public static final String DBSOURCE = "dbsource";
+
+    public static final String FUNCTION = "function";
+
+    // The functions of a project, the cached RuntimeResources already track them by id
+    public static final String PROJECT_FUNCTIONS = "projectFunctions";
+
+    public static final String ALL = "all";
+
+    // Evictions published up to this long before the last poll are read again, for the clock skew between nodes
+    private static final long CLOCK_SKEW = 10_000;
+
+    private final String node = UUID.randomUUID().toString();
+
+    private volatile long lastPoll = System.currentTimeMillis();
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired(required = false)
+    private List<EvictionListener> evictionListeners = Collections.emptyList();
+
+    private Cache<String, CachedRuntimeResource> resources;
+
+    @PostConstruct
+    public void initResources() {
+        AppProperties.LocalCache spec = appProperties.getRuntimeResources() != null
+                ? appProperties.getRuntimeResources()
+                : new AppProperties.LocalCache();
+        this.resources = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .expireAfterWrite(spec.getExpireAfterWrite(), spec.getTimeUnit())/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            // Exposes cache.gets{result=hit|miss}, cache.evictions... under /actuator/metrics
+            CaffeineCacheMetrics.monitor(meterRegistry, resources, CACHE_NAME);
+        }
+    }
+
+    /**
+     * Returns the cached RuntimeResource, assembled by the loader on a miss. The returned instance is shared
+     * between requests and must not be modified.
+     *
+     * @param containerId
+     * @param method
+     * @param path        the matched resource path (ie. /users/{id}), not the requested one
+     * @param returnType
+     * @param loader
+     * @return RuntimeResource
+     */
+    public RuntimeResource get(String containerId, String method, String path, String returnType,
+                               Function<String, CachedRuntimeResource> loader) {
+        CachedRuntimeResource cached = resources.get(key(containerId, method, path, returnType), loader);
+        return cached != null ? cached.getResource() : null;
+    }
+
+    public void evictContainer(String containerId) {
+        evictAndPublish(CONTAINER, containerId);
+    }
+
+    public void evictProject(String projectId) {
+        evictAndPublish(PROJECT, projectId);
+    }
+
+    public void evictIdentityProvider(String identityProviderId) {
+        evictAndPublish(IDENTITY_PROVIDER, identityProviderId);
+    }
+
+    public void evictDBSource(String dbSourceId) {
+        evictAndPublish(DBSOURCE, dbSourceId);
+    }
+
+    public void evictFunction(String functionId) {
+        evictAndPublish(FUNCTION, functionId);
+    }
+
+    public void evictProjectFunctions(String projectId) {
+        evictAndPublish(PROJECT_FUNCTIONS, projectId);
+    }
+
+    public void evictAll() {
+        evictAndPublish(ALL, null);
+    }
+
+    /**
+     * Apply the evictions published by the other nodes since the last poll
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void applyPublishedEvictions() {
+        long now = System.currentTimeMillis();
+        try {
+            Query query = Query.query(Criteria.where("at").gte(new Date(lastPoll - CLOCK_SKEW)).and("node").ne(node));
+            // Evictions are idempotent, those read twice because of the skew margin are applied again
+            mongoTemplate.find(query, RuntimeResourceEviction.class)
+                    .forEach(eviction -> evict(eviction.getType(), eviction.getTargetId()));
+            lastPoll = now;
+        } catch (RuntimeException e) {
+            // Polled again from the same point, the entries expire meanwhile anyway
+            log.warn("Could not read the runtime resource evictions of the other nodes", e);
+        }
+    }
+
+    private void evictAndPublish(String type, String id) {
+        if (id == null && !ALL.equals(type)) {
+            return;
+        }
+        evict(type, id);
+        RuntimeResourceEviction eviction = new RuntimeResourceEviction();
+        eviction.setType(type);
+        eviction.setTargetId(id);
+        eviction.setNode(node);
+        eviction.setAt(new Date());
+        try {
+            mongoTemplate.insert(eviction);
+        } catch (RuntimeException e) {
+            // The other nodes serve the old entries until they expire
+            log.warn("Could not publish the eviction of the runtime resources of the {} {}", type, id, e);
+        }
+    }
+
+    private void evict(String type, String id) {
+        switch (type) {
+            case CONTAINER:
+                evict(cached -> Objects.equals(cached.containerId, id), type, id);
+                break;
+            case PROJECT:
+                evict(cached -> Objects.equals(cached.projectId, id), type, id);
+                break;
+            case IDENTITY_PROVIDER:
+                evict(cached -> cached.identityProviderIds.contains(id), type, id);
+                break;
+            case DBSOURCE:
+                evict(cached -> Objects.equals(cached.dbSourceId, id), type, id);
+                break;
+            case FUNCTION:
+                evict(cached -> cached.functionIds.contains(id), type, id);
+                break;
+            case PROJECT_FUNCTIONS:
+                break;
+            default:
+                resources.invalidateAll();
+        }
+        for (EvictionListener listener : evictionListeners) {
+            try {
+                listener.onEviction(type, id);
+            } catch (RuntimeException e) {
+                log.warn("Could not apply the eviction of the {} {} to {}", type, id, listener, e);
+            }
+        }
+    }
+
+    private void evict(Predicate<CachedRuntimeResource> predicate, String type, String id) {
+        if (id == null) {
+            return;
+        }
+        if (resources.asMap().values().removeIf(predicate)) {
+            log.debug("Runtime resources evicted after a change of the {} {}", type, id);
+        }
+    }
+
+    private static String key(String containerId, String method, String path, String returnType) {
+        return containerId + '|' + method + '|' + path + '|' + returnType;
+    }
+
+    /**
+     * A cache built from the same documents as the RuntimeResources, which applies their evictions whether they
+     * were made on this node or published by another one
+     */
+    public interface EvictionListener {
+
+        /**
+         * @param type one of container, project, identityProvider, dbsource, function, projectFunctions or all
+         * @param id   the id of the changed document, null for all
+         */
+        void onEviction(String type, String id);
+
+    }
+
+    /**
+     * An assembled RuntimeResource with the ids of the documents it depends on
+     */
+    public static class CachedRuntimeResource {
+
+        private final RuntimeResource resource;
+
+        private final String containerId;
+
+        private final String projectId;
+
+        private final String dbSourceId;
+
+        private final Set<String> identityProviderIds;
+
+        private final Set<String> functionIds;
+
+        public CachedRuntimeResource(RuntimeResource resource, String containerId, String projectId,
+                                     String dbSourceId, Collection<String> identityProviderIds,
+                                     Collection<String> functionIds) {
+            this.resource = resource;
+            this.containerId = containerId;
+            this.projectId = projectId;
+            this.dbSourceId = dbSourceId;
+            this.identityProviderIds = identityProviderIds != null ? new HashSet<>(identityProviderIds)
+                    : Collections.emptySet();
+            this.functionIds = functionIds != null ? new HashSet<>(functionIds) : Collections.emptySet();
+        }
+
+        public RuntimeResource getResource() {
+            return resource;
+        }
+
+    }
+
+}
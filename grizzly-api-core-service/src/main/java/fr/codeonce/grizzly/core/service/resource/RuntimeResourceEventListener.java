@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.resource;
+
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.function.Function;
+import fr.codeonce.grizzly.core.domain.function.FunctionRepository;
+import fr.codeonce.grizzly.core.domain.identityprovider.IdentityProvider;
+import fr.codeonce.grizzly.core.domain.project.Project;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeDeleteEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evict the cached RuntimeResources once a Project, DBSource, Function or IdentityProvider they were built from
+ * is saved or deleted through a repository. Evicting after the write, rather than before it in the services,
+ * keeps a concurrent runtime miss from caching the old state again. The Swagger documents embed the functions of
+ * their project, which are evicted with them.
+ */
+@Component
+public class RuntimeResourceEventListener extends AbstractMongoEventListener<Object> {
+
+    @Autowired
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
+    @Autowired
+    private FunctionRepository functionRepository;
+
+    // The project of a function deleted by id, only known before the delete
+    private final ThreadLocal<String> deletedFunctionProject = new ThreadLocal<>();
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Object> event) {
+        Object source = event.getSource();
+        if (source instanceof Project) {
+            runtimeResourceCacheService.evictProject(((Project) source).getId());
+        } else if (source instanceof DBSource) {
+            runtimeResourceCacheService.evictDBSource(((DBSource) source).getId());
+        } else if (source instanceof Function) {
+            runtimeResourceCacheService.evictFunction(((Function) source).getId());
+            runtimeResourceCacheService.evictProjectFunctions(((Function) source).getProjectId());
+        } else if (source instanceof IdentityProvider) {
+            runtimeResourceCacheService.evictIdentityProvider(((IdentityProvider) source).getId());
+        }
+    }
+
+    @Override
+    public void onBeforeDelete(BeforeDeleteEvent<Object> event) {
+        deletedFunctionProject.remove();
+        Class<?> type = event.getType();
+        Document query = event.getSource();
+        Object id = query != null ? query.get("_id") : null;
+        if (type == Function.class && id != null && !(id instanceof Document)) {
+            functionRepository.findById(String.valueOf(id))
+                    .ifPresent(function -> deletedFunctionProject.set(function.getProjectId()));
+        }
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Object> event) {
+        Class<?> type = event.getType();
+        if (type != Project.class && type != DBSource.class && type != Function.class
+                && type != IdentityProvider.class) {
+            return;
+        }
+        Document query = event.getSource();
+        Object id = query != null ? query.get("_id") : null;
+        if (id != null && !(id instanceof Document)) {
+            String deletedId = String.valueOf(id);
+            if (type == Project.class) {
+                runtimeResourceCacheService.evictProject(deletedId);
+            } else if (type == DBSource.class) {
+                runtimeResourceCacheService.evictDBSource(deletedId);
+            } else if (type == Function.class) {
+                runtimeResourceCacheService.evictFunction(deletedId);
+                runtimeResourceCacheService.evictProjectFunctions(deletedFunctionProject.get());
+                deletedFunctionProject.remove();
+            } else {
+                runtimeResourceCacheService.evictIdentityProvider(deletedId);
+            }
+        } else if (type == Function.class && query != null && query.get("projectId") instanceof String) {
+            // Deleted by name and version within a project
+            runtimeResourceCacheService.evictProject((String) query.get("projectId"));
+        } else {
+            // Deleted by query (ie. by name), the ids are unknown
+            runtimeResourceCacheService.evictAll();
+        }
+    }
+
+}
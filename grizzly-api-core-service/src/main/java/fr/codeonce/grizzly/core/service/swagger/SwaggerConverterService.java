@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.swagger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.swagger.v3.core.util.Json;
+import io.swagger.v3.oas.models.OpenAPI;
+import io.swagger.v3.parser.converter.SwaggerConverter;
+import io.swagger.v3.parser.core.models.ParseOptions;
+import io.swagger.v3.parser.core.models.SwaggerParseResult;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts Swagger 2 documents to OpenAPI 3 in process with the swagger-parser v2 converter, instead of posting
+ * them to converter.swagger.io. Conversions are memoized by the SHA-256 of the document.
+ */
+@Service
+public class SwaggerConverterService {
+
+    private static final Logger log = LoggerFactory.getLogger(SwaggerConverterService.class);
+
+    private static final String CACHE_NAME = "swaggerConversions";
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, String> conversions;
+
+    private Timer conversionTimer;
+
+    @PostConstruct
+    public void initConversions() {
+        AppProperties.LocalCache spec = appProperties.getSwaggerConversions() != null
+                ? appProperties.getSwaggerConversions()
+                : new AppProperties.LocalCache();
+        this.conversions = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .expireAfterWrite(spec.getExpireAfterWrite(), spec.getTimeUnit())/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, conversions, CACHE_NAME);
+            conversionTimer = Timer.builder("swagger.conversion")//
+                    .description("In-process conversion of a Swagger 2 document to OpenAPI 3").register(meterRegistry);
+        }
+    }
+
+    /**
+     * Convert a Swagger 2 document, JSON or YAML, to an OpenAPI 3 JSON document
+     *
+     * @param content
+     * @return the OpenAPI 3 document
+     * @throws IllegalArgumentException when the content is not a valid Swagger 2 document
+     */
+    public String toOpenApi(String content) {
+        return conversions.get(DigestUtils.sha256Hex(content), hash -> Json.pretty(convert(content)));
+    }
+
+    private OpenAPI convert(String content) {
+        long start = System.nanoTime();
+        SwaggerParseResult result = new SwaggerConverter().readContents(content, null, new ParseOptions());
+        long elapsed = System.nanoTime() - start;
+        if (conversionTimer != null) {
+            conversionTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        }
+        log.debug("Swagger document converted in {} ms", TimeUnit.NANOSECONDS.toMillis(elapsed));
+        if (result == null || result.getOpenAPI() == null) {
+            throw new IllegalArgumentException("Not a valid Swagger 2 document : "
+                    + (result != null && result.getMessages() != null ? result.getMessages() : "no content"));
+        }
+        return result.getOpenAPI();
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.swagger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of the generated Swagger 2 and OpenAPI 3 documents of the containers, with their gzip encoding and an
+ * ETag computed once. Entries are keyed by the lastUpdate of the container, so that a saved container never
+ * serves a previous document, and are evicted when the container, its project or the functions of the project
+ * change. The evictions are those published by the RuntimeResourceCacheService, so that every node applies them.
+ */
+@Service
+public class SwaggerSpecCacheService implements RuntimeResourceCacheService.EvictionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SwaggerSpecCacheService.class);
+
+    private static final String CACHE_NAME = "swaggerSpecs";
+
+    @Autowired
+    private AppProperties appProperties;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, CachedSpec> specs;
+
+    @PostConstruct
+    public void initSpecs() {
+        AppProperties.LocalCache spec = appProperties.getSwaggerSpecs() != null ? appProperties.getSwaggerSpecs()
+                : new AppProperties.LocalCache();
+        this.specs = Caffeine.newBuilder()/**/
+                .maximumSize(spec.getMaximumSize())/**/
+                .expireAfterWrite(spec.getExpireAfterWrite(), spec.getTimeUnit())/**/
+                .recordStats()/**/
+                .build();
+        if (meterRegistry != null) {
+            CaffeineCacheMetrics.monitor(meterRegistry, specs, CACHE_NAME);
+        }
+    }
+
+    /**
+     * Returns the cached document, generated by the given function on a miss
+     *
+     * @param containerId
+     * @param projectId
+     * @param lastUpdate  of the container
+     * @param type        dev or prod
+     * @param version     V2 for Swagger 2, V3 for OpenAPI 3
+     * @param generator   generates the document content
+     * @return CachedSpec
+     */
+    public CachedSpec get(String containerId, String projectId, Date lastUpdate, String type, String version,
+                          SpecGenerator generator) {
+        String key = containerId + '|' + (lastUpdate != null ? lastUpdate.getTime() : 0) + '|' + type + '|'
+                + version;
+        return specs.get(key, k -> {
+            try {
+                return new CachedSpec(containerId, projectId, generator.generate());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    public void evictContainer(String containerId) {
+        evict(cached -> Objects.equals(cached.containerId, containerId), "container", containerId);
+    }
+
+    public void evictProject(String projectId) {
+        evict(cached -> Objects.equals(cached.projectId, projectId), "project", projectId);
+    }
+
+    public void evictAll() {
+        specs.invalidateAll();
+    }
+
+    @Override
+    public void onEviction(String type, String id) {
+        switch (type) {
+            case RuntimeResourceCacheService.CONTAINER:
+                evictContainer(id);
+                break;
+            case RuntimeResourceCacheService.PROJECT:
+            case RuntimeResourceCacheService.PROJECT_FUNCTIONS:
+                // The documents embed the functions of the project, x-collectionName and the security settings
+                evictProject(id);
+                break;
+            case RuntimeResourceCacheService.ALL:
+                evictAll();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void evict(Predicate<CachedSpec> predicate, String type, String id) {
+        if (id == null) {
+            return;
+        }
+        if (specs.asMap().values().removeIf(predicate)) {
+            log.debug("Swagger documents evicted after a change of the {} {}", type, id);
+        }
+    }
+
+    @FunctionalInterface
+    public interface SpecGenerator {
+
+        String generate() throws IOException;
+
+    }
+
+    /**
+     * A generated document with its gzip encoding and their strong ETags, shared between requests
+     */
+    public static class CachedSpec {
+
+        private final String containerId;
+
+        private final String projectId;
+
+        private final String content;
+
+        private final byte[] bytes;
+
+        private final byte[] gzip;
+
+        private final String etag;
+
+        // The gzip encoding is another representation, with its own strong ETag
+        private final String gzipEtag;
+
+        public CachedSpec(String containerId, String projectId, String content) {
+            this.containerId = containerId;
+            this.projectId = projectId;
+            this.content = content;
+            this.bytes = content.getBytes(StandardCharsets.UTF_8);
+            this.gzip = gzip(bytes);
+            String hash = DigestUtils.sha256Hex(bytes);
+            this.etag = '"' + hash + '"';
+            this.gzipEtag = '"' + hash + "-gz\"";
+        }
+
+        private static byte[] gzip(byte[] bytes) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+            try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+                gzipOut.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * @return the UTF-8 encoded content
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public byte[] getGzip() {
+            return gzip;
+        }
+
+        /**
+         * @param gzip whether the gzip encoding is served
+         * @return the ETag of the served encoding
+         */
+        public String getEtag(boolean gzip) {
+            return gzip ? gzipEtag : etag;
+        }
+
+        /**
+         * @param ifNoneMatch the If-None-Match header of the request, may be null
+         * @param gzip        whether the gzip encoding is served
+         * @return whether the client already holds this encoding of the document
+         */
+        public boolean matches(String ifNoneMatch, boolean gzip) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            String expected = getEtag(gzip);
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                // Weak comparison, the proxies may have weakened the tag after re-encoding
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(expected)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.util;
+
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+/**
+ * Lease stored in Mongo so that a scheduled job runs on a single instance at a time. A lease is a document of
+ * the schedulerLock collection keyed by the job name, taken when it is absent or expired. An instance that
+ * dies keeps the job locked until the lease expires.
+ */
+@Component
+public class SchedulerLock {
+
+    private static final Logger log = LoggerFactory.getLogger(SchedulerLock.class);
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private static final String COLLECTION = "schedulerLock";
+
+    private static final String ID = "_id";
+
+    private static final String LOCK_UNTIL = "lockUntil";
+
+    private static final String LOCKED_AT = "lockedAt";
+
+    private static final String LOCKED_BY = "lockedBy";
+
+    // pid@hostname
+    private final String instance = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * Run the task if the lease of the given name could be taken
+     *
+     * @param name           job name
+     * @param lockAtMostFor  milliseconds after which the lease expires if its instance never releases it
+     * @param lockAtLeastFor milliseconds during which the lease is kept even if the task ends earlier, so that
+     *                       the other instances do not run the job again right after
+     * @param task
+     * @return whether the task was run
+     */
+    public boolean runLocked(String name, long lockAtMostFor, long lockAtLeastFor, Runnable task) {
+        Date lockedAt = new Date();
+        if (!acquire(name, lockedAt, lockAtMostFor)) {
+            log.debug("Job {} is locked by another instance", name);
+            return false;
+        }
+        try {
+            task.run();
+        } finally {
+            release(name, new Date(Math.max(System.currentTimeMillis(), lockedAt.getTime() + lockAtLeastFor)));
+        }
+        return true;
+    }
+
+    private boolean acquire(String name, Date now, long lockAtMostFor) {
+        try {
+            // Matches only an expired lease, the upsert fails with a duplicate key when the lease is held
+            getCollection().findOneAndUpdate(Filters.and(Filters.eq(ID, name), Filters.lte(LOCK_UNTIL, now)),
+                    Updates.combine(Updates.set(LOCK_UNTIL, new Date(now.getTime() + lockAtMostFor)),
+                            Updates.set(LOCKED_AT, now), Updates.set(LOCKED_BY, instance)),
+                    new FindOneAndUpdateOptions().upsert(true));
+            return true;
+        } catch (MongoServerException e) {
+            if (e.getCode() == DUPLICATE_KEY) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void release(String name, Date lockUntil) {
+        try {
+            // Only our own lease, it may have expired and been taken by another instance
+            getCollection().updateOne(Filters.and(Filters.eq(ID, name), Filters.eq(LOCKED_BY, instance)),
+                    Updates.set(LOCK_UNTIL, lockUntil));
+        } catch (RuntimeException e) {
+            log.warn("Could not release the lease of job {}, it will expire", name, e);
+        }
+    }
+
+    private MongoCollection<Document> getCollection() {
+        return mongoTemplate.getCollection(COLLECTION);
+    }
+
+}
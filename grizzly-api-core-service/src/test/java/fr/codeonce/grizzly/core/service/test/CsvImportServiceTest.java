@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.service.datasource.mongo.CsvImportService;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CsvImportServiceTest {
+
+    private final List<Document> inserted = new CopyOnWriteArrayList<>();
+
+    private CsvImportService csvImportService;
+
+    private MongoCollection<Document> collection;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void init() {
+        csvImportService = new CsvImportService();
+        ReflectionTestUtils.setField(csvImportService, "appProperties", new AppProperties());
+        csvImportService.initExecutor();
+        collection = mock(MongoCollection.class);
+        when(collection.getNamespace()).thenReturn(new MongoNamespace("test.rows"));
+        when(collection.bulkWrite(any(List.class), any(BulkWriteOptions.class))).thenAnswer(invocation -> {
+            List<WriteModel<Document>> writes = invocation.getArgument(0);
+            writes.forEach(write -> inserted.add(((InsertOneModel<Document>) write).getDocument()));
+            return null;
+        });
+    }
+
+    @AfterEach
+    public void shutdown() {
+        csvImportService.shutdown();
+    }
+
+    @Test
+    public void testNumbersAreNormalizedWithTheirSign() throws IOException {
+        Document row = importRow("007,-007,-0,-0.50,-.5,2.,-abc,-", false);
+        assertEquals("7", row.get("c0"));
+        assertEquals("-7", row.get("c1"));
+        assertEquals("0", row.get("c2"));
+        assertEquals("-0.5", row.get("c3"));
+        assertEquals("-0.5", row.get("c4"));
+        assertEquals("2.0", row.get("c5"));
+        assertEquals("-abc", row.get("c6"));
+        assertEquals("-", row.get("c7"));
+    }
+
+    @Test
+    public void testInferredNumbersKeepTheirSign() throws IOException {
+        Document row = importRow("-42,-3000000000,-0.0,-1.5,true", true);
+        assertEquals(-42, row.get("c0"));
+        assertEquals(-3000000000L, row.get("c1"));
+        assertEquals(0.0, row.get("c2"));
+        assertEquals(-1.5, row.get("c3"));
+        assertEquals(Boolean.TRUE, row.get("c4"));
+    }
+
+    @Test
+    public void testNumbersBeyondTheirTypeAreKeptAsStrings() throws IOException {
+        String large = "-123456789012345678901234567890";
+        String huge = "1" + "0".repeat(40);
+        String overflow = "1" + "0".repeat(400) + ".5";
+        Document row = importRow(large + "," + huge + "," + overflow, true);
+        assertEquals(new Decimal128(new BigDecimal(large)), row.get("c0"));
+        assertEquals(huge, row.get("c1"));
+        assertEquals(overflow, row.get("c2"));
+        assertEquals(overflow, importRow(overflow, false).get("c0"));
+    }
+
+    private Document importRow(String values, boolean inferTypes) throws IOException {
+        inserted.clear();
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < values.split(",", -1).length; i++) {
+            header.append(i > 0 ? "," : "").append("c").append(i);
+        }
+        CSVFormat format = CSVFormat.DEFAULT.builder().setHeader().setSkipHeaderRecord(true).build();
+        try (CSVParser parser = new CSVParser(new StringReader(header + "\n" + values + "\n"), format)) {
+            assertEquals(1, csvImportService.importRows(parser, collection, inferTypes));
+        }
+        assertEquals(1, inserted.size());
+        return inserted.get(0);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService.StoredFile;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GridFsBlobServiceTest {
+
+    private final GridFsBlobService blobService = new GridFsBlobService();
+
+    private MongoDatabase database;
+
+    private MongoCollection<Document> blobs;
+
+    private MongoCollection<Document> manifest;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void init() {
+        database = mock(MongoDatabase.class);
+        blobs = mock(MongoCollection.class);
+        manifest = mock(MongoCollection.class);
+        when(database.getCollection("blobs.files")).thenReturn(blobs);
+        when(database.getCollection(GridFsBlobService.MANIFEST)).thenReturn(manifest);
+    }
+
+    @Test
+    public void testStoredContentReferencesTheExistingBlob() {
+        ObjectId blobId = new ObjectId();
+        byte[] content = "<html></html>".getBytes(StandardCharsets.UTF_8);
+        when(blobs.findOneAndUpdate(any(Bson.class), any(Bson.class), any(FindOneAndUpdateOptions.class)))
+                .thenReturn(new Document("_id", blobId));
+
+        StoredFile stored = blobService.store(database, "index.html",
+                new Document("containerId", "c1").append("fileUri", "index.html"), content, 1024);
+
+        assertEquals(0, stored.getStoredBytes());
+        ArgumentCaptor<Document> entry = ArgumentCaptor.forClass(Document.class);
+        verify(manifest).insertOne(entry.capture());
+        // The default bucket is left to the files holding their chunks
+        verify(database, never()).getCollection("fs.files");
+        assertEquals(stored.getId(), entry.getValue().getObjectId("_id"));
+        assertEquals((long) content.length, entry.getValue().get("length"));
+        Document metadata = entry.getValue().get("metadata", Document.class);
+        assertEquals("c1", metadata.getString("containerId"));
+        assertEquals(blobId, metadata.getObjectId(GridFsBlobService.BLOB));
+        assertEquals(DigestUtils.sha256Hex(content), metadata.getString("sha256"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCopyOnlyReferencesTheBlobs() {
+        ObjectId blobId = new ObjectId();
+        Document first = blobFile(blobId, "a.html");
+        Document second = blobFile(blobId, "b.html");
+        Document legacy = new Document("_id", new ObjectId()).append("metadata", new Document("containerId", "c1"));
+        when(blobs.updateOne(any(Bson.class), any(Bson.class))).thenReturn(UpdateResult.acknowledged(1, 1L, null));
+
+        Map<ObjectId, ObjectId> copies = blobService.copy(database, Arrays.asList(first, second, legacy), "c2");
+
+        assertEquals(2, copies.size());
+        assertFalse(copies.containsKey(legacy.getObjectId("_id")));
+        ArgumentCaptor<Bson> update = ArgumentCaptor.forClass(Bson.class);
+        verify(blobs).updateOne(any(Bson.class), update.capture());
+        BsonValue refs = update.getValue().toBsonDocument().getDocument("$inc").get("metadata.refs");
+        assertEquals(2L, refs.asNumber().longValue());
+        ArgumentCaptor<List<Document>> entries = ArgumentCaptor.forClass(List.class);
+        verify(manifest).insertMany(entries.capture());
+        assertEquals(2, entries.getValue().size());
+        for (Document entry : entries.getValue()) {
+            Document metadata = entry.get("metadata", Document.class);
+            assertEquals("c2", metadata.getString("containerId"));
+            assertEquals(blobId, metadata.getObjectId(GridFsBlobService.BLOB));
+            assertEquals(copies.get(findSource(entry, first, second)), entry.getObjectId("_id"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCopySkipsTheDeletedBlobs() {
+        when(blobs.updateOne(any(Bson.class), any(Bson.class))).thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+        Map<ObjectId, ObjectId> copies = blobService.copy(database, List.of(blobFile(new ObjectId(), "a.html")),
+                "c2");
+
+        assertTrue(copies.isEmpty());
+        verify(manifest, never()).insertMany(any(List.class));
+    }
+
+    private static Document blobFile(ObjectId blobId, String fileUri) {
+        return new Document("_id", new ObjectId()).append("length", 13L).append("metadata",
+                new Document("containerId", "c1").append("fileUri", fileUri).append(GridFsBlobService.BLOB, blobId));
+    }
+
+    private static ObjectId findSource(Document copy, Document... sources) {
+        String fileUri = copy.get("metadata", Document.class).getString("fileUri");
+        return Arrays.stream(sources).filter(source -> fileUri.equals(
+                source.get("metadata", Document.class).getString("fileUri"))).findFirst().get().getObjectId("_id");
+    }
+
+}
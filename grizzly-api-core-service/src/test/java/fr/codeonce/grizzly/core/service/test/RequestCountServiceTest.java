@@ -0,0 +1,257 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import fr.codeonce.grizzly.core.domain.analytics.Analytics;
+import fr.codeonce.grizzly.core.domain.analytics.RequestBucket;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.service.analytics.RequestCountService;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RequestCountServiceTest {
+
+    // Lifetime request count by container, as upserted in the analytics collection
+    private final Map<String, Long> stored = new ConcurrentHashMap<>();
+
+    // Containers whose upserts fail
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+
+    // Request count by bucket granularity, as upserted in the request bucket collection
+    private final Map<String, Long> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean bucketsFailing = new AtomicBoolean();
+
+    // Whether the analytics upserts are written but the bulk write then fails, ie. on a network timeout
+    private final AtomicBoolean analyticsTimingOut = new AtomicBoolean();
+
+    private RequestCountService service;
+
+    @BeforeEach
+    public void setUp() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.bulkOps(eq(BulkMode.UNORDERED), eq(Analytics.class))).thenAnswer(i -> analyticsBulk());
+        when(mongoTemplate.bulkOps(eq(BulkMode.UNORDERED), eq(RequestBucket.class))).thenAnswer(i -> bucketBulk());
+        service = new RequestCountService();
+        ReflectionTestUtils.setField(service, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(service, "appProperties", new AppProperties());
+        service.initMetrics();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    private BulkOperations analyticsBulk() {
+        BulkOperations operations = mock(BulkOperations.class);
+        List<Document> upserts = Collections.synchronizedList(new ArrayList<>());
+        when(operations.upsert(any(Query.class), any(Update.class))).thenAnswer(i -> {
+            Query query = i.getArgument(0);
+            Update update = i.getArgument(1);
+            upserts.add(new Document("containerId", query.getQueryObject().get("containerId"))
+                    .append("count", ((Document) update.getUpdateObject().get("$inc")).get("requestCount")));
+            return operations;
+        });
+        when(operations.execute()).thenAnswer(i -> {
+            List<BulkWriteError> errors = new ArrayList<>();
+            for (int index = 0; index < upserts.size(); index++) {
+                String containerId = upserts.get(index).getString("containerId");
+                if (failing.contains(containerId)) {
+                    errors.add(new BulkWriteError(11000, "failed", new BsonDocument(), index));
+                } else {
+                    stored.merge(containerId, ((Number) upserts.get(index).get("count")).longValue(), Long::sum);
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new BulkOperationException("failed", new MongoBulkWriteException(
+                        BulkWriteResult.unacknowledged(), errors, null, null, Collections.emptySet()));
+            }
+            if (analyticsTimingOut.get()) {
+                throw new IllegalStateException("Timed out while receiving message");
+            }
+            return BulkWriteResult.unacknowledged();
+        });
+        return operations;
+    }
+
+    private BulkOperations bucketBulk() {
+        BulkOperations operations = mock(BulkOperations.class);
+        List<Document> upserts = Collections.synchronizedList(new ArrayList<>());
+        when(operations.upsert(any(Query.class), any(Update.class))).thenAnswer(i -> {
+            Query query = i.getArgument(0);
+            Update update = i.getArgument(1);
+            upserts.add(new Document("granularity", String.valueOf(query.getQueryObject().get("granularity")))
+                    .append("count", ((Document) update.getUpdateObject().get("$inc")).get("count")));
+            return operations;
+        });
+        when(operations.execute()).thenAnswer(i -> {
+            if (bucketsFailing.get()) {
+                List<BulkWriteError> errors = new ArrayList<>();
+                for (int index = 0; index < upserts.size(); index++) {
+                    errors.add(new BulkWriteError(11000, "failed", new BsonDocument(), index));
+                }
+                throw new BulkOperationException("failed", new MongoBulkWriteException(
+                        BulkWriteResult.unacknowledged(), errors, null, null, Collections.emptySet()));
+            }
+            upserts.forEach(upsert -> buckets.merge(upsert.getString("granularity"),
+                    ((Number) upsert.get("count")).longValue(), Long::sum));
+            return BulkWriteResult.unacknowledged();
+        });
+        return operations;
+    }
+
+    @Test
+    public void testServedRequestsAreFlushedPerContainer() {
+        service.increment("c1", "/users", "GET", 200);
+        service.increment("c1", "/users", "GET", 200);
+        service.increment("c1", "/users/{id}", "GET", 201);
+        service.increment("c1", "/users", "GET", 404);
+        service.increment("c2", null, "GET", 200);
+        assertEquals(5, service.getBacklog());
+
+        service.scheduledFlush();
+
+        assertEquals(3L, stored.get("c1"));
+        assertEquals(1L, stored.get("c2"));
+        assertEquals(0, service.getBacklog());
+    }
+
+    @Test
+    public void testOnlyFailedUpsertsAreRetried() {
+        failing.add("c2");
+        service.increment("c1", "/users", "GET", 200);
+        service.increment("c1", "/users", "GET", 200);
+        service.increment("c2", "/orders", "GET", 200);
+        service.increment("c2", "/orders", "GET", 200);
+        service.increment("c2", "/orders", "POST", 200);
+
+        service.scheduledFlush();
+
+        assertEquals(2L, stored.get("c1"));
+        assertNull(stored.get("c2"));
+        assertEquals(3, service.getBacklog());
+
+        failing.clear();
+        service.scheduledFlush();
+
+        // The successful upsert of c1 is not counted twice
+        assertEquals(2L, stored.get("c1"));
+        assertEquals(3L, stored.get("c2"));
+        assertEquals(0, service.getBacklog());
+    }
+
+    @Test
+    public void testFailedBucketUpsertsAreRetriedAlone() {
+        bucketsFailing.set(true);
+        service.increment("c1", "/users", "GET", 200);
+        service.increment("c1", "/users", "GET", 500);
+
+        service.scheduledFlush();
+
+        assertEquals(1L, stored.get("c1"));
+        assertTrue(buckets.isEmpty());
+
+        bucketsFailing.set(false);
+        service.scheduledFlush();
+
+        assertEquals(1L, stored.get("c1"));
+        assertEquals(2L, buckets.get("MINUTE"));
+        assertEquals(2L, buckets.get("HOUR"));
+        assertEquals(2L, buckets.get("DAY"));
+    }
+
+    @Test
+    public void testCountsAreNotRetriedAfterAnUnknownOutcome() {
+        analyticsTimingOut.set(true);
+        service.increment("c1", "/users", "GET", 200);
+        service.increment("c1", "/users", "GET", 200);
+
+        service.scheduledFlush();
+
+        // The upsert went through before the error, the buckets are still written
+        assertEquals(2L, stored.get("c1"));
+        assertEquals(2L, buckets.get("MINUTE"));
+        assertEquals(0, service.getBacklog());
+
+        analyticsTimingOut.set(false);
+        service.scheduledFlush();
+
+        assertEquals(2L, stored.get("c1"));
+        assertEquals(2L, buckets.get("MINUTE"));
+    }
+
+    @Test
+    public void testIncrementsRacingWithFlushesAreNotLost() throws InterruptedException {
+        int threads = 4;
+        int increments = 20000;
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicBoolean running = new AtomicBoolean(true);
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    // Many endpoints, so that some of them are idle and removed by the flushes
+                    service.increment("c1", "/path" + ((i + offset) % 64), "GET", 200);
+                }
+                done.countDown();
+            }).start();
+        }
+        Thread flusher = new Thread(() -> {
+            while (running.get()) {
+                service.scheduledFlush();
+            }
+        });
+        flusher.start();
+        done.await();
+        running.set(false);
+        flusher.join();
+        service.scheduledFlush();
+
+        assertEquals((long) threads * increments, stored.get("c1"));
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.resource.Resource;
+import fr.codeonce.grizzly.core.service.resource.ResourceRouteIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResourceRouteIndexTest {
+
+    private static Resource resource(String method, String path) {
+        Resource resource = new Resource();
+        resource.setHttpMethod(method);
+        resource.setPath(path);
+        return resource;
+    }
+
+    @Test
+    public void testLiteralSegmentsMatchBeforeParams() {
+        Container container = new Container();
+        container.setId("c1");
+        container.setProjectId("p1");
+        container.setLastUpdate(new Date(42));
+        Resource byId = resource("GET", "/users/{id}");
+        Resource me = resource("GET", "/users/me");
+        Resource orders = resource("GET", "/users/{id}/orders");
+        Resource create = resource("POST", "/users");
+        container.getResources().add(byId);
+        container.getResources().add(me);
+        container.getResources().add(orders);
+        container.getResources().add(create);
+
+        ResourceRouteIndex index = ResourceRouteIndex.build(container);
+
+        assertEquals(42, index.getVersion());
+        assertEquals("p1", index.getProjectId());
+        assertSame(me, index.find("GET", "/Users/ME"));
+        assertSame(byId, index.find("GET", "/users/12"));
+        assertSame(orders, index.find("GET", "/users/me/orders"));
+        assertSame(create, index.find("POST", "/users"));
+        assertNull(index.find("POST", "/users/12"));
+        assertNull(index.find("GET", "/users"));
+        assertNull(index.find("GET", "/users/12/invoices"));
+    }
+
+    @Test
+    public void testFirstDeclaredResourceWins() {
+        Container container = new Container();
+        Resource first = resource("GET", "/items/{id}");
+        container.getResources().add(first);
+        container.getResources().add(resource("GET", "/items/{itemId}"));
+
+        assertSame(first, ResourceRouteIndex.build(container).find("GET", "/items/3"));
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import fr.codeonce.grizzly.common.runtime.Provider;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.datasource.sql.SqlCacheService;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import fr.codeonce.grizzly.core.service.util.CryptoHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SqlCacheServiceTest {
+
+    private static final String DBSOURCE_ID = "dbsource";
+
+    private SqlCacheService sqlCacheService;
+
+    private DBSourceRepository dbSourceRepository;
+
+    private CryptoHelper encryption;
+
+    @BeforeEach
+    public void init() {
+        DBSource dbSource = new DBSource();
+        dbSource.setId(DBSOURCE_ID);
+        dbSource.setProvider(Provider.POSTGRESQL);
+        dbSource.setHost("localhost");
+        dbSource.setPort(5432);
+        dbSource.setDatabase("grizzly");
+        dbSource.setUsername("grizzly");
+        dbSourceRepository = mock(DBSourceRepository.class);
+        when(dbSourceRepository.findById(DBSOURCE_ID)).thenReturn(Optional.of(dbSource));
+        encryption = mock(CryptoHelper.class);
+
+        sqlCacheService = new SqlCacheService();
+        ReflectionTestUtils.setField(sqlCacheService, "dBSourceRepository", dbSourceRepository);
+        ReflectionTestUtils.setField(sqlCacheService, "encryption", encryption);
+        ReflectionTestUtils.setField(sqlCacheService, "appProperties", new AppProperties());
+        sqlCacheService.initPools();
+    }
+
+    @AfterEach
+    public void shutdown() {
+        sqlCacheService.closePools();
+    }
+
+    @Test
+    public void testTheSettingsAreOnlyReadOnceForTheSamePool() {
+        // The pool only connects on the first borrow, none is needed here
+        assertSame(sqlCacheService.prepareDatasourceClient(DBSOURCE_ID),
+                sqlCacheService.prepareDatasourceClient(DBSOURCE_ID));
+
+        verify(dbSourceRepository, times(1)).findById(DBSOURCE_ID);
+        verify(encryption, times(1)).decrypt(any(DBSource.class));
+    }
+
+    @Test
+    public void testThePublishedEvictionOfTheDatasourceReadsTheSettingsAgain() {
+        Object before = sqlCacheService.prepareDatasourceClient(DBSOURCE_ID);
+        // Applied as an eviction published by another node
+        sqlCacheService.onEviction(RuntimeResourceCacheService.DBSOURCE, DBSOURCE_ID);
+
+        assertNotSame(before, sqlCacheService.prepareDatasourceClient(DBSOURCE_ID));
+        verify(dbSourceRepository, times(2)).findById(DBSOURCE_ID);
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.Table;
+import fr.codeonce.grizzly.core.service.datasource.sql.SqlSchemaSnapshotService;
+import fr.codeonce.grizzly.core.service.datasource.sql.SqlSchemaSnapshotService.SchemaSnapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SqlSchemaSnapshotServiceTest {
+
+    private static final String DBSOURCE_ID = "dbsource";
+
+    private final AppProperties appProperties = new AppProperties();
+
+    private SqlSchemaSnapshotService snapshotService;
+
+    @BeforeEach
+    public void init() {
+        snapshotService = new SqlSchemaSnapshotService();
+        ReflectionTestUtils.setField(snapshotService, "appProperties", appProperties);
+        snapshotService.initSnapshots();
+    }
+
+    @AfterEach
+    public void shutdown() {
+        snapshotService.shutdown();
+    }
+
+    @Test
+    public void testFailedReadKeepsThePreviousTables() {
+        List<Table> tables = Collections.singletonList(table("users"));
+        SchemaSnapshot ready = snapshotService.get(DBSOURCE_ID, () -> tables);
+        assertTrue(ready.isAvailable());
+
+        SchemaSnapshot failed = snapshotService.refresh(DBSOURCE_ID, unreachable()).join();
+        assertSame(tables, failed.getTables());
+        assertFalse(failed.isAvailable());
+        assertEquals("Connection refused", failed.getError());
+        assertTrue(failed.getVersion() > ready.getVersion());
+        assertEquals(SqlSchemaSnapshotService.STATUS_FAILED, snapshotService.getStatus(DBSOURCE_ID, failed));
+        assertSame(failed, snapshotService.peek(DBSOURCE_ID, () -> tables));
+    }
+
+    @Test
+    public void testFailedReadIsRetriedBeforeTheSnapshotExpires() {
+        appProperties.getSqlSchemas().setRetryAfterFailure(0);
+        SchemaSnapshot failed = snapshotService.get(DBSOURCE_ID, unreachable());
+        assertFalse(failed.isAvailable());
+        assertTrue(failed.getTables().isEmpty());
+
+        AtomicInteger reads = new AtomicInteger();
+        List<Table> tables = Collections.singletonList(table("users"));
+        Supplier<List<Table>> reader = () -> {
+            reads.incrementAndGet();
+            return tables;
+        };
+        sleep(5);
+        // Served as is while it is read again
+        assertSame(failed, snapshotService.peek(DBSOURCE_ID, reader));
+        SchemaSnapshot ready = awaitNewSnapshot(failed, reader);
+        assertTrue(ready.isAvailable());
+        assertSame(tables, ready.getTables());
+        assertEquals(1, reads.get());
+
+        // A successful read is kept until expireAfterWrite
+        sleep(5);
+        assertSame(ready, snapshotService.peek(DBSOURCE_ID, reader));
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void testUnsavedDatasourceReadIsNotCached() {
+        SchemaSnapshot failed = snapshotService.read(unreachable());
+        assertFalse(failed.isAvailable());
+        assertTrue(failed.getTables().isEmpty());
+        assertNull(snapshotService.peek(DBSOURCE_ID, unreachable()));
+    }
+
+    private SchemaSnapshot awaitNewSnapshot(SchemaSnapshot previous, Supplier<List<Table>> reader) {
+        for (int i = 0; i < 500; i++) {
+            SchemaSnapshot snapshot = snapshotService.peek(DBSOURCE_ID, reader);
+            if (snapshot != previous) {
+                return snapshot;
+            }
+            sleep(10);
+        }
+        throw new AssertionError("The snapshot was not read again");
+    }
+
+    private static Supplier<List<Table>> unreachable() {
+        return () -> {
+            throw new IllegalStateException("Connection refused");
+        };
+    }
+
+    private static Table table(String name) {
+        Table table = new Table();
+        table.setName(name);
+        return table;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.domain.container.ContainerRepository;
+import fr.codeonce.grizzly.core.domain.datasource.DBSource;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.fs.FilesHandler;
+import fr.codeonce.grizzly.core.service.fs.GridFsBlobService;
+import fr.codeonce.grizzly.core.service.fs.StaticFileService;
+import fr.codeonce.grizzly.core.service.fs.StaticFileService.StaticFile;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StaticFileServiceTest {
+
+    private static final byte[] CONTENT = "<html></html>".getBytes(StandardCharsets.UTF_8);
+
+    private final GridFSFile file = new GridFSFile(new BsonObjectId(new ObjectId()), "index.html", CONTENT.length,
+            1024, new Date(), new Document("containerId", "container").append("fileUri", "index.html"));
+
+    private StaticFileService staticFileService;
+
+    private ContainerRepository containerRepository;
+
+    private DBSourceRepository dbSourceRepository;
+
+    private FilesHandler filesHandler;
+
+    private GridFsBlobService blobService;
+
+    @BeforeEach
+    public void init() {
+        Container container = new Container();
+        container.setId("container");
+        container.setDbsourceId("dbsource");
+        container.setDatabaseName("files");
+        DBSource dbSource = new DBSource();
+        dbSource.setId("dbsource");
+        containerRepository = mock(ContainerRepository.class);
+        when(containerRepository.findById("container")).thenReturn(Optional.of(container));
+        dbSourceRepository = mock(DBSourceRepository.class);
+        when(dbSourceRepository.findById("dbsource")).thenReturn(Optional.of(dbSource));
+        filesHandler = mock(FilesHandler.class);
+        blobService = mock(GridFsBlobService.class);
+
+        staticFileService = new StaticFileService();
+        ReflectionTestUtils.setField(staticFileService, "containerRepository", containerRepository);
+        ReflectionTestUtils.setField(staticFileService, "dbSourceRepository", dbSourceRepository);
+        ReflectionTestUtils.setField(staticFileService, "filesHandler", filesHandler);
+        ReflectionTestUtils.setField(staticFileService, "blobService", blobService);
+        ReflectionTestUtils.setField(staticFileService, "appProperties", new AppProperties());
+        staticFileService.initCaches();
+    }
+
+    @Test
+    public void testTheClientIsResolvedOnEachRequest() throws IOException {
+        // The cached client is evicted and replaced between the two requests
+        MongoDatabase before = database();
+        MongoDatabase after = database();
+        when(filesHandler.getGridFsDatabase(any(DBSource.class), eq("files"))).thenReturn(before, before, after);
+        when(blobService.findOne(any(MongoDatabase.class), any(Bson.class))).thenReturn(file);
+        when(blobService.read(after, file)).thenReturn(CONTENT);
+
+        assertNotNull(staticFileService.getFile("container", "index.html"));
+        StaticFile served = staticFileService.getFile("container", "index.html");
+
+        assertNotNull(served);
+        try (InputStream in = served.getInputStream()) {
+            assertArrayEquals(CONTENT, in.readAllBytes());
+        }
+        verify(blobService).read(after, file);
+        // The location of the container is still cached
+        verify(containerRepository, times(1)).findById("container");
+        verify(dbSourceRepository, times(1)).findById("dbsource");
+    }
+
+    @Test
+    public void testThePublishedEvictionOfTheDatasourceResolvesItAgain() {
+        MongoDatabase database = database();
+        when(filesHandler.getGridFsDatabase(any(DBSource.class), eq("files"))).thenReturn(database);
+        when(blobService.findOne(any(MongoDatabase.class), any(Bson.class))).thenReturn(file);
+
+        assertNotNull(staticFileService.getFile("container", "index.html"));
+        // Applied as an eviction published by another node
+        staticFileService.onEviction(RuntimeResourceCacheService.DBSOURCE, "dbsource");
+        assertNotNull(staticFileService.getFile("container", "index.html"));
+
+        verify(dbSourceRepository, times(2)).findById("dbsource");
+    }
+
+    @SuppressWarnings("unchecked")
+    private MongoDatabase database() {
+        MongoDatabase database = mock(MongoDatabase.class);
+        when(database.getCollection("fs.files")).thenReturn(mock(MongoCollection.class));
+        return database;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.datasource.DBSourceRepository;
+import fr.codeonce.grizzly.core.service.analytics.StorageStatsCollector;
+import fr.codeonce.grizzly.core.service.analytics.StorageStatsCollector.StorageStats;
+import fr.codeonce.grizzly.core.service.analytics.StorageUsageService;
+import fr.codeonce.grizzly.core.service.util.CryptoHelper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StorageUsageServiceTest {
+
+    private static final String EMAIL = "user@codeonce.fr";
+
+    private StorageUsageService storageUsageService;
+
+    private StorageStatsCollector statsCollector;
+
+    @BeforeEach
+    public void init() {
+        DBSourceRepository dbSourceRepository = mock(DBSourceRepository.class);
+        when(dbSourceRepository.findAllByUserEmail(EMAIL)).thenReturn(Collections.emptyList());
+        statsCollector = mock(StorageStatsCollector.class);
+
+        storageUsageService = new StorageUsageService();
+        ReflectionTestUtils.setField(storageUsageService, "dbSourceRepository", dbSourceRepository);
+        ReflectionTestUtils.setField(storageUsageService, "statsCollector", statsCollector);
+        ReflectionTestUtils.setField(storageUsageService, "encryption", mock(CryptoHelper.class));
+        ReflectionTestUtils.setField(storageUsageService, "appProperties", new AppProperties());
+        storageUsageService.initUsages();
+    }
+
+    @Test
+    public void testFilesRecordedDuringTheRefreshAreKept() {
+        when(statsCollector.collect(anyList())).thenReturn(stats(100, 10));
+        storageUsageService.getUsage(EMAIL);
+        storageUsageService.recordStored(EMAIL, 5 * 1024);
+
+        // A file stored while the stats are collected, after they were read
+        when(statsCollector.collect(anyList())).thenAnswer(invocation -> {
+            storageUsageService.recordStored(EMAIL, 2 * 1024);
+            return stats(105, 15);
+        });
+        storageUsageService.refreshAll();
+
+        assertEquals(17, storageUsageService.getUsage(EMAIL).getStoredFile());
+        assertEquals(107, storageUsageService.getUsage(EMAIL).getTotalStored());
+
+        when(statsCollector.collect(anyList())).thenAnswer(invocation -> {
+            storageUsageService.recordDeleted(EMAIL, 3 * 1024);
+            return stats(104, 14);
+        });
+        storageUsageService.refresh(EMAIL);
+
+        assertEquals(11, storageUsageService.getUsage(EMAIL).getStoredFile());
+        assertEquals(101, storageUsageService.getUsage(EMAIL).getTotalStored());
+    }
+
+    private static StorageStats stats(double dataSize, double fileSize) {
+        return new StorageStats(dataSize, fileSize, Collections.emptyMap());
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.service.swagger.SwaggerConverterService;
+import io.swagger.v3.core.util.Json;
+import io.swagger.v3.parser.converter.SwaggerConverter;
+import io.swagger.v3.parser.core.models.ParseOptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SwaggerConverterServiceTest {
+
+    private static final String SWAGGER = "{\"swagger\":\"2.0\",\"info\":{\"title\":\"users\",\"version\":\"1.0\"},"
+            + "\"host\":\"localhost:8080\",\"basePath\":\"/runtime/container\",\"schemes\":[\"https\"],"
+            + "\"paths\":{\"/users/{id}\":{\"get\":{\"produces\":[\"application/json\"],\"parameters\":"
+            + "[{\"name\":\"id\",\"in\":\"path\",\"required\":true,\"type\":\"string\"}],"
+            + "\"responses\":{\"200\":{\"description\":\"OK\",\"schema\":{\"$ref\":\"#/definitions/User\"}}}}}},"
+            + "\"definitions\":{\"User\":{\"type\":\"object\",\"properties\":{\"name\":{\"type\":\"string\"}}}}}";
+
+    private SwaggerConverterService swaggerConverterService;
+
+    @BeforeEach
+    public void init() {
+        swaggerConverterService = new SwaggerConverterService();
+        ReflectionTestUtils.setField(swaggerConverterService, "appProperties", new AppProperties());
+        swaggerConverterService.initConversions();
+    }
+
+    @Test
+    public void testMemoizedConversionMatchesTheConverter() {
+        String unmemoized = Json.pretty(new SwaggerConverter().readContents(SWAGGER, null, new ParseOptions())
+                .getOpenAPI());
+
+        String converted = swaggerConverterService.toOpenApi(SWAGGER);
+        String memoized = swaggerConverterService.toOpenApi(SWAGGER);
+
+        assertEquals(unmemoized, converted);
+        assertSame(converted, memoized);
+        assertTrue(converted.contains("\"openapi\" : \"3.0.1\""));
+        assertTrue(converted.contains("#/components/schemas/User"));
+    }
+
+    @Test
+    public void testInvalidDocumentIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> swaggerConverterService.toOpenApi("not a document"));
+        // Not memoized, rejected again
+        assertThrows(IllegalArgumentException.class, () -> swaggerConverterService.toOpenApi("not a document"));
+    }
+
+}
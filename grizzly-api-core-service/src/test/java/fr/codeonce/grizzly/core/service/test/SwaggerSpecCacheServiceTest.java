@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test;
+
+import fr.codeonce.grizzly.core.domain.config.AppProperties;
+import fr.codeonce.grizzly.core.domain.resource.RuntimeResourceEviction;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import fr.codeonce.grizzly.core.service.swagger.SwaggerSpecCacheService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SwaggerSpecCacheServiceTest {
+
+    private final Date lastUpdate = new Date();
+
+    private final AtomicInteger generated = new AtomicInteger();
+
+    private MongoTemplate mongoTemplate;
+
+    private SwaggerSpecCacheService swaggerSpecCacheService;
+
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
+    @BeforeEach
+    public void init() {
+        mongoTemplate = mock(MongoTemplate.class);
+        swaggerSpecCacheService = new SwaggerSpecCacheService();
+        ReflectionTestUtils.setField(swaggerSpecCacheService, "appProperties", new AppProperties());
+        swaggerSpecCacheService.initSpecs();
+        runtimeResourceCacheService = new RuntimeResourceCacheService();
+        ReflectionTestUtils.setField(runtimeResourceCacheService, "appProperties", new AppProperties());
+        ReflectionTestUtils.setField(runtimeResourceCacheService, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(runtimeResourceCacheService, "evictionListeners",
+                List.of(swaggerSpecCacheService));
+        runtimeResourceCacheService.initResources();
+    }
+
+    @Test
+    public void testContainerEvictionDropsItsSpecs() {
+        getSpec("c1", "p1");
+        getSpec("c2", "p1");
+
+        // ie. a collection renamed in the resources of c1, whose lastUpdate and key do not change
+        runtimeResourceCacheService.evictContainer("c1");
+
+        getSpec("c1", "p1");
+        getSpec("c2", "p1");
+        assertEquals(3, generated.get());
+    }
+
+    @Test
+    public void testPublishedEvictionsDropTheSpecs() {
+        getSpec("c1", "p1");
+        getSpec("c2", "p2");
+        when(mongoTemplate.find(any(Query.class), eq(RuntimeResourceEviction.class))).thenReturn(List.of(
+                eviction(RuntimeResourceCacheService.CONTAINER, "c1"),
+                eviction(RuntimeResourceCacheService.PROJECT_FUNCTIONS, "p2")));
+
+        runtimeResourceCacheService.applyPublishedEvictions();
+
+        getSpec("c1", "p1");
+        getSpec("c2", "p2");
+        assertEquals(4, generated.get());
+    }
+
+    private void getSpec(String containerId, String projectId) {
+        swaggerSpecCacheService.get(containerId, projectId, lastUpdate, "dev", "V3",
+                () -> "{\"openapi\":\"3.0.1\",\"n\":" + generated.incrementAndGet() + "}");
+    }
+
+    private static RuntimeResourceEviction eviction(String type, String targetId) {
+        RuntimeResourceEviction eviction = new RuntimeResourceEviction();
+        eviction.setType(type);
+        eviction.setTargetId(targetId);
+        eviction.setNode("another node");
+        eviction.setAt(new Date());
+        return eviction;
+    }
+
+}
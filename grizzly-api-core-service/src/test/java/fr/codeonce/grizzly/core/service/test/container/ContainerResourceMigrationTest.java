@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test.container;
+
+import fr.codeonce.grizzly.core.domain.container.Container;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceMigration;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceStore;
+import fr.codeonce.grizzly.core.service.resource.RuntimeResourceCacheService;
+import fr.codeonce.grizzly.core.service.util.SchedulerLock;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContainerResourceMigrationTest {
+
+    private static final String COLLECTION = "container";
+
+    private final Document container = new Document("_id", "c1").append("lastUpdate", new Date())
+            .append("resources", List.of(new Document("path", "/users").append("httpMethod", "GET")));
+
+    private ContainerResourceMigration migration;
+
+    private MongoTemplate mongoTemplate;
+
+    private ContainerResourceStore resourceStore;
+
+    private RuntimeResourceCacheService runtimeResourceCacheService;
+
+    @BeforeEach
+    public void init() {
+        mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.getCollectionName(Container.class)).thenReturn(COLLECTION);
+        when(mongoTemplate.exists(any(Query.class), eq("migration"))).thenReturn(false);
+        when(mongoTemplate.stream(any(Query.class), eq(Document.class), eq(COLLECTION)))
+                .thenAnswer(invocation -> Stream.of(container));
+        resourceStore = mock(ContainerResourceStore.class);
+        SchedulerLock schedulerLock = mock(SchedulerLock.class);
+        when(schedulerLock.runLocked(anyString(), anyLong(), anyLong(), any(Runnable.class))).thenAnswer(invocation -> {
+            invocation.<Runnable>getArgument(3).run();
+            return true;
+        });
+        migration = new ContainerResourceMigration();
+        ReflectionTestUtils.setField(migration, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(migration, "resourceStore", resourceStore);
+        ReflectionTestUtils.setField(migration, "schedulerLock", schedulerLock);
+        runtimeResourceCacheService = mock(RuntimeResourceCacheService.class);
+        ReflectionTestUtils.setField(migration, "runtimeResourceCacheService", runtimeResourceCacheService);
+    }
+
+    @Test
+    public void testResourcesAreStoredOnceTheContainerIsClaimed() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class),
+                any(FindAndModifyOptions.class), eq(Document.class), eq(COLLECTION))).thenReturn(container);
+
+        migration.migrate();
+
+        ArgumentCaptor<Query> claim = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).findAndModify(claim.capture(), any(UpdateDefinition.class),
+                any(FindAndModifyOptions.class), eq(Document.class), eq(COLLECTION));
+        assertEquals(container.get("lastUpdate"), claim.getValue().getQueryObject().get("lastUpdate"));
+        verify(resourceStore).save(eq("c1"), anyList());
+        // Cached while the container was claimed
+        verify(runtimeResourceCacheService).evictContainer("c1");
+        verify(mongoTemplate).insert(any(Document.class), eq("migration"));
+    }
+
+    @Test
+    public void testContainerSavedMeanwhileIsSkipped() {
+        // The claim finds no unchanged container
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class),
+                any(FindAndModifyOptions.class), eq(Document.class), eq(COLLECTION))).thenReturn(null);
+
+        migration.migrate();
+
+        verify(resourceStore, never()).save(anyString(), anyList());
+        verify(runtimeResourceCacheService, never()).evictContainer(anyString());
+        verify(mongoTemplate).insert(any(Document.class), eq("migration"));
+    }
+
+    @Test
+    public void testResourcesAreEmbeddedAgainWhenTheStoreFails() {
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class),
+                any(FindAndModifyOptions.class), eq(Document.class), eq(COLLECTION))).thenReturn(container);
+        doThrow(new IllegalStateException("down")).when(resourceStore).save(anyString(), anyList());
+
+        assertThrows(IllegalStateException.class, () -> migration.migrate());
+
+        ArgumentCaptor<UpdateDefinition> restore = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), restore.capture(), eq(COLLECTION));
+        assertEquals(container.get("resources"),
+                restore.getValue().getUpdateObject().get("$set", Document.class).get("resources"));
+        verify(runtimeResourceCacheService).evictContainer("c1");
+        verify(mongoTemplate, never()).insert(any(Document.class), eq("migration"));
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2020 CodeOnce Software (https://www.codeonce.fr/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.codeonce.grizzly.core.service.test.container;
+
+import fr.codeonce.grizzly.core.domain.resource.ContainerResource;
+import fr.codeonce.grizzly.core.domain.resource.Resource;
+import fr.codeonce.grizzly.core.service.container.ContainerResourceStore;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContainerResourceStoreTest {
+
+    private static final String CONTAINER_ID = "container";
+
+    private final MappingMongoConverter converter = converter();
+
+    private final List<ContainerResource> stored = new ArrayList<>();
+
+    private ContainerResourceStore resourceStore;
+
+    private BulkOperations operations;
+
+    @BeforeEach
+    public void init() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        operations = mock(BulkOperations.class);
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(mongoTemplate.find(any(Query.class), eq(ContainerResource.class))).thenReturn(stored);
+        when(mongoTemplate.bulkOps(BulkMode.UNORDERED, ContainerResource.class)).thenReturn(operations);
+        resourceStore = new ContainerResourceStore();
+        ReflectionTestUtils.setField(resourceStore, "mongoTemplate", mongoTemplate);
+    }
+
+    @Test
+    public void testOnlyTheChangedResourcesAreWritten() {
+        Resource unchanged = resource("GET", "/users", "list");
+        Resource changed = resource("POST", "/users", "create");
+        stored.add(stored("1", unchanged, 0));
+        stored.add(stored("2", resource("POST", "/users", "add"), 1));
+        stored.add(stored("3", resource("DELETE", "/users", "delete"), 2));
+
+        resourceStore.save(CONTAINER_ID, Arrays.asList(unchanged, changed, resource("PUT", "/users", "update")));
+
+        ArgumentCaptor<Query> added = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> addedUpdate = ArgumentCaptor.forClass(Update.class);
+        verify(operations).upsert(added.capture(), addedUpdate.capture());
+        assertEquals("PUT", added.getValue().getQueryObject().get("httpMethod"));
+        assertEquals(0, added.getValue().getQueryObject().get("occurrence"));
+        assertEquals(2, addedUpdate.getValue().getUpdateObject().get("$set", Document.class).get("position"));
+        ArgumentCaptor<Query> updated = ArgumentCaptor.forClass(Query.class);
+        verify(operations).updateOne(updated.capture(), any(Update.class));
+        assertEquals("2", updated.getValue().getQueryObject().get("_id"));
+        ArgumentCaptor<Query> removed = ArgumentCaptor.forClass(Query.class);
+        verify(operations).remove(removed.capture());
+        assertEquals(new Document("$in", List.of("3")), removed.getValue().getQueryObject().get("_id"));
+        verify(operations, times(1)).execute();
+    }
+
+    @Test
+    public void testUnchangedResourcesAreNotWritten() {
+        Resource first = resource("GET", "/users", "list");
+        Resource second = resource("GET", "/users/{id}", "get");
+        stored.add(stored("1", first, 0));
+        stored.add(stored("2", second, 1));
+
+        resourceStore.save(CONTAINER_ID, Arrays.asList(first, second));
+
+        verify(operations, never()).execute();
+    }
+
+    @Test
+    public void testMovedResourcesOnlyGetTheirPosition() {
+        Resource first = resource("GET", "/users", "list");
+        Resource second = resource("GET", "/users/{id}", "get");
+        stored.add(stored("1", first, 0));
+        stored.add(stored("2", second, 1));
+
+        resourceStore.save(CONTAINER_ID, Arrays.asList(second, first));
+
+        ArgumentCaptor<Update> updates = ArgumentCaptor.forClass(Update.class);
+        verify(operations, times(2)).updateOne(any(Query.class), updates.capture());
+        updates.getAllValues().forEach(update -> assertEquals(Set.of("position", "occurrence"),
+                update.getUpdateObject().get("$set", Document.class).keySet()));
+        verify(operations, never()).upsert(any(Query.class), any(Update.class));
+        verify(operations, times(1)).execute();
+    }
+
+    @Test
+    public void testDuplicatedRoutesAreKeyedByOccurrence() {
+        resourceStore.save(CONTAINER_ID, Arrays.asList(resource("GET", "/users", "list"),
+                resource("GET", "/users", "search")));
+
+        ArgumentCaptor<Query> upserted = ArgumentCaptor.forClass(Query.class);
+        verify(operations, times(2)).upsert(upserted.capture(), any(Update.class));
+        assertEquals(0, upserted.getAllValues().get(0).getQueryObject().get("occurrence"));
+        assertEquals(1, upserted.getAllValues().get(1).getQueryObject().get("occurrence"));
+        verify(operations, times(1)).execute();
+    }
+
+    private static MappingMongoConverter converter() {
+        MongoCustomConversions conversions = new MongoCustomConversions(Collections.emptyList());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    private Resource resource(String httpMethod, String path, String name) {
+        Resource resource = new Resource();
+        resource.setHttpMethod(httpMethod);
+        resource.setPath(path);
+        resource.setName(name);
+        return resource;
+    }
+
+    private ContainerResource stored(String id, Resource resource, int position) {
+        ContainerResource stored = new ContainerResource();
+        stored.setId(id);
+        stored.setContainerId(CONTAINER_ID);
+        stored.setHttpMethod(resource.getHttpMethod());
+        stored.setPath(resource.getPath());
+        stored.setPosition(position);
+        Document document = new Document();
+        converter.write(resource, document);
+        stored.setHash(DigestUtils.sha256Hex(document.toJson()));
+        return stored;
+    }
+
+}